@@ -34,6 +34,10 @@ public class Thread {
 	
 	public synchronized void start() {
 		
+	}
+
+	public final void setDaemon(boolean on) {
+
 	}
 	
 	public ClassLoader getContextClassLoader() {
@@ -330,7 +330,24 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public <U> CompletionStage<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn) {     throw new IllegalStateException("Unimplemented!");   }
 
-    public <U> CompletionStage<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn, Executor executor) {     throw new IllegalStateException("Unimplemented!");   }
+    public <U> CompletableFuture<U> thenComposeAsync(Function<? super T, ? extends CompletionStage<U>> fn, Executor executor) {
+        return thenCompose(value -> {
+            CompletableFuture<U> fut = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    fn.apply(value)
+                            .thenAccept(fut::complete)
+                            .exceptionally(t -> {
+                                fut.completeExceptionally(t);
+                                return null;
+                            });
+                } catch (Throwable t) {
+                    fut.completeExceptionally(t);
+                }
+            });
+            return fut;
+        });
+    }
 
     public CompletionStage<T> whenComplete(BiConsumer<? super T, ? super Throwable> action) {     throw new IllegalStateException("Unimplemented!");   }
 
@@ -0,0 +1,7 @@
+package java.util.concurrent;
+
+public interface ExecutorService extends Executor {
+    void shutdown();
+
+    boolean isShutdown();
+}
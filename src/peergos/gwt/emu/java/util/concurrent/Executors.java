@@ -0,0 +1,29 @@
+package java.util.concurrent;
+
+/** Emulation of Executors. There is only one thread in the browser, so tasks are run by the caller.
+ */
+public class Executors {
+
+    public static ExecutorService newCachedThreadPool(ThreadFactory threadFactory) {
+        return new ExecutorService() {
+            private boolean isShutdown = false;
+
+            @Override
+            public void execute(Runnable command) {
+                if (isShutdown)
+                    throw new IllegalStateException("Executor has been shut down!");
+                command.run();
+            }
+
+            @Override
+            public void shutdown() {
+                isShutdown = true;
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return isShutdown;
+            }
+        };
+    }
+}
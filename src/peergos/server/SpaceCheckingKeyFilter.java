@@ -11,20 +11,35 @@ import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
+import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 /** This class checks whether a given user is using more storage space than their quota
  *
  */
 public class SpaceCheckingKeyFilter {
+    private static final int LOAD_THREADS = 20;
+    private static final long SAVE_PERIOD_MS = 60_000;
+    private static final long PROGRESS_PERIOD_MS = 10_000;
 
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private Function<String, Long> quotaSupplier;
+    private final Optional<Path> statePath;
+    private final AtomicLong usersToLoad = new AtomicLong(0), usersLoaded = new AtomicLong(0);
+    private volatile boolean dirty, loaded;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Space usage saver");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final Map<PublicKeyHash, Stat> currentView = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
@@ -42,6 +57,28 @@ public class SpaceCheckingKeyFilter {
             this.ownedKeys = ownedKeys;
         }
 
+        public synchronized CborObject toCbor(PublicKeyHash writer) {
+            return new CborObject.CborList(Arrays.asList(
+                    writer.toCbor(),
+                    new CborObject.CborString(owner),
+                    target.toCbor(),
+                    new CborObject.CborLong(directRetainedStorage),
+                    new CborObject.CborList(ownedKeys.stream().map(PublicKeyHash::toCbor).collect(Collectors.toList()))
+            ));
+        }
+
+        public static Pair<PublicKeyHash, Stat> fromCbor(Cborable cbor) {
+            List<? extends Cborable> elements = ((CborObject.CborList) cbor).value;
+            PublicKeyHash writer = PublicKeyHash.fromCbor(elements.get(0));
+            String owner = ((CborObject.CborString) elements.get(1)).value;
+            MaybeMultihash target = MaybeMultihash.fromCbor(elements.get(2));
+            long directRetainedStorage = ((CborObject.CborLong) elements.get(3)).value;
+            Set<PublicKeyHash> ownedKeys = ((CborObject.CborList) elements.get(4)).value.stream()
+                    .map(PublicKeyHash::fromCbor)
+                    .collect(Collectors.toSet());
+            return new Pair<>(writer, new Stat(owner, target, directRetainedStorage, ownedKeys));
+        }
+
         public synchronized void update(MaybeMultihash target, Set<PublicKeyHash> ownedKeys, long retainedStorage) {
             this.target = target;
             this.ownedKeys = Collections.unmodifiableSet(ownedKeys);
@@ -102,13 +139,88 @@ public class SpaceCheckingKeyFilter {
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
                                   Function<String, Long> quotaSupplier) {
+        this(core, mutable, dht, quotaSupplier, Optional.empty());
+    }
+
+    /**
+     *
+     * @param core
+     * @param mutable
+     * @param dht
+     * @param quotaSupplier The quota supplier
+     * @param statePath Where to persist the usage and last seen root of each writer, so that a restart only needs to
+     *                  process the changes since then
+     */
+    public SpaceCheckingKeyFilter(CoreNode core,
+                                  MutablePointers mutable,
+                                  ContentAddressedStorage dht,
+                                  Function<String, Long> quotaSupplier,
+                                  Optional<Path> statePath) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.quotaSupplier = quotaSupplier;
+        this.statePath = statePath;
+        statePath.ifPresent(this::loadState);
         // It's okay to do this asynchronously, as any users that try to write will get an error until their usage has
         // been loaded
-        new Thread(this::loadAllOwners).start();
+        new Thread(() -> {
+            loadAllOwners();
+            statePath.ifPresent(this::saveState);
+            loaded = true;
+        }).start();
+        statePath.ifPresent(path -> saver.scheduleWithFixedDelay(() -> saveIfDirty(path),
+                SAVE_PERIOD_MS, SAVE_PERIOD_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void loadState(Path path) {
+        if (! path.toFile().exists())
+            return;
+        try {
+            CborObject.CborList stats = (CborObject.CborList) CborObject.fromByteArray(Files.readAllBytes(path));
+            for (Cborable cbor : stats.value) {
+                Pair<PublicKeyHash, Stat> stat = Stat.fromCbor(cbor);
+                currentView.put(stat.left, stat.right);
+                usage.computeIfAbsent(stat.right.owner, u -> new Usage(0))
+                        .confirmUsage(stat.left, stat.right.getDirectRetainedStorage());
+            }
+            System.out.println("Loaded space usage for " + currentView.size() + " writers from " + path);
+        } catch (Exception e) {
+            // Any writers we failed to load will have their usage recalculated from scratch
+            System.err.println("Error loading space usage from " + path);
+            e.printStackTrace();
+            currentView.clear();
+            usage.clear();
+        }
+    }
+
+    private synchronized void saveState(Path path) {
+        dirty = false;
+        List<CborObject> stats = currentView.entrySet().stream()
+                .map(e -> e.getValue().toCbor(e.getKey()))
+                .collect(Collectors.toList());
+        try {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, new CborObject.CborList(stats).toByteArray());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            System.err.println("Error saving space usage to " + path);
+            e.printStackTrace();
+        }
+    }
+
+    // the state is only saved once every writer has been loaded
+    private void saveIfDirty(Path path) {
+        if (loaded && dirty)
+            saveState(path);
+    }
+
+    /** Stop saving periodically, and save any changes since the last save
+     */
+    public void close() {
+        saver.shutdown();
+        statePath.ifPresent(this::saveIfDirty);
     }
 
     private void loadAllOwners() {
@@ -116,25 +228,30 @@ public class SpaceCheckingKeyFilter {
             List<String> usernames = core.getUsernames("").get();
             if (usernames.size() == 0)
                 return;
-            int threads = Math.min(usernames.size(), 1000);
-            ExecutorService pool = Executors.newFixedThreadPool(threads);
-            int usersPerThread = (usernames.size() + usernames.size() - 1)/ threads;
+            usersToLoad.set(usernames.size());
+            ForkJoinPool pool = new ForkJoinPool(Math.min(usernames.size(), LOAD_THREADS));
             long t1 = System.currentTimeMillis();
-            List<Future<Boolean>> progress = new ArrayList<>();
-            for (int t=0; t < threads; t++) {
-                List<String> ourUsernames = usernames.subList(t * usersPerThread, Math.min((t + 1) * usersPerThread, usernames.size()));
-                progress.add(pool.submit(() -> {
-                    for (String username : ourUsernames) {
-                        System.out.println(LocalDateTime.now() + " Loading " + username);
-                        Optional<PublicKeyHash> publicKeyHash = core.getPublicKeyHash(username).get();
-                        publicKeyHash.ifPresent(keyHash -> processCorenodeEvent(username, keyHash));
-                        System.out.println(LocalDateTime.now() + " finished loading " + username);
+            List<ForkJoinTask<?>> progress = usernames.stream()
+                    .map(username -> pool.submit(() -> {
+                        try {
+                            Optional<PublicKeyHash> publicKeyHash = core.getPublicKeyHash(username).get();
+                            publicKeyHash.ifPresent(keyHash -> processCorenodeEvent(username, keyHash));
+                        } catch (Exception e) {
+                            System.err.println("Error loading storage for user: " + username);
+                            e.printStackTrace();
+                        }
+                        usersLoaded.incrementAndGet();
+                    }))
+                    .collect(Collectors.toList());
+            for (ForkJoinTask<?> task : progress) {
+                while (true) {
+                    try {
+                        task.get(PROGRESS_PERIOD_MS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        printLoadProgress(t1);
                     }
-                    return true;
-                }));
-            }
-            for (Future<Boolean> future : progress) {
-                future.get();
+                }
             }
             long t2 = System.currentTimeMillis();
             pool.shutdown();
@@ -144,6 +261,26 @@ public class SpaceCheckingKeyFilter {
         }
     }
 
+    private void printLoadProgress(long startTime) {
+        long loaded = usersLoaded.get(), total = usersToLoad.get();
+        long elapsed = System.currentTimeMillis() - startTime;
+        long remaining = loaded == 0 ? -1 : elapsed * (total - loaded) / loaded / 1000;
+        System.out.println(LocalDateTime.now() + " Loaded space usage for " + loaded + " of " + total + " users"
+                + (remaining >= 0 ? ", about " + remaining + " s remaining" : ""));
+    }
+
+    /**
+     *
+     * @return the number of users whose usage has been loaded since startup, and the total number to load
+     */
+    public Pair<Long, Long> getLoadProgress() {
+        return new Pair<>(usersLoaded.get(), usersToLoad.get());
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
     public void accept(CorenodeEvent event) {
         currentView.computeIfAbsent(event.keyHash, k -> new Stat(event.username, MaybeMultihash.empty(), 0, Collections.emptySet()));
         usage.putIfAbsent(event.username, new Usage(0));
@@ -191,6 +328,7 @@ public class SpaceCheckingKeyFilter {
             throw new IllegalStateException("Unknown writer key hash: " + writer);
         if (! newRoot.isPresent()) {
             current.update(MaybeMultihash.empty(), Collections.emptySet(), 0);
+            dirty = true;
             if (existingRoot.isPresent()) {
                 try {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dups)
@@ -217,6 +355,7 @@ public class SpaceCheckingKeyFilter {
                 removedChildren.removeAll(updatedOwned);
                 processRemovedOwnedKeys(removedChildren);
                 current.update(newRoot, updatedOwned, current.directRetainedStorage + changeInStorage);
+                dirty = true;
             }
         } catch (Exception e) {
             Exceptions.getRootCause(e).printStackTrace();
@@ -234,6 +373,15 @@ public class SpaceCheckingKeyFilter {
         }
     }
 
+    /**
+     *
+     * @param username
+     * @return the confirmed and pending storage used by the user, if their usage has been loaded
+     */
+    public Optional<Long> getUsage(String username) {
+        return Optional.ofNullable(usage.get(username)).map(Usage::usage);
+    }
+
     public boolean allowWrite(PublicKeyHash writer, int size) {
         Stat state = currentView.get(writer);
         if (state == null)
@@ -6,6 +6,7 @@ import peergos.shared.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.symmetric.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.server.fuse.*;
@@ -26,7 +27,7 @@ import java.util.stream.Stream;
 public class Start
 {
     static {
-        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.OptimizedJava());
     }
 
     public static Command CORE_NODE = new Command("core",
@@ -34,9 +35,11 @@ public class Start
             Start::startCoreNode,
             Stream.of(
                     new Command.Arg("corenodePath", "Path to a local corenode sql file (created if it doesn't exist)", false, ":memory:"),
+                    new Command.Arg("corenodeConnections", "Number of connections to the corenode sql file", false, "" + UserRepository.DEFAULT_CONNECTIONS),
                     new Command.Arg("keyfile", "Path to keyfile", false),
                     new Command.Arg("passphrase", "Passphrase for keyfile", false),
-                    new Command.Arg("corenodePort", "Service port", true, "" + HttpCoreNodeServer.PORT)
+                    new Command.Arg("corenodePort", "Service port", true, "" + HttpCoreNodeServer.PORT),
+                    new Command.Arg("java-crypto", "Pure Java crypto implementation to use: optimized or tweetnacl", false, "optimized")
             ).collect(Collectors.toList())
     );
 
@@ -47,10 +50,13 @@ public class Start
                     new Command.Arg("port",  "service port", false, "8000"),
                     new Command.Arg("corenodeURL", "Core node address", false, "http://localhost:" + HttpCoreNodeServer.PORT),
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
-                    new Command.Arg("useIPFS", "Use IPFS for storage or ephemeral RAM store", false, "true"),
+                    new Command.Arg("useIPFS", "Use IPFS for storage or a local block store", false, "true"),
+                    new Command.Arg("blockstorePath", "Directory for a persistent local block store, used when not using IPFS (an ephemeral RAM store is used if absent)", false),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("publicserver", "listen on all network interfaces, not just localhost", false),
-                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024))
+                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
+                    new Command.Arg("space-usage-path", "Path to a file persisting each writer's space usage between restarts (usage is recalculated from scratch if absent)", false),
+                    new Command.Arg("java-crypto", "Pure Java crypto implementation to use: optimized or tweetnacl", false, "optimized")
             ).collect(Collectors.toList())
     );
 
@@ -59,6 +65,7 @@ public class Start
             args -> {
                 args.setIfAbsent("domain", "demo.peergos.net");
                 args.setIfAbsent("corenodePath", "core.sql");
+                args.setIfAbsent("space-usage-path", "space-usage.cbor");
                 args.setIfAbsent("useIPFS", "true");
                 args.setIfAbsent("publicserver", "true");
                 CORE_NODE.main(args);
@@ -96,17 +103,16 @@ public class Start
     public static void startPeergos(Args a) {
 
         try {
-            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+            setJavaCrypto(a);
 
             int webPort = a.getInt("port");
             URL coreAddress = new URI(a.getArg("corenodeURL")).toURL();
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            boolean useIPFS = a.getBoolean("useIPFS");
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = 50 * 1024 * 1024;
             int maxValueSizeToCache = 50 * 1024;
-            ContentAddressedStorage dht = useIPFS ? new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) : RAMStorage.getSingleton();
+            ContentAddressedStorage dht = buildStorage(a, dhtCacheBytes, maxValueSizeToCache);
 
             // start the User Service
             String hostname = a.getArg("domain");
@@ -130,6 +136,27 @@ public class Start
         }
     }
 
+    private static void setJavaCrypto(Args a) {
+        String impl = a.getArg("java-crypto", "optimized");
+        if (impl.equals("tweetnacl")) {
+            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+            SymmetricKey.addProvider(SymmetricKey.Type.TweetNaCl, new Salsa20Poly1305.Java());
+        } else if (impl.equals("optimized")) {
+            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.OptimizedJava());
+            SymmetricKey.addProvider(SymmetricKey.Type.TweetNaCl, new Salsa20Poly1305.OptimizedJava());
+        } else
+            throw new IllegalStateException("Unknown java-crypto implementation: " + impl);
+    }
+
+    private static ContentAddressedStorage buildStorage(Args a, long dhtCacheBytes, int maxValueSizeToCache) {
+        if (a.getBoolean("useIPFS"))
+            return new CachingStorage(new IpfsDHT(), dhtCacheBytes, maxValueSizeToCache);
+        if (a.hasArg("blockstorePath"))
+            return new CachingStorage(new FileContentAddressedStorage(Paths.get(a.getArg("blockstorePath"))),
+                    dhtCacheBytes, maxValueSizeToCache);
+        return RAMStorage.getSingleton();
+    }
+
     public static void startFuse(Args a) {
         String username = a.getArg("username", "test01");
         String password = a.getArg("password", "test01");
@@ -162,20 +189,19 @@ public class Start
     }
 
     public static void startCoreNode(Args a) {
+        setJavaCrypto(a);
         String keyfile = a.getArg("keyfile", "core.key");
         char[] passphrase = a.getArg("passphrase", "password").toCharArray();
         String path = a.getArg("corenodePath");
         int corenodePort = a.getInt("corenodePort");
         int maxUserCount = a.getInt("maxUserCount", CoreNode.MAX_USERNAME_COUNT);
+        int connections = a.getInt("corenodeConnections", UserRepository.DEFAULT_CONNECTIONS);
         System.out.println("Using core node path " + path);
-        boolean useIPFS = a.getBoolean("useIPFS");
-        int dhtCacheEntries = 1000;
+        long dhtCacheBytes = 50 * 1024 * 1024;
         int maxValueSizeToCache = 2 * 1024 * 1024;
-        ContentAddressedStorage dht = useIPFS ?
-                new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) :
-                RAMStorage.getSingleton();
+        ContentAddressedStorage dht = buildStorage(a, dhtCacheBytes, maxValueSizeToCache);
         try {
-            UserRepository userRepository = UserRepository.buildSqlLite(path, dht, maxUserCount);
+            UserRepository userRepository = UserRepository.buildSqlLite(path, dht, maxUserCount, connections);
             HttpCoreNodeServer.createAndStart(keyfile, passphrase, corenodePort, userRepository, userRepository, a);
         } catch (SQLException e) {
             throw new RuntimeException(e);
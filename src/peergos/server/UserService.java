@@ -17,6 +17,7 @@ import java.net.*;
 import java.nio.file.*;
 import java.security.*;
 import java.security.cert.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.Logger;
@@ -162,7 +163,11 @@ public class UserService
         System.out.println("Using default user space quota of " + defaultQuota);
         Path quotaFilePath = Paths.get("quotas.txt");
         UserQuotas userQuotas = new UserQuotas(quotaFilePath, defaultQuota);
-        SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(coreNode, mutable, dht, userQuotas::quota);
+        Optional<Path> spaceUsagePath = args.hasArg("space-usage-path") ?
+                Optional.of(Paths.get(args.getArg("space-usage-path"))) :
+                Optional.empty();
+        SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(coreNode, mutable, dht, userQuotas::quota, spaceUsagePath);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> spaceChecker.close()));
 
         server.createContext(DHT_URL,
                 wrap.apply(new DHTHandler(dht, spaceChecker::allowWrite)));
@@ -176,6 +181,10 @@ public class UserService
         mutablePropagator.addListener(spaceChecker::accept);
         server.createContext("/" + HttpMutablePointerServer.MUTABLE_POINTERS_URL,
                 wrap.apply(new HttpMutablePointerServer.MutationHandler(mutablePropagator)));
+        PointerWatchers pointerWatchers = new PointerWatchers();
+        mutablePropagator.addListener(pointerWatchers);
+        server.createContext("/" + HttpMutablePointerServer.WATCH_URL,
+                wrap.apply(new HttpMutablePointerServer.WatchHandler(pointerWatchers)));
 
         server.createContext(SIGNUP_URL,
                 wrap.apply(new InverseProxyHandler("demo.peergos.net", isLocal)));
@@ -53,6 +53,16 @@ public class CorenodeEventPropagator implements CoreNode {
         return target.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return target.getUsernames(prefix, limit);
+    }
+
+    @Override
+    public CompletableFuture<UsernameUpdate> getUsernamesSince(long version) {
+        return target.getUsernamesSince(version);
+    }
+
     @Override
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash target, byte[] encryptedPermission) {
         return this.target.addFollowRequest(target, encryptedPermission);
@@ -5,6 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.corenode.CoreNode;
 import peergos.shared.corenode.CoreNodeUtils;
 import peergos.shared.corenode.UserPublicKeyLink;
+import peergos.shared.corenode.UsernameUpdate;
 
 import java.net.*;
 import java.io.*;
@@ -32,6 +33,9 @@ public class HttpCoreNodeServer
     public static class CoreNodeHandler implements HttpHandler
     {
         private final CoreNode coreNode;
+        // the gzipped json of every username, which is only regenerated when there are new usernames
+        private final List<String> snapshotUsernames = new ArrayList<>();
+        private byte[] snapshotGzip;
 
         public CoreNodeHandler(CoreNode coreNode) {
             this.coreNode = coreNode;
@@ -70,7 +74,11 @@ public class HttpCoreNodeServer
                     case "getUsernamesGzip":
                         exchange.getResponseHeaders().set("Content-Encoding", "gzip");
                         exchange.getResponseHeaders().set("Content-Type", "application/json");
-                        getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
+                        getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "",
+                                subComponents.length > 2 ? Integer.parseInt(subComponents[2]) : Integer.MAX_VALUE, din, dout);
+                        break;
+                    case "getUsernamesSince":
+                        getUsernamesSince(din, dout);
                         break;
                     case "followRequest":
                         followRequest(din, dout);
@@ -152,15 +160,49 @@ public class HttpCoreNodeServer
             Serialize.serialize(k, dout);
         }
 
-        void getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
+        void getAllUsernamesGzip(String prefix, int limit, DataInputStream din, DataOutputStream dout) throws Exception
         {
-            List<String> res = coreNode.getUsernames(prefix).get();
+            if (prefix.isEmpty() && limit == Integer.MAX_VALUE) {
+                dout.write(getSnapshotGzip());
+                return;
+            }
+            List<String> res = coreNode.getUsernames(prefix, limit).get();
+            dout.write(gzipJson(res));
+        }
+
+        private byte[] getSnapshotGzip() throws Exception {
+            long version;
+            synchronized (this) {
+                version = snapshotUsernames.size();
+            }
+            UsernameUpdate update = coreNode.getUsernamesSince(version).get();
+            synchronized (this) {
+                // another request may have already updated the snapshot past this version
+                if (snapshotGzip != null && update.version <= snapshotUsernames.size())
+                    return snapshotGzip;
+                int alreadyAdded = snapshotUsernames.size() - (int) version;
+                for (String username : update.added.subList(alreadyAdded, update.added.size())) {
+                    int index = Collections.binarySearch(snapshotUsernames, username);
+                    snapshotUsernames.add(-(index + 1), username);
+                }
+                snapshotGzip = gzipJson(snapshotUsernames);
+                return snapshotGzip;
+            }
+        }
+
+        private static byte[] gzipJson(List<String> usernames) throws IOException {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
             GZIPOutputStream gout = new GZIPOutputStream(bout);
-            gout.write(JSONParser.toString(res).getBytes());
+            gout.write(JSONParser.toString(usernames).getBytes());
             gout.flush();
             gout.close();
-            dout.write(bout.toByteArray());
+            return bout.toByteArray();
+        }
+
+        void getUsernamesSince(DataInputStream din, DataOutputStream dout) throws Exception
+        {
+            long version = din.readLong();
+            coreNode.getUsernamesSince(version).get().serialize(dout);
         }
 
         void followRequest(DataInputStream din, DataOutputStream dout) throws Exception
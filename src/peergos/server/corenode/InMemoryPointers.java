@@ -0,0 +1,215 @@
+package peergos.server.corenode;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Holds every writer's current pointer in memory, and persists changes to the database.
+ *
+ *  The compare and swap of each update is done atomically under a lock for its writer, taken from a fixed set of
+ *  locks. Changes are written to the database in batches, one transaction at a time, and an update completes once the
+ *  batch containing it has been committed. Reads never touch the database.
+ */
+public class InMemoryPointers implements MutablePointers {
+    public static final boolean LOGGING = false;
+    private static final int LOCK_STRIPES = 256;
+    public static final int DEFAULT_MAX_WRITE_ATTEMPTS = 10;
+    public static final long DEFAULT_WRITE_RETRY_DELAY_MS = 1000;
+
+    private final ContentAddressedStorage ipfs;
+    private final JDBCCoreNode store;
+    private final int maxWriteAttempts;
+    private final long writeRetryDelayMs;
+    private final ConcurrentHashMap<PublicKeyHash, Pointer> pointers = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Mutable pointer writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // everything below is guarded by the batch lock
+    private final Object batchLock = new Object();
+    private Map<PublicKeyHash, byte[]> unwritten = new HashMap<>();
+    // each unwritten writer's pointer before its first unwritten update, or null if it had none
+    private Map<PublicKeyHash, Pointer> replaced = new HashMap<>();
+    private List<CompletableFuture<Boolean>> waiting = new ArrayList<>();
+    private boolean isWriting = false;
+
+    public InMemoryPointers(ContentAddressedStorage ipfs, JDBCCoreNode store) {
+        this(ipfs, store, DEFAULT_MAX_WRITE_ATTEMPTS, DEFAULT_WRITE_RETRY_DELAY_MS);
+    }
+
+    public InMemoryPointers(ContentAddressedStorage ipfs, JDBCCoreNode store, int maxWriteAttempts, long writeRetryDelayMs) {
+        this.ipfs = ipfs;
+        this.store = store;
+        this.maxWriteAttempts = maxWriteAttempts;
+        this.writeRetryDelayMs = writeRetryDelayMs;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        for (Map.Entry<PublicKeyHash, byte[]> e : store.getAllPointers().entrySet())
+            pointers.put(e.getKey(), new Pointer(e.getValue()));
+    }
+
+    private static class Pointer {
+        final byte[] signed;
+        // the root this points to, which is decoded lazily for pointers loaded from the database
+        private volatile MaybeMultihash root;
+
+        Pointer(byte[] signed) {
+            this.signed = signed;
+        }
+
+        Pointer(byte[] signed, MaybeMultihash root) {
+            this.signed = signed;
+            this.root = root;
+        }
+
+        MaybeMultihash getRoot(PublicSigningKey writerKey) {
+            if (root == null)
+                root = HashCasPair.fromCbor(CborObject.fromByteArray(writerKey.unsignMessage(signed))).updated;
+            return root;
+        }
+    }
+
+    private Object lockFor(PublicKeyHash writer) {
+        return locks[(writer.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+        Pointer current = pointers.get(writer);
+        return CompletableFuture.completedFuture(current == null ? Optional.empty() : Optional.of(current.signed));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        return ipfs.getSigningKey(writer).thenCompose(writerOpt -> {
+            try {
+                PublicSigningKey writerKey = writerOpt.get();
+                byte[] bothHashes = writerKey.unsignMessage(writerSignedBtreeRootHash);
+                // check CAS [current hash, new hash]
+                HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
+                synchronized (lockFor(writer)) {
+                    Pointer current = pointers.get(writer);
+                    MaybeMultihash existing = current == null ? MaybeMultihash.empty() : current.getRoot(writerKey);
+                    if (! existing.equals(cas.original))
+                        return CompletableFuture.completedFuture(false);
+                    if (LOGGING)
+                        System.out.println("Core::setMetadata for " + writer + " from " + existing + " to " + cas.updated);
+                    pointers.put(writer, new Pointer(writerSignedBtreeRootHash, cas.updated));
+                    // queue the write while holding the lock, so a writer's updates are persisted in order
+                    return persist(writer, writerSignedBtreeRootHash, current);
+                }
+            } catch (TweetNaCl.InvalidSignatureException e) {
+                System.err.println("Invalid signature during setMetadataBlob for sharer: " + writer);
+                return CompletableFuture.completedFuture(false);
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> persist(PublicKeyHash writer, byte[] signedPointer, Pointer previous) {
+        CompletableFuture<Boolean> res = new CompletableFuture<>();
+        synchronized (batchLock) {
+            unwritten.put(writer, signedPointer);
+            if (! replaced.containsKey(writer))
+                replaced.put(writer, previous);
+            waiting.add(res);
+            if (! isWriting) {
+                isWriting = true;
+                this.writer.execute(this::writeBatches);
+            }
+        }
+        return res;
+    }
+
+    /** Write everything queued in one transaction, then anything queued while doing so, until nothing is left.
+     *
+     *  A batch which can't be written after maxWriteAttempts fails the updates waiting on it, and if interrupted every
+     *  queued update fails. Failed updates are rolled back in memory, so we never serve a pointer the database lacks.
+     */
+    private void writeBatches() {
+        while (true) {
+            Map<PublicKeyHash, byte[]> batch;
+            Map<PublicKeyHash, Pointer> batchReplaced;
+            List<CompletableFuture<Boolean>> toComplete;
+            synchronized (batchLock) {
+                if (unwritten.isEmpty()) {
+                    isWriting = false;
+                    return;
+                }
+                batch = unwritten;
+                batchReplaced = replaced;
+                toComplete = waiting;
+                unwritten = new HashMap<>();
+                replaced = new HashMap<>();
+                waiting = new ArrayList<>();
+            }
+            // later updates stay queued until this batch is done, so each writer's updates are persisted in order
+            boolean written = false;
+            for (int attempt = 1; ; attempt++) {
+                written = store.setPointers(batch);
+                if (written || attempt == maxWriteAttempts)
+                    break;
+                try {
+                    Thread.sleep(writeRetryDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Map<PublicKeyHash, byte[]> queued;
+                    Map<PublicKeyHash, Pointer> queuedReplaced;
+                    synchronized (batchLock) {
+                        queued = unwritten;
+                        queuedReplaced = replaced;
+                        toComplete.addAll(waiting);
+                        unwritten = new HashMap<>();
+                        replaced = new HashMap<>();
+                        waiting = new ArrayList<>();
+                        isWriting = false;
+                    }
+                    // the queued updates are newer than the batch, so undo them first
+                    rollBack(queued, queuedReplaced);
+                    rollBack(batch, batchReplaced);
+                    failAll(toComplete, e);
+                    return;
+                }
+            }
+            if (written) {
+                for (CompletableFuture<Boolean> fut : toComplete)
+                    fut.complete(true);
+            } else {
+                rollBack(batch, batchReplaced);
+                failAll(toComplete, new IllegalStateException("Couldn't persist mutable pointers after " + maxWriteAttempts + " attempts"));
+            }
+        }
+    }
+
+    /** Restore the previous pointer of each writer whose pointer is still the unpersisted one
+     */
+    private void rollBack(Map<PublicKeyHash, byte[]> failed, Map<PublicKeyHash, Pointer> previous) {
+        for (Map.Entry<PublicKeyHash, byte[]> e : failed.entrySet()) {
+            PublicKeyHash writer = e.getKey();
+            synchronized (lockFor(writer)) {
+                Pointer current = pointers.get(writer);
+                if (current == null || ! Arrays.equals(current.signed, e.getValue()))
+                    continue;
+                Pointer before = previous.get(writer);
+                if (before == null)
+                    pointers.remove(writer);
+                else
+                    pointers.put(writer, before);
+            }
+        }
+    }
+
+    private static void failAll(List<CompletableFuture<Boolean>> futures, Throwable cause) {
+        for (CompletableFuture<Boolean> fut : futures)
+            fut.completeExceptionally(cause);
+    }
+}
@@ -21,8 +21,6 @@ import java.util.stream.*;
 public class JDBCCoreNode {
     public static final boolean LOGGING = false;
 
-    public static final long MIN_USERNAME_SET_REFRESH_PERIOD = 60*1000000000L;
-
     private static final String TABLE_NAMES_SELECT_STMT = "SELECT * FROM sqlite_master WHERE type='table';";
     private static final String CREATE_USERNAMES_TABLE =
             "create table usernames (id integer primary key autoincrement, name text not null unique);";
@@ -44,287 +42,69 @@ public class JDBCCoreNode {
         TABLES.put("metadatablobs", CREATE_METADATA_BLOBS_TABLE);
     }
 
-    private Connection conn;
-    private final UserSetCache userSet = new UserSetCache();
-
-    private static class UserSetCache {
-        private volatile List<String> userSet = null;
-        private volatile LocalDateTime nextExpiry = LocalDateTime.MIN;
-
-        public Optional<List<String>> getMostRecent() {
-            if (LocalDateTime.now().isBefore(nextExpiry))
-                return Optional.of(userSet);
-            return Optional.empty();
-        }
-
-        public void setUserSet(List<String> set) {
-            userSet = set;
-            nextExpiry = LocalDateTime.now().plusNanos(MIN_USERNAME_SET_REFRESH_PERIOD);
-        }
-    }
-
-    private abstract class RowData
-    {
-        public final String name;
-        public final byte[] data;
-        public final String b64string;
-        RowData(String name, byte[] data)
-        {
-            this(name,data,(data == null ? null: new String(Base64.getEncoder().encode(data))));
-        }
-
-        RowData(String name, String d)
-        {
-            this(name, Base64.getDecoder().decode(d), d);
-        }
+    private static final String SELECT_USERNAME = "select name from usernames u inner join chains ch on u.id=ch.userid " +
+            "inner join links ln on ch.linkid=ln.id and ln.publickey = ? limit 1";
+    private static final String SELECT_CHAIN = "select chains.lindex, links.publickey, links.link from links " +
+            "inner join chains on links.id=chains.linkid inner join usernames on chains.userid=usernames.id " +
+            "where usernames.name=? order by chains.lindex;";
+    private static final String COUNT_USERNAMES = "select count(name) from usernames;";
+    private static final String INSERT_USERNAME = "insert into usernames (name) VALUES(?);";
+    private static final String INSERT_LINK = "insert into links (publickey, link) VALUES(?, ?);";
+    private static final String UPDATE_LINK = "update links set link=? where links.publickey=?;";
+    private static final String INSERT_FIRST_CHAIN_LINK = "insert into chains (userid, linkid, lindex) " +
+            "select usernames.id, links.id, 0 from usernames join links where links.publickey=? and usernames.name=?;";
+    private static final String INSERT_NEXT_CHAIN_LINK = "insert into chains (userid, linkid, lindex) " +
+            "select usernames.id, links.id, " +
+            "((select max(lindex) from chains inner join usernames where " +
+            "chains.userid=usernames.id and usernames.name=?)+1) " +
+            "from usernames join links where links.publickey=? and usernames.name=?;";
+    private static final String SELECT_ALL_USERNAMES = "select name from usernames order by id;";
+    private static final String COUNT_FOLLOW_REQUESTS = "select count(*) from followrequests where name = ?;";
+    private static final String INSERT_FOLLOW_REQUEST = "insert into followrequests (name, followrequest) VALUES(?, ?);";
+    private static final String SELECT_FOLLOW_REQUESTS = "select followrequest from followrequests where name = ?;";
+    private static final String DELETE_FOLLOW_REQUEST = "delete from followrequests where name = ? and followrequest = ?;";
+    private static final String SET_POINTER = "INSERT OR REPLACE INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
+    private static final String SELECT_POINTER = "select hash from metadatablobs where writingkey = ?;";
+    private static final String SELECT_ALL_POINTERS = "select writingkey, hash from metadatablobs;";
+
+    // connections which aren't in use
+    private final BlockingQueue<PooledConnection> pool;
+    private final List<PooledConnection> connections;
+    // sqlite only allows one writer at a time, so we queue writers here rather than have them spin on a busy database
+    private final Object writeLock = new Object();
+    private final UsernameIndex usernames;
+
+    /** A connection along with the statements which have been prepared on it, so they are only compiled once
+     */
+    private static class PooledConnection {
+        final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
 
-        RowData(String name, byte[] data, String b64string)
-        {
-            this.name = name;
-            this.data = data;
-            this.b64string = b64string;
+        PooledConnection(Connection conn) {
+            this.conn = conn;
         }
 
-
-        abstract String b64DataName();
-        abstract String insertStatement();
-        abstract String selectStatement();
-        abstract String deleteStatement();
-
-        public boolean insert()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement(insertStatement());
-                stmt.setString(1,this.name);
-                stmt.setString(2,this.b64string);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                sqe.printStackTrace();
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt != null) {
+                stmt.clearParameters();
+                return stmt;
             }
+            stmt = conn.prepareStatement(sql);
+            statements.put(sql, stmt);
+            return stmt;
         }
 
-        public RowData[] select()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement(selectStatement());
-                ResultSet rs = stmt.executeQuery();
-                List<RowData> list = new ArrayList<>();
-                while (rs.next())
-                {
-                    String username = rs.getString("name");
-                    String b64string = rs.getString(b64DataName());
-                    list.add(new UserData(username, b64string));
-                }
-                return list.toArray(new RowData[0]);
-            } catch (SQLException sqe) {
-                sqe.printStackTrace();
-                return null;
-            }finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
+        void close() throws SQLException {
+            for (PreparedStatement stmt : statements.values())
+                stmt.close();
+            statements.clear();
+            conn.close();
         }
-
-
-        public boolean delete()
-        {
-            Statement stmt = null;
-            try
-            {
-                stmt = conn.createStatement();
-                stmt.executeUpdate(deleteStatement());
-                return true;
-            } catch (SQLException sqe) {
-                System.err.println(deleteStatement());
-                sqe.printStackTrace();
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
-        }
-
     }
 
-    private class UserData extends RowData
-    {
-        UserData(String name, byte[] publicKey)
-        {
-            super(name, publicKey);
-        }
-        UserData(String name, String d)
-        {
-            super(name, d);
-        }
-
-        public String b64DataName(){return DATA_NAME;}
-        public String insertStatement(){return "insert into users (name, publickey) VALUES(?, ?);";}
-        public String selectStatement(){return "select name, "+b64DataName()+" from users where name = '"+name+"';";}
-        public String deleteStatement(){return "delete from users where name = \""+ name +"\" and "+ b64DataName()+ " = \""+ b64string + "\";";}
-        static final String DATA_NAME = "publickey";
-    }
-
-    private class FollowRequestData extends RowData
-    {
-        FollowRequestData(PublicKeyHash owner, byte[] publicKey)
-        {
-            super(owner.toString(), publicKey);
-        }
-        FollowRequestData(String name, String d)
-        {
-            super(name, d);
-        }
-
-        public String b64DataName(){return DATA_NAME;}
-        public String insertStatement(){return "insert into followrequests (name, followrequest) VALUES(?, ?);";}
-        public String selectStatement(){return "select name, "+b64DataName()+" from followrequests where name = \""+name+"\";";}
-        public String deleteStatement(){return "delete from followrequests where name = \""+ name +"\" and "+ b64DataName()+ " = \""+ b64string + "\";";}
-        static final String DATA_NAME = "followrequest";
-    }
-
-    private class MetadataBlob
-    {
-        final byte[] writingKey, hash;
-        final String b64WritingKey, b64hash;
-
-        MetadataBlob(byte[] writingKey, byte[] hash)
-        {
-            this(writingKey, new String(Base64.getEncoder().encode(writingKey)), hash, hash == null ? null : new String(Base64.getEncoder().encode(hash)));
-
-        }
-
-        MetadataBlob(String b64WritingKey, String b64hash)
-        {
-            this(Base64.getDecoder().decode(b64WritingKey), b64WritingKey, Base64.getDecoder().decode(b64hash), b64hash);
-        }
-
-        MetadataBlob(byte[] writingKey, String b64WritingKey, byte[] hash, String b64hash)
-        {
-            this.writingKey = writingKey;
-            this.b64WritingKey = b64WritingKey;
-            this.hash = hash;
-            this.b64hash = b64hash;
-        }
-
-        public String selectStatement(){return "select writingkey, hash from metadatablobs where writingkey = "+ b64WritingKey +";";}
-        public String deleteStatement(){return "delete from metadatablobs where writingkey = "+ b64WritingKey +";";}
-
-        public boolean insert()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("INSERT OR REPLACE INTO metadatablobs (writingkey, hash) VALUES(?, ?)");
-
-                stmt.setString(1,this.b64WritingKey);
-                stmt.setString(2,this.b64hash);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                sqe.printStackTrace();
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
-        }
-
-        public boolean delete()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("DELETE from metadatablobs where writingkey=? AND hash=?");
-
-                stmt.setString(1,this.b64WritingKey);
-                stmt.setString(2,this.b64hash);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                sqe.printStackTrace();
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
-        }
-
-        public MetadataBlob selectOne()
-        {
-            MetadataBlob[] fd = select("where writingKey = '"+ b64WritingKey +"'");
-            if (fd == null || fd.length != 1)
-                return null;
-            return fd[0];
-        }
-
-        public MetadataBlob[] selectAllByName(String username)
-        {
-            return select("where name = "+ username);
-        }
-
-        public MetadataBlob[] select(String selectString)
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("select writingKey, hash from metadatablobs "+ selectString + ";");
-                ResultSet rs = stmt.executeQuery();
-                List<MetadataBlob> list = new ArrayList<MetadataBlob>();
-                while (rs.next())
-                {
-                    MetadataBlob f = new MetadataBlob(rs.getString("writingkey"), rs.getString("hash"));
-                    list.add(f);
-                }
-
-                return list.toArray(new MetadataBlob[0]);
-            } catch (SQLException sqe) {
-                System.err.println("Error selecting: "+selectString);
-                sqe.printStackTrace();
-                return null;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
-        }
+    private interface SqlFunction<T> {
+        T apply(PooledConnection c) throws SQLException;
     }
 
     private volatile boolean isClosed;
@@ -337,9 +117,31 @@ public class JDBCCoreNode {
 
     public JDBCCoreNode(Connection conn, int maxUsernameCount) throws SQLException
     {
-        this.conn = conn;
+        this(Collections.singletonList(conn), maxUsernameCount);
+    }
+
+    /**
+     *
+     * @param connections connections to the same database, which are used concurrently for reads
+     * @param maxUsernameCount
+     * @throws SQLException
+     */
+    public JDBCCoreNode(List<Connection> connections, int maxUsernameCount) throws SQLException
+    {
+        if (connections.isEmpty())
+            throw new IllegalArgumentException("At least one connection is required!");
+        this.connections = connections.stream().map(PooledConnection::new).collect(Collectors.toList());
+        this.pool = new ArrayBlockingQueue<>(connections.size(), false, this.connections);
         this.maxUsernameCount = maxUsernameCount;
         init();
+        this.usernames = new UsernameIndex(withConnection(c -> {
+            List<String> all = new ArrayList<>();
+            try (ResultSet rs = c.prepare(SELECT_ALL_USERNAMES).executeQuery()) {
+                while (rs.next())
+                    all.add(rs.getString(1));
+            }
+            return all;
+        }));
     }
 
     private synchronized void init() throws SQLException
@@ -347,6 +149,7 @@ public class JDBCCoreNode {
         if (isClosed)
             return;
 
+        Connection conn = connections.get(0).conn;
         //do tables exists?
         Statement stmt = conn.createStatement();
         ResultSet rs = stmt.executeQuery(TABLE_NAMES_SELECT_STMT);
@@ -357,6 +160,7 @@ public class JDBCCoreNode {
             String tableName = rs.getString("name");
             missingTables.remove(tableName);
         }
+        stmt.close();
 
         for (String missingTable: missingTables)
         {
@@ -373,23 +177,75 @@ public class JDBCCoreNode {
         }
     }
 
+    private <T> T withConnection(SqlFunction<T> action) throws SQLException {
+        if (isClosed)
+            throw new SQLException("Core node database is closed!");
+        PooledConnection c;
+        try {
+            c = pool.take();
+        } catch (InterruptedException e) {
+            throw new SQLException(e);
+        }
+        try {
+            return action.apply(c);
+        } finally {
+            pool.add(c);
+        }
+    }
+
+    /** Run all the writes of an action in a single transaction, which is rolled back if anything throws
+     */
+    private <T> T inTransaction(SqlFunction<T> action) throws SQLException {
+        synchronized (writeLock) {
+            return withConnection(c -> {
+                c.conn.setAutoCommit(false);
+                try {
+                    T res = action.apply(c);
+                    c.conn.commit();
+                    return res;
+                } catch (SQLException | RuntimeException e) {
+                    c.conn.rollback();
+                    throw e;
+                } finally {
+                    c.conn.setAutoCommit(true);
+                }
+            });
+        }
+    }
+
+    private static String toBase64(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+
     public CompletableFuture<String> getUsername(PublicKeyHash encodedKey)
     {
-        String b64key = Base64.getEncoder().encodeToString(encodedKey.serialize());
+        Optional<String> name = getClaimedUsername(encodedKey);
+        if (! name.isPresent())
+            return CompletableFuture.completedFuture("");
+        String username = name.get();
+        return getChain(username).thenApply(chain -> {
+            if (!chain.get(chain.size() - 1).owner.equals(encodedKey))
+                return "";
+            return username;
+        });
+    }
+
+    /**
+     *
+     * @param key
+     * @return the username whose chain includes key, which may not be its current key
+     */
+    public Optional<String> getClaimedUsername(PublicKeyHash key)
+    {
+        String b64key = toBase64(key.serialize());
         try {
-            try (PreparedStatement preparedStatement = conn.prepareStatement("select name from usernames u inner join chains ch on u.id=ch.userid inner join links ln on ch.linkid=ln.id and ln.publickey = ? limit 1")) {
-                preparedStatement.setString(1, b64key);
-                ResultSet resultSet = preparedStatement.executeQuery();
-                boolean next = resultSet.next();
-                if (! next)
-                    return CompletableFuture.completedFuture("");
-                String username = resultSet.getString(1);
-                return getChain(username).thenApply(chain -> {
-                    if (!chain.get(chain.size() - 1).owner.equals(encodedKey))
-                        return "";
-                    return username;
-                });
-            }
+            return withConnection(c -> {
+                PreparedStatement stmt = c.prepare(SELECT_USERNAME);
+                stmt.setString(1, b64key);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    return resultSet.next() ? Optional.of(resultSet.getString(1)) : Optional.empty();
+                }
+            });
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
@@ -397,23 +253,24 @@ public class JDBCCoreNode {
 
     public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
         try {
-            try (PreparedStatement preparedStatement = conn.prepareStatement("select chains.lindex, links.publickey, links.link from links inner join chains on links.id=chains.linkid \n" +
-                    "inner join usernames on chains.userid=usernames.id where usernames.name=? order by chains.lindex;")) {
-                preparedStatement.setString(1, username);
-                ResultSet resultSet = preparedStatement.executeQuery();
-                Map<Integer, UserPublicKeyLink> serializedChain = new HashMap<>();
-                while (resultSet.next()) {
-                    serializedChain.put(resultSet.getInt(1), UserPublicKeyLink.fromCbor(CborObject.fromByteArray(
-                            Base64.getDecoder().decode(resultSet.getString(3)))));
+            Map<Integer, String> serializedChain = withConnection(c -> {
+                PreparedStatement stmt = c.prepare(SELECT_CHAIN);
+                stmt.setString(1, username);
+                Map<Integer, String> links = new HashMap<>();
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next())
+                        links.put(resultSet.getInt(1), resultSet.getString(3));
                 }
-                ArrayList<UserPublicKeyLink> result = new ArrayList<>();
-                for (int i=0; i < serializedChain.size(); i++) {
-                    if (!serializedChain.containsKey(i))
-                        throw new IllegalStateException("Missing UserPublicKeyLink at index: "+i);
-                    result.add(serializedChain.get(i));
-                }
-                return CompletableFuture.completedFuture(result);
+                return links;
+            });
+            ArrayList<UserPublicKeyLink> result = new ArrayList<>();
+            for (int i=0; i < serializedChain.size(); i++) {
+                if (!serializedChain.containsKey(i))
+                    throw new IllegalStateException("Missing UserPublicKeyLink at index: "+i);
+                result.add(UserPublicKeyLink.fromCbor(CborObject.fromByteArray(
+                        Base64.getDecoder().decode(serializedChain.get(i)))));
             }
+            return CompletableFuture.completedFuture(result);
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
@@ -435,114 +292,77 @@ public class JDBCCoreNode {
             throw new IllegalStateException("Invalid  username '" +username+"'");
 
 
-        List<String> toWrite = merged.stream().map(x -> new String(Base64.getEncoder().encode(x.serialize()))).collect(Collectors.toList());
+        List<String> toWrite = merged.stream().map(x -> toBase64(x.serialize())).collect(Collectors.toList());
         Optional<PublicKeyHash> oldKey = existing.size() == 0 ? Optional.empty() : Optional.of(existing.get(existing.size() - 1).owner);
         PublicKeyHash newKey = tail.get(tail.size() - 1).owner;
 
         // Conceptually this should be a CAS of the new chain in for the old one under the username
         // The last one or two elements will have changed
         // Ensure usernamesandkeys table is uptodate as well
-        Optional<String> existingKeyb64 = oldKey.map(x -> new String(Base64.getEncoder().encode(x.serialize())));
-        String newKeyb64 = new String(Base64.getEncoder().encode(newKey.serialize()));
-        List<String> existingStrings = existing.stream().map(x -> new String(Base64.getEncoder().encode(x.serialize()))).collect(Collectors.toList());
-        if (existingStrings.size() == 0 && toWrite.size() == 1) {
+        Optional<String> existingKeyb64 = oldKey.map(x -> toBase64(x.serialize()));
+        String newKeyb64 = toBase64(newKey.serialize());
+        if (existing.size() == 0 && toWrite.size() == 1) {
             // single link to claim a new username
-            try {
-                PreparedStatement user = null, link = null, chain = null;
+            // add to the index while no one else can sign up, so it is in the same order as the database
+            synchronized (writeLock) {
                 try {
-                    conn.setAutoCommit(false);
-
-                    long userCount = conn.createStatement().executeQuery("select count(name) from usernames;").getLong(1);
-                    if (userCount >= this.maxUsernameCount)
-                        throw new IllegalStateException("Not currently accepting new users.");
-
-                    user = conn.prepareStatement("insert into usernames (name) VALUES(?);");
-                    user.setString(1, username);
-                    user.execute();
-                    link = conn.prepareStatement("insert into links (publickey, link) VALUES(?, ?);");
-                    link.setString(1, newKeyb64);
-                    link.setString(2, toWrite.get(0));
-                    link.execute();
-                    chain = conn.prepareStatement("insert into chains (userid, linkid, lindex) select usernames.id, links.id, 0 "
-                            + "from usernames join links where links.publickey=? and usernames.name=?;");
-                    chain.setString(1, newKeyb64);
-                    chain.setString(2, username);
-                    chain.execute();
-                    conn.commit();
-                    // updated cached list of usernames
-                    List<String> updatedUsernames = Stream.concat(
-                            Stream.of(username),
-                            userSet.getMostRecent().orElse(Collections.emptyList()).stream()
-                    ).sorted().collect(Collectors.toList());
-                    userSet.setUserSet(updatedUsernames);
-                    return true;
+                    inTransaction(c -> {
+                        try (ResultSet count = c.prepare(COUNT_USERNAMES).executeQuery()) {
+                            if (count.next() && count.getLong(1) >= this.maxUsernameCount)
+                                throw new IllegalStateException("Not currently accepting new users.");
+                        }
+
+                        PreparedStatement user = c.prepare(INSERT_USERNAME);
+                        user.setString(1, username);
+                        user.execute();
+                        PreparedStatement link = c.prepare(INSERT_LINK);
+                        link.setString(1, newKeyb64);
+                        link.setString(2, toWrite.get(0));
+                        link.execute();
+                        PreparedStatement chain = c.prepare(INSERT_FIRST_CHAIN_LINK);
+                        chain.setString(1, newKeyb64);
+                        chain.setString(2, username);
+                        chain.execute();
+                        return true;
+                    });
                 } catch (SQLException sqe) {
                     throw new IllegalStateException(sqe);
-                } finally {
-                    if (user != null) {
-                        user.close();
-                    }
-                    if (link != null) {
-                        link.close();
-                    }
-                    if (chain != null) {
-                        chain.close();
-                    }
-                    conn.setAutoCommit(true);
                 }
-            } catch (SQLException e) {
-                throw new IllegalStateException(e);
+                usernames.add(username);
             }
-        } else if (toWrite.size() == existingStrings.size() + 1) {
+            return true;
+        } else if (toWrite.size() == existing.size() + 1) {
             // two link update ( a key change to an existing username)
             try {
-                PreparedStatement update = null, link = null, chain = null;
-                try {
-                    conn.setAutoCommit(false);
-                    update = conn.prepareStatement("update links set link=? where links.publickey=?;");
+                return inTransaction(c -> {
+                    PreparedStatement update = c.prepare(UPDATE_LINK);
                     update.setString(1, toWrite.get(toWrite.size() - 2));
                     update.setString(2, existingKeyb64.get());
                     update.execute();
-                    link = conn.prepareStatement("insert into links (publickey, link) VALUES(?, ?);");
+                    PreparedStatement link = c.prepare(INSERT_LINK);
                     link.setString(1, newKeyb64);
                     link.setString(2, toWrite.get(toWrite.size() - 1));
                     link.execute();
-                    chain = conn.prepareStatement("insert into chains (userid, linkid, lindex) " +
-                            "select usernames.id, links.id, " +
-                            "((select max(lindex) from chains inner join usernames where " +
-                            "chains.userid=usernames.id and usernames.name=?)+1) " +
-                            "from usernames join links where links.publickey=? and usernames.name=?;");
+                    PreparedStatement chain = c.prepare(INSERT_NEXT_CHAIN_LINK);
                     chain.setString(1, username);
                     chain.setString(2, newKeyb64);
                     chain.setString(3, username);
                     chain.execute();
-                    conn.commit();
                     return true;
-                } catch (SQLException sqe) {
-                    throw new IllegalStateException(sqe);
-                } finally {
-                    if (update != null) {
-                        update.close();
-                    }
-                    if (link != null) {
-                        link.close();
-                    }
-                    if (chain != null) {
-                        chain.close();
-                    }
-                    conn.setAutoCommit(true);
-                }
-            } catch (SQLException e) {
-                throw new IllegalStateException(e);
+                });
+            } catch (SQLException sqe) {
+                throw new IllegalStateException(sqe);
             }
-        } else if (toWrite.size() == existingStrings.size()) {
+        } else if (toWrite.size() == existing.size()) {
             // single link update to existing username and key (changing expiry date)
-            try (PreparedStatement stmt = conn.prepareStatement("update links set link=? where links.publickey=?;")) {
-                stmt.setString(1, toWrite.get(toWrite.size() - 1));
-                stmt.setString(2, existingKeyb64.get());
-                stmt.execute();
-
-                return true;
+            try {
+                return inTransaction(c -> {
+                    PreparedStatement stmt = c.prepare(UPDATE_LINK);
+                    stmt.setString(1, toWrite.get(toWrite.size() - 1));
+                    stmt.setString(2, existingKeyb64.get());
+                    stmt.execute();
+                    return true;
+                });
             } catch (SQLException sqe) {
                 throw new IllegalStateException(sqe);
             }
@@ -551,59 +371,81 @@ public class JDBCCoreNode {
     }
 
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        Optional<List<String>> cached = userSet.getMostRecent();
-        if (cached.isPresent())
-            return CompletableFuture.completedFuture(cached.get());
-        try (PreparedStatement stmt = conn.prepareStatement("select name from usernames where name like ?"))
-        {
-            stmt.setString(1, prefix + "%");
-            ResultSet rs = stmt.executeQuery();
-            List<String> list = new ArrayList<>();
-            while (rs.next())
-            {
-                String username = rs.getString("name");
-                list.add(username);
-            }
+        return getUsernames(prefix, Integer.MAX_VALUE);
+    }
 
-            userSet.setUserSet(list);
-            return CompletableFuture.completedFuture(list);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix, limit));
+    }
+
+    public CompletableFuture<UsernameUpdate> getUsernamesSince(long version) {
+        return CompletableFuture.completedFuture(usernames.getSince(version));
     }
 
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash owner, byte[] encryptedPermission)
     {
-        byte[] dummy = null;
-        FollowRequestData selector = new FollowRequestData(owner, dummy);
-        RowData[] requests = selector.select();
-        if (requests != null && requests.length > CoreNode.MAX_PENDING_FOLLOWERS)
-            return CompletableFuture.completedFuture(false);
         // ToDo add a crypto currency transaction to prevent spam
-
-        FollowRequestData request = new FollowRequestData(owner, encryptedPermission);
-        return CompletableFuture.completedFuture(request.insert());
+        try {
+            // check the limit and insert atomically
+            return CompletableFuture.completedFuture(inTransaction(c -> {
+                PreparedStatement count = c.prepare(COUNT_FOLLOW_REQUESTS);
+                count.setString(1, owner.toString());
+                try (ResultSet rs = count.executeQuery()) {
+                    if (rs.next() && rs.getLong(1) > CoreNode.MAX_PENDING_FOLLOWERS)
+                        return false;
+                }
+                PreparedStatement insert = c.prepare(INSERT_FOLLOW_REQUEST);
+                insert.setString(1, owner.toString());
+                insert.setString(2, toBase64(encryptedPermission));
+                insert.executeUpdate();
+                return true;
+            }));
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
     }
 
     public CompletableFuture<Boolean> removeFollowRequest(PublicKeyHash owner, byte[] unsigned)
     {
-        FollowRequestData request = new FollowRequestData(owner, unsigned);
-        return CompletableFuture.completedFuture(request.delete());
+        try {
+            return CompletableFuture.completedFuture(inTransaction(c -> {
+                PreparedStatement stmt = c.prepare(DELETE_FOLLOW_REQUEST);
+                stmt.setString(1, owner.toString());
+                stmt.setString(2, toBase64(unsigned));
+                stmt.executeUpdate();
+                return true;
+            }));
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
     }
 
     public CompletableFuture<byte[]> getFollowRequests(PublicKeyHash owner) {
-        byte[] dummy = null;
-        FollowRequestData request = new FollowRequestData(owner, dummy);
-        RowData[] requests = request.select();
-        if (requests == null)
+        List<byte[]> requests;
+        try {
+            requests = withConnection(c -> {
+                PreparedStatement stmt = c.prepare(SELECT_FOLLOW_REQUESTS);
+                stmt.setString(1, owner.toString());
+                List<byte[]> res = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        res.add(Base64.getDecoder().decode(rs.getString(1)));
+                }
+                return res;
+            });
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
             return CompletableFuture.completedFuture(new byte[4]);
+        }
 
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutput dout = new DataOutputStream(bout);
         try {
-            dout.writeInt(requests.length);
-            for (RowData req : requests)
-                Serialize.serialize(req.data, dout);
+            dout.writeInt(requests.size());
+            for (byte[] req : requests)
+                Serialize.serialize(req, dout);
             return CompletableFuture.completedFuture(bout.toByteArray());
         } catch (IOException e) {
             e.printStackTrace();
@@ -612,52 +454,81 @@ public class JDBCCoreNode {
     }
 
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writerHash, byte[] writingKeySignedHash) {
-        MetadataBlob blob = new MetadataBlob(writerHash.serialize(), writingKeySignedHash);
-        return CompletableFuture.completedFuture(blob.insert());
+        return CompletableFuture.completedFuture(setPointers(Collections.singletonMap(writerHash, writingKeySignedHash)));
     }
 
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
-        byte[] dummy = null;
-        MetadataBlob blob = new MetadataBlob(writingKey.serialize(), dummy);
-        MetadataBlob users = blob.selectOne();
-        if (users == null)
+        try {
+            return CompletableFuture.completedFuture(withConnection(c -> {
+                PreparedStatement stmt = c.prepare(SELECT_POINTER);
+                stmt.setString(1, toBase64(writingKey.serialize()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (! rs.next())
+                        return Optional.<byte[]>empty();
+                    return Optional.of(Base64.getDecoder().decode(rs.getString(1)));
+                }
+            }));
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
             return CompletableFuture.completedFuture(Optional.empty());
-        return CompletableFuture.completedFuture(Optional.of(users.hash));
+        }
     }
 
-    public synchronized void close()
-    {
-        if (isClosed)
-            return;
-        try
-        {
-            if (conn != null)
-                conn.close();
-            isClosed = true;
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     *
+     * @return every writer's current signed pointer
+     */
+    public Map<PublicKeyHash, byte[]> getAllPointers() {
+        try {
+            return withConnection(c -> {
+                Map<PublicKeyHash, byte[]> res = new HashMap<>();
+                try (ResultSet rs = c.prepare(SELECT_ALL_POINTERS).executeQuery()) {
+                    while (rs.next())
+                        res.put(PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString(1)))),
+                                Base64.getDecoder().decode(rs.getString(2)));
+                }
+                return res;
+            });
+        } catch (SQLException sqe) {
+            throw new IllegalStateException("Couldn't read mutable pointers!", sqe);
         }
     }
 
-    public boolean delete(String table, String deleteString)
-    {
-        Statement stmt = null;
-        try
-        {
-            stmt = conn.createStatement();
-            stmt.executeUpdate("delete from "+table+" where "+ deleteString +";");
-            return true;
+    /** Write many pointers in a single transaction
+     *
+     * @param pointers
+     * @return true if all the pointers were written
+     */
+    public boolean setPointers(Map<PublicKeyHash, byte[]> pointers) {
+        try {
+            return inTransaction(c -> {
+                PreparedStatement stmt = c.prepare(SET_POINTER);
+                for (Map.Entry<PublicKeyHash, byte[]> e : pointers.entrySet()) {
+                    stmt.setString(1, toBase64(e.getKey().serialize()));
+                    stmt.setString(2, toBase64(e.getValue()));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                return true;
+            });
         } catch (SQLException sqe) {
             sqe.printStackTrace();
             return false;
-        } finally {
-            if (stmt != null)
-                try
-                {
-                    stmt.close();
-                } catch (SQLException sqe2) {
-                    sqe2.printStackTrace();
-                }
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (isClosed)
+            return;
+        isClosed = true;
+        // wait for any operations in progress to finish
+        for (int i = 0; i < connections.size(); i++) {
+            try {
+                pool.take().close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -676,4 +547,28 @@ public class JDBCCoreNode {
         return conn;
     }
 
+    /** Open a pool of connections to a database file in write ahead log mode, so readers don't block each other or
+     *  the writer, and commits don't need an fsync. An in memory database can only have a single connection.
+     *
+     * @param dbPath
+     * @param connections the maximum number of concurrent readers
+     * @return
+     * @throws SQLException
+     */
+    public static List<Connection> buildSqlLitePool(String dbPath, int connections) throws SQLException
+    {
+        if (dbPath.equals(":memory:"))
+            return Collections.singletonList(buildSqlLite(dbPath));
+        List<Connection> res = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Connection conn = buildSqlLite(dbPath);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL;");
+                // in WAL mode this is still durable against application crashes, and only syncs on checkpoints
+                stmt.execute("PRAGMA synchronous=NORMAL;");
+            }
+            res.add(conn);
+        }
+        return res;
+    }
 }
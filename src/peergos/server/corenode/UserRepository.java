@@ -17,19 +17,28 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class UserRepository implements CoreNode, MutablePointers {
-    public static final boolean LOGGING = false;
+    public static final int DEFAULT_CONNECTIONS = 8;
 
     private final ContentAddressedStorage ipfs;
     private final JDBCCoreNode store;
+    private final InMemoryPointers pointers;
+    private final VerifiedChainCache chains;
 
     public UserRepository(ContentAddressedStorage ipfs, JDBCCoreNode store) {
         this.ipfs = ipfs;
         this.store = store;
+        this.pointers = new InMemoryPointers(ipfs, store);
+        this.chains = new VerifiedChainCache(store);
     }
 
     @Override
     public CompletableFuture<String> getUsername(PublicKeyHash key) {
-        return store.getUsername(key);
+        return CompletableFuture.completedFuture(chains.getUsername(key));
+    }
+
+    @Override
+    public CompletableFuture<Optional<PublicKeyHash>> getPublicKeyHash(String username) {
+        return CompletableFuture.completedFuture(chains.getPublicKeyHash(username));
     }
 
     @Override
@@ -37,9 +46,19 @@ public class UserRepository implements CoreNode, MutablePointers {
         return store.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return store.getUsernames(prefix, limit);
+    }
+
+    @Override
+    public CompletableFuture<UsernameUpdate> getUsernamesSince(long version) {
+        return store.getUsernamesSince(version);
+    }
+
     @Override
     public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
-        return store.getChain(username);
+        return CompletableFuture.completedFuture(chains.getChain(username));
     }
 
     @Override
@@ -60,9 +79,8 @@ public class UserRepository implements CoreNode, MutablePointers {
             if (tail.size() > 2)
                 return CompletableFuture.completedFuture(false);
 
-            return store.getChain(username)
-                    .thenCompose(existing -> UserPublicKeyLink.merge(existing, tail, ipfs)
-                            .thenApply(merged -> store.updateChain(username, existing, tail, merged)));
+            // the tail is now verified, and the existing chain was verified when it was written
+            return CompletableFuture.completedFuture(chains.updateChain(username, tail));
         });
     }
 
@@ -90,36 +108,12 @@ public class UserRepository implements CoreNode, MutablePointers {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
-        return store.getPointer(writer);
+        return pointers.getPointer(writer);
     }
 
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
-        return getPointer(writer)
-                .thenCompose(current -> ipfs.getSigningKey(writer)
-                        .thenCompose(writerOpt -> {
-                            try {
-                                PublicSigningKey writerKey = writerOpt.get();
-                                byte[] bothHashes = writerKey.unsignMessage(writerSignedBtreeRootHash);
-                                // check CAS [current hash, new hash]
-                                HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
-                                MaybeMultihash claimedCurrentHash = cas.original;
-                                Multihash newHash = cas.updated.get();
-
-                                MaybeMultihash existing = current
-                                        .map(signed -> HashCasPair.fromCbor(CborObject.fromByteArray(writerKey.unsignMessage(signed))).updated)
-                                        .orElse(MaybeMultihash.empty());
-                                if (! existing.equals(claimedCurrentHash))
-                                    return CompletableFuture.completedFuture(false);
-                                if (LOGGING)
-                                    System.out.println("Core::setMetadata for " + writer + " from " + current + " to " + newHash);
-                                return store.setPointer(owner, writer, writerSignedBtreeRootHash);
-                            } catch (TweetNaCl.InvalidSignatureException e) {
-                                System.err.println("Invalid signature during setMetadataBlob for sharer: " + writer);
-                                return CompletableFuture.completedFuture(false);
-                            }
-                        }));
-
+        return pointers.setPointer(owner, writer, writerSignedBtreeRootHash);
     }
 
     @Override
@@ -128,9 +122,14 @@ public class UserRepository implements CoreNode, MutablePointers {
     }
 
     public static UserRepository buildSqlLite(String dbPath, ContentAddressedStorage ipfs, int maxUserCount) throws SQLException
+    {
+        return buildSqlLite(dbPath, ipfs, maxUserCount, DEFAULT_CONNECTIONS);
+    }
+
+    public static UserRepository buildSqlLite(String dbPath, ContentAddressedStorage ipfs, int maxUserCount, int connections) throws SQLException
     {
         JDBCCoreNode coreNode = new JDBCCoreNode(
-            JDBCCoreNode.buildSqlLite(dbPath), maxUserCount);
+            JDBCCoreNode.buildSqlLitePool(dbPath, connections), maxUserCount);
 
         return new UserRepository(ipfs, coreNode);
     }
@@ -0,0 +1,64 @@
+package peergos.server.corenode;
+
+import peergos.shared.corenode.*;
+
+import java.util.*;
+
+/** An in memory directory of all the registered usernames, which answers prefix queries by binary search over a
+ *  sorted list, and lists the usernames registered since a given version.
+ *
+ *  Usernames are never removed, so the version is just the number of usernames registered so far.
+ */
+public class UsernameIndex {
+
+    private final List<String> sorted = new ArrayList<>();
+    private final List<String> inRegistrationOrder = new ArrayList<>();
+
+    /**
+     *
+     * @param usernames all the existing usernames, in the order they were registered
+     */
+    public UsernameIndex(List<String> usernames) {
+        inRegistrationOrder.addAll(usernames);
+        sorted.addAll(usernames);
+        Collections.sort(sorted);
+    }
+
+    public synchronized void add(String username) {
+        int index = Collections.binarySearch(sorted, username);
+        if (index >= 0)
+            return;
+        sorted.add(-(index + 1), username);
+        inRegistrationOrder.add(username);
+    }
+
+    public synchronized long version() {
+        return inRegistrationOrder.size();
+    }
+
+    /**
+     *
+     * @param prefix
+     * @param limit
+     * @return at most limit usernames starting with prefix, in alphabetical order
+     */
+    public synchronized List<String> getByPrefix(String prefix, int limit) {
+        int start = Collections.binarySearch(sorted, prefix);
+        if (start < 0)
+            start = -(start + 1);
+        List<String> res = new ArrayList<>();
+        for (int i = start; i < sorted.size() && res.size() < limit; i++) {
+            String username = sorted.get(i);
+            if (! username.startsWith(prefix))
+                break;
+            res.add(username);
+        }
+        return res;
+    }
+
+    public synchronized UsernameUpdate getSince(long version) {
+        int from = (int) Math.max(0, Math.min(version, inRegistrationOrder.size()));
+        List<String> added = new ArrayList<>(inRegistrationOrder.subList(from, inRegistrationOrder.size()));
+        return new UsernameUpdate(inRegistrationOrder.size(), added);
+    }
+}
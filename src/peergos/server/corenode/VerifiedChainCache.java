@@ -0,0 +1,100 @@
+package peergos.server.corenode;
+
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Caches the decoded key chain and current owner key of each username.
+ *
+ *  Every chain in the database was verified when it was written, so a cached chain never needs to be verified again,
+ *  and an update only needs its new links to be verified. Chains are only changed by updateChain, which keeps the
+ *  cache and database in step.
+ */
+public class VerifiedChainCache {
+
+    private final JDBCCoreNode store;
+    private final ConcurrentHashMap<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
+    // the current owner key of each cached chain
+    private final ConcurrentHashMap<PublicKeyHash, String> owners = new ConcurrentHashMap<>();
+
+    public VerifiedChainCache(JDBCCoreNode store) {
+        this.store = store;
+    }
+
+    public List<UserPublicKeyLink> getChain(String username) {
+        List<UserPublicKeyLink> cached = chains.get(username);
+        if (cached != null)
+            return cached;
+        List<UserPublicKeyLink> chain = Collections.unmodifiableList(store.getChain(username).join());
+        if (chain.isEmpty())
+            return chain;
+        synchronized (this) {
+            // don't overwrite a chain which was updated after we read this one
+            List<UserPublicKeyLink> existing = chains.putIfAbsent(username, chain);
+            if (existing != null)
+                return existing;
+            owners.put(owner(chain), username);
+            return chain;
+        }
+    }
+
+    public Optional<PublicKeyHash> getPublicKeyHash(String username) {
+        List<UserPublicKeyLink> chain = getChain(username);
+        return chain.isEmpty() ? Optional.empty() : Optional.of(owner(chain));
+    }
+
+    /**
+     *
+     * @param key
+     * @return the username whose current key is key, or the empty string if there isn't one
+     */
+    public String getUsername(PublicKeyHash key) {
+        String cached = owners.get(key);
+        if (cached != null)
+            return cached;
+        Optional<String> claimed = store.getClaimedUsername(key);
+        if (! claimed.isPresent())
+            return "";
+        List<UserPublicKeyLink> chain = getChain(claimed.get());
+        return ! chain.isEmpty() && owner(chain).equals(key) ? claimed.get() : "";
+    }
+
+    /**
+     *
+     * @param username
+     * @param tail new links which have already been verified
+     * @return true if the chain was updated
+     */
+    public synchronized boolean updateChain(String username, List<UserPublicKeyLink> tail) {
+        List<UserPublicKeyLink> existing = getChain(username);
+        List<UserPublicKeyLink> merged = merge(existing, tail);
+        if (! store.updateChain(username, existing, tail, merged))
+            return false;
+        if (! existing.isEmpty())
+            owners.remove(owner(existing));
+        chains.put(username, Collections.unmodifiableList(merged));
+        owners.put(owner(merged), username);
+        return true;
+    }
+
+    /** Merge a verified tail onto a verified chain. The only links in the result which weren't in one of the two are
+     *  where they join, and the tail must start with the chain's current key, so it needs no further verification.
+     */
+    private static List<UserPublicKeyLink> merge(List<UserPublicKeyLink> existing, List<UserPublicKeyLink> tail) {
+        if (existing.size() == 0)
+            return tail;
+        if (! tail.get(0).owner.equals(owner(existing))) {
+            if (tail.size() == 1)
+                throw new IllegalStateException("User already exists: Invalid key change attempt!");
+            throw new IllegalStateException("Different keys in merge chains intersection!");
+        }
+        return Stream.concat(existing.subList(0, existing.size() - 1).stream(), tail.stream()).collect(Collectors.toList());
+    }
+
+    private static PublicKeyHash owner(List<UserPublicKeyLink> chain) {
+        return chain.get(chain.size() - 1).owner;
+    }
+}
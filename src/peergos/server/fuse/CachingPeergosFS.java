@@ -1,6 +1,7 @@
 package peergos.server.fuse;
 
 import jnr.ffi.Pointer;
+import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
 import jnr.ffi.types.size_t;
 import peergos.shared.user.UserContext;
@@ -13,28 +14,98 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.*;
-
+import java.util.concurrent.atomic.*;
+
+/** Caches decrypted chunks of open files, and buffers writes to them.
+ *
+ *  Chunks from all files share an LRU with a budget in bytes. Dirty chunks are written back when their file is
+ *  flushed, fsynced or released, when one of them is evicted, and periodically. Reading a file sequentially reads ahead
+ *  the next chunk in the background.
+ */
 public class CachingPeergosFS extends PeergosFS {
 
     private static final int DEFAULT_SYNC_SLEEP = 1000*30;
-    private static final int DEFAULT_CACHE_SIZE = 1;
+    private static final long DEFAULT_CACHE_BYTES = 20L * Chunk.MAX_SIZE;
+    private static final int READ_AHEAD_CHUNKS = 1;
     private static final boolean DEBUG = true;
 
-    private final ConcurrentMap<String, CacheEntryHolder> entryMap;
-    private final int chunkCacheSize, syncSleep;
-//    private final Thread syncRunner;
+    private final ConcurrentMap<String, OpenFile> files = new ConcurrentHashMap<>();
+    // the cached chunks of all files, in access order, with their sizes, guarded by itself
+    private final LinkedHashMap<ChunkKey, Integer> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    private final long maxCacheBytes;
+    private final int syncSleep;
+    private final ScheduledExecutorService syncer;
+    private final ExecutorService readAhead;
+    private final CacheStats stats = new CacheStats();
 
     public CachingPeergosFS(UserContext userContext) {
-        this(userContext, DEFAULT_CACHE_SIZE, DEFAULT_SYNC_SLEEP);
+        this(userContext, DEFAULT_CACHE_BYTES, DEFAULT_SYNC_SLEEP);
     }
 
-    public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep) {
+    public CachingPeergosFS(UserContext userContext, long maxCacheBytes, int syncSleep) {
         super(userContext);
 
-        this.chunkCacheSize = chunkCacheSize;
+        if (maxCacheBytes < Chunk.MAX_SIZE)
+            throw new IllegalArgumentException("Chunk cache must fit at least one chunk!");
+        this.maxCacheBytes = maxCacheBytes;
         this.syncSleep = syncSleep;
-        this.entryMap = new ConcurrentHashMap<>();
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "Fuse chunk sync"));
+        this.readAhead = Executors.newCachedThreadPool(r -> daemon(r, "Fuse read ahead"));
+        syncer.scheduleWithFixedDelay(this::syncAll, syncSleep, syncSleep, TimeUnit.MILLISECONDS);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /** Counters for the chunk cache, which are updated as it is used
+     */
+    public static class CacheStats {
+        public final AtomicLong hits = new AtomicLong(0);
+        public final AtomicLong misses = new AtomicLong(0);
+        public final AtomicLong readAheads = new AtomicLong(0);
+        public final AtomicLong evictions = new AtomicLong(0);
+        public final AtomicLong flushes = new AtomicLong(0);
+        public final AtomicLong flushMillis = new AtomicLong(0);
+
+        public double hitRate() {
+            long h = hits.get(), total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        public double meanFlushMillis() {
+            long n = flushes.get();
+            return n == 0 ? 0 : (double) flushMillis.get() / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hit rate %.3f (%d hits, %d misses), %d read aheads, %d evictions, %d flushes averaging %.1f mS",
+                    hitRate(), hits.get(), misses.get(), readAheads.get(), evictions.get(), flushes.get(), meanFlushMillis());
+        }
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public int open(String s, FuseFileInfo fuseFileInfo) {
+        int res = super.open(s, fuseFileInfo);
+        if (res == 0)
+            opened(s);
+        return res;
+    }
+
+    @Override
+    public int create(String s, @mode_t long l, FuseFileInfo fuseFileInfo) {
+        int res = super.create(s, l, fuseFileInfo);
+        if (res == 0)
+            opened(s);
+        return res;
     }
 
     @Override
@@ -52,11 +123,11 @@ public class CachingPeergosFS extends PeergosFS {
             System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
         if (!containedInOneChunk(offset, offset + size)) {
             long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int r1 = read(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (r1 <= 0)
+            int r1 = read(s, pointer, pointerOffset, boundary - offset, offset, fuseFileInfo);
+            if (r1 < boundary - offset)
                 return r1;
-            int r2 = read(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (r2 <= 0)
+            int r2 = read(s, pointer, pointerOffset + (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
+            if (r2 < 0)
                 return r2;
             return r1 + r2;
         }
@@ -65,9 +136,10 @@ public class CachingPeergosFS extends PeergosFS {
         int chunkOffset  = intraChunkOffset(offset);
         int iSize = (int) size;
 
-        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntryHolder.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
+        OpenFile file = getFile(s);
+        int read = file.read(startPos, pointer, pointerOffset, chunkOffset, iSize);
+        evictIfNeeded();
+        return read;
     }
 
     @Override
@@ -85,10 +157,10 @@ public class CachingPeergosFS extends PeergosFS {
             System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
         if  (! containedInOneChunk(offset, offset+size)) {
             long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int w1 = write(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
+            int w1 = write(s, pointer, pointerOffset, boundary - offset, offset, fuseFileInfo);
             if (w1 <= 0)
                 return w1;
-            int w2 = write(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
+            int w2 = write(s, pointer, pointerOffset + (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
             if (w2 <= 0)
                 return w2;
             return w1 + w2;
@@ -98,9 +170,10 @@ public class CachingPeergosFS extends PeergosFS {
         int  chunkOffset  = intraChunkOffset(offset);
         int iSize = (int) size;
 
-        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntry.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
+        OpenFile file = getFile(s);
+        int written = file.write(startPos, pointer, pointerOffset, chunkOffset, iSize);
+        evictIfNeeded();
+        return written;
     }
 
     @Override
@@ -108,9 +181,9 @@ public class CachingPeergosFS extends PeergosFS {
         try {
             if (DEBUG)
                 System.out.printf("lock(%s)\n", s);
-            CacheEntryHolder cacheEntryHolder = entryMap.get(s);
-            if (cacheEntryHolder != null)
-                cacheEntryHolder.syncAndClear();
+            OpenFile file = files.get(s);
+            if (file != null)
+                file.syncAndClear();
             return 0;
         } catch (Throwable t) {
             t.printStackTrace();
@@ -123,10 +196,9 @@ public class CachingPeergosFS extends PeergosFS {
         try {
             if (DEBUG)
                 System.out.printf("flush(%s)\n", s);
-            CacheEntryHolder cacheEntry = entryMap.get(s);
-            if (cacheEntry != null) {
-                cacheEntry.sync();
-            }
+            OpenFile file = files.get(s);
+            if (file != null)
+                file.sync();
             return super.flush(s, fuseFileInfo);
         } catch (Throwable t) {
             t.printStackTrace();
@@ -134,25 +206,85 @@ public class CachingPeergosFS extends PeergosFS {
         }
     }
 
+    @Override
+    public int fsync(String s, int isDataSync, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("fsync(%s)\n", s);
+        OpenFile file = files.get(s);
+        if (file != null)
+            file.sync();
+        return 0;
+    }
+
+    @Override
+    public int release(String s, FuseFileInfo fuseFileInfo) {
+        try {
+            if (DEBUG)
+                System.out.printf("release(%s)\n", s);
+            // once the last handle is closed, drop the file's chunks, so reopening it sees any remote changes. This is
+            // atomic with respect to opening the same path, which waits until the file has been written back.
+            files.computeIfPresent(s, (path, file) -> {
+                if (! file.released())
+                    return file;
+                file.syncAndClear();
+                return null;
+            });
+            return 0;
+        } catch (Throwable t) {
+            t.printStackTrace();
+            throw t;
+        }
+    }
+
+    @Override
+    public int unlink(String s) {
+        OpenFile file = files.remove(s);
+        if (file != null)
+            file.clear();
+        return super.unlink(s);
+    }
+
+    @Override
+    public int rename(String s, String s1) {
+        OpenFile file = files.get(s);
+        if (file != null)
+            file.syncAndClear();
+        OpenFile target = files.get(s1);
+        if (target != null)
+            target.clear();
+        return super.rename(s, s1);
+    }
+
+    @Override
+    public int truncate(String s, @off_t long l) {
+        OpenFile file = files.get(s);
+        if (file != null)
+            file.syncAndClear();
+        return super.truncate(s, l);
+    }
+
+    @Override
+    public int ftruncate(String s, @off_t long l, FuseFileInfo fuseFileInfo) {
+        OpenFile file = files.get(s);
+        if (file != null)
+            file.syncAndClear();
+        return super.ftruncate(s, l, fuseFileInfo);
+    }
+
     @Override
     protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
         if (DEBUG)
             System.out.printf("annotate(%s)\n", fullPath);
-        CacheEntryHolder cacheEntry = entryMap.get(fullPath);
-        Optional<PeergosStat> updatedStat = Optional.empty();
-        if (cacheEntry != null) {
-            updatedStat = cacheEntry.applyIfPresent(ce -> {
-                if (ce == null)
-                    return peergosStat;
-                long maxSize = ce.offset + ce.maxDirtyPos;
-                if (peergosStat.properties.size < maxSize) {
-                    FileProperties updated = peergosStat.properties.withSize(maxSize);
-                    return new PeergosStat(peergosStat.treeNode, updated);
-                }
-                return peergosStat;
-            });
+        OpenFile file = files.get(fullPath);
+        PeergosStat updatedStat = peergosStat;
+        if (file != null) {
+            long maxSize = file.maxDirtyPos();
+            if (peergosStat.properties.size < maxSize) {
+                FileProperties updated = peergosStat.properties.withSize(maxSize);
+                updatedStat = new PeergosStat(peergosStat.treeNode, updated);
+            }
         }
-        return super.annotateAttributes(fullPath, updatedStat.orElse(peergosStat), fileStat);
+        return super.annotateAttributes(fullPath, updatedStat, fileStat);
     }
 
     private boolean containedInOneChunk(long start, long end) {
@@ -163,89 +295,303 @@ public class CachingPeergosFS extends PeergosFS {
         return Math.max(0, pos / Chunk.MAX_SIZE) * Chunk.MAX_SIZE;
     }
     private int intraChunkOffset(long  pos) {
-        return (int) pos % Chunk.MAX_SIZE;
+        return (int) (pos % Chunk.MAX_SIZE);
     }
 
-    private class CacheEntryHolder {
-        private CacheEntry entry;
+    private OpenFile getFile(String path) {
+        return files.computeIfAbsent(path, OpenFile::new);
+    }
 
-        public CacheEntryHolder(CacheEntry entry) {
-            this.entry = entry;
+    private void opened(String path) {
+        files.compute(path, (p, file) -> {
+            OpenFile res = file == null ? new OpenFile(p) : file;
+            res.opened();
+            return res;
+        });
+    }
+
+    private void touch(ChunkKey key, int size) {
+        synchronized (lru) {
+            Integer old = lru.put(key, size);
+            cachedBytes += size - (old == null ? 0 : old);
+        }
+    }
+
+    private void forget(ChunkKey key) {
+        synchronized (lru) {
+            Integer old = lru.remove(key);
+            if (old != null)
+                cachedBytes -= old;
         }
+    }
 
-        public synchronized <A> A apply(Predicate<CacheEntry> correctChunk, Supplier<CacheEntry> supplier, Function<CacheEntry, A> func) {
-            if (!correctChunk.test(entry)) {
-                long oldOffset = entry != null ? entry.offset : -1;
-                syncAndClear();
-                setEntry(supplier.get());
-                System.out.println("Ejecting chunk from " + entry.path + " " + oldOffset + " -> "+ entry.offset);
+    /** Evict the least recently used chunks until the cache is within budget. This must be called without holding any
+     *  file's lock, as evicting a dirty chunk writes back its file.
+     */
+    private void evictIfNeeded() {
+        while (true) {
+            ChunkKey victim;
+            synchronized (lru) {
+                if (cachedBytes <= maxCacheBytes)
+                    return;
+                victim = lru.keySet().iterator().next();
+            }
+            OpenFile file = files.get(victim.path);
+            if (file != null)
+                file.evict(victim.offset);
+            forget(victim);
+            stats.evictions.incrementAndGet();
+        }
+    }
 
+    private void syncAll() {
+        for (OpenFile file : files.values()) {
+            try {
+                file.sync();
+            } catch (Throwable t) {
+                t.printStackTrace();
             }
-            return func.apply(entry);
+        }
+    }
+
+    private static class ChunkKey {
+        final String path;
+        final long offset;
+
+        ChunkKey(String path, long offset) {
+            this.path = path;
+            this.offset = offset;
         }
 
-        public synchronized <A> Optional<A> applyIfPresent(Function<CacheEntry, A> func) {
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ChunkKey that = (ChunkKey) o;
+
+            return offset == that.offset && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + Long.hashCode(offset);
+        }
+    }
+
+    /** The cached chunks of a file. All reads, writes and write-backs of the file are serialized on this.
+     */
+    private class OpenFile {
+        private final String path;
+        private final TreeMap<Long, CacheEntry> chunks = new TreeMap<>();
+        private int openHandles = 0;
+        // the start of the last chunk read, to detect sequential reads
+        private long lastReadChunk = -1;
+        // incremented on every write-back, so read aheads started before one are discarded
+        private long version = 0;
+        private final Map<Long, ReadAhead> readingAhead = new HashMap<>();
+
+        public OpenFile(String path) {
+            this.path = path;
+        }
+
+        public synchronized void opened() {
+            openHandles++;
+        }
+
+        /**
+         *
+         * @return true if there are no open handles left
+         */
+        public synchronized boolean released() {
+            openHandles = Math.max(0, openHandles - 1);
+            return openHandles == 0;
+        }
+
+        public int read(long startPos, Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            boolean isSequential;
+            int read;
+            synchronized (this) {
+                CacheEntry entry = getChunk(startPos);
+                isSequential = startPos == lastReadChunk + Chunk.MAX_SIZE;
+                lastReadChunk = startPos;
+                read = entry.read(pointer, pointerOffset, chunkOffset, length);
+            }
+            if (isSequential)
+                for (int i = 1; i <= READ_AHEAD_CHUNKS; i++)
+                    readAhead(startPos + (long) i * Chunk.MAX_SIZE);
+            return read;
+        }
+
+        public synchronized int write(long startPos, Pointer pointer, int pointerOffset, int chunkOffset, int length) {
+            CacheEntry entry = getChunk(startPos);
+            int written = entry.write(pointer, pointerOffset, chunkOffset, length);
+            touch(new ChunkKey(path, startPos), entry.data.length);
+            return written;
+        }
+
+        private CacheEntry getChunk(long startPos) {
+            CacheEntry entry = chunks.get(startPos);
             if (entry != null) {
-                return Optional.of(func.apply(entry));
+                stats.hits.incrementAndGet();
+            } else {
+                // wait for a read ahead of this chunk rather than reading it twice
+                ReadAhead pending = readingAhead.remove(startPos);
+                Optional<byte[]> readAhead = pending != null && pending.version == version ?
+                        pending.data.join() :
+                        Optional.empty();
+                if (readAhead.isPresent()) {
+                    stats.hits.incrementAndGet();
+                    stats.readAheads.incrementAndGet();
+                } else
+                    stats.misses.incrementAndGet();
+                entry = new CacheEntry(path, startPos, readAhead.isPresent() ? readAhead.get() : load(startPos));
+                chunks.put(startPos, entry);
             }
-            return Optional.empty();
+            touch(new ChunkKey(path, startPos), entry.data.length);
+            return entry;
+        }
+
+        private byte[] load(long startPos) {
+            PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
+            if (startPos >= stat.properties.size)
+                return new byte[0];
+            return CachingPeergosFS.this.read(stat, Chunk.MAX_SIZE, startPos)
+                    .orElseThrow(() -> new IllegalStateException("missing: " + path));
+        }
+
+        private void readAhead(long startPos) {
+            ReadAhead pending;
+            synchronized (this) {
+                if (chunks.containsKey(startPos) || readingAhead.containsKey(startPos))
+                    return;
+                pending = new ReadAhead(version);
+                readingAhead.put(startPos, pending);
+            }
+            readAhead.execute(() -> {
+                try {
+                    PeergosStat stat = getByPath(path).orElse(null);
+                    pending.data.complete(stat == null || startPos >= stat.properties.size ?
+                            Optional.empty() :
+                            CachingPeergosFS.this.read(stat, Chunk.MAX_SIZE, startPos));
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    pending.data.complete(Optional.empty());
+                }
+                // cache the chunk, unless a read has already taken it
+                synchronized (this) {
+                    if (! readingAhead.remove(startPos, pending) || version != pending.version)
+                        return;
+                    Optional<byte[]> data = pending.data.join();
+                    if (! data.isPresent() || chunks.containsKey(startPos))
+                        return;
+                    CacheEntry entry = new CacheEntry(path, startPos, data.get());
+                    chunks.put(startPos, entry);
+                    touch(new ChunkKey(path, startPos), entry.data.length);
+                    stats.readAheads.incrementAndGet();
+                }
+                evictIfNeeded();
+            });
         }
 
-        public synchronized void setEntry(CacheEntry entry) {
-            this.entry = entry;
+        public synchronized long maxDirtyPos() {
+            long max = 0;
+            for (CacheEntry entry : chunks.values())
+                if (entry.maxDirtyPos > 0)
+                    max = Math.max(max, entry.offset + entry.maxDirtyPos);
+            return max;
         }
 
+        /** Write back all dirty chunks, in order, so the file never has a gap.
+         */
         public synchronized void sync() {
-            if (entry == null)
+            if (chunks.values().stream().noneMatch(c -> c.maxDirtyPos > 0))
                 return;
             if (DEBUG)
-                System.out.printf("sync(%s)\n", entry.path);
-            entry.sync();
+                System.out.printf("sync(%s)\n", path);
+            long t1 = System.currentTimeMillis();
+            version++;
+            for (CacheEntry entry : chunks.values())
+                entry.sync();
+            stats.flushes.incrementAndGet();
+            stats.flushMillis.addAndGet(System.currentTimeMillis() - t1);
         }
 
-        public synchronized void syncAndClear() {
+        public synchronized void evict(long startPos) {
+            CacheEntry entry = chunks.get(startPos);
             if (entry == null)
                 return;
-            if (DEBUG)
-                System.out.printf("fsync(%s)\n", entry.path);
-            entry.sync();
-            entry = null;
+            if (entry.maxDirtyPos > 0)
+                sync();
+            chunks.remove(startPos);
+        }
+
+        public void syncAndClear() {
+            synchronized (this) {
+                sync();
+            }
+            clear();
+        }
+
+        /** Drop all cached chunks, without writing back any changes
+         */
+        public void clear() {
+            List<Long> offsets;
+            synchronized (this) {
+                version++;
+                offsets = new ArrayList<>(chunks.keySet());
+                chunks.clear();
+                readingAhead.clear();
+                lastReadChunk = -1;
+            }
+            for (Long offset : offsets)
+                forget(new ChunkKey(path, offset));
+        }
+    }
+
+    private static class ReadAhead {
+        final long version;
+        final CompletableFuture<Optional<byte[]>> data = new CompletableFuture<>();
+
+        ReadAhead(long version) {
+            this.version = version;
         }
     }
 
     private class CacheEntry {
         private final String path;
-        private final byte[] data;
+        private byte[] data;
         private final long offset;
+        // the number of bytes of data which are part of the file
+        private int length;
         private int maxDirtyPos;
 
-        public CacheEntry(String path, long offset) {
+        public CacheEntry(String path, long offset, byte[] data) {
             this.path = path;
             this.offset = offset;
-            this.data = new byte[Chunk.MAX_SIZE];
-            //read current data into data view
-            PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
-            byte[] readData = CachingPeergosFS.this.read(stat, data.length, offset)
-                    .orElseThrow(() -> new IllegalStateException("missing: " + path));
+            this.data = data;
+            this.length = data.length;
             this.maxDirtyPos = 0;
-            System.arraycopy(readData, 0, data, 0, readData.length);
-
         }
 
         private void ensureInBounds(int offset, int length) {
-            if (offset + length > data.length)
-                throw new  IllegalStateException("cannot op with offset "+ offset +" and length "+ length +" with length "+ data.length);
+            if (offset + length > Chunk.MAX_SIZE)
+                throw new  IllegalStateException("cannot op with offset "+ offset +" and length "+ length +" with length "+ Chunk.MAX_SIZE);
         }
 
         public int read(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
             ensureInBounds(chunkOffset, length);
-            pointer.put(pointerOffset, data, chunkOffset, length);
-            return length;
+            int available = Math.max(0, Math.min(length, this.length - chunkOffset));
+            pointer.put(pointerOffset, data, chunkOffset, available);
+            return available;
         }
 
         public int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
             ensureInBounds(chunkOffset, length);
+            if (chunkOffset + length > data.length)
+                data = Arrays.copyOf(data, Chunk.MAX_SIZE);
             pointer.get(pointerOffset, data, chunkOffset, length);
+            this.length = Math.max(this.length, chunkOffset + length);
             maxDirtyPos = Math.max(maxDirtyPos, chunkOffset+length);
             return length;
         }
@@ -258,29 +604,21 @@ public class CachingPeergosFS extends PeergosFS {
 
             if (maxDirtyPos ==0)
                 return;
-            applyIfPresent(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            CacheEntry that = (CacheEntry) o;
-
-            return Objects.equals(path, that.path);
-
-        }
-
-        @Override
-        public int hashCode() {
-            return path != null ? path.hashCode() : 0;
+            try {
+                int res = applyIfPresentForUpdate(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
+                if (res == maxDirtyPos)
+                    maxDirtyPos = 0;
+            } finally {
+                invalidate(path);
+            }
         }
     }
 
     @Override
     public void close() throws Exception {
-
+        syncer.shutdown();
+        readAhead.shutdownNow();
+        syncAll();
         super.close();
     }
-}
\ No newline at end of file
+}
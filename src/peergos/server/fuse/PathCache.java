@@ -0,0 +1,202 @@
+package peergos.server.fuse;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Caches the resolution of paths to FileTreeNodes, including paths which don't exist.
+ *
+ *  Listing a directory caches all its children, and a lookup of a missing name in a listed directory is answered from
+ *  the listing. Local changes must invalidate the paths they touch, and any change to a writer's pointer by someone
+ *  else invalidates everything which might depend on it. Entries also expire after a fixed time, as a fallback for
+ *  changes we aren't notified of.
+ *
+ *  Cached nodes must not be modified, as a FileTreeNode can only be modified once.
+ */
+public class PathCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    private final UserContext context;
+    private final long ttlMillis;
+    public final AtomicLong hits = new AtomicLong(0);
+    public final AtomicLong misses = new AtomicLong(0);
+
+    // everything below is guarded by this
+    private final Map<String, Entry> entries;
+    // incremented on every invalidation, so lookups which overlap one aren't cached
+    private long generation = 0;
+
+    public PathCache(UserContext context, int maxEntries, long ttlMillis) {
+        this.context = context;
+        this.entries = new LRUCache<>(maxEntries);
+        this.ttlMillis = ttlMillis;
+        if (context.network.mutable instanceof WatchingPointers)
+            ((WatchingPointers) context.network.mutable).addChangeListener(this::writersChanged);
+    }
+
+    public PathCache(UserContext context) {
+        this(context, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    private static class Entry {
+        final Optional<FileTreeNode> node;
+        // empty if the node doesn't exist, or isn't owned by a single writer, like the global root
+        final Optional<PublicKeyHash> writer;
+        final long expiry;
+        // the names of all the children, if this is a directory which has been listed
+        final Optional<Set<String>> children;
+
+        Entry(Optional<FileTreeNode> node, long expiry, Optional<Set<String>> children) {
+            this.node = node;
+            this.writer = node.flatMap(PathCache::writer);
+            this.expiry = expiry;
+            this.children = children;
+        }
+    }
+
+    private static Optional<PublicKeyHash> writer(FileTreeNode node) {
+        // the synthetic global root doesn't have a location
+        if (node.isRoot())
+            return Optional.empty();
+        return Optional.of(node.getLocation().writer);
+    }
+
+    private static String normalise(String path) {
+        if (path.length() > 1 && path.endsWith("/"))
+            return path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    private static Optional<String> parent(String path) {
+        Path parent = Paths.get(path).getParent();
+        return parent == null ? Optional.empty() : Optional.of(parent.toString());
+    }
+
+    public Optional<FileTreeNode> getByPath(String path) {
+        String normalised = normalise(path);
+        long startGeneration;
+        synchronized (this) {
+            Optional<Optional<FileTreeNode>> cached = lookup(normalised);
+            if (cached.isPresent()) {
+                hits.incrementAndGet();
+                return cached.get();
+            }
+            startGeneration = generation;
+        }
+        misses.incrementAndGet();
+        try {
+            Optional<FileTreeNode> node = context.getByPath(normalised).get();
+            synchronized (this) {
+                if (generation == startGeneration)
+                    entries.put(normalised, new Entry(node, System.currentTimeMillis() + ttlMillis, Optional.empty()));
+            }
+            return node;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Look up a path in the cache, or in its parent's listing
+     */
+    private synchronized Optional<Optional<FileTreeNode>> lookup(String path) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            if (entry.expiry > now)
+                return Optional.of(entry.node);
+            entries.remove(path);
+        }
+        Optional<String> parentPath = parent(path);
+        if (! parentPath.isPresent())
+            return Optional.empty();
+        Entry parent = entries.get(parentPath.get());
+        if (parent == null || parent.expiry <= now)
+            return Optional.empty();
+        if (! parent.node.isPresent() || ! parent.node.get().isDirectory())
+            return Optional.of(Optional.empty());
+        // the listing would have cached this path if it existed
+        if (parent.children.isPresent() && ! parent.children.get().contains(Paths.get(path).getFileName().toString()))
+            return Optional.of(Optional.empty());
+        return Optional.empty();
+    }
+
+    /**
+     *
+     * @param path
+     * @param dir the node at path
+     * @return the children of dir, which are all cached
+     */
+    public Set<FileTreeNode> getChildren(String path, FileTreeNode dir) {
+        String normalised = normalise(path);
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+        try {
+            Set<FileTreeNode> children = dir.getChildren(context.network).get();
+            synchronized (this) {
+                if (generation == startGeneration) {
+                    long expiry = System.currentTimeMillis() + ttlMillis;
+                    Set<String> names = new HashSet<>();
+                    String prefix = normalised.equals("/") ? "/" : normalised + "/";
+                    for (FileTreeNode child : children) {
+                        String name = child.getFileProperties().name;
+                        names.add(name);
+                        entries.put(prefix + name, new Entry(Optional.of(child), expiry, Optional.empty()));
+                    }
+                    entries.put(normalised, new Entry(Optional.of(dir), expiry, Optional.of(names)));
+                }
+            }
+            return children;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Drop a path, everything below it, and its parent, which has changed with it.
+     */
+    public synchronized void invalidate(String path) {
+        generation++;
+        String normalised = normalise(path);
+        String prefix = normalised.equals("/") ? "/" : normalised + "/";
+        entries.keySet().removeIf(p -> p.equals(normalised) || p.startsWith(prefix));
+        parent(normalised).ifPresent(entries::remove);
+    }
+
+    private synchronized void writersChanged(Set<PublicKeyHash> writers) {
+        generation++;
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            // a missing path might have been created, and synthetic directories might have gained children
+            if (! entry.writer.isPresent() || writers.contains(entry.writer.get()))
+                changed.add(e.getKey());
+        }
+        // anything below a changed directory might have moved or been removed
+        entries.keySet().removeIf(p -> isOrIsBelow(p, changed));
+    }
+
+    private static boolean isOrIsBelow(String path, Set<String> dirs) {
+        for (Optional<String> p = Optional.of(path); p.isPresent(); p = parent(p.get()))
+            if (dirs.contains(p.get()))
+                return true;
+        return false;
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    public double hitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
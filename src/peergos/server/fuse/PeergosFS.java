@@ -37,10 +37,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
 
 
     private final UserContext context;
+    private final PathCache paths;
     protected volatile boolean isClosed;
 
     public PeergosFS(UserContext context) {
         this.context = context;
+        this.paths = new PathCache(context);
     }
 
     @Override
@@ -118,7 +120,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
 
-        Optional<PeergosStat> parentOpt = getByPath(parentPath);
+        Optional<PeergosStat> parentOpt = getForUpdate(parentPath);
 
         String name = path.getFileName().toString();
 
@@ -126,7 +128,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             return 1;
 
         PeergosStat parent = parentOpt.get();
-        return mkdir(name, parent.treeNode).isPresent() ? 0 : 1;
+        try {
+            return mkdir(name, parent.treeNode).isPresent() ? 0 : 1;
+        } finally {
+            paths.invalidate(s);
+        }
     }
 
     @Override
@@ -147,6 +153,8 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         } catch (Exception ioe) {
             ioe.printStackTrace();
             return 1;
+        } finally {
+            paths.invalidate(s);
         }
     }
 
@@ -154,7 +162,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rmdir(String s) {
         ensureNotClosed();
         Path dir = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        try {
+            return applyIfPresentForUpdate(s, (stat) -> applyIfPresentForUpdate(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        } finally {
+            paths.invalidate(s);
+        }
     }
 
     @Override
@@ -191,7 +203,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rename(String s, String s1) {
         ensureNotClosed();
         Path source = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        try {
+            return applyIfPresentForUpdate(s, (stat) -> applyIfPresentForUpdate(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        } finally {
+            paths.invalidate(s);
+            paths.invalidate(s1);
+        }
     }
 
     @Override
@@ -237,7 +254,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
         String name = path.getFileName().toString();
-        return applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        try {
+            return applyIfPresentForUpdate(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        } finally {
+            paths.invalidate(s);
+        }
     }
 
     @Override
@@ -293,7 +314,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int readdir(String s, Pointer pointer, FuseFillDir fuseFillDir, @off_t long l, FuseFileInfo fuseFileInfo) {
         ensureNotClosed();
-        return applyIfPresent(s, (stat) ->readdir(stat,  fuseFillDir, pointer));
+        return applyIfPresent(s, (stat) ->readdir(s, stat,  fuseFillDir, pointer));
     }
 
     @Override
@@ -334,8 +355,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         String name = path.getFileName().toString();
         byte[] emptyData = new byte[0];
 
-        return applyIfPresent(parentPath,
-                (stat) -> write(stat,  name, emptyData, 0, 0));
+        try {
+            return applyIfPresentForUpdate(parentPath,
+                    (stat) -> write(stat,  name, emptyData, 0, 0));
+        } finally {
+            paths.invalidate(s);
+        }
     }
 
     @Override
@@ -343,7 +368,11 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         ensureNotClosed();
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
-        return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        try {
+            return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        } finally {
+            paths.invalidate(s);
+        }
     }
 
     @Override
@@ -364,35 +393,39 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         ensureNotClosed();
         int aDefault = -ErrorCodes.ENOENT();
 
-        Optional<PeergosStat> parentOpt = getParentByPath(s);
+        Optional<PeergosStat> parentOpt = getForUpdate(Paths.get(s).getParent().toString());
         if (! parentOpt.isPresent())
             return aDefault;
 
-        return applyIfPresent(s, (stat) -> {
-
-            Timespec access = timespecs[0], modified = timespecs[1];
-            long epochSeconds = modified.tv_sec.longValue();
-            Instant instant = Instant.ofEpochSecond(epochSeconds);
-            LocalDateTime lastModified = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
-
-            FileProperties updated = stat.properties.withModified(lastModified);
-
-            /*
-            debug("utimens %s, with %s, %d, %s, updated %s", s,
-                    lastModified.toString(),
-                    epochSeconds,
-                    modified.toString(),
-                    updated.toString());
-                    */
-
-            try {
-                boolean isUpdated = stat.treeNode.setProperties(updated, context.network, parentOpt.get().treeNode).get();
-                return isUpdated ? 0 : 1;
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                return 1;
-            }
-        }, aDefault);
+        try {
+            return applyIfPresentForUpdate(s, (stat) -> {
+
+                Timespec access = timespecs[0], modified = timespecs[1];
+                long epochSeconds = modified.tv_sec.longValue();
+                Instant instant = Instant.ofEpochSecond(epochSeconds);
+                LocalDateTime lastModified = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+
+                FileProperties updated = stat.properties.withModified(lastModified);
+
+                /*
+                debug("utimens %s, with %s, %d, %s, updated %s", s,
+                        lastModified.toString(),
+                        epochSeconds,
+                        modified.toString(),
+                        updated.toString());
+                        */
+
+                try {
+                    boolean isUpdated = stat.treeNode.setProperties(updated, context.network, parentOpt.get().treeNode).get();
+                    return isUpdated ? 0 : 1;
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    return 1;
+                }
+            }, aDefault);
+        } finally {
+            paths.invalidate(s);
+        }
 
     }
 
@@ -438,24 +471,30 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         throw ex;
     }
 
+    /** Resolve a path from the cache. The returned node must not be modified.
+     */
     protected Optional<PeergosStat> getByPath(String path) {
-        try {
-            Optional<FileTreeNode> opt = context.getByPath(path).get();
-            ;
-            if (!opt.isPresent())
-                return Optional.empty();
-            FileTreeNode treeNode = opt.get();
-            FileProperties fileProperties = treeNode.getFileProperties();
+        return paths.getByPath(path).map(PeergosFS::stat);
+    }
 
-            return Optional.of(new PeergosStat(treeNode, fileProperties));
+    /** Resolve a path without the cache, to get a node which can be modified. The path must be invalidated afterwards.
+     */
+    protected Optional<PeergosStat> getForUpdate(String path) {
+        try {
+            return context.getByPath(path).get().map(PeergosFS::stat);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Optional<PeergosStat> getParentByPath(String  path) {
-        String parentPath = Paths.get(path).getParent().toString();
-        return getByPath(parentPath);
+    private static PeergosStat stat(FileTreeNode treeNode) {
+        return new PeergosStat(treeNode, treeNode.getFileProperties());
+    }
+
+    /** Drop any cached resolution of a path, its parent and its descendants
+     */
+    protected void invalidate(String path) {
+        paths.invalidate(path);
     }
 
     protected int applyIf(String path, boolean isPresent, Function<PeergosStat,  Integer> func, int _default) {
@@ -475,9 +514,21 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         return applyIf(path, isPresent, func, _default);
     }
 
+    protected int applyIfPresentForUpdate(String path, Function<PeergosStat,  Integer> func) {
+        int aDefault = 1;
+        return applyIfPresentForUpdate(path, func, aDefault);
+    }
+
+    protected int applyIfPresentForUpdate(String path, Function<PeergosStat,  Integer> func, int _default) {
+        Optional<PeergosStat> forUpdate = getForUpdate(path);
+        if (forUpdate.isPresent())
+            return func.apply(forUpdate.get());
+        return _default;
+    }
+
     private int applyIfBothPresent(String parentPath, String filePath, BiFunction<PeergosStat, PeergosStat,  Integer> func) {
         int aDefault = 1;
-        return applyIfPresent(parentPath, parentStat -> applyIfPresent(filePath, fileStat -> func.apply(parentStat, fileStat)), aDefault);
+        return applyIfPresentForUpdate(parentPath, parentStat -> applyIfPresentForUpdate(filePath, fileStat -> func.apply(parentStat, fileStat)), aDefault);
     }
 
     private int rmdir(PeergosStat stat, PeergosStat parentStat) {
@@ -491,9 +542,9 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         }
     }
 
-    private int readdir(PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
+    private int readdir(String path, PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
         try {
-            Set<FileTreeNode> children = stat.treeNode.getChildren(context.network).get();
+            Set<FileTreeNode> children = paths.getChildren(path, stat.treeNode);
             children.stream()
                     .map(e -> e.getFileProperties().name)
                     .forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
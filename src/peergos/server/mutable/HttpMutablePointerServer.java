@@ -8,6 +8,7 @@ import peergos.shared.mutable.*;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public class HttpMutablePointerServer
@@ -19,6 +20,7 @@ public class HttpMutablePointerServer
     private static final int HANDLER_THREAD_COUNT = 100;
 
     public static final String MUTABLE_POINTERS_URL = "mutable/";
+    public static final String WATCH_URL = MUTABLE_POINTERS_URL + "watch";
 
     public static class MutationHandler implements HttpHandler
     {
@@ -96,6 +98,68 @@ public class HttpMutablePointerServer
         }
     }
 
+    /** Answers long polls for changes to a set of writers' pointers. The exchange is held open without using a handler
+     *  thread until there are updates or the poll times out.
+     */
+    public static class WatchHandler implements HttpHandler
+    {
+        private static final int MAX_WATCHED_WRITERS = 10_000;
+        private final PointerWatchers watchers;
+
+        public WatchHandler(PointerWatchers watchers) {
+            this.watchers = watchers;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try {
+                DataInputStream din = new DataInputStream(exchange.getRequestBody());
+                long epoch = din.readLong();
+                long since = din.readLong();
+                int count = din.readInt();
+                if (count < 0 || count > MAX_WATCHED_WRITERS)
+                    throw new IllegalStateException("Too many writers to watch: " + count);
+                Set<PublicKeyHash> writers = new HashSet<>();
+                for (int i = 0; i < count; i++)
+                    writers.add(PublicKeyHash.fromCbor(CborObject.fromByteArray(
+                            CoreNodeUtils.deserializeByteArray(din))));
+                watchers.watch(epoch, since, writers)
+                        .thenAccept(updates -> reply(exchange, updates))
+                        .exceptionally(t -> {
+                            t.printStackTrace();
+                            fail(exchange, t);
+                            return null;
+                        });
+            } catch (Exception e) {
+                e.printStackTrace();
+                fail(exchange, e);
+            }
+        }
+
+        private static void reply(HttpExchange exchange, PointerUpdates updates) {
+            try {
+                byte[] b = updates.serialize();
+                exchange.sendResponseHeaders(200, b.length);
+                exchange.getResponseBody().write(b);
+            } catch (IOException e) {
+                // the client has gone away
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void fail(HttpExchange exchange, Throwable t) {
+            try {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.getResponseBody().write(String.valueOf(t.getMessage()).getBytes());
+            } catch (IOException e) {
+                // the client has gone away
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
     private final HttpServer server;
     private final InetSocketAddress address;
     private final MutationHandler ch;
@@ -108,8 +172,12 @@ public class HttpMutablePointerServer
             server = HttpServer.create(address, CONNECTION_BACKLOG);
         else
             server = HttpServer.create(new InetSocketAddress(InetAddress.getLocalHost(), address.getPort()), CONNECTION_BACKLOG);
-        ch = new MutationHandler(mutable);
+        MutableEventPropagator propagator = new MutableEventPropagator(mutable);
+        PointerWatchers watchers = new PointerWatchers();
+        propagator.addListener(watchers);
+        ch = new MutationHandler(propagator);
         server.createContext("/" + MUTABLE_POINTERS_URL, ch);
+        server.createContext("/" + WATCH_URL, new WatchHandler(watchers));
         server.setExecutor(Executors.newFixedThreadPool(HANDLER_THREAD_COUNT));
     }
 
@@ -1,6 +1,7 @@
 package peergos.server.mutable;
 
 import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
@@ -13,57 +14,212 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
 
+/** Pins the new root of each pointer update before committing it, and unpins the old root afterwards.
+ *
+ *  Updates to a writer are committed one group at a time. Updates which arrive while a group is being committed are
+ *  queued, and committed together as a chain of CAS updates, pinning only the newest root of the chain and unpinning
+ *  only the root it replaced. Each signed update in the chain is still passed to the target in order, so the target can
+ *  check every CAS, but intermediate roots are superseded as soon as they are committed, so they are never pinned. If
+ *  the target rejects part of a chain, the last root it committed is pinned in place of the head.
+ */
 public class PinningMutablePointers implements MutablePointers {
     private static final boolean LOGGING = true;
     private final MutablePointers target;
     private final ContentAddressedStorage storage;
+    // guarded by itself
+    private final Map<PublicKeyHash, List<Update>> queues = new HashMap<>();
 
     public PinningMutablePointers(MutablePointers target, ContentAddressedStorage storage) {
         this.target = target;
         this.storage = storage;
     }
 
+    private static class Update {
+        final PublicKeyHash owner;
+        final byte[] signedPointer;
+        final HashCasPair cas;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Update(PublicKeyHash owner, byte[] signedPointer, HashCasPair cas) {
+            this.owner = owner;
+            this.signedPointer = signedPointer;
+            this.cas = cas;
+        }
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash signerHash, byte[] sharingKeySignedBtreeRootHashes) {
-        // first pin new root
         return storage.getSigningKey(signerHash).thenCompose(signer -> {
-            byte[] message = signer.get().unsignMessage(sharingKeySignedBtreeRootHashes);
-            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(message));
-            long t1 = System.currentTimeMillis();
-            return (cas.original.isPresent() ? storage.pinUpdate(cas.original.get(), cas.updated.get())
-                    .thenApply(PinningMutablePointers::convert) :
-                    storage.recursivePin(cas.updated.get())).thenCompose(pins -> {
-                if (!pins.contains(cas.updated.get())) {
-                    CompletableFuture<Boolean> err = new CompletableFuture<>();
-                    err.completeExceptionally(new IllegalStateException("Couldn't pin new hash: " + cas.updated.get()));
-                    return err;
+            HashCasPair cas = unsign(signer.get(), sharingKeySignedBtreeRootHashes);
+            Update update = new Update(owner, sharingKeySignedBtreeRootHashes, cas);
+            boolean isCommitting;
+            synchronized (queues) {
+                isCommitting = queues.containsKey(signerHash);
+                queues.computeIfAbsent(signerHash, w -> new ArrayList<>()).add(update);
+            }
+            if (! isCommitting)
+                commitQueued(signerHash, signer.get());
+            return update.result;
+        });
+    }
+
+    private static HashCasPair unsign(PublicSigningKey signer, byte[] signedPointer) {
+        byte[] message = signer.unsignMessage(signedPointer);
+        return HashCasPair.fromCbor(CborObject.fromByteArray(message));
+    }
+
+    /** Commit everything queued for a writer, then anything queued while doing so, until the queue is empty.
+     */
+    private void commitQueued(PublicKeyHash writer, PublicSigningKey signer) {
+        List<Update> group;
+        synchronized (queues) {
+            List<Update> queued = queues.get(writer);
+            if (queued.isEmpty()) {
+                queues.remove(writer);
+                return;
+            }
+            group = new ArrayList<>(queued);
+            queued.clear();
+        }
+        commit(writer, signer, group)
+                .whenComplete((res, t) -> commitQueued(writer, signer));
+    }
+
+    private CompletableFuture<Boolean> commit(PublicKeyHash writer, PublicSigningKey signer, List<Update> group) {
+        return target.getPointer(writer).thenCompose(current -> {
+            MaybeMultihash root = current.map(signed -> unsign(signer, signed).updated).orElse(MaybeMultihash.empty());
+            List<Update> chain = new ArrayList<>();
+            List<Update> remaining = new ArrayList<>(group);
+            MaybeMultihash head = root;
+            // follow the updates from the current root, in case they were queued out of order
+            boolean extended = true;
+            while (extended) {
+                extended = false;
+                for (Iterator<Update> it = remaining.iterator(); it.hasNext(); ) {
+                    Update next = it.next();
+                    if (next.cas.original.equals(head)) {
+                        chain.add(next);
+                        head = next.cas.updated;
+                        it.remove();
+                        extended = true;
+                        break;
+                    }
                 }
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    System.out.println("Btree:Pin update " + cas.updated + " took: " + (t2 - t1) + " mS");
-                return target.setPointer(owner, signerHash, sharingKeySignedBtreeRootHashes)
-                        .thenCompose(b -> {
-                            if (!b) {
-                                CompletableFuture<Boolean> err = new CompletableFuture<>();
-                                err.completeExceptionally(new IllegalStateException("Couldn't update mutable pointer, cas failed: " + cas));
-                                return err;
-                            }
-                            long t3 = System.currentTimeMillis();
-                            // unpin old root
-                            return !cas.original.isPresent() ?
-                                    CompletableFuture.completedFuture(true) :
-                                    storage.recursiveUnpin(cas.original.get())
-                                            .thenApply(unpins -> {
-                                                long t4 = System.currentTimeMillis();
-                                                if (LOGGING)
-                                                    System.out.println("Unpinning " + cas.original + " took: " + (t4 - t3) + " mS");
-                                                return unpins.contains(cas.original.get());
-                                            });
-                        });
+            }
+            for (Update failed : remaining)
+                failed.result.completeExceptionally(
+                        new IllegalStateException("Couldn't update mutable pointer, cas failed: " + failed.cas));
+            if (chain.isEmpty())
+                return CompletableFuture.completedFuture(false);
+            return commitChain(writer, root, chain);
+        }).exceptionally(t -> {
+            for (Update update : group)
+                update.result.completeExceptionally(t);
+            return false;
+        });
+    }
+
+    private CompletableFuture<Boolean> commitChain(PublicKeyHash writer, MaybeMultihash original, List<Update> chain) {
+        MaybeMultihash updated = chain.get(chain.size() - 1).cas.updated;
+        long t1 = System.currentTimeMillis();
+        // first pin new root
+        return pin(original, updated).thenCompose(x -> {
+            long t2 = System.currentTimeMillis();
+            if (LOGGING)
+                System.out.println("Btree:Pin update " + updated + " for " + chain.size() + " updates took: " + (t2 - t1) + " mS");
+            return setPointers(writer, chain, 0);
+        }).thenCompose(committed -> {
+            if (committed.count < chain.size())
+                return partiallyCommitted(original, chain, committed);
+            long t3 = System.currentTimeMillis();
+            // unpin old root
+            return unpin(updated, original).thenApply(res -> {
+                long t4 = System.currentTimeMillis();
+                if (LOGGING && ! original.equals(updated) && original.isPresent())
+                    System.out.println("Unpinning " + original + " took: " + (t4 - t3) + " mS");
+                // complete in order, so listeners see each update in the chain
+                for (Update update : chain)
+                    update.result.complete(res);
+                return res;
             });
+        }).exceptionally(t -> {
+            // this doesn't affect any updates which have already completed
+            for (Update update : chain)
+                update.result.completeExceptionally(t);
+            return false;
         });
     }
 
+    /** The target rejected part of the chain, so the pinned head was never committed. Pin the last root it did commit
+     *  instead, complete the committed updates and fail the rest.
+     */
+    private CompletableFuture<Boolean> partiallyCommitted(MaybeMultihash original, List<Update> chain, ChainResult committed) {
+        MaybeMultihash head = chain.get(chain.size() - 1).cas.updated;
+        MaybeMultihash current = committed.count == 0 ? original : chain.get(committed.count - 1).cas.updated;
+        return pin(original, current).thenCompose(x -> {
+            for (Update update : chain.subList(0, committed.count))
+                update.result.complete(true);
+            for (Update update : chain.subList(committed.count, chain.size()))
+                update.result.completeExceptionally(committed.failure);
+            // the head was only pinned if it differs from the original root
+            CompletableFuture<Boolean> unpinnedHead = original.equals(head) ?
+                    CompletableFuture.completedFuture(true) :
+                    unpin(current, head);
+            return unpinnedHead.thenCompose(y -> unpin(current, original));
+        }).thenApply(x -> false);
+    }
+
+    /** Pin updated if it isn't the already pinned original root
+     */
+    private CompletableFuture<Boolean> pin(MaybeMultihash original, MaybeMultihash updated) {
+        if (original.equals(updated) || ! updated.isPresent())
+            return CompletableFuture.completedFuture(true);
+        CompletableFuture<List<Multihash>> pinned = original.isPresent() ?
+                storage.pinUpdate(original.get(), updated.get()).thenApply(PinningMutablePointers::convert) :
+                storage.recursivePin(updated.get());
+        return pinned.thenApply(pins -> {
+            if (! pins.contains(updated.get()))
+                throw new IllegalStateException("Couldn't pin new hash: " + updated.get());
+            return true;
+        });
+    }
+
+    /** Unpin a root which has been replaced by current
+     */
+    private CompletableFuture<Boolean> unpin(MaybeMultihash current, MaybeMultihash replaced) {
+        if (current.equals(replaced) || ! replaced.isPresent())
+            return CompletableFuture.completedFuture(true);
+        return storage.recursiveUnpin(replaced.get())
+                .thenApply(unpins -> unpins.contains(replaced.get()));
+    }
+
+    private static class ChainResult {
+        final int count;
+        final Throwable failure;
+
+        ChainResult(int count, Throwable failure) {
+            this.count = count;
+            this.failure = failure;
+        }
+    }
+
+    /** Send each signed pointer in the chain to the target in order, as each is only valid against the previous one,
+     *  stopping at the first which isn't committed.
+     *
+     * @return the number of updates committed, and why the next one wasn't
+     */
+    private CompletableFuture<ChainResult> setPointers(PublicKeyHash writer, List<Update> chain, int from) {
+        if (from == chain.size())
+            return CompletableFuture.completedFuture(new ChainResult(from, null));
+        Update update = chain.get(from);
+        return target.setPointer(update.owner, writer, update.signedPointer)
+                .handle((b, t) -> t != null ? t :
+                        b ? null : new IllegalStateException("Couldn't update mutable pointer, cas failed: " + update.cas))
+                .thenCompose(failure -> failure == null ?
+                        setPointers(writer, chain, from + 1) :
+                        CompletableFuture.completedFuture(new ChainResult(from, failure)));
+    }
+
     private static List<Multihash> convert(List<MultiAddress> addresses) {
         return addresses.stream()
                 .filter(addr -> addr.toString().startsWith("/ipfs/"))
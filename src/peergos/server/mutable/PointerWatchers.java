@@ -0,0 +1,144 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Numbers pointer updates as they happen, and answers long polls for updates to a set of writers.
+ *
+ *  The latest update of each recently changed writer is retained. A poll from before the oldest retained update, or
+ *  from a different epoch (e.g. before a restart), is answered with a reset.
+ */
+public class PointerWatchers implements Consumer<MutableEvent> {
+    public static final int MAX_RETAINED_WRITERS = 100_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 20_000;
+
+    private final long epoch = new SecureRandom().nextLong();
+    private final long timeoutMillis;
+    private final int maxRetained;
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Pointer watch timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // everything below is guarded by this
+    private long sequence = 0;
+    // polls since an earlier update than this must be reset
+    private long floor = 0;
+    // the latest update of each writer in order of sequence number
+    private final LinkedHashMap<PublicKeyHash, Update> latest = new LinkedHashMap<>();
+    private final Map<PublicKeyHash, Set<Poll>> polls = new HashMap<>();
+
+    public PointerWatchers(long timeoutMillis, int maxRetained) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetained = maxRetained;
+        // drop the timeouts of polls which are answered early, rather than keeping them queued until they expire
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public PointerWatchers() {
+        this(DEFAULT_TIMEOUT_MILLIS, MAX_RETAINED_WRITERS);
+    }
+
+    private static class Update {
+        final long sequence;
+        final byte[] signedPointer;
+
+        Update(long sequence, byte[] signedPointer) {
+            this.sequence = sequence;
+            this.signedPointer = signedPointer;
+        }
+    }
+
+    private static class Poll {
+        final long since;
+        final Set<PublicKeyHash> writers;
+        final CompletableFuture<PointerUpdates> result = new CompletableFuture<>();
+        // guarded by PointerWatchers.this
+        ScheduledFuture<?> timeout;
+
+        Poll(long since, Set<PublicKeyHash> writers) {
+            this.since = since;
+            this.writers = writers;
+        }
+    }
+
+    @Override
+    public void accept(MutableEvent event) {
+        List<Poll> woken;
+        synchronized (this) {
+            sequence++;
+            latest.remove(event.writer);
+            latest.put(event.writer, new Update(sequence, event.writerSignedBtreeRootHash));
+            if (latest.size() > maxRetained) {
+                Iterator<Map.Entry<PublicKeyHash, Update>> oldest = latest.entrySet().iterator();
+                floor = oldest.next().getValue().sequence;
+                oldest.remove();
+            }
+            Set<Poll> waiting = polls.get(event.writer);
+            woken = waiting == null ? Collections.emptyList() : new ArrayList<>(waiting);
+            for (Poll poll : woken) {
+                remove(poll);
+                poll.timeout.cancel(false);
+            }
+        }
+        // reply from the timer thread, rather than the thread making the update
+        if (! woken.isEmpty())
+            timer.execute(() -> woken.forEach(this::complete));
+    }
+
+    /**
+     *
+     * @param epoch
+     * @param since
+     * @param writers
+     * @return the latest updates to any of writers after since, as soon as there are any, or no updates after the timeout
+     */
+    public CompletableFuture<PointerUpdates> watch(long epoch, long since, Set<PublicKeyHash> writers) {
+        synchronized (this) {
+            if (epoch != this.epoch || since < floor || since > sequence)
+                return CompletableFuture.completedFuture(PointerUpdates.reset(this.epoch, sequence));
+            PointerUpdates current = changes(since, writers);
+            if (! current.updates.isEmpty() || writers.isEmpty())
+                return CompletableFuture.completedFuture(current);
+            Poll poll = new Poll(since, writers);
+            for (PublicKeyHash writer : writers)
+                polls.computeIfAbsent(writer, w -> new HashSet<>()).add(poll);
+            poll.timeout = timer.schedule(() -> {
+                synchronized (this) {
+                    remove(poll);
+                }
+                complete(poll);
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            return poll.result;
+        }
+    }
+
+    private synchronized PointerUpdates changes(long since, Set<PublicKeyHash> writers) {
+        Map<PublicKeyHash, byte[]> updates = new HashMap<>();
+        for (PublicKeyHash writer : writers) {
+            Update update = latest.get(writer);
+            if (update != null && update.sequence > since)
+                updates.put(writer, update.signedPointer);
+        }
+        return new PointerUpdates(epoch, sequence, false, updates);
+    }
+
+    private void remove(Poll poll) {
+        for (PublicKeyHash writer : poll.writers) {
+            Set<Poll> waiting = polls.get(writer);
+            if (waiting != null && waiting.remove(poll) && waiting.isEmpty())
+                polls.remove(writer);
+        }
+    }
+
+    private void complete(Poll poll) {
+        if (! poll.result.isDone())
+            poll.result.complete(changes(poll.since, poll.writers));
+    }
+}
@@ -12,15 +12,19 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
 public class DHTHandler implements HttpHandler
 {
     private static final boolean LOGGING = true;
+    private static final int BLOCK_THREADS = 20;
+    private static final int VERIFY_BATCH_SIZE = 16;
     private final ContentAddressedStorage dht;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
+    private final ForkJoinPool blockPool = new ForkJoinPool(BLOCK_THREADS);
 
     public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) throws IOException
     {
@@ -75,13 +79,8 @@ public class DHTHandler implements HttpHandler
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
                     boolean isRaw = last.apply("format").equals("raw");
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
-
                     // Get the actual key, unless this is the initial write of the signing key during sign up
                     // In the initial put of a signing key during sign up the key signs itself (we still check the hash
                     // against the core node)
@@ -92,12 +91,12 @@ public class DHTHandler implements HttpHandler
                             throw new RuntimeException(e);
                         }
                     };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
+                    Function<byte[], PublicSigningKey> inBandOrDht = first -> {
                         try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(first);
                             PublicKeyHash calculatedHash = dht.hashKey(candidateKey);
                             if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(ArrayOps.concat(signatures.get(0), data.get(0)));
+                                candidateKey.verifyAll(signatures, Collections.singletonList(first));
                                 return candidateKey;
                             }
                         } catch (Throwable e) {
@@ -106,24 +105,51 @@ public class DHTHandler implements HttpHandler
                         }
                         return fromDht.get();
                     };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] unsigned = writer.unsignMessage(ArrayOps.concat(signature, data.get(i)));
-                        if (!Arrays.equals(unsigned, data.get(i)))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
-
-                    (isRaw ?
-                            dht.putRaw(writerHash, signatures, data) :
-                            dht.put(writerHash, signatures, data)).thenAccept(hashes -> {
-                        List<Object> json = hashes.stream().map(h -> wrapHash(h)).collect(Collectors.toList());
-                        // make stream of JSON objects
-                        String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
-                        replyJson(httpExchange, jsonStream, Optional.empty());
-                    }).exceptionally(Futures::logError);
+
+                    // Look up the writer whilst receiving the blocks, and verify their signatures in batches as they
+                    // arrive. The blocks are all kept until every signature has been verified, so they can be stored
+                    // with a single put.
+                    boolean isSingleBlock = signatures.size() == 1;
+                    CompletableFuture<PublicSigningKey> writer = isSingleBlock ?
+                            new CompletableFuture<>() :
+                            CompletableFuture.supplyAsync(fromDht, blockPool);
+                    List<byte[]> blocks = new ArrayList<>();
+                    List<CompletableFuture<Boolean>> verified = new ArrayList<>();
+                    MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary, block -> {
+                        if (blocks.size() >= signatures.size())
+                            throw new IllegalStateException("More blocks than signatures!");
+                        if (isSingleBlock)
+                            writer.complete(inBandOrDht.apply(block));
+                        blocks.add(block);
+
+                        int end = blocks.size();
+                        if (end % VERIFY_BATCH_SIZE == 0 || end == signatures.size()) {
+                            int start = (end - 1) / VERIFY_BATCH_SIZE * VERIFY_BATCH_SIZE;
+                            List<byte[]> batchSignatures = signatures.subList(start, end);
+                            List<byte[]> batch = new ArrayList<>(blocks.subList(start, end));
+                            verified.add(writer.thenApplyAsync(key -> {
+                                key.verifyAll(batchSignatures, batch);
+                                return true;
+                            }, blockPool));
+                        }
+                    });
+                    if (blocks.size() != signatures.size())
+                        throw new IllegalStateException("Fewer blocks than signatures!");
+
+                    // check writer is allowed to write to this server, and check their free space, before storing any block
+                    if (! keyFilter.apply(writerHash, blocks.stream().mapToInt(x -> x.length).sum()))
+                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+
+                    Futures.combineAll(verified).get();
+
+                    // We need to wait for the result before closing the exchange
+                    List<Multihash> stored = (isRaw ?
+                            dht.putRaw(writerHash, signatures, blocks) :
+                            dht.put(writerHash, signatures, blocks)).get();
+                    List<Object> json = stored.stream().map(h -> wrapHash(h)).collect(Collectors.toList());
+                    // make stream of JSON objects
+                    String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
+                    replyJson(httpExchange, jsonStream, Optional.empty());
                     break;
                 }
                 case "block/get":{
@@ -136,6 +162,15 @@ public class DHTHandler implements HttpHandler
                             .exceptionally(Futures::logError);
                     break;
                 }
+                case "block/getMany": {
+                    List<Multihash> hashes = args.stream()
+                            .map(Cid::decode)
+                            .collect(Collectors.toList());
+                    // We need to wait for the result before closing the exchange
+                    List<Optional<byte[]>> blocks = dht.getRaw(hashes).get();
+                    replyBlocks(httpExchange, blocks);
+                    break;
+                }
                 case "pin/add": {
                     Multihash hash = Cid.decode(args.get(0));
                     dht.recursivePin(hash).thenAccept(pinned -> {
@@ -231,6 +266,25 @@ public class DHTHandler implements HttpHandler
         }
     }
 
+    /** Send each block prefixed by its length, with missing blocks having length 0
+     */
+    private static void replyBlocks(HttpExchange exchange, List<Optional<byte[]>> blocks) {
+        try {
+            exchange.sendResponseHeaders(200, 0);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+            for (Optional<byte[]> block : blocks) {
+                byte[] data = block.orElse(new byte[0]);
+                dout.writeInt(data.length);
+                dout.write(data);
+            }
+            dout.flush();
+            dout.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
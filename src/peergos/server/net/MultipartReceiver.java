@@ -2,83 +2,146 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
 public class MultipartReceiver {
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        List<byte[]> files = new ArrayList<>();
+        extractFiles(in, boundary, files::add);
+        return files;
+    }
+
+    /** Parse a multipart stream, passing each file to the consumer as soon as it has been fully received
+     *
+     * @param rawIn
+     * @param boundary
+     * @param onFile called with each file in order, on the calling thread
+     */
+    public static void extractFiles(InputStream rawIn, String boundary, Consumer<byte[]> onFile) {
         try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
+            Scanner in = new Scanner(rawIn);
+            ByteArrayOutputStream firstLine = new ByteArrayOutputStream();
+            in.readUntil(new Pattern(NEW_LINE), firstLine, MAX_LINE_SIZE);
+            String first = new String(firstLine.toByteArray());
             if (!first.substring(2).equals(boundary))
                 throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
-
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+            Pattern headerEnd = new Pattern(DOUBLE_NEW_LINE);
+            in.readUntil(headerEnd, new ByteArrayOutputStream(), Integer.MAX_VALUE);
 
+            Pattern boundaryPattern = new Pattern(("\r\n--" + boundary).getBytes());
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                in.readUntil(boundaryPattern, file, Integer.MAX_VALUE);
+                onFile.accept(file.toByteArray());
+                ByteArrayOutputStream headers = new ByteArrayOutputStream();
+                boolean moreFiles = in.readUntil(headerEnd, headers, Integer.MAX_VALUE);
+                // the final boundary is followed by "--"
+                byte[] rawHeaders = headers.toByteArray();
+                if (! moreFiles || (rawHeaders.length >= 2 && rawHeaders[0] == '-' && rawHeaders[1] == '-'))
+                    return;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
+    /** A Boyer-Moore-Horspool searcher for a fixed pattern of bytes
      */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    private static final class Pattern {
+        private final byte[] pattern;
+        private final int[] shifts = new int[256];
+
+        Pattern(byte[] pattern) {
+            this.pattern = pattern;
+            Arrays.fill(shifts, pattern.length);
+            for (int i = 0; i < pattern.length - 1; i++)
+                shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+
+        int length() {
+            return pattern.length;
+        }
+
+        /**
+         *
+         * @return the index of the first occurrence of the pattern in data[from, to), or -1 if it is not present
+         */
+        int indexOf(byte[] data, int from, int to) {
+            int last = pattern.length - 1;
+            for (int i = from; i + last < to; i += shifts[data[i + last] & 0xff]) {
+                int j = last;
+                while (data[i + j] == pattern[j]) {
+                    if (j == 0)
+                        return i;
+                    j--;
+                }
             }
+            return -1;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+    /** Reads from a stream through a reusable buffer, copying out the bytes before each occurrence of a pattern
+     */
+    private static final class Scanner {
+        private final InputStream in;
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int start, end;
+        private boolean eof;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         *
+         * @param pattern the pattern of bytes to search until
+         * @param out where to write the bytes before the pattern
+         * @param maxSize stop once this many bytes have been written
+         * @return true if the pattern was found, false if the end of the stream or maxSize was reached first
+         * @throws IOException
+         */
+        boolean readUntil(Pattern pattern, OutputStream out, int maxSize) throws IOException {
+            long written = 0;
+            while (true) {
+                int index = pattern.indexOf(buf, start, end);
+                if (index >= 0) {
+                    out.write(buf, start, index - start);
+                    start = index + pattern.length();
+                    return true;
+                }
+                if (eof) {
+                    out.write(buf, start, end - start);
+                    start = end;
+                    return false;
+                }
+                // Everything except a possible partial match at the end of the buffer can be written out
+                int safe = Math.max(start, end - (pattern.length() - 1));
+                out.write(buf, start, safe - start);
+                written += safe - start;
+                start = safe;
+                if (written > maxSize)
+                    return false;
+                fill(pattern.length());
+            }
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        private void fill(int minCapacity) throws IOException {
+            int remaining = end - start;
+            if (minCapacity > buf.length)
+                buf = Arrays.copyOf(buf, minCapacity * 2);
+            System.arraycopy(buf, start, buf, 0, remaining);
+            start = 0;
+            end = remaining;
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0)
+                eof = true;
+            else
+                end += read;
         }
-        return new String(bout.toByteArray());
     }
 }
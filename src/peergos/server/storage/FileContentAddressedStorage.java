@@ -0,0 +1,161 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A block store which keeps every block as its own file on local disk, without an external process.
+ *
+ *  Blocks are stored under root/XX/<hash> where XX is the last byte of the block's hash in hex, so each
+ *  shard directory holds roughly 1/256th of the blocks. Writes go to a temporary file which is atomically
+ *  renamed into place, so a crash can never leave a partially written block visible.
+ *
+ *  Like RAMStorage, nothing is ever garbage collected, so pinning is a no-op.
+ */
+public class FileContentAddressedStorage implements ContentAddressedStorage {
+    private static final int CID_V1 = 1;
+    private static final String TMP_DIR = "tmp";
+
+    private final Path root;
+    private final Path tmp;
+
+    public FileContentAddressedStorage(Path root) {
+        this.root = root;
+        this.tmp = root.resolve(TMP_DIR);
+        try {
+            Files.createDirectories(tmp);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't create block store directory: " + root, e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(blocks, false);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(blocks, true);
+    }
+
+    private CompletableFuture<List<Multihash>> put(List<byte[]> blocks, boolean isRaw) {
+        CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+        try {
+            List<Multihash> hashes = new ArrayList<>(blocks.size());
+            for (byte[] block : blocks) {
+                Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                        new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(block)));
+                write(cid, block);
+                hashes.add(cid);
+            }
+            res.complete(hashes);
+        } catch (Exception e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    private void write(Multihash hash, byte[] block) throws IOException {
+        Path target = getFilePath(hash);
+        if (Files.exists(target))
+            return;
+        Files.createDirectories(target.getParent());
+        Path tmpFile = Files.createTempFile(tmp, "block", ".tmp");
+        try {
+            Files.write(tmpFile, block);
+            Files.move(tmpFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // another thread wrote the same block concurrently
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private Optional<byte[]> read(Multihash hash) throws IOException {
+        try {
+            return Optional.of(Files.readAllBytes(getFilePath(hash)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return the file a block is stored in, independent of the codec of the cid used to refer to it
+     */
+    private Path getFilePath(Multihash hash) {
+        String name = ArrayOps.bytesToHex(new Multihash(hash).toBytes());
+        return root.resolve(name.substring(name.length() - 2)).resolve(name);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        CompletableFuture<Optional<CborObject>> res = new CompletableFuture<>();
+        try {
+            res.complete(read(hash).map(CborObject::fromByteArray));
+        } catch (Exception e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        try {
+            res.complete(read(hash));
+        } catch (Exception e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(cbor -> cbor.links())
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        CompletableFuture<Optional<Integer>> res = new CompletableFuture<>();
+        try {
+            res.complete(Optional.of((int) Files.size(getFilePath(block))));
+        } catch (NoSuchFileException e) {
+            res.complete(Optional.empty());
+        } catch (Exception e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+}
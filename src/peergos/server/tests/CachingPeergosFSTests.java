@@ -0,0 +1,169 @@
+package peergos.server.tests;
+
+import jnr.ffi.*;
+import org.junit.*;
+import peergos.server.Start;
+import peergos.server.fuse.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+import ru.serce.jnrfuse.*;
+import ru.serce.jnrfuse.struct.*;
+
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/** Exercises the FUSE caches directly, without mounting the file system
+ */
+public class CachingPeergosFSTests {
+    private static final String username = "fusecache";
+    private static int webPort;
+    private static UserContext context;
+    private static final Random random = new Random(42);
+
+    @BeforeClass
+    public static void init() throws Exception {
+        webPort = 9000 + random.nextInt(4000);
+        int corePort = 13000 + random.nextInt(4000);
+        Args args = Args.parse(new String[]{"useIPFS", "false", "-port", Integer.toString(webPort), "-corenodePort", Integer.toString(corePort)});
+        Start.LOCAL.main(args);
+        // use insecure random otherwise tests take ages
+        Field prng = TweetNaCl.class.getDeclaredField("prng");
+        prng.setAccessible(true);
+        Field modifiersField = Field.class.getDeclaredField("modifiers");
+        modifiersField.setAccessible(true);
+        modifiersField.setInt(prng, prng.getModifiers() & ~Modifier.FINAL);
+        prng.set(null, new Random(1));
+        NetworkAccess network = NetworkAccess.buildJava(new URL("http://localhost:" + webPort)).get();
+        context = UserContext.ensureSignedUp(username, username, network, Crypto.initJava()).get();
+    }
+
+    private static Pointer pointer(byte[] data) {
+        Pointer p = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), data.length);
+        p.put(0, data, 0, data.length);
+        return p;
+    }
+
+    private static byte[] read(PeergosFS fs, String path, long offset, int length) {
+        Pointer p = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), length);
+        int read = fs.read(path, p, length, offset, null);
+        byte[] res = new byte[read];
+        p.get(0, res, 0, read);
+        return res;
+    }
+
+    @Test
+    public void randomAccessAcrossChunks() throws Exception {
+        String path = "/" + username + "/random-access.bin";
+        byte[] expected = new byte[3 * Chunk.MAX_SIZE + 1000];
+        random.nextBytes(expected);
+
+        // only two chunks fit in the cache, so writing and reading three forces write back and eviction
+        CachingPeergosFS fs = new CachingPeergosFS(context, 2L * Chunk.MAX_SIZE, 60_000);
+        Assert.assertEquals(0, fs.create(path, 0, null));
+        int piece = 1024 * 1024;
+        for (int offset = 0; offset < expected.length; offset += piece) {
+            int len = Math.min(piece, expected.length - offset);
+            Assert.assertEquals(len, fs.write(path, pointer(Arrays.copyOfRange(expected, offset, offset + len)), len, offset, null));
+        }
+
+        // overwrite random ranges, some of which span chunks
+        for (int i = 0; i < 20; i++) {
+            int len = 1 + random.nextInt(64 * 1024);
+            int offset = random.nextInt(expected.length - len);
+            byte[] update = new byte[len];
+            random.nextBytes(update);
+            System.arraycopy(update, 0, expected, offset, len);
+            Assert.assertEquals(len, fs.write(path, pointer(update), len, offset, null));
+            int readOffset = random.nextInt(expected.length - len);
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, readOffset, readOffset + len),
+                    read(fs, path, readOffset, len));
+        }
+        Assert.assertEquals(0, fs.release(path, null));
+
+        CachingPeergosFS.CacheStats stats = fs.getStats();
+        Assert.assertTrue("chunks were evicted", stats.evictions.get() > 0);
+        Assert.assertTrue("cache was hit", stats.hits.get() > stats.misses.get());
+        Assert.assertTrue("chunks were written back", stats.flushes.get() > 0);
+
+        // read everything back sequentially through a fresh cache, which reads ahead
+        CachingPeergosFS reader = new CachingPeergosFS(context, 4L * Chunk.MAX_SIZE, 60_000);
+        Assert.assertEquals(0, reader.open(path, null));
+        byte[] result = new byte[expected.length];
+        int readSize = 128 * 1024;
+        for (int offset = 0; offset < expected.length; offset += readSize) {
+            byte[] part = read(reader, path, offset, readSize);
+            System.arraycopy(part, 0, result, offset, part.length);
+            if (part.length < readSize)
+                Assert.assertEquals(expected.length, offset + part.length);
+        }
+        Assert.assertArrayEquals(expected, result);
+        Assert.assertTrue("read ahead", reader.getStats().readAheads.get() > 0);
+        reader.release(path, null);
+    }
+
+    private static List<String> readdir(PeergosFS fs, String path) {
+        List<String> names = new ArrayList<>();
+        Assert.assertEquals(0, fs.readdir(path, null, new FuseFillDir() {
+            @Override
+            public int apply(Pointer buf, ByteBuffer name, Pointer stbuf, long off) {
+                return 0;
+            }
+
+            @Override
+            public int apply(Pointer buf, String name, FileStat stbuf, long off) {
+                names.add(name);
+                return 0;
+            }
+        }, 0, null));
+        return names;
+    }
+
+    private static int getattr(PeergosFS fs, String path) {
+        FileStat stat = FileStat.of(Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 256));
+        return fs.getattr(path, stat);
+    }
+
+    @Test
+    public void pathResolutionIsCached() throws Exception {
+        PeergosFS fs = new PeergosFS(context);
+        String dir = "/" + username + "/listing";
+        Assert.assertEquals(0, fs.mkdir(dir, 0));
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(0, fs.create(dir + "/file" + i, 0, null));
+        Assert.assertEquals(10, readdir(fs, dir).size());
+        Assert.assertEquals(0, getattr(fs, dir + "/file3"));
+        Assert.assertEquals(0, fs.unlink(dir + "/file3"));
+        Assert.assertEquals(-ErrorCodes.ENOENT(), getattr(fs, dir + "/file3"));
+
+        // use a long expiry, so only invalidation can make changes visible
+        PathCache paths = new PathCache(context, 1000, 600_000);
+        FileTreeNode listing = paths.getByPath(dir).get();
+        Assert.assertEquals(9, paths.getChildren(dir, listing).size());
+        long misses = paths.misses.get();
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(i != 3, paths.getByPath(dir + "/file" + i).isPresent());
+        Assert.assertFalse("missing names are answered from the listing", paths.getByPath(dir + "/missing").isPresent());
+        Assert.assertEquals(misses, paths.misses.get());
+
+        paths.invalidate(dir + "/file0");
+        Assert.assertTrue(paths.getByPath(dir + "/file0").isPresent());
+        Assert.assertEquals(misses + 1, paths.misses.get());
+
+        // a change made elsewhere is seen when the writer's pointer changes
+        Assert.assertFalse(paths.getByPath(dir + "/remote").isPresent());
+        NetworkAccess otherNetwork = NetworkAccess.buildJava(new URL("http://localhost:" + webPort)).get();
+        UserContext other = UserContext.ensureSignedUp(username, username, otherNetwork, Crypto.initJava()).get();
+        Assert.assertEquals(0, new PeergosFS(other).create(dir + "/remote", 0, null));
+        long end = System.currentTimeMillis() + 30_000;
+        while (! paths.getByPath(dir + "/remote").isPresent()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("Remote change wasn't seen");
+            Thread.sleep(100);
+        }
+    }
+}
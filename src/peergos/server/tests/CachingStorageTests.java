@@ -0,0 +1,93 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class CachingStorageTests {
+    private static final PublicKeyHash writer = new PublicKeyHash(RAMStorage.hashToCid(new byte[]{1}, false));
+
+    @Test
+    public void evictsByWeight() {
+        StripedLRUCache<Integer, byte[]> cache = new StripedLRUCache<>(1, 100, v -> v.length);
+        for (int i = 0; i < 10; i++)
+            cache.put(i, new byte[20]);
+        Assert.assertTrue("Bounded by weight", cache.weight() <= 100);
+        Assert.assertEquals("Evictions", 5, cache.evictionCount());
+        Assert.assertTrue("Most recent retained", cache.get(9).isPresent());
+        Assert.assertFalse("Eldest evicted", cache.get(0).isPresent());
+        Assert.assertEquals("Hits", 1, cache.hitCount());
+        Assert.assertEquals("Misses", 1, cache.missCount());
+
+        cache.put(-1, new byte[101]);
+        Assert.assertFalse("Oversized values are not cached", cache.containsKey(-1));
+    }
+
+    @Test
+    public void coalescesConcurrentReads() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        byte[] block = new byte[1024];
+        new Random(1).nextBytes(block);
+        Multihash hash = ram.putRaw(writer, new byte[0], block).get();
+
+        AtomicInteger requests = new AtomicInteger();
+        CompletableFuture<Optional<byte[]>> blocked = new CompletableFuture<>();
+        ContentAddressedStorage slow = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+                requests.incrementAndGet();
+                return blocked;
+            }
+        };
+        CachingStorage caching = new CachingStorage(slow, 1024 * 1024, 50 * 1024);
+        List<CompletableFuture<Optional<byte[]>>> reads = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            reads.add(caching.getRaw(hash));
+        blocked.complete(Optional.of(block));
+
+        for (CompletableFuture<Optional<byte[]>> read : reads)
+            Assert.assertTrue(Arrays.equals(block, read.get().get()));
+        Assert.assertEquals("Single request to target", 1, requests.get());
+        Assert.assertTrue("Subsequent reads are cached", caching.getRaw(hash).isDone());
+        Assert.assertEquals("Single request to target", 1, requests.get());
+    }
+
+    @Test
+    public void bulkReadsOnlyFetchMissingBlocks() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        Random r = new Random(2);
+        List<byte[]> blocks = new ArrayList<>();
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] block = new byte[100];
+            r.nextBytes(block);
+            blocks.add(block);
+            hashes.add(ram.putRaw(writer, new byte[0], block).get());
+        }
+
+        List<List<Multihash>> bulkRequests = new ArrayList<>();
+        ContentAddressedStorage counting = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> keys) {
+                bulkRequests.add(keys);
+                return super.getRaw(keys);
+            }
+        };
+        CachingStorage caching = new CachingStorage(counting, 1024 * 1024, 50 * 1024);
+        caching.getRaw(hashes.get(0)).get();
+        caching.getRaw(hashes.get(5)).get();
+
+        List<Optional<byte[]>> result = caching.getRaw(hashes).get();
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertTrue(Arrays.equals(blocks.get(i), result.get(i).get()));
+        Assert.assertEquals("Single bulk request", 1, bulkRequests.size());
+        Assert.assertEquals("Only missing blocks requested", 8, bulkRequests.get(0).size());
+    }
+}
@@ -0,0 +1,33 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+public class ErasureTests {
+    private static final Random random = new Random(42);
+
+    @Test
+    public void tableEncoderMatchesPolynomialEncoder() {
+        int[] lengths = {0, 1, 159, 160, 161, 4096, 100_000};
+        for (int original : ErasureFragmenter.ALLOWED_ORIGINAL)
+            for (int failures : ErasureFragmenter.ALLOWED_FAILURES) {
+                if (original + 2 * failures > 256)
+                    continue;
+                for (int length : lengths) {
+                    byte[] input = new byte[length];
+                    random.nextBytes(input);
+                    byte[][] expected = Erasure.split(input, new GaloisField256(), original, failures);
+                    for (boolean parallel : Arrays.asList(false, true)) {
+                        byte[][] actual = ReedSolomon256.split(input, original, failures, parallel);
+                        Assert.assertEquals(expected.length, actual.length);
+                        for (int i = 0; i < expected.length; i++)
+                            Assert.assertTrue("Fragment " + i + " of " + original + "+" + failures + " for length " + length,
+                                    Arrays.equals(expected[i], actual[i]));
+                    }
+                }
+            }
+    }
+}
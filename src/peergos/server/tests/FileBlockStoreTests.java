@@ -0,0 +1,55 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class FileBlockStoreTests {
+    private static final Random r = new Random(1);
+    private static final PublicKeyHash writer = new PublicKeyHash(RAMStorage.hashToCid(new byte[]{1}, false));
+
+    private final Path dir;
+
+    public FileBlockStoreTests() throws IOException {
+        this.dir = Files.createTempDirectory("peergos-blocks");
+    }
+
+    @After
+    public void deleteBlocks() throws IOException {
+        Files.walk(dir)
+                .sorted(Comparator.reverseOrder())
+                .forEach(p -> p.toFile().delete());
+    }
+
+    @Test
+    public void persistsAcrossInstances() throws Exception {
+        ContentAddressedStorage store = new FileContentAddressedStorage(dir);
+
+        byte[] raw = new byte[1024];
+        r.nextBytes(raw);
+        Multihash rawHash = store.putRaw(writer, new byte[0], raw).get();
+        Assert.assertEquals("Same hash as RAM storage", RAMStorage.hashToCid(raw, true), rawHash);
+
+        CborObject.CborMerkleLink link = new CborObject.CborMerkleLink(rawHash);
+        Multihash cborHash = store.put(writer, new byte[0], link.toByteArray()).get();
+
+        ContentAddressedStorage reopened = new FileContentAddressedStorage(dir);
+        Assert.assertTrue("Raw block retrieved", Arrays.equals(raw, reopened.getRaw(rawHash).get().get()));
+        Assert.assertEquals("Cbor block retrieved", link, reopened.get(cborHash).get().get());
+        Assert.assertEquals("Size", raw.length, (int) reopened.getSize(rawHash).get().get());
+        Assert.assertEquals("Links", Arrays.asList(rawHash), reopened.getLinks(cborHash).get());
+        Assert.assertEquals("Raw blocks have no links", Collections.emptyList(), reopened.getLinks(rawHash).get());
+
+        Multihash missing = RAMStorage.hashToCid(new byte[]{2}, true);
+        Assert.assertFalse("Missing block", reopened.getRaw(missing).get().isPresent());
+        Assert.assertFalse("Missing block size", reopened.getSize(missing).get().isPresent());
+    }
+}
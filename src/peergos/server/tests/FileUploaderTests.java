@@ -0,0 +1,72 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FileUploaderTests {
+
+    /** Blocks the caller for every raw put, like the java poster, and records how many were in flight at once
+     */
+    private static class BlockingStorage extends HashVerifyingStorage {
+        private int inFlight = 0, maxInFlight = 0;
+
+        BlockingStorage(ContentAddressedStorage source) {
+            super(source);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+            synchronized (this) {
+                inFlight++;
+                maxInFlight = Math.max(maxInFlight, inFlight);
+            }
+            try {
+                Thread.sleep(200);
+                return super.putRaw(writer, signatures, blocks);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+
+        synchronized int maxInFlight() {
+            return maxInFlight;
+        }
+    }
+
+    @Test
+    public void uploadsOverlapUpToTheLimit() throws Exception {
+        ContentAddressedStorage ram = new RAMStorage();
+        UserRepository core = UserRepository.buildSqlLite(":memory:", ram, CoreNode.MAX_USERNAME_COUNT);
+        BlockingStorage blocking = new BlockingStorage(ram);
+        NetworkAccess network = new NetworkAccess(core, blocking, core, new BtreeImpl(core, blocking), Collections.emptyList());
+        Crypto crypto = Crypto.initJava();
+        String username = "uploader" + new Random().nextInt(10000);
+        UserContext context = UserContext.ensureSignedUp(username, "password", network, crypto).get();
+
+        byte[] data = new byte[Chunk.MAX_SIZE * 8 + 1];
+        new Random(1).nextBytes(data);
+        context.getUserRoot().get().uploadFile("file", new AsyncReader.ArrayBacked(data), data.length,
+                network, crypto.random, l -> {}, context.fragmenter()).get();
+
+        int maxInFlight = blocking.maxInFlight();
+        Assert.assertTrue("Uploads overlap: " + maxInFlight, maxInFlight > 1);
+        Assert.assertTrue("At most " + FileUploader.DEFAULT_MAX_CHUNKS_IN_FLIGHT + " chunks in flight: " + maxInFlight,
+                maxInFlight <= FileUploader.DEFAULT_MAX_CHUNKS_IN_FLIGHT);
+        UserTests.checkFileContents(data, context.getByPath(username + "/file").get().get(), context);
+    }
+}
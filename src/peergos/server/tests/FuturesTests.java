@@ -0,0 +1,84 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class FuturesTests {
+
+    @Test
+    public void allOfKeepsOrder() throws Exception {
+        List<CompletableFuture<Integer>> futures = IntStream.range(0, 100)
+                .mapToObj(i -> new CompletableFuture<Integer>())
+                .collect(Collectors.toList());
+        CompletableFuture<List<Integer>> all = Futures.allOf(futures);
+        // complete in reverse order
+        for (int i = futures.size() - 1; i >= 0; i--) {
+            Assert.assertFalse(all.isDone());
+            futures.get(i).complete(i);
+        }
+        Assert.assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), all.get());
+        Assert.assertEquals(Collections.emptyList(), Futures.allOf(Collections.<CompletableFuture<Integer>>emptyList()).get());
+    }
+
+    @Test
+    public void allOfFailsOnFirstFailure() throws Exception {
+        CompletableFuture<Integer> never = new CompletableFuture<>();
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        CompletableFuture<List<Integer>> all = Futures.allOf(Arrays.asList(never, failed));
+        failed.completeExceptionally(new IllegalStateException("failed"));
+        Assert.assertTrue(all.isCompletedExceptionally());
+    }
+
+    @Test
+    public void mapConcurrentBoundsCallsInFlight() throws Exception {
+        int maxInFlight = 8;
+        AtomicInteger inFlight = new AtomicInteger(0), maxSeen = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        List<Integer> squares = Futures.mapConcurrent(input, i -> {
+            int now = inFlight.incrementAndGet();
+            maxSeen.accumulateAndGet(now, Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                inFlight.decrementAndGet();
+                return i * i;
+            }, pool);
+        }, maxInFlight).get();
+        pool.shutdown();
+        Assert.assertEquals(input.stream().map(i -> i * i).collect(Collectors.toList()), squares);
+        Assert.assertTrue("in flight " + maxSeen.get(), maxSeen.get() <= maxInFlight);
+    }
+
+    @Test
+    public void mapConcurrentWithImmediateResults() throws Exception {
+        // calls which complete immediately must not recurse
+        List<Integer> input = IntStream.range(0, 200_000).boxed().collect(Collectors.toList());
+        List<Integer> res = Futures.mapConcurrent(input, CompletableFuture::completedFuture, 4).get();
+        Assert.assertEquals(input, res);
+    }
+
+    @Test
+    public void mapConcurrentStopsAfterFailure() throws Exception {
+        AtomicInteger calls = new AtomicInteger(0);
+        List<Integer> input = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        CompletableFuture<List<Integer>> res = Futures.mapConcurrent(input, i -> {
+            calls.incrementAndGet();
+            if (i == 10)
+                throw new IllegalStateException("failed");
+            return CompletableFuture.completedFuture(i);
+        }, 1);
+        Assert.assertTrue(res.isCompletedExceptionally());
+        Assert.assertEquals(11, calls.get());
+    }
+
+    @Test
+    public void reduceAllConcurrent() throws Exception {
+        List<Long> input = LongStream.range(0, 10_000).boxed().collect(Collectors.toList());
+        long sum = Futures.reduceAllConcurrent(input, 0L, x -> CompletableFuture.supplyAsync(() -> x), (a, b) -> a + b, 16).get();
+        Assert.assertEquals(10_000L * 9_999 / 2, sum);
+    }
+}
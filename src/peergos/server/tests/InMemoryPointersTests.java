@@ -0,0 +1,149 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.merklebtree.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class InMemoryPointersTests {
+    private static final Crypto crypto = Crypto.initJava();
+
+    private final RAMStorage storage = new RAMStorage();
+
+    private PublicKeyHash putKey(SigningKeyPair writer) throws Exception {
+        return storage.putSigningKey(
+                writer.secretSigningKey.signatureOnly(writer.publicSigningKey.serialize()),
+                storage.hashKey(writer.publicSigningKey),
+                writer.publicSigningKey).get();
+    }
+
+    private static MaybeMultihash root(int i) {
+        return MaybeMultihash.of(RAMStorage.hashToCid(new byte[]{(byte) i, (byte) (i >> 8)}, true));
+    }
+
+    @Test
+    public void onlyOneConflictingUpdateWins() throws Exception {
+        File db = File.createTempFile("pointers", ".sql");
+        db.deleteOnExit();
+        JDBCCoreNode store = new JDBCCoreNode(JDBCCoreNode.buildSqlLite(db.getPath()), 10);
+        InMemoryPointers pointers = new InMemoryPointers(storage, store);
+
+        List<SigningKeyPair> writers = new ArrayList<>();
+        List<PublicKeyHash> writerHashes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+            writers.add(writer);
+            writerHashes.add(putKey(writer));
+        }
+
+        // every writer races 10 updates from the empty pointer, and then one from each successful update
+        int rounds = 5, contenders = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        Map<PublicKeyHash, MaybeMultihash> current = new HashMap<>();
+        writerHashes.forEach(w -> current.put(w, MaybeMultihash.empty()));
+        for (int round = 0; round < rounds; round++) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            List<PublicKeyHash> order = new ArrayList<>();
+            List<MaybeMultihash> targets = new ArrayList<>();
+            for (int w = 0; w < writers.size(); w++) {
+                SigningKeyPair writer = writers.get(w);
+                PublicKeyHash writerHash = writerHashes.get(w);
+                for (int c = 0; c < contenders; c++) {
+                    MaybeMultihash target = root((round * contenders + c) * writers.size() + w);
+                    byte[] signed = writer.signMessage(new HashCasPair(current.get(writerHash), target).serialize());
+                    order.add(writerHash);
+                    targets.add(target);
+                    results.add(pool.submit(() -> pointers.setPointer(writerHash, writerHash, signed).get()));
+                }
+            }
+            Map<PublicKeyHash, Integer> wins = new HashMap<>();
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).get()) {
+                    wins.merge(order.get(i), 1, (a, b) -> a + b);
+                    current.put(order.get(i), targets.get(i));
+                }
+            }
+            for (PublicKeyHash writer : writerHashes)
+                Assert.assertEquals("exactly one update wins", Integer.valueOf(1), wins.get(writer));
+        }
+        pool.shutdown();
+
+        // a bad signature is rejected
+        SigningKeyPair other = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash first = writerHashes.get(0);
+        byte[] forged = other.signMessage(new HashCasPair(current.get(first), root(60_000)).serialize());
+        Assert.assertFalse(pointers.setPointer(first, first, forged).get());
+
+        // every successful update has been persisted once its future completed
+        store.close();
+        JDBCCoreNode reopened = new JDBCCoreNode(JDBCCoreNode.buildSqlLite(db.getPath()), 10);
+        Map<PublicKeyHash, byte[]> persisted = reopened.getAllPointers();
+        Assert.assertEquals(writerHashes.size(), persisted.size());
+        InMemoryPointers reloaded = new InMemoryPointers(storage, reopened);
+        for (int w = 0; w < writers.size(); w++) {
+            PublicKeyHash writerHash = writerHashes.get(w);
+            byte[] signed = reloaded.getPointer(writerHash).get().get();
+            Assert.assertArrayEquals(persisted.get(writerHash), signed);
+            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(
+                    writers.get(w).publicSigningKey.unsignMessage(signed)));
+            Assert.assertEquals(current.get(writerHash), cas.updated);
+        }
+        // and the reloaded table continues the chain
+        byte[] next = writers.get(0).signMessage(new HashCasPair(current.get(first), root(60_001)).serialize());
+        Assert.assertTrue(reloaded.setPointer(first, first, next).get());
+        reopened.close();
+    }
+
+    @Test
+    public void failedWritesAreRolledBack() throws Exception {
+        File db = File.createTempFile("pointers", ".sql");
+        db.deleteOnExit();
+        AtomicBoolean failing = new AtomicBoolean(false);
+        JDBCCoreNode store = new JDBCCoreNode(JDBCCoreNode.buildSqlLite(db.getPath()), 10) {
+            @Override
+            public boolean setPointers(Map<PublicKeyHash, byte[]> pointers) {
+                return ! failing.get() && super.setPointers(pointers);
+            }
+        };
+        InMemoryPointers pointers = new InMemoryPointers(storage, store, 3, 10);
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = putKey(writer);
+        SigningKeyPair newWriter = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash newWriterHash = putKey(newWriter);
+
+        byte[] first = writer.signMessage(new HashCasPair(MaybeMultihash.empty(), root(1)).serialize());
+        Assert.assertTrue(pointers.setPointer(writerHash, writerHash, first).get());
+
+        failing.set(true);
+        byte[] lost = writer.signMessage(new HashCasPair(root(1), root(2)).serialize());
+        byte[] lostFirst = newWriter.signMessage(new HashCasPair(MaybeMultihash.empty(), root(3)).serialize());
+        for (CompletableFuture<Boolean> failed : Arrays.asList(
+                pointers.setPointer(writerHash, writerHash, lost),
+                pointers.setPointer(newWriterHash, newWriterHash, lostFirst))) {
+            try {
+                failed.get();
+                Assert.fail("Unpersisted update succeeded!");
+            } catch (ExecutionException expected) {}
+        }
+        // the failed updates are no longer served
+        Assert.assertArrayEquals(first, pointers.getPointer(writerHash).get().get());
+        Assert.assertFalse(pointers.getPointer(newWriterHash).get().isPresent());
+
+        // and updates continue from the persisted pointers
+        failing.set(false);
+        byte[] next = writer.signMessage(new HashCasPair(root(1), root(4)).serialize());
+        Assert.assertTrue(pointers.setPointer(writerHash, writerHash, next).get());
+        Assert.assertTrue(pointers.setPointer(newWriterHash, newWriterHash, lostFirst).get());
+        Assert.assertArrayEquals(next, store.getAllPointers().get(writerHash));
+        store.close();
+    }
+}
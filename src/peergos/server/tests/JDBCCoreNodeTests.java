@@ -7,6 +7,7 @@ import org.junit.Test;
 import peergos.server.corenode.JDBCCoreNode;
 import peergos.server.storage.RAMStorage;
 import peergos.shared.corenode.UserPublicKeyLink;
+import peergos.shared.corenode.UsernameUpdate;
 import peergos.shared.crypto.SigningKeyPair;
 import peergos.shared.crypto.TweetNaCl;
 import peergos.shared.crypto.asymmetric.PublicSigningKey;
@@ -15,11 +16,13 @@ import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.crypto.random.SafeRandom;
 import peergos.shared.storage.ContentAddressedStorage;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.function.Function;
@@ -72,4 +75,49 @@ public class JDBCCoreNodeTests {
           Assert.fail();
       } catch (IllegalStateException e) {}
   }
+
+  private boolean signup(JDBCCoreNode coreNode, String username) {
+      SigningKeyPair user = SigningKeyPair.random(new SafeRandom.Java(), new Ed25519.Java());
+      UserPublicKeyLink.UsernameClaim node = UserPublicKeyLink.UsernameClaim.create(
+          username, user.secretSigningKey, LocalDate.now().plusYears(2));
+      try {
+          PublicKeyHash owner = STORAGE.putSigningKey(
+                  user.secretSigningKey.signatureOnly(user.publicSigningKey.serialize()),
+                  STORAGE.hashKey(user.publicSigningKey),
+                  user.publicSigningKey).get();
+          UserPublicKeyLink upl = new UserPublicKeyLink(owner, node);
+          return coreNode.updateChain(
+              username, Arrays.asList(), Arrays.asList(upl), Arrays.asList(upl));
+      } catch (Exception ex) {
+          throw new IllegalStateException(ex);
+      }
+  }
+
+  @Test
+  public void usernameDirectory() throws Exception {
+    File db = File.createTempFile("usernames", ".sql");
+    db.deleteOnExit();
+    JDBCCoreNode coreNode = new JDBCCoreNode(JDBCCoreNode.buildSqlLitePool(db.getPath(), 2), 10);
+    List<String> usernames = Arrays.asList("bob", "alice", "bobby", "carol", "al", "bo");
+    for (String username : usernames)
+      Assert.assertTrue(signup(coreNode, username));
+
+    Assert.assertEquals(Arrays.asList("bo", "bob", "bobby"), coreNode.getUsernames("bo").get());
+    Assert.assertEquals(Arrays.asList("bo", "bob"), coreNode.getUsernames("bo", 2).get());
+    Assert.assertEquals(Arrays.asList("al", "alice", "bo", "bob", "bobby", "carol"), coreNode.getUsernames("").get());
+    Assert.assertEquals(Collections.emptyList(), coreNode.getUsernames("d").get());
+
+    UsernameUpdate since = coreNode.getUsernamesSince(4).get();
+    Assert.assertEquals(6, since.version);
+    Assert.assertEquals(Arrays.asList("al", "bo"), since.added);
+    Assert.assertEquals(0, coreNode.getUsernamesSince(6).get().added.size());
+    coreNode.close();
+
+    // the registration order survives a restart
+    JDBCCoreNode reopened = new JDBCCoreNode(JDBCCoreNode.buildSqlLitePool(db.getPath(), 2), 10);
+    Assert.assertEquals(usernames, reopened.getUsernamesSince(0).get().added);
+    Assert.assertTrue(signup(reopened, "dave"));
+    Assert.assertEquals(Arrays.asList("dave"), reopened.getUsernamesSince(6).get().added);
+    reopened.close();
+  }
 }
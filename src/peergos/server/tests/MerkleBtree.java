@@ -1,19 +1,25 @@
 package peergos.server.tests;
 
 import org.junit.*;
+import peergos.server.corenode.*;
 import peergos.server.storage.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.merklebtree.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class MerkleBtree {
 
@@ -74,7 +80,7 @@ public class MerkleBtree {
             if (! res1.get().equals(value1))
                 throw new IllegalStateException("Results not equal");
         }
-        if (tree.root.keys.size() != 2)
+        if (tree.root.keyCount() != 2)
             throw new IllegalStateException("New root should have two children!");
     }
 
@@ -279,6 +285,347 @@ public class MerkleBtree {
         ((RAMStorage)tree.storage).clear();
     }
 
+    private static Set<Multihash> reachable(Multihash root, ContentAddressedStorage dht) throws Exception {
+        Set<Multihash> res = new HashSet<>();
+        LinkedList<Multihash> toVisit = new LinkedList<>(Collections.singletonList(root));
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.removeFirst();
+            if (res.add(next))
+                toVisit.addAll(dht.getLinks(next).get());
+        }
+        return res;
+    }
+
+    private static long totalSize(Set<Multihash> blocks, ContentAddressedStorage dht) throws Exception {
+        long total = 0;
+        for (Multihash block : blocks)
+            total += dht.getSize(block).get().orElse(0);
+        return total;
+    }
+
+    @Test
+    public void diffAcrossSplits() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        RAMStorage ram = new RAMStorage();
+        AtomicLong linkRequests = new AtomicLong();
+        ContentAddressedStorage dht = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+                linkRequests.incrementAndGet();
+                return super.getLinks(root);
+            }
+        };
+        MerkleBTree tree = createTree(user, dht).get();
+        Random r = new Random(3);
+        Function<Integer, Multihash> putValue = i -> {
+            byte[] value = new byte[100 + r.nextInt(100)];
+            r.nextBytes(value);
+            try {
+                Multihash h = ram.putRaw(user.publicKeyHash, new byte[0], value).get();
+                return tree.put(user, toLittleEndian(i), MaybeMultihash.empty(), h).get();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Multihash before = null;
+        for (int i = 0; i < 500; i++)
+            before = putValue.apply(i);
+        Set<Multihash> reachableBefore = reachable(before, ram);
+
+        // add enough keys to split nodes and the root
+        Multihash after = null;
+        for (int i = 500; i < 600; i++)
+            after = putValue.apply(i * 7);
+        Set<Multihash> reachableAfter = reachable(after, ram);
+
+        linkRequests.set(0);
+        DagDiff diff = dht.getDiff(MaybeMultihash.of(before), after).get();
+        Set<Multihash> added = new HashSet<>(reachableAfter);
+        added.removeAll(reachableBefore);
+        Set<Multihash> removed = new HashSet<>(reachableBefore);
+        removed.removeAll(reachableAfter);
+        Assert.assertEquals("Added blocks", added, diff.added);
+        Assert.assertEquals("Removed blocks", removed, diff.removed);
+        Assert.assertEquals("Size change", totalSize(reachableAfter, ram) - totalSize(reachableBefore, ram),
+                (long) dht.getChangeInContainedSize(before, after).get());
+        Assert.assertTrue("Shared subtrees skipped", linkRequests.get() < reachableAfter.size());
+
+        // a small change only visits the path to the root
+        linkRequests.set(0);
+        Multihash small = putValue.apply(10_000);
+        DagDiff smallDiff = dht.getDiff(MaybeMultihash.of(after), small).get();
+        Assert.assertTrue("Small change is cheap", linkRequests.get() < 20);
+        Assert.assertTrue("Value added", smallDiff.added.size() > 1);
+
+        Assert.assertEquals("Diff from empty", totalSize(reachableAfter, ram),
+                (long) dht.getChangeInContainedSize(MaybeMultihash.empty(), after).get());
+    }
+
+    @Test
+    public void batchedSession() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        RAMStorage ram = RAMStorage.getSingleton();
+        AtomicLong putRequests = new AtomicLong();
+        ContentAddressedStorage dht = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+                putRequests.incrementAndGet();
+                // complete asynchronously, like a remote store, so later mutations can queue behind a commit
+                return super.put(writer, signatures, blocks).thenApplyAsync(x -> x);
+            }
+        };
+        UserRepository core = UserRepository.buildSqlLite(":memory:", ram, CoreNode.MAX_USERNAME_COUNT);
+        TreeNodeCache nodeCache = new TreeNodeCache(100);
+        CommittedWriterData empty = new CommittedWriterData(MaybeMultihash.empty(), WriterData.createEmpty(user.publicKeyHash));
+
+        // the same puts applied directly to a tree
+        MerkleBTree direct = createTree(user, ram).get();
+        Random r = new Random(4);
+        List<byte[]> keys = new ArrayList<>();
+        List<Multihash> values = new ArrayList<>();
+        BtreeSession session = BtreeSession.start(user, empty, core, dht, nodeCache).get();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        Multihash directRoot = null;
+        for (int i = 0; i < 300; i++) {
+            byte[] key = new byte[8];
+            r.nextBytes(key);
+            Multihash value = hash(key);
+            keys.add(key);
+            values.add(value);
+            directRoot = direct.put(user, key, MaybeMultihash.empty(), value).get();
+            results.add(session.put(key, MaybeMultihash.empty(), value));
+        }
+        results.add(session.remove(keys.get(0), MaybeMultihash.of(values.get(0))));
+        directRoot = direct.delete(user, keys.get(0), MaybeMultihash.of(values.get(0))).get();
+        // a CAS failure only fails that operation
+        CompletableFuture<Boolean> badCas = session.put(keys.get(1), MaybeMultihash.empty(), hash(new byte[]{1}));
+        Assert.assertEquals("Uncommitted changes are visible", MaybeMultihash.of(values.get(2)), session.get(keys.get(2)).get());
+        Assert.assertEquals("Nothing written before commit", 0, putRequests.get());
+
+        CommittedWriterData committed = session.commit(x -> {}).get();
+        for (CompletableFuture<Boolean> result : results)
+            Assert.assertTrue(result.get());
+        try {
+            badCas.get();
+            Assert.fail("CAS failure wasn't reported");
+        } catch (ExecutionException expected) {}
+        Assert.assertEquals("Same tree as individual puts", directRoot, committed.props.btree.get());
+        Assert.assertEquals("One bulk put of nodes and one of WriterData", 2, putRequests.get());
+        for (Multihash block : reachable(committed.props.btree.get(), ram))
+            Assert.assertTrue("Reachable node stored", ram.get(block).get().isPresent() || ram.getRaw(block).get().isPresent());
+
+        // concurrent mutations through a BtreeImpl are grouped into sessions
+        Btree btree = new BtreeImpl(core, dht);
+        putRequests.set(0);
+        List<CompletableFuture<Boolean>> concurrent = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            concurrent.add(btree.put(user, keys.get(i + 1), MaybeMultihash.of(values.get(i + 1)), hash(new byte[]{(byte) i, 2})));
+        for (CompletableFuture<Boolean> result : concurrent)
+            Assert.assertTrue(result.get());
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(MaybeMultihash.of(hash(new byte[]{(byte) i, 2})), btree.get(user.publicKeyHash, keys.get(i + 1)).get());
+        Assert.assertTrue("Mutations were batched " + putRequests.get(), putRequests.get() < 100);
+        ram.clear();
+    }
+
+    @Test
+    public void rangeScan() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        MerkleBTree tree = createTree(user).get();
+        Random r = new Random(7);
+        TreeMap<ByteArrayWrapper, Multihash> expected = new TreeMap<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] key = new byte[1 + r.nextInt(3)];
+            r.nextBytes(key);
+            if (expected.containsKey(new ByteArrayWrapper(key)))
+                continue;
+            Multihash value = hash(key);
+            tree.put(user, key, MaybeMultihash.empty(), value).get();
+            expected.put(new ByteArrayWrapper(key), value);
+        }
+        // tombstones are skipped, the smallest keys are all in the leftmost leaf
+        for (int i = 0; i < 5; i++) {
+            ByteArrayWrapper key = expected.firstKey();
+            tree.delete(user, key.data, MaybeMultihash.of(expected.remove(key))).get();
+        }
+
+        Assert.assertEquals("All entries in order", toPairs(expected), tree.getAll().get());
+        ByteArrayWrapper[] keys = expected.keySet().toArray(new ByteArrayWrapper[0]);
+        for (int i = 0; i < 20; i++) {
+            ByteArrayWrapper start = keys[r.nextInt(keys.length)];
+            byte[] end = new byte[2];
+            r.nextBytes(end);
+            List<Pair<ByteArrayWrapper, Multihash>> range = tree.getRange(Optional.of(start.data), Optional.of(end)).get();
+            Assert.assertEquals("Range", toPairs(start.compareTo(new ByteArrayWrapper(end)) < 0 ?
+                    expected.subMap(start, new ByteArrayWrapper(end)) : Collections.emptySortedMap()), range);
+        }
+        Assert.assertEquals("Open start", toPairs(expected.headMap(keys[100])),
+                tree.getRange(Optional.empty(), Optional.of(keys[100].data)).get());
+        Assert.assertEquals("Open end", toPairs(expected.tailMap(keys[100])),
+                tree.getRange(Optional.of(keys[100].data), Optional.empty()).get());
+
+        List<ByteArrayWrapper> visited = new ArrayList<>();
+        Assert.assertFalse("Early exit", tree.applyToRange(Optional.empty(), Optional.empty(), e -> {
+            visited.add(e.left);
+            return visited.size() < 10;
+        }).get());
+        Assert.assertEquals(Arrays.asList(keys).subList(0, 10), visited);
+        ((RAMStorage)tree.storage).clear();
+    }
+
+    @Test
+    public void bulkLoad() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        RAMStorage ram = RAMStorage.getSingleton();
+        for (int count : new int[]{0, 1, 15, 16, 17, 32, 255, 256, 3000, 4096}) {
+            TreeMap<ByteArrayWrapper, Multihash> expected = new TreeMap<>();
+            Random r = new Random(count);
+            while (expected.size() < count) {
+                byte[] key = new byte[8];
+                r.nextBytes(key);
+                expected.put(new ByteArrayWrapper(key), hash(key));
+            }
+            MerkleBTree tree = MerkleBTree.bulkLoad(user, toPairs(expected), ram).get();
+            Assert.assertEquals("Size", count, (int) tree.size().get());
+            Assert.assertEquals("Contents", toPairs(expected), tree.getAll().get());
+            for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet())
+                Assert.assertEquals(MaybeMultihash.of(e.getValue()), tree.get(e.getKey().data).get());
+
+            // nodes are packed, each non root node at least half full, and none over full
+            Set<Multihash> nodes = reachable(tree.root.hash.get(), ram).stream()
+                    .filter(h -> ! expected.containsValue(h))
+                    .collect(Collectors.toSet());
+            int minNodes = (count + MerkleBTree.MAX_NODE_CHILDREN - 2) / (MerkleBTree.MAX_NODE_CHILDREN - 1);
+            Assert.assertTrue("Packed nodes " + nodes.size(), nodes.size() <= Math.max(1, 2 * minNodes));
+            for (Multihash node : nodes) {
+                int keys = TreeNode.fromCbor(ram.get(node).get().get()).keyCount();
+                Assert.assertTrue("At most " + MerkleBTree.MAX_NODE_CHILDREN + " keys: " + keys, keys <= MerkleBTree.MAX_NODE_CHILDREN);
+                if (! node.equals(tree.root.hash.get()))
+                    Assert.assertTrue("Half full", keys >= MerkleBTree.MAX_NODE_CHILDREN / 2);
+            }
+            if (count >= MerkleBTree.MAX_NODE_CHILDREN)
+                Assert.assertTrue("Root has more than one child", tree.root.keyCount() > 1);
+
+            // the result is a normal tree
+            if (count > 0) {
+                ByteArrayWrapper first = expected.firstKey();
+                tree.delete(user, first.data, MaybeMultihash.of(expected.remove(first))).get();
+            }
+            byte[] extra = new byte[9];
+            tree.put(user, extra, MaybeMultihash.empty(), hash(extra)).get();
+            expected.put(new ByteArrayWrapper(extra), hash(extra));
+            Assert.assertEquals("After modification", toPairs(expected), tree.getAll().get());
+        }
+        try {
+            List<Pair<ByteArrayWrapper, Multihash>> unsorted = Arrays.asList(
+                    new Pair<>(new ByteArrayWrapper(new byte[]{2}), hash(new byte[]{2})),
+                    new Pair<>(new ByteArrayWrapper(new byte[]{1}), hash(new byte[]{1})));
+            MerkleBTree.bulkLoad(user, unsorted, ram);
+            Assert.fail("Unsorted input accepted");
+        } catch (IllegalStateException expected) {}
+        ram.clear();
+    }
+
+    /** Check the tree's contents, which exclude tombstones, and that no node is over full
+     *
+     * @return the number of nodes in the tree
+     */
+    private static int checkTree(MerkleBTree tree, SortedMap<ByteArrayWrapper, Multihash> expected, RAMStorage ram) throws Exception {
+        Assert.assertEquals("Contents", toPairs(expected), tree.getAll().get());
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet())
+            Assert.assertEquals(MaybeMultihash.of(e.getValue()), tree.get(e.getKey().data).get());
+        Set<Multihash> nodes = reachable(tree.root.hash.get(), ram).stream()
+                .filter(h -> ! expected.containsValue(h))
+                .collect(Collectors.toSet());
+        for (Multihash node : nodes) {
+            int keys = TreeNode.fromCbor(ram.get(node).get().get()).keyCount();
+            Assert.assertTrue("At most " + tree.maxChildren + " keys: " + keys, keys <= tree.maxChildren);
+        }
+        return nodes.size();
+    }
+
+    @Test
+    public void deleteUntilNodesMerge() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        RAMStorage ram = RAMStorage.getSingleton();
+        int count = 500;
+        List<Integer> ascending = IntStream.range(0, count).boxed().collect(Collectors.toList());
+        List<Integer> descending = new ArrayList<>(ascending);
+        Collections.reverse(descending);
+        List<Integer> shuffled = new ArrayList<>(ascending);
+        Collections.shuffle(shuffled, new Random(1));
+
+        // deleting from the end merges underfull nodes into their left sibling, and from the start into their right
+        for (List<Integer> deletionOrder : Arrays.asList(ascending, descending, shuffled)) {
+            MerkleBTree written = createTree(user, ram).get();
+            SortedMap<ByteArrayWrapper, Multihash> expected = new TreeMap<>();
+            for (int i : shuffled) {
+                byte[] key = toLittleEndian(i);
+                written.put(user, key, MaybeMultihash.empty(), hash(key)).get();
+                expected.put(new ByteArrayWrapper(key), hash(key));
+            }
+            int initialNodes = checkTree(written, expected, ram);
+            Assert.assertTrue("Multiple levels", initialNodes > MerkleBTree.MAX_NODE_CHILDREN);
+
+            // deletes leave a tombstone in the leaf, so view the tree with a larger node size, which makes every node
+            // underfull and each delete rebalance
+            MerkleBTree tree = new MerkleBTree(written.root, written.root.hash, ram, 4 * MerkleBTree.MAX_NODE_CHILDREN);
+            int nodes = initialNodes;
+            for (int deleted = 0; deleted < count; deleted++) {
+                byte[] key = toLittleEndian(deletionOrder.get(deleted));
+                tree.delete(user, key, MaybeMultihash.of(expected.remove(new ByteArrayWrapper(key)))).get();
+                Assert.assertFalse("Deleted", tree.get(key).get().isPresent());
+                if (deleted % 10 == 0) {
+                    int remaining = checkTree(tree, expected, ram);
+                    Assert.assertTrue("Nodes only merge " + remaining, remaining <= nodes);
+                    nodes = remaining;
+                }
+            }
+            int finalNodes = checkTree(tree, expected, ram);
+            Assert.assertTrue("Nodes merged " + initialNodes + " => " + finalNodes, finalNodes < initialNodes / 2);
+        }
+        ram.clear();
+    }
+
+    @Test
+    public void decodedNodeCache() throws Exception {
+        SigningPrivateKeyAndPublicHash user = createUser();
+        RAMStorage ram = RAMStorage.getSingleton();
+        AtomicLong gets = new AtomicLong();
+        ContentAddressedStorage dht = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                gets.incrementAndGet();
+                return super.get(hash);
+            }
+        };
+        MerkleBTree written = createTree(user, dht).get();
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            byte[] key = toLittleEndian(i);
+            keys.add(key);
+            written.put(user, key, MaybeMultihash.empty(), hash(key)).get();
+        }
+
+        TreeNodeCache cache = new TreeNodeCache(1000);
+        Multihash root = written.root.hash.get();
+        gets.set(0);
+        for (byte[] key : keys)
+            Assert.assertEquals(MaybeMultihash.of(hash(key)), MerkleBTree.create(user.publicKeyHash, root, dht, cache).get().get(key).get());
+        long firstPass = gets.get();
+        Assert.assertTrue("Each node retrieved once " + firstPass, firstPass <= reachable(root, ram).size());
+        for (byte[] key : keys)
+            Assert.assertEquals(MaybeMultihash.of(hash(key)), MerkleBTree.create(user.publicKeyHash, root, dht, cache).get().get(key).get());
+        Assert.assertEquals("Hot lookups don't touch storage", firstPass, gets.get());
+        ram.clear();
+    }
+
+    private static List<Pair<ByteArrayWrapper, Multihash>> toPairs(SortedMap<ByteArrayWrapper, Multihash> entries) {
+        return entries.entrySet().stream()
+                .map(e -> new Pair<>(e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+    }
+
     private static byte[] toLittleEndian(int x) {
         byte[] res = new byte[4];
         for (int i=0; i < 4; i++)
@@ -74,6 +74,20 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void boundaryLikeData() throws IOException {
+        byte[] nearBoundary = "\r\n--\r\n-\r\n\r\n".getBytes();
+        List<byte[]> input = new ArrayList<>();
+        input.add(new byte[0]);
+        input.add(nearBoundary);
+        byte[] large = randomArray(200 * 1024);
+        for (int i = 0; i + nearBoundary.length < large.length; i += 4093)
+            System.arraycopy(nearBoundary, 0, large, i, nearBoundary.length);
+        input.add(large);
+        input.add(new byte[0]);
+        test(input);
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
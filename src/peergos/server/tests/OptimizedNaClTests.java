@@ -0,0 +1,254 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+import peergos.shared.util.*;
+
+import java.math.*;
+import java.security.*;
+import java.util.*;
+
+/** Check that OptimizedNaCl produces exactly the same output as TweetNaCl
+ */
+public class OptimizedNaClTests {
+    private final Random rnd = new Random(42);
+
+    private byte[] random(int length) {
+        byte[] res = new byte[length];
+        rnd.nextBytes(res);
+        return res;
+    }
+
+    private static final int[] MESSAGE_SIZES = {0, 1, 15, 16, 17, 31, 32, 33, 63, 64, 65, 111, 112, 127, 128, 129, 1000, 4096, 100_001};
+
+    @Test
+    public void hash() throws Exception {
+        for (int size : MESSAGE_SIZES) {
+            byte[] message = random(size);
+            Assert.assertArrayEquals("SHA-512 of " + size + " bytes",
+                    MessageDigest.getInstance("SHA-512").digest(message), OptimizedNaCl.crypto_hash(message));
+        }
+    }
+
+    @Test
+    public void secretbox() {
+        for (int size : MESSAGE_SIZES) {
+            byte[] key = random(32), nonce = random(24), message = random(size);
+            byte[] cipher = TweetNaCl.secretbox(message, nonce, key);
+            Assert.assertArrayEquals("secretbox of " + size + " bytes", cipher, OptimizedNaCl.secretbox(message, nonce, key));
+            Assert.assertArrayEquals("secretbox_open", message, OptimizedNaCl.secretbox_open(cipher, nonce, key));
+
+            int offset = 7;
+            byte[] buffer = new byte[offset + TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES + size + 5];
+            System.arraycopy(message, 0, buffer, offset + TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES, size);
+            byte[] expected = buffer.clone();
+            TweetNaCl.secretbox(expected, offset, size, nonce, key);
+            OptimizedNaCl.secretbox(buffer, offset, size, nonce, key);
+            Assert.assertArrayEquals("in place secretbox", expected, buffer);
+
+            int cipherLength = TweetNaCl.SECRETBOX_OVERHEAD_BYTES + size;
+            TweetNaCl.secretbox_open(expected, offset, cipherLength, nonce, key);
+            OptimizedNaCl.secretbox_open(buffer, offset, cipherLength, nonce, key);
+            Assert.assertArrayEquals("in place secretbox_open", expected, buffer);
+
+            byte[] corrupt = cipher.clone();
+            corrupt[rnd.nextInt(corrupt.length)] ^= 1 << rnd.nextInt(8);
+            try {
+                OptimizedNaCl.secretbox_open(corrupt, nonce, key);
+                Assert.fail("Corrupted cipher text was decrypted!");
+            } catch (TweetNaCl.InvalidCipherTextException expectedFailure) {}
+        }
+    }
+
+    @Test
+    public void sign() {
+        for (int i = 0; i < 50; i++) {
+            byte[] seed = random(32);
+            byte[] pk = new byte[32], sk = new byte[64], tweetPk = new byte[32], tweetSk = new byte[64];
+            System.arraycopy(seed, 0, sk, 0, 32);
+            System.arraycopy(seed, 0, tweetSk, 0, 32);
+            OptimizedNaCl.crypto_sign_keypair(pk, sk);
+            TweetNaCl.crypto_sign_keypair(tweetPk, tweetSk, true);
+            Assert.assertArrayEquals("public key", tweetPk, pk);
+            Assert.assertArrayEquals("secret key", tweetSk, sk);
+
+            byte[] message = random(MESSAGE_SIZES[i % MESSAGE_SIZES.length]);
+            byte[] signed = OptimizedNaCl.crypto_sign(message, sk);
+            Assert.assertArrayEquals("signature", TweetNaCl.crypto_sign(message, sk), signed);
+            Assert.assertArrayEquals("verify", message, OptimizedNaCl.crypto_sign_open(signed, pk));
+
+            byte[] tampered = signed.clone();
+            tampered[rnd.nextInt(tampered.length)] ^= 1 << rnd.nextInt(8);
+            Assert.assertEquals("tampered signature", accepts(tampered, pk, true), accepts(tampered, pk, false));
+            Assert.assertFalse("tampered signature rejected", accepts(tampered, pk, false));
+        }
+    }
+
+    @Test
+    public void invalidSignaturesMatchTweetNaCl() {
+        byte[] sk = new byte[64], pk = new byte[32];
+        System.arraycopy(random(32), 0, sk, 0, 32);
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+        byte[] signed = TweetNaCl.crypto_sign(random(100), sk);
+
+        // random public keys, many of which aren't valid points
+        for (int i = 0; i < 100; i++) {
+            byte[] otherKey = random(32);
+            Assert.assertEquals("random public key", accepts(signed, otherKey, true), accepts(signed, otherKey, false));
+        }
+        // S values which are not reduced mod L
+        for (int i = 0; i < 20; i++) {
+            byte[] unreduced = signed.clone();
+            System.arraycopy(random(32), 0, unreduced, 32, 32);
+            Assert.assertEquals("unreduced S", accepts(unreduced, pk, true), accepts(unreduced, pk, false));
+        }
+        Assert.assertFalse("too short", accepts(new byte[63], pk, false));
+        Assert.assertFalse("too short", accepts(new byte[63], pk, true));
+    }
+
+    @Test
+    public void batchVerify() {
+        byte[] sk = new byte[64], pk = new byte[32];
+        System.arraycopy(random(32), 0, sk, 0, 32);
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+        List<byte[]> signatures = new ArrayList<>(), messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] message = random(MESSAGE_SIZES[i % MESSAGE_SIZES.length]);
+            messages.add(message);
+            signatures.add(Arrays.copyOfRange(TweetNaCl.crypto_sign(message, sk), 0, TweetNaCl.SIGNATURE_SIZE_BYTES));
+        }
+        Assert.assertTrue("valid batch", OptimizedNaCl.verifyBatch(pk, signatures, messages));
+        Assert.assertTrue("empty batch", OptimizedNaCl.verifyBatch(pk, Collections.emptyList(), Collections.emptyList()));
+        Assert.assertTrue("single", OptimizedNaCl.verifyBatch(pk, signatures.subList(0, 1), messages.subList(0, 1)));
+
+        for (int i = 0; i < 20; i++) {
+            List<byte[]> tamperedSigs = new ArrayList<>(signatures), tamperedMessages = new ArrayList<>(messages);
+            int index = rnd.nextInt(signatures.size());
+            boolean tamperSignature = i % 2 == 0 || messages.get(index).length == 0;
+            byte[] tampered = (tamperSignature ? signatures : messages).get(index).clone();
+            tampered[rnd.nextInt(tampered.length)] ^= 1 << rnd.nextInt(8);
+            (tamperSignature ? tamperedSigs : tamperedMessages).set(index, tampered);
+            Assert.assertFalse("tampered batch", OptimizedNaCl.verifyBatch(pk, tamperedSigs, tamperedMessages));
+        }
+
+        List<byte[]> swapped = new ArrayList<>(signatures);
+        Collections.swap(swapped, 0, 1);
+        Assert.assertFalse("signatures for the wrong messages", OptimizedNaCl.verifyBatch(pk, swapped, messages));
+        byte[] otherPk = new byte[32], otherSk = new byte[64];
+        TweetNaCl.crypto_sign_keypair(otherPk, otherSk, true);
+        Assert.assertFalse("wrong key", OptimizedNaCl.verifyBatch(otherPk, signatures, messages));
+    }
+
+    private static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(new BigInteger("27742317777372353535851937790883648493"));
+
+    private static BigInteger fromLittleEndian(byte[] b, int length) {
+        byte[] bigEndian = new byte[length];
+        for (int i = 0; i < length; i++)
+            bigEndian[i] = b[length - 1 - i];
+        return new BigInteger(1, bigEndian);
+    }
+
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    private static byte[] expandedSecret(byte[] sk) throws Exception {
+        byte[] d = MessageDigest.getInstance("SHA-512").digest(Arrays.copyOfRange(sk, 0, 32));
+        d[0] &= 248;
+        d[31] &= 127;
+        d[31] |= 64;
+        return d;
+    }
+
+    /** A signature with the given R, which only the holder of sk can make, with s = r + h a so that s B - h A is r B
+     */
+    private static byte[] signWithR(byte[] R, BigInteger r, byte[] message, byte[] sk) throws Exception {
+        byte[] d = expandedSecret(sk);
+        MessageDigest sha = MessageDigest.getInstance("SHA-512");
+        sha.update(R);
+        sha.update(sk, 32, 32);
+        sha.update(message);
+        BigInteger h = fromLittleEndian(sha.digest(), 64).mod(L);
+        BigInteger s = r.add(h.multiply(fromLittleEndian(d, 32))).mod(L);
+        byte[] signature = Arrays.copyOf(R, 64);
+        byte[] sBytes = s.toByteArray();
+        for (int i = 0; i < sBytes.length && i < 32; i++)
+            signature[32 + i] = sBytes[sBytes.length - 1 - i];
+        return signature;
+    }
+
+    @Test
+    public void batchVerifySmallOrderR() throws Exception {
+        byte[] sk = new byte[64], pk = new byte[32];
+        System.arraycopy(random(32), 0, sk, 0, 32);
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+        byte[] identity = new byte[32];
+        identity[0] = 1;
+        // the point (0, -1) of order 2
+        byte[] order2 = new byte[32];
+        Arrays.fill(order2, (byte) 0xff);
+        order2[0] = (byte) 0xec;
+        order2[31] = 0x7f;
+
+        for (int i = 0; i < 20; i++) {
+            byte[] message = random(32), other = random(32);
+            byte[] valid = Arrays.copyOfRange(TweetNaCl.crypto_sign(other, sk), 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+            for (byte[] R : Arrays.asList(identity, order2)) {
+                byte[] signature = signWithR(R, BigInteger.ZERO, message, sk);
+                boolean single = accepts(ArrayOps.concat(signature, message), pk, true);
+                Assert.assertEquals("small order R", R == identity, single);
+                Assert.assertEquals("same as single verification", single,
+                        OptimizedNaCl.verifyBatch(pk, Arrays.asList(valid, signature), Arrays.asList(other, message)));
+            }
+        }
+    }
+
+    /** The encoding of p + (0, -1), which is (-x, -y), for a point p with x != 0
+     */
+    private static byte[] addOrder2(byte[] p) {
+        byte[] y = p.clone();
+        y[31] &= 0x7f;
+        byte[] negY = fromLittleEndian(y, 32).negate().mod(P).toByteArray();
+        byte[] res = new byte[32];
+        for (int i = 0; i < negY.length && i < 32; i++)
+            res[i] = negY[negY.length - 1 - i];
+        res[31] |= (p[31] & 0x80) ^ 0x80;
+        return res;
+    }
+
+    @Test
+    public void batchVerifyMixedOrderR() throws Exception {
+        byte[] sk = new byte[64], pk = new byte[32];
+        System.arraycopy(random(32), 0, sk, 0, 32);
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+        byte[] prefix = Arrays.copyOfRange(expandedSecret(sk), 32, 64);
+
+        // R = r B + T for T of order 2, and s = r + h a, so s B - h A - R = T, which a cofactorless batch check with an
+        // even z cancels, but single verification rejects
+        for (int i = 0; i < 20; i++) {
+            byte[] message = random(32), other = random(32);
+            byte[] valid = Arrays.copyOfRange(TweetNaCl.crypto_sign(other, sk), 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+            byte[] rB = Arrays.copyOfRange(TweetNaCl.crypto_sign(message, sk), 0, 32);
+            MessageDigest sha = MessageDigest.getInstance("SHA-512");
+            sha.update(prefix);
+            sha.update(message);
+            BigInteger r = fromLittleEndian(sha.digest(), 64).mod(L);
+            Assert.assertTrue("r B + 0", accepts(ArrayOps.concat(signWithR(rB, r, message, sk), message), pk, true));
+
+            byte[] signature = signWithR(addOrder2(rB), r, message, sk);
+            Assert.assertFalse("mixed order R", accepts(ArrayOps.concat(signature, message), pk, true));
+            Assert.assertFalse("batch with mixed order R",
+                    OptimizedNaCl.verifyBatch(pk, Arrays.asList(valid, signature), Arrays.asList(other, message)));
+        }
+    }
+
+    private static boolean accepts(byte[] signed, byte[] pk, boolean tweetNaCl) {
+        try {
+            if (tweetNaCl)
+                TweetNaCl.crypto_sign_open(signed, pk);
+            else
+                OptimizedNaCl.crypto_sign_open(signed, pk);
+            return true;
+        } catch (TweetNaCl.InvalidSignatureException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.mutable.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.mutable.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PinningMutablePointersTests {
+    private static final Crypto crypto = Crypto.initJava();
+
+    private final AtomicInteger pins = new AtomicInteger(0);
+    private final List<Multihash> pinned = Collections.synchronizedList(new ArrayList<>());
+    private final List<Multihash> unpinned = Collections.synchronizedList(new ArrayList<>());
+    private final RAMStorage storage = new RAMStorage() {
+        @Override
+        public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
+            pins.incrementAndGet();
+            pinned.add(h);
+            return super.recursivePin(h);
+        }
+
+        @Override
+        public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
+            pins.incrementAndGet();
+            pinned.add(updated);
+            return super.pinUpdate(existing, updated);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
+            unpinned.add(h);
+            return super.recursiveUnpin(h);
+        }
+    };
+
+    private PublicKeyHash putKey(SigningKeyPair writer) throws Exception {
+        return storage.putSigningKey(
+                writer.secretSigningKey.signatureOnly(writer.publicSigningKey.serialize()),
+                storage.hashKey(writer.publicSigningKey),
+                writer.publicSigningKey).get();
+    }
+
+    private InMemoryPointers casChecking() throws Exception {
+        File db = File.createTempFile("pointers", ".sql");
+        db.deleteOnExit();
+        return new InMemoryPointers(storage, new JDBCCoreNode(JDBCCoreNode.buildSqlLite(db.getPath()), 10));
+    }
+
+    private static MaybeMultihash root(int i) {
+        return MaybeMultihash.of(RAMStorage.hashToCid(new byte[]{(byte) i}, true));
+    }
+
+    @Test
+    public void queuedUpdatesAreCommittedTogether() throws Exception {
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = putKey(writer);
+
+        // the target checks every CAS, and holds the first commit open, so later updates queue up behind it
+        InMemoryPointers casChecking = casChecking();
+        CompletableFuture<Boolean> gate = new CompletableFuture<>();
+        AtomicInteger commits = new AtomicInteger(0);
+        MutablePointers target = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signedPointer) {
+                commits.incrementAndGet();
+                return gate.thenCompose(x -> casChecking.setPointer(owner, writer, signedPointer));
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+                return casChecking.getPointer(writer);
+            }
+        };
+        PinningMutablePointers pinning = new PinningMutablePointers(target, storage);
+
+        List<MaybeMultihash> roots = new ArrayList<>();
+        roots.add(MaybeMultihash.empty());
+        for (int i = 0; i < 10; i++)
+            roots.add(root(i));
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        List<byte[]> signed = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            signed.add(writer.signMessage(new HashCasPair(roots.get(i), roots.get(i + 1)).serialize()));
+            results.add(pinning.setPointer(writerHash, writerHash, signed.get(i)));
+        }
+        CompletableFuture<Boolean> stale = pinning.setPointer(writerHash, writerHash,
+                writer.signMessage(new HashCasPair(MaybeMultihash.empty(), roots.get(5)).serialize()));
+
+        gate.complete(true);
+        for (CompletableFuture<Boolean> result : results)
+            Assert.assertTrue(result.get());
+        try {
+            stale.get();
+            Assert.fail("Stale CAS update succeeded!");
+        } catch (ExecutionException expected) {}
+
+        Assert.assertEquals("every update is sent to the target", 10, commits.get());
+        Assert.assertEquals("first update and queued chain are each pinned once", 2, pins.get());
+        Assert.assertEquals(Arrays.asList(roots.get(1).get()), unpinned);
+        Assert.assertArrayEquals(signed.get(9), target.getPointer(writerHash).get().get());
+    }
+
+    @Test
+    public void partiallyCommittedChain() throws Exception {
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = putKey(writer);
+        List<MaybeMultihash> roots = Arrays.asList(MaybeMultihash.empty(), root(1), root(2), root(3), root(4));
+        List<byte[]> signed = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            signed.add(writer.signMessage(new HashCasPair(roots.get(i), roots.get(i + 1)).serialize()));
+
+        // the target rejects the second link of the queued chain
+        InMemoryPointers casChecking = casChecking();
+        CompletableFuture<Boolean> gate = new CompletableFuture<>();
+        MutablePointers target = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signedPointer) {
+                if (Arrays.equals(signedPointer, signed.get(2)))
+                    return CompletableFuture.completedFuture(false);
+                return gate.thenCompose(x -> casChecking.setPointer(owner, writer, signedPointer));
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+                return casChecking.getPointer(writer);
+            }
+        };
+        PinningMutablePointers pinning = new PinningMutablePointers(target, storage);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (byte[] update : signed)
+            results.add(pinning.setPointer(writerHash, writerHash, update));
+        gate.complete(true);
+
+        Assert.assertTrue(results.get(0).get());
+        Assert.assertTrue("committed link succeeds", results.get(1).get());
+        for (CompletableFuture<Boolean> rejected : results.subList(2, 4)) {
+            try {
+                rejected.get();
+                Assert.fail("Uncommitted update succeeded!");
+            } catch (ExecutionException expected) {}
+        }
+        Assert.assertArrayEquals(signed.get(1), target.getPointer(writerHash).get().get());
+        // the chain head is pinned, then the root actually committed, and both the head and the replaced root unpinned
+        Assert.assertEquals(Arrays.asList(roots.get(1).get(), roots.get(4).get(), roots.get(2).get()), pinned);
+        Assert.assertEquals(Arrays.asList(roots.get(4).get(), roots.get(1).get()), unpinned);
+    }
+}
@@ -0,0 +1,126 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.user.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PointerWatchTests {
+    private static final PublicKeyHash owner = new PublicKeyHash(RAMStorage.hashToCid(new byte[]{1}, false));
+    private static final PublicKeyHash writer = new PublicKeyHash(RAMStorage.hashToCid(new byte[]{2}, false));
+    private static final PublicKeyHash other = new PublicKeyHash(RAMStorage.hashToCid(new byte[]{3}, false));
+
+    private final int port = 5680;
+    private final HttpServer server;
+    private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+    private final AtomicInteger serverReads = new AtomicInteger(0);
+
+    public PointerWatchTests() throws IOException {
+        MutablePointers ram = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signedPointer) {
+                pointers.put(writer, signedPointer);
+                return CompletableFuture.completedFuture(true);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+                serverReads.incrementAndGet();
+                return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+            }
+        };
+        MutableEventPropagator propagator = new MutableEventPropagator(ram);
+        PointerWatchers watchers = new PointerWatchers(500, 100);
+        propagator.addListener(watchers);
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 10);
+        server.createContext("/" + HttpMutablePointerServer.MUTABLE_POINTERS_URL, new HttpMutablePointerServer.MutationHandler(propagator));
+        server.createContext("/" + HttpMutablePointerServer.WATCH_URL, new HttpMutablePointerServer.WatchHandler(watchers));
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+    }
+
+    @After
+    public void finish() {
+        server.stop(0);
+    }
+
+    private HttpMutablePointers client() throws IOException {
+        return new HttpMutablePointers(new JavaPoster(new URL("http://localhost:" + port + "/")));
+    }
+
+    private static Executor daemonThreads() {
+        return task -> {
+            Thread t = new Thread(task);
+            t.setDaemon(true);
+            t.start();
+        };
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws Exception {
+        long end = System.currentTimeMillis() + 5_000;
+        while (! condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                throw new IllegalStateException("Timed out!");
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void updatesArePushedToWatchers() throws Exception {
+        pointers.put(writer, new byte[]{1});
+        WatchingPointers watching = new WatchingPointers(client(), daemonThreads());
+        Assert.assertArrayEquals(new byte[]{1}, watching.getPointer(writer).get().get());
+
+        // once the writer is being watched, reads are served from the cache
+        waitFor(() -> {
+            int before = serverReads.get();
+            watching.getPointer(writer).join();
+            return serverReads.get() == before;
+        });
+        int reads = serverReads.get();
+        for (int i = 0; i < 10; i++)
+            Assert.assertArrayEquals(new byte[]{1}, watching.getPointer(writer).get().get());
+        Assert.assertEquals(reads, serverReads.get());
+
+        // a change from another client is pushed into the cache
+        client().setPointer(owner, writer, new byte[]{2}).get();
+        waitFor(() -> Arrays.equals(new byte[]{2}, watching.getPointer(writer).join().get()));
+        Assert.assertEquals(reads, serverReads.get());
+
+        // our own changes are visible immediately
+        watching.setPointer(owner, writer, new byte[]{3}).get();
+        Assert.assertArrayEquals(new byte[]{3}, watching.getPointer(writer).get().get());
+    }
+
+    @Test
+    public void pollsTimeOutOrReset() throws Exception {
+        PointerWatchers watchers = new PointerWatchers(100, 1);
+        PointerUpdates start = watchers.watch(0, -1, Collections.singleton(writer)).get();
+        Assert.assertTrue(start.reset);
+
+        long t0 = System.currentTimeMillis();
+        PointerUpdates empty = watchers.watch(start.epoch, start.sequence, Collections.singleton(writer)).get();
+        Assert.assertTrue(System.currentTimeMillis() - t0 >= 100);
+        Assert.assertFalse(empty.reset);
+        Assert.assertTrue(empty.updates.isEmpty());
+
+        CompletableFuture<PointerUpdates> waiting = watchers.watch(start.epoch, start.sequence, Collections.singleton(writer));
+        watchers.accept(new MutableEvent(writer, new byte[]{7}));
+        PointerUpdates changed = waiting.get();
+        Assert.assertArrayEquals(new byte[]{7}, changed.updates.get(writer));
+
+        // only one writer is retained, so a poll from before the last two changes can't be answered
+        watchers.accept(new MutableEvent(other, new byte[]{8}));
+        Assert.assertTrue(watchers.watch(start.epoch, start.sequence, Collections.singleton(writer)).get().reset);
+        Assert.assertTrue(watchers.watch(start.epoch + 1, changed.sequence, Collections.singleton(writer)).get().reset);
+    }
+}
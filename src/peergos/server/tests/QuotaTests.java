@@ -108,8 +108,9 @@ public class QuotaTests {
 
         UserContext context = ensureSignedUp(username, password, network, crypto);
         FileTreeNode home = context.getByPath(Paths.get(username).toString()).get().get();
-        // signing up uses just over 4k and the quota is 2 MiB, so use within 1 KiB of our quota
-        byte[] data = new byte[2 * 1024 * 1024 - 6 * 1024];
+        // signing up uses just over 4k and the quota is 2 MiB, so use within 2 KiB of our quota, which still leaves room
+        // for the directory update that deleting the file writes
+        byte[] data = new byte[2 * 1024 * 1024 - 7 * 1024];
         random.nextBytes(data);
         String filename = "file-1";
         home = home.uploadFile(filename, new AsyncReader.ArrayBacked(data), data.length,
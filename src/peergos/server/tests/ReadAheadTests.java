@@ -0,0 +1,60 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ReadAheadTests {
+    private static final long FRAGMENT_DELAY_MILLIS = 500;
+
+    @Test
+    public void readAheadDoesNotDelayReads() throws Exception {
+        ContentAddressedStorage ram = new RAMStorage();
+        UserRepository core = UserRepository.buildSqlLite(":memory:", ram, CoreNode.MAX_USERNAME_COUNT);
+        NetworkAccess network = new NetworkAccess(core, ram, core, new BtreeImpl(core, ram), Collections.emptyList());
+        Crypto crypto = Crypto.initJava();
+        String username = "reader" + new Random().nextInt(10000);
+        UserContext context = UserContext.ensureSignedUp(username, "password", network, crypto).get();
+        byte[] data = new byte[Chunk.MAX_SIZE * 3 + 1];
+        new Random(1).nextBytes(data);
+        context.getUserRoot().get().uploadFile("file", new AsyncReader.ArrayBacked(data), data.length,
+                network, crypto.random, l -> {}, context.fragmenter()).get();
+        FileTreeNode file = context.getByPath(username + "/file").get().get();
+
+        // fragments are retrieved as slowly as from a distant server, and the caller blocks like the java poster
+        ContentAddressedStorage slow = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> hashes) {
+                try {
+                    Thread.sleep(FRAGMENT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getRaw(hashes);
+            }
+        };
+        NetworkAccess slowNetwork = new NetworkAccess(core, slow, core, new BtreeImpl(core, slow), Collections.emptyList());
+        AsyncReader in = file.getInputStream(slowNetwork, crypto.random, data.length, l -> {}).get();
+
+        byte[] first = new byte[1];
+        long start = System.currentTimeMillis();
+        in.readIntoArray(first, 0, 1).get();
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue("Reading from the current chunk took " + duration + " mS", duration < FRAGMENT_DELAY_MILLIS / 2);
+        Assert.assertEquals(data[0], first[0]);
+
+        byte[] rest = Serialize.readFully(in, data.length - 1).get();
+        Assert.assertTrue("Correct contents", Arrays.equals(Arrays.copyOfRange(data, 1, data.length), rest));
+        in.close();
+    }
+}
@@ -0,0 +1,82 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class SpaceUsageTests {
+    private static final long QUOTA = 100 * 1024 * 1024;
+
+    private final Path dir;
+
+    public SpaceUsageTests() throws IOException {
+        this.dir = Files.createTempDirectory("peergos-usage");
+    }
+
+    @After
+    public void deleteState() throws IOException {
+        Files.walk(dir)
+                .sorted(Comparator.reverseOrder())
+                .forEach(p -> p.toFile().delete());
+    }
+
+    private static void waitFor(SpaceCheckingKeyFilter filter) throws Exception {
+        for (int i = 0; i < 600; i++) {
+            if (filter.isLoaded())
+                return;
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Space usage didn't load!");
+    }
+
+    @Test
+    public void restartOnlyProcessesChanges() throws Exception {
+        ContentAddressedStorage ram = new RAMStorage();
+        UserRepository core = UserRepository.buildSqlLite(":memory:", ram, CoreNode.MAX_USERNAME_COUNT);
+        NetworkAccess network = new NetworkAccess(core, ram, core, new BtreeImpl(core, ram), Collections.emptyList());
+        Crypto crypto = Crypto.initJava();
+        String username = "usage" + new Random().nextInt(10000);
+        UserContext context = UserContext.ensureSignedUp(username, "password", network, crypto).get();
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        context.getUserRoot().get().uploadFile("file", new AsyncReader.ArrayBacked(data), data.length,
+                network, crypto.random, l -> {}, context.fragmenter()).get();
+
+        Path state = dir.resolve("usage.cbor");
+        SpaceCheckingKeyFilter initial = new SpaceCheckingKeyFilter(core, core, ram, u -> QUOTA, Optional.of(state));
+        waitFor(initial);
+        long usage = initial.getUsage(username).get();
+        Assert.assertTrue("Usage includes file", usage > data.length);
+
+        AtomicLong linkRequests = new AtomicLong();
+        ContentAddressedStorage counting = new HashVerifyingStorage(ram) {
+            @Override
+            public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+                linkRequests.incrementAndGet();
+                return super.getLinks(root);
+            }
+        };
+        SpaceCheckingKeyFilter restarted = new SpaceCheckingKeyFilter(core, core, counting, u -> QUOTA, Optional.of(state));
+        Assert.assertEquals("Usage restored before scanning", usage, (long) restarted.getUsage(username).get());
+        waitFor(restarted);
+        Assert.assertEquals("All users loaded", restarted.getLoadProgress().right, restarted.getLoadProgress().left);
+        Assert.assertEquals("Usage unchanged", usage, (long) restarted.getUsage(username).get());
+        Assert.assertEquals("Unchanged writers are not traversed", 0, linkRequests.get());
+        initial.close();
+        restarted.close();
+    }
+}
@@ -17,6 +17,7 @@ import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 public class UserPublicKeyLinkTests {
@@ -127,6 +128,57 @@ public class UserPublicKeyLinkTests {
         } catch (ExecutionException e) {}
     }
 
+    @Test
+    public void onlyNewLinksAreVerified() throws Exception {
+        AtomicInteger keyLookups = new AtomicInteger(0);
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<PublicSigningKey>> getSigningKey(PublicKeyHash hash) {
+                keyLookups.incrementAndGet();
+                return super.getSigningKey(hash);
+            }
+        };
+        CoreNode core = new UserRepository(storage, new JDBCCoreNode(JDBCCoreNode.buildSqlLite(":memory:")));
+        String username = "chainuser";
+
+        List<SigningPrivateKeyAndPublicHash> signers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            SigningKeyPair user = SigningKeyPair.insecureRandom();
+            PublicKeyHash hash = storage.putSigningKey(
+                    user.secretSigningKey.signatureOnly(user.publicSigningKey.serialize()),
+                    storage.hashKey(user.publicSigningKey),
+                    user.publicSigningKey).get();
+            signers.add(new SigningPrivateKeyAndPublicHash(hash, user.secretSigningKey));
+        }
+        Assert.assertTrue(core.updateChain(username,
+                UserPublicKeyLink.createInitial(signers.get(0), username, LocalDate.now().plusMonths(2))).get());
+
+        // each key change has one new link to verify, however long the chain is
+        for (int i = 1; i < signers.size(); i++) {
+            int before = keyLookups.get();
+            List<UserPublicKeyLink> tail = UserPublicKeyLink.createChain(signers.get(i - 1), signers.get(i), username,
+                    LocalDate.now().plusMonths(2));
+            Assert.assertTrue(core.updateChain(username, tail).get());
+            Assert.assertEquals(1, keyLookups.get() - before);
+            Assert.assertEquals(i + 1, core.getChain(username).get().size());
+        }
+
+        List<UserPublicKeyLink> chain = core.getChain(username).get();
+        Assert.assertSame("chain is cached", chain, core.getChain(username).get());
+        PublicKeyHash current = signers.get(signers.size() - 1).publicKeyHash;
+        Assert.assertEquals(current, core.getPublicKeyHash(username).get().get());
+        Assert.assertEquals(username, core.getUsername(current).get());
+        Assert.assertEquals("", core.getUsername(signers.get(0).publicKeyHash).get());
+
+        // an invalid key change is rejected, and doesn't change the cached chain
+        try {
+            core.updateChain(username, UserPublicKeyLink.createChain(signers.get(0), signers.get(1), username,
+                    LocalDate.now().plusMonths(2))).get();
+            Assert.fail();
+        } catch (ExecutionException e) {}
+        Assert.assertEquals(chain, core.getChain(username).get());
+    }
+
     static CoreNode getDefaultCoreNode() {
         try {
             return UserRepository.buildSqlLite(":memory:", RAMStorage.getSingleton(), CoreNode.MAX_USERNAME_COUNT);
@@ -82,6 +82,36 @@ public abstract class UserTests {
         Assert.assertTrue("Serialization overhead isn't too much", rawSym.length <= 33 + 4);
     }
 
+    @Test
+    public void encryptInPlace() throws Exception {
+        SymmetricKey key = SymmetricKey.random();
+        byte[] nonce = key.createNonce();
+        byte[] message = new byte[1000];
+        random.nextBytes(message);
+        byte[] expected = key.encrypt(message, nonce);
+
+        int offset = 5;
+        byte[] buffer = new byte[offset + Chunk.HEADER_SIZE + message.length];
+        System.arraycopy(message, 0, buffer, offset + Chunk.HEADER_SIZE, message.length);
+        key.encryptInPlace(buffer, offset, message.length, nonce).get();
+        int cipherStart = offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+        Assert.assertTrue("Same cipher text", Arrays.equals(expected,
+                Arrays.copyOfRange(buffer, cipherStart, cipherStart + expected.length)));
+
+        key.decryptInPlace(buffer, offset, expected.length, nonce).get();
+        int plainStart = offset + Chunk.HEADER_SIZE;
+        Assert.assertTrue("Decrypted in place", Arrays.equals(message,
+                Arrays.copyOfRange(buffer, plainStart, plainStart + message.length)));
+
+        byte[] corrupted = new byte[TweetNaCl.SECRETBOX_OVERHEAD_BYTES + expected.length];
+        System.arraycopy(expected, 0, corrupted, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, expected.length);
+        corrupted[corrupted.length - 1] ^= 1;
+        try {
+            key.decryptInPlace(corrupted, 0, expected.length, nonce).get();
+            Assert.fail("Corrupted cipher text decrypted");
+        } catch (TweetNaCl.InvalidCipherTextException e) {}
+    }
+
     @Test
     public void differentLoginTypes() throws Exception {
         String username = generateUsername();
@@ -122,6 +152,20 @@ public abstract class UserTests {
         ensureSignedUp(username, password, network, crypto);
     }
 
+    @Test
+    public void usernamesAreRefreshed() throws Exception {
+        NetworkAccess earlier = network.clear();
+        String username = generateUsername();
+        ensureSignedUp(username, "password", network, crypto);
+
+        Assert.assertTrue(network.coreNode.getUsernames("").get().contains(username));
+        Assert.assertEquals(Arrays.asList(username), network.coreNode.getUsernames(username, 1).get());
+        Assert.assertFalse(earlier.usernames.contains(username));
+        Assert.assertTrue(earlier.isUsernameRegistered(username).get());
+        Assert.assertTrue("fetched only the new usernames", earlier.usernames.contains(username));
+        Assert.assertEquals(network.coreNode.getUsernames("").get(), earlier.usernames);
+    }
+
     @Test
     public void singleSignUp() throws Exception {
         // This is to ensure a user can't accidentally sign in rather than login and overwrite all their data
@@ -681,6 +725,37 @@ public abstract class UserTests {
         assertTrue("retrieved same data", dataEquals);
     }
 
+    @Test
+    public void seekAndReadAhead() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = ensureSignedUp(username, password, network, crypto);
+        FileTreeNode userRoot = context.getUserRoot().get();
+
+        String name = randomString();
+        byte[] data = randomData(3 * Chunk.MAX_SIZE + 1024);
+        FileTreeNode updatedRoot = userRoot.uploadFile(name, new AsyncReader.ArrayBacked(data), data.length,
+                context.network, context.crypto.random, l -> {}, context.fragmenter()).get();
+        FileTreeNode file = updatedRoot.getDescendentByPath(name, context.network).get().get();
+        FileProperties props = file.getFileProperties();
+        assertTrue("Stream secret", props.streamSecret.isPresent());
+        Location lastChunk = FileProperties.getChunkLocation(file.getLocation().owner, file.getLocation().writer,
+                props.streamSecret.get(), 3);
+        assertTrue("Chunk at derived location", context.network.getMetadata(lastChunk).get().isPresent());
+        AsyncReader in = file.getInputStream(context.network, context.crypto.random, data.length, l -> {}).get();
+
+        // read across chunk boundaries, then seek directly to later chunks and backwards to the start
+        long[] positions = {Chunk.MAX_SIZE - 10, 3L * Chunk.MAX_SIZE - 10, 5, Chunk.MAX_SIZE + 5, 3L * Chunk.MAX_SIZE};
+        for (long position : positions) {
+            AsyncReader seeked = in.seek((int) (position >> 32), (int) position).get();
+            byte[] read = new byte[1024];
+            seeked.readIntoArray(read, 0, read.length).get();
+            assertTrue("Correct contents at " + position,
+                    Arrays.equals(Arrays.copyOfRange(data, (int) position, (int) position + read.length), read));
+        }
+        in.close();
+    }
+
     @Test
     public void deleteTest() throws Exception {
         String username = generateUsername();
@@ -0,0 +1,79 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.function.*;
+
+/** Compares the time and allocation per chunk of copying and in place chunk encryption
+ */
+public class ChunkEncryptionBenchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    private final SymmetricKey key;
+    private final byte[] nonce, mapKey = new byte[32], plain = new byte[Chunk.MAX_SIZE];
+
+    public ChunkEncryptionBenchmark() {
+        Crypto.initJava();
+        key = SymmetricKey.random();
+        nonce = key.createNonce();
+        new Random(1).nextBytes(plain);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(String name, Supplier<Object> task) {
+        for (int i = 0; i < WARMUP; i++)
+            task.get();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            task.get();
+        long duration = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("  %-28s %6.1f mS %8.2f MiB allocated per chunk\n", name,
+                duration / 1_000_000.0 / RUNS, allocated / 1024.0 / 1024 / RUNS);
+    }
+
+    @Test
+    public void encryptAndDecryptChunk() {
+        BufferPool pool = new BufferPool(Chunk.HEADER_SIZE + Chunk.MAX_SIZE, 1);
+        Fragmenter fragmenter = new SplitFragmenter();
+        byte[] cipherText = key.encrypt(plain, nonce);
+        byte[] auth = Arrays.copyOfRange(cipherText, 0, TweetNaCl.SECRETBOX_OVERHEAD_BYTES);
+        byte[][] fragments = fragmenter.split(cipherText, TweetNaCl.SECRETBOX_OVERHEAD_BYTES,
+                cipherText.length - TweetNaCl.SECRETBOX_OVERHEAD_BYTES);
+
+        System.out.printf("Encrypting and decrypting a %d byte chunk:\n", plain.length);
+        run("secretbox", () -> key.encrypt(plain, nonce));
+        run("encrypt in pooled buffer", () -> {
+            byte[] buffer = pool.take();
+            System.arraycopy(plain, 0, buffer, Chunk.HEADER_SIZE, plain.length);
+            new Chunk(buffer, Chunk.HEADER_SIZE, plain.length, key, mapKey, nonce).encryptInPlace().join();
+            pool.release(buffer);
+            return buffer;
+        });
+        run("secretbox_open", () -> key.decrypt(cipherText, nonce));
+        run("recombine and decrypt", () -> {
+            byte[] combined = ArrayOps.concat(auth, fragmenter.recombine(fragments, Chunk.MAX_SIZE));
+            return new EncryptedChunk(combined).decrypt(key, nonce).join();
+        });
+        run("recombine, decrypt in place", () -> {
+            byte[] buffer = fragmenter.recombine(fragments, Chunk.MAX_SIZE, Chunk.HEADER_SIZE);
+            System.arraycopy(auth, 0, buffer, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, auth.length);
+            return new EncryptedChunk(buffer, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, buffer.length - TweetNaCl.SECRETBOX_OVERHEAD_BYTES)
+                    .decryptInPlace(key, nonce, mapKey, nonce).join();
+        });
+        Assert.assertEquals("Pooled buffer reused", 1, pool.allocatedCount());
+    }
+}
@@ -0,0 +1,43 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Compares the polynomial Reed-Solomon encoder with the table driven one on full size chunks
+ */
+public class ErasureBenchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    private final byte[] chunk = new byte[Chunk.MAX_SIZE];
+
+    public ErasureBenchmark() {
+        new Random(1).nextBytes(chunk);
+    }
+
+    private static double time(Supplier<byte[][]> encoder) {
+        for (int i = 0; i < WARMUP; i++)
+            encoder.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            encoder.get();
+        return (System.nanoTime() - start) / 1_000_000.0 / RUNS;
+    }
+
+    @Test
+    public void encodeChunk() {
+        int original = ErasureFragmenter.ERASURE_ORIGINAL, failures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        double polynomial = time(() -> Erasure.split(chunk, new GaloisField256(), original, failures));
+        double table = time(() -> ReedSolomon256.split(chunk, original, failures, false));
+        double parallel = time(() -> ReedSolomon256.split(chunk, original, failures, true));
+        System.out.printf("Encoding a %d byte chunk with %d+%d fragments:\n", chunk.length, original, 2 * failures);
+        System.out.printf("  polynomial: %.1f mS\n", polynomial);
+        System.out.printf("  table:      %.1f mS\n", table);
+        System.out.printf("  parallel:   %.1f mS\n", parallel);
+        Assert.assertTrue("Table encoder is faster", table < polynomial);
+    }
+}
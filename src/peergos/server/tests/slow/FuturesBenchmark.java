@@ -0,0 +1,75 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Compares combining 10k futures with the previous reduction, which copied the partial results for every future,
+ *  against collecting them into a pre-sized array.
+ */
+public class FuturesBenchmark {
+    private static final int FUTURES = 10_000;
+    private static final int RUNS = 10;
+
+    private static <T> CompletableFuture<List<T>> combineByConcatenation(Collection<CompletableFuture<T>> futures) {
+        CompletableFuture<List<T>> identity = CompletableFuture.completedFuture(Collections.emptyList());
+        return futures.stream().reduce(identity,
+                (a, b) -> b.thenCompose(opt ->
+                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
+                                .collect(Collectors.toList()))),
+                (a, b) -> b.thenCompose(setb ->
+                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toList()))));
+    }
+
+    private static long time(Function<List<CompletableFuture<Integer>>, CompletableFuture<List<Integer>>> combiner,
+                             boolean completeFirst) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            List<CompletableFuture<Integer>> futures = IntStream.range(0, FUTURES)
+                    .mapToObj(i -> new CompletableFuture<Integer>())
+                    .collect(Collectors.toList());
+            if (completeFirst)
+                for (int i = 0; i < FUTURES; i++)
+                    futures.get(i).complete(i);
+            long start = System.nanoTime();
+            CompletableFuture<List<Integer>> all = combiner.apply(futures);
+            if (! completeFirst)
+                for (int i = 0; i < FUTURES; i++)
+                    futures.get(i).complete(i);
+            List<Integer> res = all.get();
+            best = Math.min(best, System.nanoTime() - start);
+            Assert.assertEquals(FUTURES, res.size());
+            Assert.assertEquals(FUTURES - 1, res.get(FUTURES - 1).intValue());
+        }
+        return best / 1_000_000;
+    }
+
+    @Test
+    public void combine10kFutures() throws Exception {
+        for (boolean completeFirst : Arrays.asList(true, false)) {
+            String when = completeFirst ? "already completed" : "completed afterwards";
+            long concatenated = time(FuturesBenchmark::combineByConcatenation, completeFirst);
+            long allOf = time(Futures::allOf, completeFirst);
+            System.out.println("Combining " + FUTURES + " futures " + when + ": concatenation " + concatenated +
+                    " mS, allOf " + allOf + " mS");
+        }
+    }
+
+    @Test
+    public void mapConcurrent10k() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Integer> input = IntStream.range(0, FUTURES).boxed().collect(Collectors.toList());
+        for (int maxInFlight : Arrays.asList(1, 16, 256)) {
+            long start = System.nanoTime();
+            List<Integer> res = Futures.mapConcurrent(input, i -> CompletableFuture.supplyAsync(() -> i, pool), maxInFlight).get();
+            long duration = (System.nanoTime() - start) / 1_000_000;
+            Assert.assertEquals(input, res);
+            System.out.println("Mapping " + FUTURES + " values with " + maxInFlight + " in flight took " + duration + " mS");
+        }
+        pool.shutdown();
+    }
+}
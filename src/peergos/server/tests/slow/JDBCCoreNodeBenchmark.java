@@ -0,0 +1,108 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+
+import java.io.*;
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Compares the throughput of a single autocommit connection with a pool of connections in WAL mode, for a mix of
+ *  signups, pointer updates and reads from many threads.
+ */
+public class JDBCCoreNodeBenchmark {
+    private static final Crypto crypto = Crypto.initJava();
+    private static final int THREADS = 16;
+    private static final int USERS = 500;
+    private static final int OPS_PER_USER = 20;
+
+    private static class User {
+        final String username;
+        final PublicKeyHash owner;
+        final UserPublicKeyLink link;
+
+        User(String username, PublicKeyHash owner, UserPublicKeyLink link) {
+            this.username = username;
+            this.owner = owner;
+            this.link = link;
+        }
+    }
+
+    private static List<User> users;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            SigningKeyPair user = SigningKeyPair.random(crypto.random, crypto.signer);
+            String username = "user" + i;
+            PublicKeyHash owner = storage.hashKey(user.publicSigningKey);
+            UserPublicKeyLink.UsernameClaim claim = UserPublicKeyLink.UsernameClaim.create(
+                    username, user.secretSigningKey, LocalDate.now().plusMonths(2));
+            users.add(new User(username, owner, new UserPublicKeyLink(owner, claim)));
+        }
+    }
+
+    private static double run(JDBCCoreNode core) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        List<Future<Integer>> results = new ArrayList<>();
+        for (User user : users) {
+            results.add(pool.submit(() -> {
+                List<UserPublicKeyLink> chain = Collections.singletonList(user.link);
+                core.updateChain(user.username, Collections.emptyList(), chain, chain);
+                int ops = 1;
+                for (int i = 0; i < OPS_PER_USER; i++) {
+                    byte[] pointer = new byte[100];
+                    pointer[0] = (byte) i;
+                    core.setPointer(user.owner, user.owner, pointer).get();
+                    core.getPointer(user.owner).get();
+                    core.getChain(user.username).get();
+                    core.getUsername(user.owner).get();
+                    ops += 4;
+                }
+                return ops;
+            }));
+        }
+        long ops = 0;
+        for (Future<Integer> result : results)
+            ops += result.get();
+        long durationNanos = System.nanoTime() - start;
+        pool.shutdown();
+        core.close();
+        return ops * 1_000_000_000.0 / durationNanos;
+    }
+
+    private static File tempDb() throws IOException {
+        File db = File.createTempFile("corenode", ".sql");
+        db.deleteOnExit();
+        new File(db.getPath() + "-wal").deleteOnExit();
+        new File(db.getPath() + "-shm").deleteOnExit();
+        return db;
+    }
+
+    @Test
+    public void singleConnectionVersusPool() throws Exception {
+        File single = tempDb();
+        double before = run(new JDBCCoreNode(JDBCCoreNode.buildSqlLite(single.getPath()), USERS));
+        System.out.printf("Single autocommit connection: %.0f ops/s\n", before);
+
+        File pooled = tempDb();
+        double after = run(new JDBCCoreNode(JDBCCoreNode.buildSqlLitePool(pooled.getPath(), THREADS / 2), USERS));
+        System.out.printf("WAL connection pool: %.0f ops/s\n", after);
+
+        // check the pooled database ended up with everything
+        JDBCCoreNode check = new JDBCCoreNode(JDBCCoreNode.buildSqlLite(pooled.getPath()), USERS);
+        Assert.assertEquals(USERS, check.getUsernames("").get().size());
+        Assert.assertEquals(USERS, check.getAllPointers().size());
+        check.close();
+    }
+}
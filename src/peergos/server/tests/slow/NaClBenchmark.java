@@ -0,0 +1,77 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Compares the speed of TweetNaCl and OptimizedNaCl
+ */
+public class NaClBenchmark {
+    private static final int WARMUP = 3;
+
+    private final byte[] key = new byte[32], nonce = new byte[24], chunk = new byte[5 * 1024 * 1024];
+    private final byte[] message = new byte[200], pk = new byte[32], sk = new byte[64];
+
+    public NaClBenchmark() {
+        Random rnd = new Random(1);
+        rnd.nextBytes(key);
+        rnd.nextBytes(nonce);
+        rnd.nextBytes(chunk);
+        rnd.nextBytes(message);
+        rnd.nextBytes(sk);
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+    }
+
+    private static double time(int runs, Supplier<Object> task) {
+        for (int i = 0; i < WARMUP; i++)
+            task.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            task.get();
+        return (System.nanoTime() - start) / 1_000_000.0 / runs;
+    }
+
+    private static void compare(String name, int runs, Supplier<Object> tweetNaCl, Supplier<Object> optimized) {
+        double before = time(runs, tweetNaCl);
+        double after = time(runs, optimized);
+        System.out.printf("  %-24s %9.3f mS %9.3f mS %6.1fx\n", name, before, after, before / after);
+    }
+
+    @Test
+    public void compareImplementations() {
+        byte[] cipher = TweetNaCl.secretbox(chunk, nonce, key);
+        byte[] signed = TweetNaCl.crypto_sign(message, sk);
+        System.out.printf("  %-24s %12s %12s\n", "", "TweetNaCl", "Optimized");
+        compare("secretbox 5 MiB", 5,
+                () -> TweetNaCl.secretbox(chunk, nonce, key),
+                () -> OptimizedNaCl.secretbox(chunk, nonce, key));
+        compare("secretbox_open 5 MiB", 5,
+                () -> TweetNaCl.secretbox_open(cipher, nonce, key),
+                () -> OptimizedNaCl.secretbox_open(cipher, nonce, key));
+        compare("sign", 100,
+                () -> TweetNaCl.crypto_sign(message, sk),
+                () -> OptimizedNaCl.crypto_sign(message, sk));
+        compare("verify", 100,
+                () -> TweetNaCl.crypto_sign_open(signed, pk),
+                () -> OptimizedNaCl.crypto_sign_open(signed, pk));
+
+        int batchSize = 64;
+        List<byte[]> signatures = new ArrayList<>(), messages = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            byte[] block = Arrays.copyOf(message, message.length);
+            block[0] = (byte) i;
+            messages.add(block);
+            signatures.add(Arrays.copyOf(OptimizedNaCl.crypto_sign(block, sk), TweetNaCl.SIGNATURE_SIZE_BYTES));
+        }
+        compare("verify " + batchSize + ", loop vs batch", 5,
+                () -> {
+                    for (int i = 0; i < batchSize; i++)
+                        OptimizedNaCl.crypto_sign_open(ArrayOps.concat(signatures.get(i), messages.get(i)), pk);
+                    return true;
+                },
+                () -> OptimizedNaCl.verifyBatch(pk, signatures, messages));
+    }
+}
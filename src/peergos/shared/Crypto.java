@@ -55,9 +55,18 @@ public class Crypto {
     }
 
     public static Crypto initJava() {
+        return initJava(true);
+    }
+
+    /**
+     *
+     * @param optimized whether to use the optimized pure Java secretbox and signatures rather than TweetNaCl
+     * @return
+     */
+    public static Crypto initJava(boolean optimized) {
         SafeRandom.Java random = new SafeRandom.Java();
-        Salsa20Poly1305.Java symmetricProvider = new Salsa20Poly1305.Java();
-        Ed25519.Java signer = new Ed25519.Java();
+        Salsa20Poly1305 symmetricProvider = optimized ? new Salsa20Poly1305.OptimizedJava() : new Salsa20Poly1305.Java();
+        Ed25519 signer = optimized ? new Ed25519.OptimizedJava() : new Ed25519.Java();
         Curve25519 boxer = new Curve25519.Java();
         return init(() -> new Crypto(random, new ScryptJava(), symmetricProvider, signer, boxer), true);
     }
@@ -26,6 +26,7 @@ import java.util.stream.*;
  *  This class is unprivileged - doesn't have any private keys
  */
 public class NetworkAccess {
+    public static final int MAX_CONCURRENT_RETRIEVALS = 20;
 
     public final CoreNode coreNode;
     public final ContentAddressedStorage dhtClient;
@@ -33,6 +34,8 @@ public class NetworkAccess {
     public final Btree btree;
     @JsProperty
     public final List<String> usernames;
+    // runs calls which should overlap, as the java poster blocks until the server replies
+    public final Executor executor;
     private final LocalDateTime creationTime;
     private final boolean isJavascript;
 
@@ -45,7 +48,10 @@ public class NetworkAccess {
         this.dhtClient = new HashVerifyingStorage(dhtClient);
         this.mutable = mutable;
         this.btree = btree;
-        this.usernames = usernames;
+        // usernames are only ever added, so this is up to date with version usernames.size() of the directory
+        this.usernames = new ArrayList<>(usernames);
+        Collections.sort(this.usernames);
+        this.executor = isJavascript ? Runnable::run : javaThreads();
         this.creationTime = LocalDateTime.now();
         this.isJavascript = isJavascript;
     }
@@ -60,9 +66,39 @@ public class NetworkAccess {
 
     @JsMethod
     public CompletableFuture<Boolean> isUsernameRegistered(String username) {
-        if (usernames.contains(username))
-            return CompletableFuture.completedFuture(true);
-        return coreNode.getChain(username).thenApply(chain -> chain.size() > 0);
+        synchronized (usernames) {
+            if (usernames.contains(username))
+                return CompletableFuture.completedFuture(true);
+        }
+        return refreshUsernames().thenApply(all -> {
+            synchronized (usernames) {
+                return usernames.contains(username);
+            }
+        });
+    }
+
+    /** Add any usernames registered since the list was last updated, without downloading the whole list again
+     *
+     * @return the updated list of usernames
+     */
+    @JsMethod
+    public CompletableFuture<List<String>> refreshUsernames() {
+        long version;
+        synchronized (usernames) {
+            version = usernames.size();
+        }
+        return coreNode.getUsernamesSince(version).thenApply(update -> {
+            synchronized (usernames) {
+                // skip any which a concurrent refresh has already added
+                int alreadyAdded = Math.min(usernames.size() - (int) version, update.added.size());
+                for (String username : update.added.subList(alreadyAdded, update.added.size())) {
+                    int index = Collections.binarySearch(usernames, username);
+                    if (index < 0)
+                        usernames.add(-(index + 1), username);
+                }
+                return new ArrayList<>(usernames);
+            }
+        });
     }
 
     public NetworkAccess clear() {
@@ -70,17 +106,30 @@ public class NetworkAccess {
     }
 
     public static CompletableFuture<NetworkAccess> build(HttpPoster poster, boolean isJavascript) {
-        int cacheTTL = 7_000;
-        System.out.println("Using caching corenode with TTL: " + cacheTTL + " mS");
         CoreNode coreNode = new HTTPCoreNode(poster);
-        MutablePointers mutable = new CachingPointers(new HttpMutablePointers(poster), cacheTTL);
+        // the java poster blocks until the server replies, so long polls need their own thread
+        Executor poller = isJavascript ? Runnable::run : javaThreads();
+        MutablePointers mutable = new WatchingPointers(new HttpMutablePointers(poster), poller);
 
         // allow 10MiB of ram for caching btree entries
-        ContentAddressedStorage dht = new CachingStorage(new ContentAddressedStorage.HTTP(poster), 10_000, 50 * 1024);
+        ContentAddressedStorage dht = new CachingStorage(new ContentAddressedStorage.HTTP(poster), 10 * 1024 * 1024, 50 * 1024);
         Btree btree = new BtreeImpl(mutable, dht);
         return coreNode.getUsernames("").thenApply(usernames -> new NetworkAccess(coreNode, dht, mutable, btree, usernames, isJavascript));
     }
 
+    // daemon threads for the calls of all java clients which block, created on first use
+    private static ExecutorService javaThreads;
+
+    private static synchronized Executor javaThreads() {
+        if (javaThreads == null)
+            javaThreads = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        return javaThreads;
+    }
+
     @JsMethod
     public static CompletableFuture<NetworkAccess> buildJS() {
         System.setOut(new ConsolePrintStream());
@@ -126,12 +175,11 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<Set<FileTreeNode>> retrieveAll(List<EntryPoint> entries) {
-        return Futures.reduceAll(entries, Collections.emptySet(),
-                (set, entry) -> retrieveEntryPoint(entry)
-                        .thenApply(opt ->
-                                opt.map(f -> Stream.concat(set.stream(), Stream.of(f)).collect(Collectors.toSet()))
-                                        .orElse(set)),
-                (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toSet()));
+        return Futures.mapConcurrent(entries, this::retrieveEntryPoint, MAX_CONCURRENT_RETRIEVALS)
+                .thenApply(retrieved -> retrieved.stream()
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toSet()));
     }
 
     public CompletableFuture<Optional<FileTreeNode>> retrieveEntryPoint(EntryPoint e) {
@@ -212,17 +260,29 @@ public class NetworkAccess {
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                        ProgressConsumer<Long> monitor,
                                                                        double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> ((h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                        dhtClient.getRaw(h) :
-                        dhtClient.get(h)
-                                .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
-                            bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
-                            return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
-                        }))
+        // retrieve all the raw fragments in bulk
+        List<Multihash> raw = hashes.stream()
+                .filter(h -> (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw)
                 .collect(Collectors.toList());
+        CompletableFuture<List<Optional<byte[]>>> rawFragments = dhtClient.getRaw(raw);
+
+        List<CompletableFuture<Optional<FragmentWithHash>>> futures = new ArrayList<>(hashes.size());
+        int rawIndex = 0;
+        for (Multihash h : hashes) {
+            boolean isRaw = (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw;
+            int index = rawIndex;
+            if (isRaw)
+                rawIndex++;
+            futures.add((isRaw ?
+                    rawFragments.thenApply(fragments -> fragments.get(index)) :
+                    dhtClient.get(h)
+                            .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
+                    .thenApply(dataOpt -> {
+                        Optional<byte[]> bytes = dataOpt;
+                        bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
+                        return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
+                    }));
+        }
 
         return Futures.combineAllInOrder(futures)
                 .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
@@ -54,6 +54,23 @@ public interface CoreNode {
      */
     CompletableFuture<List<String>> getUsernames(String prefix);
 
+    /**
+     *
+     * @param prefix
+     * @param limit
+     * @return At most limit usernames starting with prefix, in alphabetical order
+     */
+    default CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return getUsernames(prefix).thenApply(all -> all.size() <= limit ? all : all.subList(0, limit));
+    }
+
+    /**
+     *
+     * @param version the number of usernames already known
+     * @return the usernames registered after the first version usernames, in the order they were registered
+     */
+    CompletableFuture<UsernameUpdate> getUsernamesSince(long version);
+
     /** Send a follow request to the target public key
      *
      * @param target
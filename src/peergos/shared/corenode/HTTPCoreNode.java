@@ -172,6 +172,37 @@ public class HTTPCoreNode implements CoreNode
                 .thenApply(raw -> (List) JSONParser.parse(new String(raw)));
     }
 
+    @SuppressWarnings("unchecked")
+    @Override public CompletableFuture<List<String>> getUsernames(String prefix, int limit)
+    {
+        return poster.postUnzip("core/getUsernamesGzip/"+prefix+"/"+limit, new byte[0])
+                .thenApply(raw -> (List<String>) JSONParser.parse(new String(raw)));
+    }
+
+    @Override public CompletableFuture<UsernameUpdate> getUsernamesSince(long version)
+    {
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+
+            dout.writeLong(version);
+            dout.flush();
+            return poster.postUnzip("core/getUsernamesSince", bout.toByteArray()).thenApply(res -> {
+                try {
+                    return UsernameUpdate.deserialize(new DataInputStream(new ByteArrayInputStream(res)));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            CompletableFuture<UsernameUpdate> err = new CompletableFuture<>();
+            err.completeExceptionally(ioe);
+            return err;
+        }
+    }
+
     @Override public CompletableFuture<byte[]> getFollowRequests(PublicKeyHash owner)
     {
         try
@@ -109,6 +109,16 @@ public class TofuCoreNode implements CoreNode {
         return source.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit) {
+        return source.getUsernames(prefix, limit);
+    }
+
+    @Override
+    public CompletableFuture<UsernameUpdate> getUsernamesSince(long version) {
+        return source.getUsernamesSince(version);
+    }
+
     @Override
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash target, byte[] encryptedPermission) {
         return source.addFollowRequest(target, encryptedPermission);
@@ -0,0 +1,39 @@
+package peergos.shared.corenode;
+
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/** The usernames registered since a given version of the username directory.
+ *
+ *  Usernames are never removed, so the version is the number of usernames registered, and a client holding every
+ *  username up to some version only needs the ones registered after it to be up to date.
+ */
+public class UsernameUpdate {
+    public final long version;
+    public final List<String> added;
+
+    public UsernameUpdate(long version, List<String> added) {
+        this.version = version;
+        this.added = added;
+    }
+
+    public void serialize(DataOutput dout) throws IOException {
+        dout.writeLong(version);
+        dout.writeInt(added.size());
+        for (String username : added)
+            Serialize.serialize(username, dout);
+    }
+
+    public static UsernameUpdate deserialize(DataInput din) throws IOException {
+        long version = din.readLong();
+        int count = din.readInt();
+        if (count < 0)
+            throw new IllegalStateException("Invalid username count: " + count);
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            added.add(Serialize.deserializeString(din, CoreNode.MAX_USERNAME_SIZE));
+        return new UsernameUpdate(version, added);
+    }
+}
@@ -0,0 +1,1161 @@
+package peergos.shared.crypto;
+
+import java.util.*;
+
+/** A pure Java implementation of secretbox (XSalsa20Poly1305) and Ed25519 signatures written for speed rather than
+ *  size. The output is byte for byte identical to TweetNaCl, including which signatures are accepted.
+ *
+ *  Salsa20 and Poly1305 operate on 32 bit words and 26 bit limbs rather than a byte at a time, and reuse their working
+ *  space. Ed25519 uses field elements of 10 limbs of 25.5 bits with 64 bit products, extended coordinates, signed
+ *  radix 16 scalars and a precomputed table of multiples of the base point for fixed base multiplication. Secret
+ *  scalars are only used with constant time table lookups.
+ */
+public class OptimizedNaCl {
+
+    /* ---------------------------------- Salsa20 ---------------------------------- */
+
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+
+    private static int load32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static void store32(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    /** The 20 round salsa20 core
+     *
+     * @param in the 16 word input block
+     * @param out where to write the 16 output words
+     * @param feedForward whether to add the input to the output, false for hsalsa20
+     */
+    private static void salsa20(int[] in, int[] out, boolean feedForward) {
+        int x0 = in[0], x1 = in[1], x2 = in[2], x3 = in[3], x4 = in[4], x5 = in[5], x6 = in[6], x7 = in[7];
+        int x8 = in[8], x9 = in[9], x10 = in[10], x11 = in[11], x12 = in[12], x13 = in[13], x14 = in[14], x15 = in[15];
+        for (int i = 0; i < 20; i += 2) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        if (feedForward) {
+            x0 += in[0]; x1 += in[1]; x2 += in[2]; x3 += in[3]; x4 += in[4]; x5 += in[5]; x6 += in[6]; x7 += in[7];
+            x8 += in[8]; x9 += in[9]; x10 += in[10]; x11 += in[11]; x12 += in[12]; x13 += in[13]; x14 += in[14]; x15 += in[15];
+        }
+        out[0] = x0; out[1] = x1; out[2] = x2; out[3] = x3; out[4] = x4; out[5] = x5; out[6] = x6; out[7] = x7;
+        out[8] = x8; out[9] = x9; out[10] = x10; out[11] = x11; out[12] = x12; out[13] = x13; out[14] = x14; out[15] = x15;
+    }
+
+    /** Set up the salsa20 state for xsalsa20 with the given 24 byte nonce, deriving the subkey with hsalsa20
+     */
+    private static int[] xsalsa20State(byte[] nonce, byte[] key) {
+        int[] state = new int[16];
+        state[0] = SIGMA0;
+        state[5] = SIGMA1;
+        state[10] = SIGMA2;
+        state[15] = SIGMA3;
+        for (int i = 0; i < 4; i++) {
+            state[1 + i] = load32(key, 4 * i);
+            state[11 + i] = load32(key, 16 + 4 * i);
+            state[6 + i] = load32(nonce, 4 * i);
+        }
+        int[] subkey = new int[16];
+        salsa20(state, subkey, false);
+        state[1] = subkey[0];
+        state[2] = subkey[5];
+        state[3] = subkey[10];
+        state[4] = subkey[15];
+        state[11] = subkey[6];
+        state[12] = subkey[7];
+        state[13] = subkey[8];
+        state[14] = subkey[9];
+        state[6] = load32(nonce, 16);
+        state[7] = load32(nonce, 20);
+        state[8] = 0;
+        state[9] = 0;
+        return state;
+    }
+
+    /** Xor length bytes of the xsalsa20 key stream into out. in and out may be the same array at the same offset.
+     */
+    private static void xorStream(byte[] out, int outOff, byte[] in, int inOff, int length, byte[] nonce, byte[] key) {
+        int[] state = xsalsa20State(nonce, key);
+        int[] block = new int[16];
+        byte[] partial = new byte[64];
+        while (length > 0) {
+            salsa20(state, block, true);
+            if (++state[8] == 0)
+                state[9]++;
+            if (length >= 64) {
+                for (int i = 0; i < 16; i++) {
+                    int w = block[i];
+                    int o = outOff + 4 * i, n = inOff + 4 * i;
+                    out[o] = (byte) (in[n] ^ w);
+                    out[o + 1] = (byte) (in[n + 1] ^ (w >>> 8));
+                    out[o + 2] = (byte) (in[n + 2] ^ (w >>> 16));
+                    out[o + 3] = (byte) (in[n + 3] ^ (w >>> 24));
+                }
+            } else {
+                for (int i = 0; i < 16; i++)
+                    store32(partial, 4 * i, block[i]);
+                for (int i = 0; i < length; i++)
+                    out[outOff + i] = (byte) (in[inOff + i] ^ partial[i]);
+            }
+            outOff += 64;
+            inOff += 64;
+            length -= 64;
+        }
+    }
+
+    /* ---------------------------------- Poly1305 ---------------------------------- */
+
+    private static final long MASK26 = 0x3ffffff;
+
+    /** Compute the 16 byte poly1305 authenticator of m[mOff, mOff + n) with the 32 byte one time key at key[keyOff]
+     */
+    private static void poly1305(byte[] out, int outOff, byte[] m, int mOff, int n, byte[] key, int keyOff) {
+        long r0 = load32(key, keyOff) & 0x3ffffff;
+        long r1 = (load32(key, keyOff + 3) >>> 2) & 0x3ffff03;
+        long r2 = (load32(key, keyOff + 6) >>> 4) & 0x3ffc0ff;
+        long r3 = (load32(key, keyOff + 9) >>> 6) & 0x3f03fff;
+        long r4 = (load32(key, keyOff + 12) >>> 8) & 0x00fffff;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long pad0 = load32(key, keyOff + 16) & 0xffffffffL, pad1 = load32(key, keyOff + 20) & 0xffffffffL;
+        long pad2 = load32(key, keyOff + 24) & 0xffffffffL, pad3 = load32(key, keyOff + 28) & 0xffffffffL;
+
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+        byte[] last = new byte[16];
+        while (n > 0) {
+            byte[] b = m;
+            int off = mOff;
+            long hibit = 1 << 24;
+            if (n < 16) {
+                System.arraycopy(m, mOff, last, 0, n);
+                last[n] = 1;
+                b = last;
+                off = 0;
+                hibit = 0;
+            }
+            h0 += load32(b, off) & 0x3ffffff;
+            h1 += (load32(b, off + 3) >>> 2) & 0x3ffffff;
+            h2 += (load32(b, off + 6) >>> 4) & 0x3ffffff;
+            h3 += (load32(b, off + 9) >>> 6) & 0x3ffffff;
+            h4 += (load32(b, off + 12) >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26; h0 = d0 & MASK26;
+            d1 += c; c = d1 >>> 26; h1 = d1 & MASK26;
+            d2 += c; c = d2 >>> 26; h2 = d2 & MASK26;
+            d3 += c; c = d3 >>> 26; h3 = d3 & MASK26;
+            d4 += c; c = d4 >>> 26; h4 = d4 & MASK26;
+            h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+            h1 += c;
+
+            mOff += 16;
+            n -= 16;
+        }
+
+        // fully reduce h mod 2^130 - 5
+        long c = h1 >>> 26; h1 &= MASK26;
+        h2 += c; c = h2 >>> 26; h2 &= MASK26;
+        h3 += c; c = h3 >>> 26; h3 &= MASK26;
+        h4 += c; c = h4 >>> 26; h4 &= MASK26;
+        h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+        h1 += c;
+
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK26;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= MASK26;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= MASK26;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= MASK26;
+        long g4 = h4 + c - (1L << 26);
+
+        // use g = h + 5 - 2^130 if it is non negative
+        long mask = (g4 >>> 63) - 1;
+        h0 = (h0 & ~mask) | (g0 & mask);
+        h1 = (h1 & ~mask) | (g1 & mask);
+        h2 = (h2 & ~mask) | (g2 & mask);
+        h3 = (h3 & ~mask) | (g3 & mask);
+        h4 = (h4 & ~mask) | (g4 & mask);
+
+        // h = (h + pad) mod 2^128
+        long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+        long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        f0 += pad0;
+        f1 += pad1 + (f0 >>> 32);
+        f2 += pad2 + (f1 >>> 32);
+        f3 += pad3 + (f2 >>> 32);
+
+        store32(out, outOff, (int) f0);
+        store32(out, outOff + 4, (int) f1);
+        store32(out, outOff + 8, (int) f2);
+        store32(out, outOff + 12, (int) f3);
+    }
+
+    /* ---------------------------------- secretbox ---------------------------------- */
+
+    public static byte[] secretbox(byte[] message, byte[] nonce, byte[] key) {
+        byte[] buffer = new byte[TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES + message.length];
+        System.arraycopy(message, 0, buffer, TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES, message.length);
+        secretbox(buffer, 0, message.length, nonce, key);
+        return Arrays.copyOfRange(buffer, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, buffer.length);
+    }
+
+    public static byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+        byte[] buffer = new byte[TweetNaCl.SECRETBOX_OVERHEAD_BYTES + cipher.length];
+        System.arraycopy(cipher, 0, buffer, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, cipher.length);
+        secretbox_open(buffer, 0, cipher.length, nonce, key);
+        return Arrays.copyOfRange(buffer, TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES, buffer.length);
+    }
+
+    /** The same as TweetNaCl.secretbox(buffer, offset, length, nonce, key)
+     */
+    public static void secretbox(byte[] buffer, int offset, int length, byte[] nonce, byte[] key) {
+        int header = TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES;
+        Arrays.fill(buffer, offset, offset + header, (byte) 0);
+        // the first 32 bytes of key stream are the poly1305 key
+        xorStream(buffer, offset, buffer, offset, header + length, nonce, key);
+        byte[] auth = new byte[TweetNaCl.SECRETBOX_OVERHEAD_BYTES];
+        poly1305(auth, 0, buffer, offset + header, length, buffer, offset);
+        Arrays.fill(buffer, offset, offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES, (byte) 0);
+        System.arraycopy(auth, 0, buffer, offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES, auth.length);
+    }
+
+    /** The same as TweetNaCl.secretbox_open(buffer, offset, cipherLength, nonce, key)
+     */
+    public static void secretbox_open(byte[] buffer, int offset, int cipherLength, byte[] nonce, byte[] key) {
+        int header = TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES, authSize = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+        if (cipherLength < authSize)
+            throw new TweetNaCl.InvalidCipherTextException("Invalid encryption! [" + cipherLength + "]");
+        byte[] polyKey = new byte[header];
+        xorStream(polyKey, 0, polyKey, 0, header, nonce, key);
+        byte[] auth = new byte[authSize];
+        poly1305(auth, 0, buffer, offset + header, cipherLength - authSize, polyKey, 0);
+        int diff = 0;
+        for (int i = 0; i < authSize; i++)
+            diff |= auth[i] ^ buffer[offset + authSize + i];
+        if (diff != 0)
+            throw new TweetNaCl.InvalidCipherTextException("Invalid encryption! [" + cipherLength + "]");
+        xorStream(buffer, offset, buffer, offset, authSize + cipherLength, nonce, key);
+        Arrays.fill(buffer, offset, offset + header, (byte) 0);
+    }
+
+    /* ---------------------------------- SHA-512 ---------------------------------- */
+
+    private static final long[] SHA512_K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+
+    private static final long[] SHA512_IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    private static final class Sha512 {
+        private final long[] h = SHA512_IV.clone();
+        private final long[] w = new long[80];
+        private final byte[] buf = new byte[128];
+        private int buffered;
+        private long total;
+
+        Sha512 update(byte[] in, int off, int len) {
+            total += len;
+            if (buffered > 0) {
+                int n = Math.min(len, 128 - buffered);
+                System.arraycopy(in, off, buf, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                if (buffered < 128)
+                    return this;
+                compress(buf, 0);
+                buffered = 0;
+            }
+            while (len >= 128) {
+                compress(in, off);
+                off += 128;
+                len -= 128;
+            }
+            System.arraycopy(in, off, buf, 0, len);
+            buffered = len;
+            return this;
+        }
+
+        byte[] digest() {
+            long bits = total << 3;
+            buf[buffered++] = (byte) 0x80;
+            if (buffered > 112) {
+                Arrays.fill(buf, buffered, 128, (byte) 0);
+                compress(buf, 0);
+                buffered = 0;
+            }
+            Arrays.fill(buf, buffered, 120, (byte) 0);
+            for (int i = 0; i < 8; i++)
+                buf[120 + i] = (byte) (bits >>> (56 - 8 * i));
+            compress(buf, 0);
+            byte[] out = new byte[64];
+            for (int i = 0; i < 8; i++)
+                for (int j = 0; j < 8; j++)
+                    out[8 * i + j] = (byte) (h[i] >>> (56 - 8 * j));
+            return out;
+        }
+
+        private void compress(byte[] block, int off) {
+            for (int i = 0; i < 16; i++) {
+                long v = 0;
+                for (int j = 0; j < 8; j++)
+                    v = (v << 8) | (block[off + 8 * i + j] & 0xff);
+                w[i] = v;
+            }
+            for (int i = 16; i < 80; i++) {
+                long s0 = Long.rotateRight(w[i - 15], 1) ^ Long.rotateRight(w[i - 15], 8) ^ (w[i - 15] >>> 7);
+                long s1 = Long.rotateRight(w[i - 2], 19) ^ Long.rotateRight(w[i - 2], 61) ^ (w[i - 2] >>> 6);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            long a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+            for (int i = 0; i < 80; i++) {
+                long S1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+                long ch = (e & f) ^ (~e & g);
+                long t1 = hh + S1 + ch + SHA512_K[i] + w[i];
+                long S0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+                long maj = (a & b) ^ (a & c) ^ (b & c);
+                long t2 = S0 + maj;
+                hh = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a; h[1] += b; h[2] += c; h[3] += d; h[4] += e; h[5] += f; h[6] += g; h[7] += hh;
+        }
+    }
+
+    public static byte[] crypto_hash(byte[] message) {
+        return new Sha512().update(message, 0, message.length).digest();
+    }
+
+    /* ---------------------------------- GF(2^255 - 19) ---------------------------------- */
+
+    /* Field elements are 10 signed limbs, alternately of 26 and 25 bits, so the value is
+     * h0 + 2^26 h1 + 2^51 h2 + 2^77 h3 + 2^102 h4 + 2^128 h5 + 2^153 h6 + 2^179 h7 + 2^204 h8 + 2^230 h9.
+     * Every mul or sq result is carried. Sums and differences are not, and can be passed to mul or sq directly.
+     */
+    private static final int[] LIMB_BITS = {26, 25, 26, 25, 26, 25, 26, 25, 26, 25};
+
+    private static long[] fe() {
+        return new long[10];
+    }
+
+    private static long[] fe(long small) {
+        long[] h = new long[10];
+        h[0] = small;
+        return h;
+    }
+
+    private static void carry(long[] h, long h0, long h1, long h2, long h3, long h4,
+                              long h5, long h6, long h7, long h8, long h9) {
+        long c;
+        c = h0 >> 26; h1 += c; h0 -= c << 26;
+        c = h1 >> 25; h2 += c; h1 -= c << 25;
+        c = h2 >> 26; h3 += c; h2 -= c << 26;
+        c = h3 >> 25; h4 += c; h3 -= c << 25;
+        c = h4 >> 26; h5 += c; h4 -= c << 26;
+        c = h5 >> 25; h6 += c; h5 -= c << 25;
+        c = h6 >> 26; h7 += c; h6 -= c << 26;
+        c = h7 >> 25; h8 += c; h7 -= c << 25;
+        c = h8 >> 26; h9 += c; h8 -= c << 26;
+        c = h9 >> 25; h0 += 19 * c; h9 -= c << 25;
+        c = h0 >> 26; h1 += c; h0 -= c << 26;
+        h[0] = h0; h[1] = h1; h[2] = h2; h[3] = h3; h[4] = h4;
+        h[5] = h5; h[6] = h6; h[7] = h7; h[8] = h8; h[9] = h9;
+    }
+
+    private static void carry(long[] h) {
+        carry(h, h[0], h[1], h[2], h[3], h[4], h[5], h[6], h[7], h[8], h[9]);
+    }
+
+    // h = f * g. Inputs may have limbs of up to about 2^27, i.e. the sum or difference of a few carried values
+    private static void mul(long[] h, long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        long g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+        long g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5;
+        long f7_2 = 2 * f7, f9_2 = 2 * f9;
+        long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19
+                + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+        long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19
+                + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+        long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19
+                + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+        long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19
+                + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+        long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0
+                + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+        long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1
+                + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+        long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2
+                + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+        long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3
+                + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+        long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4
+                + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+        long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5
+                + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    // h = f * f
+    private static void sq(long[] h, long[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long f0_2 = 2 * f0, f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4;
+        long f5_2 = 2 * f5, f6_2 = 2 * f6, f7_2 = 2 * f7, f8_2 = 2 * f8, f9_2 = 2 * f9;
+        long f1_19 = 19 * f1, f2_19 = 19 * f2, f3_19 = 19 * f3, f4_19 = 19 * f4, f5_19 = 19 * f5;
+        long f6_19 = 19 * f6, f7_19 = 19 * f7, f8_19 = 19 * f8, f9_19 = 19 * f9;
+        long f1_38 = 38 * f1, f2_38 = 38 * f2, f3_38 = 38 * f3, f4_38 = 38 * f4, f5_38 = 38 * f5;
+        long f6_38 = 38 * f6, f7_38 = 38 * f7, f8_38 = 38 * f8, f9_38 = 38 * f9;
+        long h0 = f0 * f0 + f1_2 * f9_38 + f2_2 * f8_19 + f3_2 * f7_38 + f4_2 * f6_19
+                + f5 * f5_38;
+        long h1 = f0_2 * f1 + f2_2 * f9_19 + f3_2 * f8_19 + f4_2 * f7_19 + f5_2 * f6_19;
+        long h2 = f0_2 * f2 + f1 * f1_2 + f3_2 * f9_38 + f4_2 * f8_19 + f5_2 * f7_38
+                + f6 * f6_19;
+        long h3 = f0_2 * f3 + f1_2 * f2 + f4_2 * f9_19 + f5_2 * f8_19 + f6_2 * f7_19;
+        long h4 = f0_2 * f4 + f1_2 * f3_2 + f2 * f2 + f5_2 * f9_38 + f6_2 * f8_19
+                + f7 * f7_38;
+        long h5 = f0_2 * f5 + f1_2 * f4 + f2_2 * f3 + f6_2 * f9_19 + f7_2 * f8_19;
+        long h6 = f0_2 * f6 + f1_2 * f5_2 + f2_2 * f4 + f3 * f3_2 + f7_2 * f9_38
+                + f8 * f8_19;
+        long h7 = f0_2 * f7 + f1_2 * f6 + f2_2 * f5 + f3_2 * f4 + f8_2 * f9_19;
+        long h8 = f0_2 * f8 + f1_2 * f7_2 + f2_2 * f6 + f3_2 * f5_2 + f4 * f4
+                + f9 * f9_38;
+        long h9 = f0_2 * f9 + f1_2 * f8 + f2_2 * f7 + f3_2 * f6 + f4_2 * f5;
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    private static void add(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < 10; i++)
+            h[i] = f[i] + g[i];
+    }
+
+    private static void sub(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < 10; i++)
+            h[i] = f[i] - g[i];
+    }
+
+    private static void neg(long[] h, long[] f) {
+        for (int i = 0; i < 10; i++)
+            h[i] = -f[i];
+    }
+
+    private static void copy(long[] h, long[] f) {
+        System.arraycopy(f, 0, h, 0, 10);
+    }
+
+    // set f to g if b == 1, leave it unchanged if b == 0, in constant time
+    private static void cmov(long[] f, long[] g, int b) {
+        long mask = -b;
+        for (int i = 0; i < 10; i++)
+            f[i] ^= mask & (f[i] ^ g[i]);
+    }
+
+    private static void sqn(long[] h, long[] f, int n) {
+        sq(h, f);
+        for (int i = 1; i < n; i++)
+            sq(h, h);
+    }
+
+    private static void fromBytes(long[] h, byte[] s, int off) {
+        int bit = 0;
+        for (int i = 0; i < 10; i++) {
+            int bits = LIMB_BITS[i];
+            long v = 0;
+            for (int j = 0; j < bits; j++, bit++)
+                v |= (long) ((s[off + (bit >> 3)] >> (bit & 7)) & 1) << j;
+            h[i] = v;
+        }
+    }
+
+    private static byte[] toBytes(long[] f) {
+        long[] h = f.clone();
+        carry(h);
+        // h is now in [0, 2^255 + small), subtract p if h >= p
+        long q = (19 * h[9] + (1L << 24)) >> 25;
+        for (int i = 0; i < 10; i++)
+            q = (h[i] + q) >> LIMB_BITS[i];
+        h[0] += 19 * q;
+        for (int i = 0; i < 9; i++) {
+            long c = h[i] >> LIMB_BITS[i];
+            h[i + 1] += c;
+            h[i] -= c << LIMB_BITS[i];
+        }
+        h[9] &= (1L << 25) - 1;
+
+        byte[] s = new byte[32];
+        long acc = 0;
+        int accBits = 0, pos = 0;
+        for (int i = 0; i < 10; i++) {
+            acc |= h[i] << accBits;
+            accBits += LIMB_BITS[i];
+            while (accBits >= 8) {
+                s[pos++] = (byte) acc;
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        s[pos] = (byte) acc;
+        return s;
+    }
+
+    private static boolean isNegative(long[] f) {
+        return (toBytes(f)[0] & 1) != 0;
+    }
+
+    private static boolean equal(long[] f, long[] g) {
+        return Arrays.equals(toBytes(f), toBytes(g));
+    }
+
+    // h = z^(2^250 - 1), t0 = z^11
+    private static void pow2250(long[] h, long[] t0, long[] z) {
+        long[] t1 = fe(), t2 = fe(), t3 = fe();
+        sq(t0, z);              // 2
+        sqn(t1, t0, 2);         // 8
+        mul(t1, z, t1);         // 9
+        mul(t0, t0, t1);        // 11
+        sq(t2, t0);             // 22
+        mul(t1, t1, t2);        // 2^5 - 1
+        sqn(t2, t1, 5);
+        mul(t1, t2, t1);        // 2^10 - 1
+        sqn(t2, t1, 10);
+        mul(t2, t2, t1);        // 2^20 - 1
+        sqn(t3, t2, 20);
+        mul(t2, t3, t2);        // 2^40 - 1
+        sqn(t2, t2, 10);
+        mul(t1, t2, t1);        // 2^50 - 1
+        sqn(t2, t1, 50);
+        mul(t2, t2, t1);        // 2^100 - 1
+        sqn(t3, t2, 100);
+        mul(t2, t3, t2);        // 2^200 - 1
+        sqn(t2, t2, 50);
+        mul(h, t2, t1);         // 2^250 - 1
+    }
+
+    // h = 1/z = z^(p - 2) = z^(2^255 - 21)
+    private static void invert(long[] h, long[] z) {
+        long[] t0 = fe(), t1 = fe();
+        pow2250(t1, t0, z);
+        sqn(t1, t1, 5);
+        mul(h, t1, t0);
+    }
+
+    // h = z^((p - 5) / 8) = z^(2^252 - 3)
+    private static void pow22523(long[] h, long[] z) {
+        long[] t0 = fe(), t1 = fe();
+        pow2250(t1, t0, z);
+        sqn(t1, t1, 2);
+        mul(h, t1, z);
+    }
+
+    // convert from TweetNaCl's 16 limbs of 16 bits
+    private static long[] fromTweetNaCl(long[] limbs) {
+        byte[] s = new byte[32];
+        for (int i = 0; i < 16; i++) {
+            s[2 * i] = (byte) limbs[i];
+            s[2 * i + 1] = (byte) (limbs[i] >> 8);
+        }
+        long[] h = fe();
+        fromBytes(h, s, 0);
+        return h;
+    }
+
+    private static final long[] D = fromTweetNaCl(new long[]{0x78a3, 0x1359, 0x4dca, 0x75eb, 0xd8ab, 0x4141, 0x0a4d, 0x0070, 0xe898, 0x7779, 0x4079, 0x8cc7, 0xfe73, 0x2b6f, 0x6cee, 0x5203});
+    private static final long[] D2 = fromTweetNaCl(new long[]{0xf159, 0x26b2, 0x9b94, 0xebd6, 0xb156, 0x8283, 0x149a, 0x00e0, 0xd130, 0xeef3, 0x80f2, 0x198e, 0xfce7, 0x56df, 0xd9dc, 0x2406});
+    private static final long[] BASE_X = fromTweetNaCl(new long[]{0xd51a, 0x8f25, 0x2d60, 0xc956, 0xa7b2, 0x9525, 0xc760, 0x692c, 0xdc5c, 0xfdd6, 0xe231, 0xc0a4, 0x53fe, 0xcd6e, 0x36d3, 0x2169});
+    private static final long[] BASE_Y = fromTweetNaCl(new long[]{0x6658, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666, 0x6666});
+    private static final long[] SQRT_M1 = fromTweetNaCl(new long[]{0xa0b0, 0x4a0e, 0x1b27, 0xc4ee, 0xe478, 0xad2f, 0x1806, 0x2f43, 0xd7a7, 0x3dfb, 0x0099, 0x2b4d, 0xdf0b, 0x4fc1, 0x2480, 0x2b83});
+
+    /* ---------------------------------- Curve points ---------------------------------- */
+
+    /** A point in extended coordinates, x = X/Z, y = Y/Z, x * y = T/Z
+     */
+    private static final class Point {
+        final long[] X = fe(), Y = fe(1), Z = fe(1), T = fe();
+
+        void set(Point p) {
+            copy(X, p.X);
+            copy(Y, p.Y);
+            copy(Z, p.Z);
+            copy(T, p.T);
+        }
+    }
+
+    /** A point prepared for addition: (Y + X, Y - X, Z, 2dT)
+     */
+    private static final class Cached {
+        final long[] YplusX = fe(), YminusX = fe(), Z = fe(), T2d = fe();
+
+        Cached(Point p) {
+            add(YplusX, p.Y, p.X);
+            carry(YplusX);
+            sub(YminusX, p.Y, p.X);
+            carry(YminusX);
+            copy(Z, p.Z);
+            mul(T2d, p.T, D2);
+        }
+    }
+
+    /** An affine point prepared for addition: (y + x, y - x, 2dxy)
+     */
+    private static final class Precomputed {
+        final long[] yplusx = fe(1), yminusx = fe(1), xy2d = fe();
+
+        void cmov(Precomputed p, int b) {
+            OptimizedNaCl.cmov(yplusx, p.yplusx, b);
+            OptimizedNaCl.cmov(yminusx, p.yminusx, b);
+            OptimizedNaCl.cmov(xy2d, p.xy2d, b);
+        }
+    }
+
+    /** Working space for point arithmetic
+     */
+    private static final class Curve {
+        private final long[] a = fe(), b = fe(), c = fe(), d = fe(), e = fe(), f = fe(), g = fe(), h = fe();
+
+        // r = p + (YplusX, YminusX, Z, T2d), or r = p - q if subtract is set
+        private void add(Point r, Point p, long[] YplusX, long[] YminusX, long[] Z, long[] T2d, boolean subtract) {
+            OptimizedNaCl.sub(e, p.Y, p.X);
+            OptimizedNaCl.add(f, p.Y, p.X);
+            mul(a, e, subtract ? YplusX : YminusX);
+            mul(b, f, subtract ? YminusX : YplusX);
+            mul(c, p.T, T2d);
+            if (Z == null)
+                OptimizedNaCl.add(d, p.Z, p.Z);
+            else {
+                mul(d, p.Z, Z);
+                OptimizedNaCl.add(d, d, d);
+            }
+            OptimizedNaCl.sub(e, b, a);
+            OptimizedNaCl.add(h, b, a);
+            if (subtract) {
+                OptimizedNaCl.add(f, d, c);
+                OptimizedNaCl.sub(g, d, c);
+            } else {
+                OptimizedNaCl.sub(f, d, c);
+                OptimizedNaCl.add(g, d, c);
+            }
+            mul(r.X, e, f);
+            mul(r.Y, g, h);
+            mul(r.Z, f, g);
+            mul(r.T, e, h);
+        }
+
+        void add(Point r, Point p, Cached q) {
+            add(r, p, q.YplusX, q.YminusX, q.Z, q.T2d, false);
+        }
+
+        void sub(Point r, Point p, Cached q) {
+            add(r, p, q.YplusX, q.YminusX, q.Z, q.T2d, true);
+        }
+
+        void add(Point r, Point p, Precomputed q) {
+            add(r, p, q.yplusx, q.yminusx, null, q.xy2d, false);
+        }
+
+        void dbl(Point r, Point p) {
+            sq(a, p.X);
+            sq(b, p.Y);
+            sq(c, p.Z);
+            OptimizedNaCl.add(c, c, c);
+            OptimizedNaCl.add(e, p.X, p.Y);
+            sq(e, e);
+            OptimizedNaCl.sub(e, e, a);
+            OptimizedNaCl.sub(e, e, b);          // 2XY
+            OptimizedNaCl.sub(g, b, a);          // Y^2 - X^2
+            OptimizedNaCl.sub(f, g, c);
+            OptimizedNaCl.add(h, a, b);
+            neg(h, h);                           // -(X^2 + Y^2)
+            carry(e);
+            carry(f);
+            carry(g);
+            mul(r.X, e, f);
+            mul(r.Y, g, h);
+            mul(r.Z, f, g);
+            mul(r.T, e, h);
+        }
+    }
+
+    private static byte[] pack(Point p) {
+        long[] zinv = fe(), x = fe(), y = fe();
+        invert(zinv, p.Z);
+        mul(x, p.X, zinv);
+        mul(y, p.Y, zinv);
+        byte[] s = toBytes(y);
+        if (isNegative(x))
+            s[31] ^= 0x80;
+        return s;
+    }
+
+    /** Decode a point and negate it, in the same way as TweetNaCl's unpackneg
+     *
+     * @return null if s is not a valid point
+     */
+    private static Point unpackNeg(byte[] s) {
+        Point r = new Point();
+        long[] num = fe(), den = fe(), den2 = fe(), den4 = fe(), den6 = fe(), t = fe(), chk = fe(), one = fe(1);
+        fromBytes(r.Y, s, 0);
+        sq(num, r.Y);
+        mul(den, num, D);
+        sub(num, num, one);
+        add(den, one, den);
+
+        sq(den2, den);
+        sq(den4, den2);
+        mul(den6, den4, den2);
+        mul(t, den6, num);
+        mul(t, t, den);
+
+        pow22523(t, t);
+        mul(t, t, num);
+        mul(t, t, den);
+        mul(t, t, den);
+        mul(r.X, t, den);
+
+        sq(chk, r.X);
+        mul(chk, chk, den);
+        if (! equal(chk, num))
+            mul(r.X, r.X, SQRT_M1);
+
+        sq(chk, r.X);
+        mul(chk, chk, den);
+        if (! equal(chk, num))
+            return null;
+
+        if (isNegative(r.X) == ((s[31] & 0xff) >> 7 == 1)) {
+            neg(r.X, r.X);
+            carry(r.X);
+        }
+        mul(r.T, r.X, r.Y);
+        carry(r.Y);
+        return r;
+    }
+
+    /* ---------------------------------- Scalar multiplication ---------------------------------- */
+
+    /** Recode a 32 byte little endian scalar, with the top bit clear, into 64 signed digits in [-8, 8)
+     */
+    private static byte[] signedRadix16(byte[] a) {
+        byte[] e = new byte[64];
+        for (int i = 0; i < 32; i++) {
+            e[2 * i] = (byte) (a[i] & 15);
+            e[2 * i + 1] = (byte) ((a[i] >> 4) & 15);
+        }
+        int carry = 0;
+        for (int i = 0; i < 63; i++) {
+            e[i] += carry;
+            carry = (e[i] + 8) >> 4;
+            e[i] -= carry << 4;
+        }
+        e[63] += carry;
+        return e;
+    }
+
+    // BASE_TABLE[i][j] = (j + 1) * 256^i * B
+    private static Precomputed[][] BASE_TABLE;
+
+    private static synchronized Precomputed[][] baseTable() {
+        if (BASE_TABLE != null)
+            return BASE_TABLE;
+        Precomputed[][] table = new Precomputed[32][8];
+        Curve curve = new Curve();
+        Point base = new Point();
+        copy(base.X, BASE_X);
+        copy(base.Y, BASE_Y);
+        mul(base.T, BASE_X, BASE_Y);
+        long[] zinv = fe(), x = fe(), y = fe();
+        for (int i = 0; i < 32; i++) {
+            Cached step = new Cached(base);
+            Point multiple = new Point();
+            multiple.set(base);
+            for (int j = 0; j < 8; j++) {
+                if (j > 0)
+                    curve.add(multiple, multiple, step);
+                invert(zinv, multiple.Z);
+                mul(x, multiple.X, zinv);
+                mul(y, multiple.Y, zinv);
+                Precomputed p = new Precomputed();
+                add(p.yplusx, y, x);
+                carry(p.yplusx);
+                sub(p.yminusx, y, x);
+                carry(p.yminusx);
+                mul(p.xy2d, x, y);
+                mul(p.xy2d, p.xy2d, D2);
+                table[i][j] = p;
+            }
+            for (int k = 0; k < 8; k++)
+                curve.dbl(base, base);
+        }
+        BASE_TABLE = table;
+        return table;
+    }
+
+    // t = b * 256^pos * B for b in [-8, 8], in constant time
+    private static void select(Precomputed t, Precomputed[] row, byte b) {
+        int negative = (b >> 7) & 1;
+        int abs = b - ((-negative & b) << 1);
+        Precomputed fresh = new Precomputed();
+        for (int j = 0; j < 8; j++)
+            fresh.cmov(row[j], (((abs ^ (j + 1)) - 1) >>> 31));
+        copy(t.yplusx, fresh.yplusx);
+        copy(t.yminusx, fresh.yminusx);
+        copy(t.xy2d, fresh.xy2d);
+        // negation swaps y + x with y - x and negates 2dxy
+        long[] minusXy2d = fe();
+        neg(minusXy2d, fresh.xy2d);
+        cmov(t.yplusx, fresh.yminusx, negative);
+        cmov(t.yminusx, fresh.yplusx, negative);
+        cmov(t.xy2d, minusXy2d, negative);
+    }
+
+    /** a * B for a 32 byte scalar a with the top bit clear, in constant time
+     */
+    private static Point scalarMultBase(byte[] a) {
+        Precomputed[][] table = baseTable();
+        byte[] e = signedRadix16(a);
+        Curve curve = new Curve();
+        Point h = new Point();
+        Precomputed t = new Precomputed();
+        for (int i = 1; i < 64; i += 2) {
+            select(t, table[i / 2], e[i]);
+            curve.add(h, h, t);
+        }
+        for (int i = 0; i < 4; i++)
+            curve.dbl(h, h);
+        for (int i = 0; i < 64; i += 2) {
+            select(t, table[i / 2], e[i]);
+            curve.add(h, h, t);
+        }
+        return h;
+    }
+
+    /** a * p for a 32 byte scalar a with the top bit clear. This is not constant time, and only used on public values
+     */
+    private static Point scalarMultVartime(byte[] a, Point p) {
+        return multiScalarMultVartime(new byte[][]{a}, new Point[]{p});
+    }
+
+    /** The sum of scalars[i] * points[i], sharing the doublings between all the points. This is not constant time, and
+     *  only used on public values. Each scalar is 32 bytes with the top bit clear.
+     */
+    private static Point multiScalarMultVartime(byte[][] scalars, Point[] points) {
+        Curve curve = new Curve();
+        int n = points.length;
+        Cached[][] multiples = new Cached[n][8];
+        byte[][] digits = new byte[n][];
+        int top = -1;
+        Point multiple = new Point();
+        for (int i = 0; i < n; i++) {
+            multiple.set(points[i]);
+            multiples[i][0] = new Cached(points[i]);
+            for (int j = 1; j < 8; j++) {
+                curve.add(multiple, multiple, multiples[i][0]);
+                multiples[i][j] = new Cached(multiple);
+            }
+            digits[i] = signedRadix16(scalars[i]);
+            for (int d = 63; d > top; d--)
+                if (digits[i][d] != 0)
+                    top = d;
+        }
+        Point h = new Point();
+        for (int d = top; d >= 0; d--) {
+            if (d < top)
+                for (int k = 0; k < 4; k++)
+                    curve.dbl(h, h);
+            for (int i = 0; i < n; i++) {
+                byte e = digits[i][d];
+                if (e > 0)
+                    curve.add(h, h, multiples[i][e - 1]);
+                else if (e < 0)
+                    curve.sub(h, h, multiples[i][-e - 1]);
+            }
+        }
+        return h;
+    }
+
+    /* ---------------------------------- Ed25519 ---------------------------------- */
+
+    // reduce a 64 byte little endian value mod L
+    private static byte[] reduce(byte[] r) {
+        long[] x = new long[64];
+        for (int i = 0; i < 64; i++)
+            x[i] = r[i] & 0xff;
+        byte[] res = new byte[32];
+        TweetNaCl.modL(res, 0, x);
+        return res;
+    }
+
+    private static byte[] expandSecret(byte[] secretSigningKey) {
+        byte[] d = new Sha512().update(secretSigningKey, 0, 32).digest();
+        d[0] &= 248;
+        d[31] &= 127;
+        d[31] |= 64;
+        return d;
+    }
+
+    /** The same as TweetNaCl.crypto_sign_keypair(pk, sk, true)
+     *
+     * @param pk where to write the 32 byte public key
+     * @param sk a 64 byte array whose first 32 bytes are the seed, the public key is written to the rest
+     */
+    public static void crypto_sign_keypair(byte[] pk, byte[] sk) {
+        byte[] d = expandSecret(sk);
+        byte[] p = pack(scalarMultBase(Arrays.copyOfRange(d, 0, 32)));
+        System.arraycopy(p, 0, pk, 0, 32);
+        System.arraycopy(p, 0, sk, 32, 32);
+    }
+
+    public static byte[] crypto_sign(byte[] message, byte[] secretSigningKey) {
+        byte[] d = expandSecret(secretSigningKey);
+        byte[] r = reduce(new Sha512().update(d, 32, 32).update(message, 0, message.length).digest());
+        byte[] R = pack(scalarMultBase(r));
+        byte[] h = reduce(new Sha512()
+                .update(R, 0, 32)
+                .update(secretSigningKey, 32, 32)
+                .update(message, 0, message.length)
+                .digest());
+
+        long[] x = new long[64];
+        for (int i = 0; i < 32; i++)
+            x[i] = r[i] & 0xff;
+        for (int i = 0; i < 32; i++)
+            for (int j = 0; j < 32; j++)
+                x[i + j] += (h[i] & 0xff) * (long) (d[j] & 0xff);
+
+        byte[] signed = new byte[TweetNaCl.SIGNATURE_SIZE_BYTES + message.length];
+        System.arraycopy(R, 0, signed, 0, 32);
+        TweetNaCl.modL(signed, 32, x);
+        System.arraycopy(message, 0, signed, TweetNaCl.SIGNATURE_SIZE_BYTES, message.length);
+        return signed;
+    }
+
+    public static byte[] crypto_sign_open(byte[] signed, byte[] publicSigningKey) {
+        if (! verify(signed, publicSigningKey))
+            throw new TweetNaCl.InvalidSignatureException();
+        return Arrays.copyOfRange(signed, TweetNaCl.SIGNATURE_SIZE_BYTES, signed.length);
+    }
+
+    /**
+     *
+     * @return whether signed starts with a valid signature of the rest of it by publicSigningKey
+     */
+    public static boolean verify(byte[] signed, byte[] publicSigningKey) {
+        int sigSize = TweetNaCl.SIGNATURE_SIZE_BYTES;
+        if (signed.length < sigSize)
+            return false;
+        return verify(signed, 0, signed, sigSize, signed.length - sigSize, publicSigningKey);
+    }
+
+    /**
+     *
+     * @return whether signature[sigOffset, sigOffset + 64) is a valid signature of message[offset, offset + length)
+     */
+    private static boolean verify(byte[] signature, int sigOffset, byte[] message, int offset, int length, byte[] publicSigningKey) {
+        Point minusA = unpackNeg(publicSigningKey);
+        if (minusA == null)
+            return false;
+        byte[] h = reduce(new Sha512()
+                .update(signature, sigOffset, 32)
+                .update(publicSigningKey, 0, 32)
+                .update(message, offset, length)
+                .digest());
+        // s * B only depends on s mod L, because B has order L
+        byte[] s = new byte[64];
+        System.arraycopy(signature, sigOffset + 32, s, 0, 32);
+        Point sB = scalarMultBase(reduce(s));
+
+        Point check = scalarMultVartime(h, minusA);
+        new Curve().add(check, check, new Cached(sB));
+        byte[] R = pack(check);
+        int diff = 0;
+        for (int i = 0; i < 32; i++)
+            diff |= R[i] ^ signature[sigOffset + i];
+        return diff == 0;
+    }
+
+    // the order of the base point, little endian
+    private static final byte[] GROUP_ORDER = {
+            (byte) 0xed, (byte) 0xd3, (byte) 0xf5, 0x5c, 0x1a, 0x63, 0x12, 0x58,
+            (byte) 0xd6, (byte) 0x9c, (byte) 0xf7, (byte) 0xa2, (byte) 0xde, (byte) 0xf9, (byte) 0xde, 0x14,
+            0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0x10};
+
+    private static boolean isIdentity(Point p) {
+        return Arrays.equals(toBytes(p.X), new byte[32]) && equal(p.Y, p.Z);
+    }
+
+    // whether L p is the identity, i.e. p has no component of small order
+    private static boolean inPrimeOrderSubgroup(Point p) {
+        return isIdentity(scalarMultVartime(GROUP_ORDER, p));
+    }
+
+    // acc = acc + a * b mod L, for a and b of up to 32 bytes
+    private static void mulAdd(byte[] acc, byte[] a, byte[] b) {
+        long[] x = new long[64];
+        for (int i = 0; i < 32; i++)
+            x[i] = acc[i] & 0xff;
+        for (int i = 0; i < a.length; i++)
+            for (int j = 0; j < b.length; j++)
+                x[i + j] += (a[i] & 0xff) * (long) (b[j] & 0xff);
+        TweetNaCl.modL(acc, 0, x);
+    }
+
+    // whether s is the canonical encoding of p, which TweetNaCl's verification implicitly requires of R
+    private static boolean isCanonical(byte[] s, Point p) {
+        byte[] y = s.clone();
+        y[31] &= 0x7f;
+        if (! Arrays.equals(toBytes(p.Y), y))
+            return false;
+        return (s[31] & 0x80) == 0 || ! Arrays.equals(toBytes(p.X), new byte[32]);
+    }
+
+    /** Verify many detached signatures by the same key with a single multi scalar multiplication. For random 128 bit
+     *  z_i this checks that (sum z_i s_i) B - sum z_i R_i - (sum z_i h_i) A is the identity, rather than checking each
+     *  R_i = s_i B - h_i A separately. The z_i are derived from a hash of all the inputs.
+     *
+     *  TweetNaCl's single verification is cofactorless, and the random z_i can cancel a difference of small order
+     *  between R and s B - h A, so the batch is only the same as checking each signature when the key and every R are in
+     *  the prime order subgroup. Otherwise, or if the batch check fails, each signature is checked on its own.
+     *
+     * @return whether every signatures[i] is a valid 64 byte signature of messages[i]
+     */
+    public static boolean verifyBatch(byte[] publicSigningKey, List<byte[]> signatures, List<byte[]> messages) {
+        int n = signatures.size();
+        if (n != messages.size())
+            throw new IllegalStateException("Different number of signatures and messages!");
+        for (byte[] signature : signatures)
+            if (signature.length != TweetNaCl.SIGNATURE_SIZE_BYTES)
+                return false;
+        if (n == 0)
+            return true;
+        if (n == 1)
+            return verify(signatures.get(0), 0, messages.get(0), 0, messages.get(0).length, publicSigningKey);
+        Point minusA = unpackNeg(publicSigningKey);
+        if (minusA == null)
+            return false;
+        boolean torsion = ! inPrimeOrderSubgroup(minusA);
+
+        Point[] points = new Point[n + 1];
+        byte[][] scalars = new byte[n + 1][];
+        byte[][] hashes = new byte[n][];
+        Sha512 coefficientSeed = new Sha512().update(publicSigningKey, 0, 32);
+        for (int i = 0; i < n; i++) {
+            byte[] signature = signatures.get(i), message = messages.get(i);
+            byte[] R = Arrays.copyOfRange(signature, 0, 32);
+            Point minusR = unpackNeg(R);
+            if (minusR == null || ! isCanonical(R, minusR))
+                return false;
+            torsion = torsion || ! inPrimeOrderSubgroup(minusR);
+            points[i] = minusR;
+            hashes[i] = reduce(new Sha512()
+                    .update(R, 0, 32)
+                    .update(publicSigningKey, 0, 32)
+                    .update(message, 0, message.length)
+                    .digest());
+            coefficientSeed.update(signature, 0, 64).update(hashes[i], 0, 32);
+        }
+        if (torsion)
+            return verifyEach(publicSigningKey, signatures, messages);
+        byte[] seed = coefficientSeed.digest();
+
+        byte[] sSum = new byte[32], hSum = new byte[32];
+        for (int i = 0; i < n; i++) {
+            byte[] index = {(byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24)};
+            byte[] z = Arrays.copyOfRange(new Sha512().update(seed, 0, 64).update(index, 0, 4).digest(), 0, 32);
+            Arrays.fill(z, 16, 32, (byte) 0);
+            scalars[i] = z;
+            mulAdd(sSum, z, Arrays.copyOfRange(signatures.get(i), 32, 64));
+            mulAdd(hSum, z, hashes[i]);
+        }
+        points[n] = minusA;
+        scalars[n] = hSum;
+
+        Point check = multiScalarMultVartime(scalars, points);
+        new Curve().add(check, check, new Cached(scalarMultBase(sSum)));
+        if (isIdentity(check))
+            return true;
+
+        // confirm individually, so a false result is always the same as TweetNaCl's
+        return verifyEach(publicSigningKey, signatures, messages);
+    }
+
+    private static boolean verifyEach(byte[] publicSigningKey, List<byte[]> signatures, List<byte[]> messages) {
+        for (int i = 0; i < signatures.size(); i++)
+            if (! verify(signatures.get(i), 0, messages.get(i), 0, messages.get(i).length, publicSigningKey))
+                return false;
+        return true;
+    }
+}
@@ -27,7 +27,7 @@ public class TweetNaCl {
     public static final int SECRETBOX_NONCE_BYTES = 24;
     public static final int SECRETBOX_OVERHEAD_BYTES = 16;
     public static final int HASH_SIZE_BYTES = 64; // SHA-512
-    private static final int SECRETBOX_INTERNAL_OVERHEAD_BYTES = 32;
+    public static final int SECRETBOX_INTERNAL_OVERHEAD_BYTES = 32;
 
     public static class InvalidSignatureException extends RuntimeException {}
     public static class InvalidCipherTextException extends IllegalStateException {
@@ -103,31 +103,55 @@ public class TweetNaCl {
     }
 
     public static byte[] secretbox(byte[] mesage, byte[] nonce, byte[] key) {
-        byte[] m = new byte[SECRETBOX_INTERNAL_OVERHEAD_BYTES + mesage.length];
-        byte[] c = new byte[m.length];
-        System.arraycopy(mesage, 0, m, SECRETBOX_INTERNAL_OVERHEAD_BYTES, mesage.length);
-        crypto_secretbox(c, m, m.length, nonce, key);
-        return Arrays.copyOfRange(c, SECRETBOX_OVERHEAD_BYTES, c.length);
+        byte[] buffer = new byte[SECRETBOX_INTERNAL_OVERHEAD_BYTES + mesage.length];
+        System.arraycopy(mesage, 0, buffer, SECRETBOX_INTERNAL_OVERHEAD_BYTES, mesage.length);
+        secretbox(buffer, 0, mesage.length, nonce, key);
+        return Arrays.copyOfRange(buffer, SECRETBOX_OVERHEAD_BYTES, buffer.length);
     }
 
     public static byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
-        byte[] c = new byte[SECRETBOX_OVERHEAD_BYTES + cipher.length];
-        byte[] m = new byte[c.length];
-        System.arraycopy(cipher, 0, c, SECRETBOX_OVERHEAD_BYTES, cipher.length);
-        boolean validCipher = c.length >= 32;
-        boolean success = crypto_secretbox_open(m, c, c.length, nonce, key) == 0;
-        boolean isValid = validCipher && success;
-
-        String exMsg = "Invalid encryption! ["+ cipher.length + "] = " +
-                ArrayOps.bytesToHex(Arrays.copyOfRange(cipher, 0, Math.min(cipher.length, 64))) + " ... " +
-                ArrayOps.bytesToHex(Arrays.copyOfRange(cipher, Math.max(0, cipher.length - 64), cipher.length));
-
-        InvalidCipherTextException ex =  new InvalidCipherTextException(exMsg);
-
-        if (! isValid)
-            throw ex;
-
-        return Arrays.copyOfRange(m, SECRETBOX_INTERNAL_OVERHEAD_BYTES, m.length);
+        byte[] buffer = new byte[SECRETBOX_OVERHEAD_BYTES + cipher.length];
+        System.arraycopy(cipher, 0, buffer, SECRETBOX_OVERHEAD_BYTES, cipher.length);
+        secretbox_open(buffer, 0, cipher.length, nonce, key);
+        return Arrays.copyOfRange(buffer, SECRETBOX_INTERNAL_OVERHEAD_BYTES, buffer.length);
+    }
+
+    /** Encrypt in place without allocating any large arrays.
+     *
+     * @param buffer the message is in buffer[offset + 32, offset + 32 + length), the 32 bytes before it are overwritten.
+     *               The auth and cipher text are written to buffer[offset + 16, offset + 32 + length)
+     * @param offset
+     * @param length the length of the message
+     * @param nonce
+     * @param key
+     */
+    public static void secretbox(byte[] buffer, int offset, int length, byte[] nonce, byte[] key) {
+        for (int i = 0; i < SECRETBOX_INTERNAL_OVERHEAD_BYTES; i++)
+            buffer[offset + i] = 0;
+        crypto_secretbox(buffer, offset, buffer, offset, SECRETBOX_INTERNAL_OVERHEAD_BYTES + length, nonce, key);
+    }
+
+    /** Decrypt in place without allocating any large arrays. This is the inverse of secretbox(buffer, offset, length, nonce, key).
+     *
+     * @param buffer the auth and cipher text are in buffer[offset + 16, offset + 16 + cipherLength). The 16 bytes before
+     *               are overwritten. The message is written to buffer[offset + 32, offset + 16 + cipherLength)
+     * @param offset
+     * @param cipherLength the length of the auth and cipher text
+     * @param nonce
+     * @param key
+     */
+    public static void secretbox_open(byte[] buffer, int offset, int cipherLength, byte[] nonce, byte[] key) {
+        for (int i = 0; i < SECRETBOX_OVERHEAD_BYTES; i++)
+            buffer[offset + i] = 0;
+        boolean validCipher = cipherLength >= SECRETBOX_OVERHEAD_BYTES;
+        if (validCipher && crypto_secretbox_open(buffer, offset, buffer, offset, SECRETBOX_OVERHEAD_BYTES + cipherLength, nonce, key) == 0)
+            return;
+
+        int start = offset + SECRETBOX_OVERHEAD_BYTES, end = start + cipherLength;
+        String exMsg = "Invalid encryption! ["+ cipherLength + "] = " +
+                ArrayOps.bytesToHex(Arrays.copyOfRange(buffer, start, Math.min(end, start + 64))) + " ... " +
+                ArrayOps.bytesToHex(Arrays.copyOfRange(buffer, Math.max(start, end - 64), end));
+        throw new InvalidCipherTextException(exMsg);
     }
 
     private static byte[] _0 = new byte[16], _9 = new byte[32];
@@ -179,7 +203,12 @@ public class TweetNaCl {
 
     private static void core(byte[] out,byte[] in,byte[] k,byte[] c,int h)
     {
-        int[] w = new int[16],x = new int[16],y = new int[16],t = new int[4];
+        core(out, in, k, c, h, new int[16], new int[16], new int[16], new int[4]);
+    }
+
+    // w, x, y and t are working space so that streaming doesn't allocate per block
+    private static void core(byte[] out,byte[] in,byte[] k,byte[] c,int h, int[] w, int[] x, int[] y, int[] t)
+    {
         int i,j,m;
 
         for (i=0;i < 4;++i){
@@ -232,16 +261,20 @@ public class TweetNaCl {
     private static byte[] sigma = { 101, 120, 112, 97, 110, 100, 32, 51, 50, 45, 98, 121, 116, 101, 32, 107 };
 
     private static int crypto_stream_salsa20_xor(byte[] c,byte[] m,long b,byte[] n, int nOff, byte[] k)
+    {
+        return crypto_stream_salsa20_xor(c, 0, m, 0, b, n, nOff, k);
+    }
+
+    private static int crypto_stream_salsa20_xor(byte[] c, int cOff, byte[] m, int mOff, long b,byte[] n, int nOff, byte[] k)
     {
         byte[] z = new byte[16],x = new byte[64];
+        int[] w = new int[16], xw = new int[16], yw = new int[16], tw = new int[4];
         int u,i;
         if (b == 0) return 0;
         for (i=0;i < 16;++i)z[i] = 0;
         for (i=0;i < 8;++i)z[i] = n[nOff + i];
-        int cOff = 0;
-        int mOff = 0;
         while (b >= 64) {
-            crypto_core_salsa20(x,z,k,sigma);
+            core(x, z, k, sigma, 0, w, xw, yw, tw);
             for (i=0;i < 64; ++i) c[cOff + i] = (byte)((m != null ? m[mOff + i]:0)^ x[i]);
             u = 1;
             for (i = 8;i < 16;++i) {
@@ -254,7 +287,7 @@ public class TweetNaCl {
             if (m != null) mOff += 64;
         }
         if (b != 0) {
-            crypto_core_salsa20(x,z,k,sigma);
+            core(x, z, k, sigma, 0, w, xw, yw, tw);
             for (i=0;i < b; i++) c[cOff + i] = (byte)((m != null ? m[mOff + i]:0)^ x[i]);
         }
         return 0;
@@ -272,11 +305,11 @@ public class TweetNaCl {
         return crypto_stream_salsa20(c, d, n, 16, s);
     }
 
-    private static int crypto_stream_xor(byte[] c,byte[] m,long d,byte[] n,byte[] k)
+    private static int crypto_stream_xor(byte[] c, int cOff, byte[] m, int mOff, long d,byte[] n,byte[] k)
     {
         byte[] s = new byte[32];
         crypto_core_hsalsa20(s,n,k,sigma);
-        return crypto_stream_salsa20_xor(c, m, d, n, 16, s);
+        return crypto_stream_salsa20_xor(c, cOff, m, mOff, d, n, 16, s);
     }
 
     private static void add1305(int[] h,int[] c)
@@ -362,24 +395,37 @@ public class TweetNaCl {
     }
 
     private static int crypto_secretbox(byte[] c,byte[] m,long d,byte[] n,byte[] k)
+    {
+        return crypto_secretbox(c, 0, m, 0, d, n, k);
+    }
+
+    // c and m may be the same array at the same offset
+    private static int crypto_secretbox(byte[] c, int cOff, byte[] m, int mOff, long d,byte[] n,byte[] k)
     {
         int i;
         if (d < 32) return -1;
-        crypto_stream_xor(c,m,d,n,k);
-        crypto_onetimeauth(c, 16, c, 32, d - 32, c);
-        for (i=0;i < 16;++i)c[i] = 0;
+        crypto_stream_xor(c, cOff, m, mOff, d, n, k);
+        byte[] authKey = Arrays.copyOfRange(c, cOff, cOff + 32);
+        crypto_onetimeauth(c, cOff + 16, c, cOff + 32, d - 32, authKey);
+        for (i=0;i < 16;++i)c[cOff + i] = 0;
         return 0;
     }
 
     private static int crypto_secretbox_open(byte[] m,byte[] c,long d,byte[] n,byte[] k)
+    {
+        return crypto_secretbox_open(m, 0, c, 0, d, n, k);
+    }
+
+    // m and c may be the same array at the same offset
+    private static int crypto_secretbox_open(byte[] m, int mOff, byte[] c, int cOff, long d,byte[] n,byte[] k)
     {
         int i;
         byte[] x = new byte[32];
         if (d < 32) return -1;
         crypto_stream(x,32,n,k);
-        if (crypto_onetimeauth_verify(c, 16,c, 32,d - 32,x) != 0) return -1;
-        crypto_stream_xor(m,c,d,n,k);
-        for (i=0;i < 32;++i)m[i] = 0;
+        if (crypto_onetimeauth_verify(c, cOff + 16,c, cOff + 32,d - 32,x) != 0) return -1;
+        crypto_stream_xor(m, mOff, c, cOff, d, n, k);
+        for (i=0;i < 32;++i)m[mOff + i] = 0;
         return 0;
     }
 
@@ -1129,7 +1175,7 @@ public class TweetNaCl {
             0, 0, 0, 0, 0, 0, 0, 0,
             0, 0, 0, 0, 0, 0, 0, 0x10};
 
-    private static void modL(byte[] r, int rOff, long[] x/*[64]*/)
+    static void modL(byte[] r, int rOff, long[] x/*[64]*/)
     {
         long carry;
         int i,j;
@@ -39,6 +39,11 @@ public interface PublicSigningKey extends Cborable {
     @JsMethod
     byte[] unsignMessage(byte[] signed);
 
+    /** Check that each signatures[i] is a detached signature of messages[i] by this key, throwing if any is invalid.
+     *  This avoids concatenating each signature and message, and can verify the whole batch at once.
+     */
+    void verifyAll(List<byte[]> signatures, List<byte[]> messages);
+
     static PublicSigningKey fromString(String b64) {
         return fromByteArray(Base64.getDecoder().decode(b64));
     }
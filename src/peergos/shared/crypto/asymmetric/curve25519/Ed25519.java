@@ -2,6 +2,9 @@ package peergos.shared.crypto.asymmetric.curve25519;
 
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.random.JSNaCl;
+import peergos.shared.util.*;
+
+import java.util.*;
 
 public interface Ed25519 {
 
@@ -11,6 +14,20 @@ public interface Ed25519 {
 
     void crypto_sign_keypair(byte[] pk, byte[] sk);
 
+    /** Verify many detached 64 byte signatures by the same key, throwing TweetNaCl.InvalidSignatureException if any
+     *  of them is invalid. Implementations which can't verify a batch at once check each signature separately.
+     */
+    default void crypto_sign_verify_batch(byte[] publicSigningKey, List<byte[]> signatures, List<byte[]> messages) {
+        if (signatures.size() != messages.size())
+            throw new IllegalStateException("Different number of signatures and messages!");
+        for (int i = 0; i < signatures.size(); i++) {
+            byte[] message = messages.get(i);
+            byte[] unsigned = crypto_sign_open(ArrayOps.concat(signatures.get(i), message), publicSigningKey);
+            if (! Arrays.equals(unsigned, message))
+                throw new TweetNaCl.InvalidSignatureException();
+        }
+    }
+
     class Java implements Ed25519 {
         @Override
         public byte[] crypto_sign_open(byte[] signed, byte[] publicSigningKey) {
@@ -53,4 +70,29 @@ public interface Ed25519 {
 
     }
 
+    /** A faster pure Java implementation, with output identical to Java
+     */
+    class OptimizedJava implements Ed25519 {
+        @Override
+        public byte[] crypto_sign_open(byte[] signed, byte[] publicSigningKey) {
+            return OptimizedNaCl.crypto_sign_open(signed, publicSigningKey);
+        }
+
+        @Override
+        public byte[] crypto_sign(byte[] message, byte[] secretSigningKey) {
+            return OptimizedNaCl.crypto_sign(message, secretSigningKey);
+        }
+
+        @Override
+        public void crypto_sign_keypair(byte[] pk, byte[] sk) {
+            OptimizedNaCl.crypto_sign_keypair(pk, sk);
+        }
+
+        @Override
+        public void crypto_sign_verify_batch(byte[] publicSigningKey, List<byte[]> signatures, List<byte[]> messages) {
+            if (! OptimizedNaCl.verifyBatch(publicSigningKey, signatures, messages))
+                throw new TweetNaCl.InvalidSignatureException();
+        }
+    }
+
 }
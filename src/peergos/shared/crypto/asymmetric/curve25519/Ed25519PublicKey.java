@@ -49,6 +49,11 @@ public class Ed25519PublicKey implements PublicSigningKey {
         return implementation.crypto_sign_open(signed, publicKey);
     }
 
+    @Override
+    public void verifyAll(List<byte[]> signatures, List<byte[]> messages) {
+        implementation.crypto_sign_verify_batch(publicKey, signatures, messages);
+    }
+
     public static Ed25519PublicKey fromCbor(Cborable cbor, Ed25519 provider) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Invalid cbor for Ed25519 public key! " + cbor);
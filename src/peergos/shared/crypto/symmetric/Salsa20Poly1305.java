@@ -3,6 +3,7 @@ package peergos.shared.crypto.symmetric;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.random.JSNaCl;
 
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
 public interface Salsa20Poly1305 {
@@ -15,6 +16,28 @@ public interface Salsa20Poly1305 {
 
     CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key);
 
+    /** Encrypt buffer[offset + 32, offset + 32 + length) in place, see TweetNaCl.secretbox(buffer, offset, length, nonce, key)
+     *  Implementations which can't encrypt in place fall back to copying.
+     */
+    default CompletableFuture<Boolean> secretboxAsync(byte[] buffer, int offset, int length, byte[] nonce, byte[] key) {
+        int start = offset + TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES;
+        return secretboxAsync(Arrays.copyOfRange(buffer, start, start + length), nonce, key).thenApply(cipher -> {
+            System.arraycopy(cipher, 0, buffer, offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES, cipher.length);
+            return true;
+        });
+    }
+
+    /** Decrypt buffer[offset + 16, offset + 16 + cipherLength) in place, see TweetNaCl.secretbox_open(buffer, offset, cipherLength, nonce, key)
+     *  Implementations which can't decrypt in place fall back to copying.
+     */
+    default CompletableFuture<Boolean> secretbox_openAsync(byte[] buffer, int offset, int cipherLength, byte[] nonce, byte[] key) {
+        int start = offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+        return secretbox_openAsync(Arrays.copyOfRange(buffer, start, start + cipherLength), nonce, key).thenApply(plain -> {
+            System.arraycopy(plain, 0, buffer, offset + TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES, plain.length);
+            return true;
+        });
+    }
+
     class Javascript implements Salsa20Poly1305 {
         JSNaCl scriptJS = new JSNaCl();
 
@@ -67,6 +90,55 @@ public interface Salsa20Poly1305 {
             return res;
 
         }
+
+        @Override
+        public CompletableFuture<Boolean> secretboxAsync(byte[] buffer, int offset, int length, byte[] nonce, byte[] key) {
+            TweetNaCl.secretbox(buffer, offset, length, nonce, key);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> secretbox_openAsync(byte[] buffer, int offset, int cipherLength, byte[] nonce, byte[] key) {
+            TweetNaCl.secretbox_open(buffer, offset, cipherLength, nonce, key);
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+
+    /** A faster pure Java implementation, with output identical to Java
+     */
+    class OptimizedJava implements Salsa20Poly1305 {
+
+        @Override
+        public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+            return OptimizedNaCl.secretbox(data, nonce, key);
+        }
+
+        @Override
+        public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+            return OptimizedNaCl.secretbox_open(cipher, nonce, key);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretboxAsync(byte[] data, byte[] nonce, byte[] key) {
+            return CompletableFuture.completedFuture(OptimizedNaCl.secretbox(data, nonce, key));
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key) {
+            return CompletableFuture.completedFuture(OptimizedNaCl.secretbox_open(cipher, nonce, key));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> secretboxAsync(byte[] buffer, int offset, int length, byte[] nonce, byte[] key) {
+            OptimizedNaCl.secretbox(buffer, offset, length, nonce, key);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> secretbox_openAsync(byte[] buffer, int offset, int cipherLength, byte[] nonce, byte[] key) {
+            OptimizedNaCl.secretbox_open(buffer, offset, cipherLength, nonce, key);
+            return CompletableFuture.completedFuture(true);
+        }
     }
 
 }
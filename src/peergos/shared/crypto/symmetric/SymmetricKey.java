@@ -54,6 +54,16 @@ public interface SymmetricKey extends Cborable
 
     CompletableFuture<byte[]> decryptAsync(byte[] data, byte[] nonce);
 
+    /** Encrypt the length bytes at buffer[offset + 32] in place, the 32 bytes before them are used as header space.
+     *  The auth and cipher text end up at buffer[offset + 16, offset + 32 + length)
+     */
+    CompletableFuture<Boolean> encryptInPlace(byte[] buffer, int offset, int length, byte[] nonce);
+
+    /** Decrypt the cipherLength bytes of auth and cipher text at buffer[offset + 16] in place.
+     *  The plain text ends up at buffer[offset + 32, offset + 16 + cipherLength)
+     */
+    CompletableFuture<Boolean> decryptInPlace(byte[] buffer, int offset, int cipherLength, byte[] nonce);
+
     @JsMethod
     byte[] createNonce();
 
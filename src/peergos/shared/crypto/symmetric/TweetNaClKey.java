@@ -64,6 +64,16 @@ public class TweetNaClKey implements SymmetricKey
         return decryptAsync(secretKey, data, nonce, implementation);
     }
 
+    public CompletableFuture<Boolean> encryptInPlace(byte[] buffer, int offset, int length, byte[] nonce)
+    {
+        return implementation.secretboxAsync(buffer, offset, length, nonce, secretKey);
+    }
+
+    public CompletableFuture<Boolean> decryptInPlace(byte[] buffer, int offset, int cipherLength, byte[] nonce)
+    {
+        return implementation.secretbox_openAsync(buffer, offset, cipherLength, nonce, secretKey);
+    }
+
     private static byte[] encrypt(byte[] key, byte[] data, byte[] nonce, Salsa20Poly1305 implementation)
     {
         return implementation.secretbox(data, nonce, key);
@@ -9,37 +9,82 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public class MerkleBTree
 {
     public static final int MAX_NODE_CHILDREN = 16;
+    public static final int SCAN_PREFETCH = 4;
+    public static final int DEFAULT_NODE_CACHE_SIZE = 100;
     public final ContentAddressedStorage storage;
+    public final TreeNodeCache nodeCache;
     public final int maxChildren;
     public TreeNode root;
 
-    public MerkleBTree(TreeNode root, MaybeMultihash rootHash, ContentAddressedStorage storage, int maxChildren) {
+    public MerkleBTree(TreeNode root, MaybeMultihash rootHash, ContentAddressedStorage storage, TreeNodeCache nodeCache, int maxChildren) {
         this.storage = storage;
-        this.root = new TreeNode(root.keys, rootHash);
+        this.nodeCache = nodeCache;
+        this.root = root.withHash(rootHash);
         this.maxChildren = maxChildren;
     }
 
+    public MerkleBTree(TreeNode root, MaybeMultihash rootHash, ContentAddressedStorage storage, int maxChildren) {
+        this(root, rootHash, storage, new TreeNodeCache(DEFAULT_NODE_CACHE_SIZE), maxChildren);
+    }
+
     public MerkleBTree(TreeNode root, Multihash rootHash, ContentAddressedStorage storage, int maxChildren) {
         this(root, MaybeMultihash.of(rootHash), storage, maxChildren);
     }
 
     public static CompletableFuture<MerkleBTree> create(PublicKeyHash writer, Multihash rootHash, ContentAddressedStorage dht) {
-        return dht.get(rootHash).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return create(writer, rootHash, dht, new TreeNodeCache(DEFAULT_NODE_CACHE_SIZE));
+    }
+
+    /**
+     *
+     * @param writer
+     * @param rootHash
+     * @param dht
+     * @param nodeCache decoded nodes, which may be shared with other trees
+     * @return
+     */
+    public static CompletableFuture<MerkleBTree> create(PublicKeyHash writer,
+                                                        Multihash rootHash,
+                                                        ContentAddressedStorage dht,
+                                                        TreeNodeCache nodeCache) {
+        return nodeCache.get(rootHash, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Null byte[] returned by DHT for hash: " + rootHash);
-            return new MerkleBTree(TreeNode.fromCbor(rawOpt.get()), rootHash, dht, MAX_NODE_CHILDREN);
+            return new MerkleBTree(rootOpt.get(), MaybeMultihash.of(rootHash), dht, nodeCache, MAX_NODE_CHILDREN);
         });
     }
 
     public static CompletableFuture<MerkleBTree> create(SigningPrivateKeyAndPublicHash writer, ContentAddressedStorage dht) {
-        TreeNode newRoot = new TreeNode(new TreeSet<>());
+        return create(writer, dht, new TreeNodeCache(DEFAULT_NODE_CACHE_SIZE));
+    }
+
+    public static CompletableFuture<MerkleBTree> create(SigningPrivateKeyAndPublicHash writer,
+                                                        ContentAddressedStorage dht,
+                                                        TreeNodeCache nodeCache) {
+        TreeNode newRoot = TreeNode.empty();
         byte[] raw = newRoot.serialize();
         return dht.put(writer.publicKeyHash, writer.secret.signatureOnly(raw), raw)
-                .thenApply(put -> new MerkleBTree(newRoot, put, dht, MAX_NODE_CHILDREN));
+                .thenApply(put -> new MerkleBTree(newRoot, MaybeMultihash.of(put), dht, nodeCache, MAX_NODE_CHILDREN));
+    }
+
+    /** Build a new tree containing the given entries, without any rebalancing
+     *
+     * @param writer
+     * @param sorted entries in strictly increasing key order
+     * @param dht
+     * @return
+     */
+    public static CompletableFuture<MerkleBTree> bulkLoad(SigningPrivateKeyAndPublicHash writer,
+                                                          List<Pair<ByteArrayWrapper, Multihash>> sorted,
+                                                          ContentAddressedStorage dht) {
+        TreeNodeCache nodeCache = new TreeNodeCache(DEFAULT_NODE_CACHE_SIZE);
+        return TreeNode.build(writer, sorted, dht, nodeCache, MAX_NODE_CHILDREN)
+                .thenApply(root -> new MerkleBTree(root, root.hash, dht, nodeCache, MAX_NODE_CHILDREN));
     }
 
     /**
@@ -49,7 +94,7 @@ public class MerkleBTree
      * @throws IOException
      */
     public CompletableFuture<MaybeMultihash> get(byte[] rawKey) {
-        return root.get(new ByteArrayWrapper(rawKey), storage);
+        return root.get(new ByteArrayWrapper(rawKey), storage, nodeCache);
     }
 
     /**
@@ -60,7 +105,7 @@ public class MerkleBTree
      * @throws IOException
      */
     public CompletableFuture<Multihash> put(SigningPrivateKeyAndPublicHash writer, byte[] rawKey, MaybeMultihash existing, Multihash value) {
-        return root.put(writer, new ByteArrayWrapper(rawKey), existing, value, storage, maxChildren)
+        return root.put(writer, new ByteArrayWrapper(rawKey), existing, value, storage, nodeCache, maxChildren)
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
@@ -71,7 +116,7 @@ public class MerkleBTree
      * @throws IOException
      */
     public CompletableFuture<Multihash> delete(SigningPrivateKeyAndPublicHash writer, byte[] rawKey, MaybeMultihash existing) {
-        return root.delete(writer, new ByteArrayWrapper(rawKey), existing, storage, maxChildren)
+        return root.delete(writer, new ByteArrayWrapper(rawKey), existing, storage, nodeCache, maxChildren)
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
@@ -82,7 +127,7 @@ public class MerkleBTree
         }
         byte[] raw = newRoot.serialize();
         return storage.put(writer.publicKeyHash, writer.secret.signatureOnly(raw), raw).thenApply(newRootHash -> {
-            root = new TreeNode(newRoot.keys, newRootHash);
+            root = nodeCache.add(newRoot.withHash(newRootHash));
             return newRootHash;
         });
     }
@@ -93,7 +138,42 @@ public class MerkleBTree
      * @throws IOException
      */
     public CompletableFuture<Integer> size() {
-        return root.size(storage);
+        return root.size(storage, nodeCache);
+    }
+
+    /** Visit the entries with startInclusive <= key < endExclusive in key order
+     *
+     * @param startInclusive
+     * @param endExclusive
+     * @param visitor called with each entry in turn, returns false to end the scan early
+     * @return true if the whole range was visited
+     */
+    public CompletableFuture<Boolean> applyToRange(Optional<byte[]> startInclusive,
+                                                   Optional<byte[]> endExclusive,
+                                                   Function<Pair<ByteArrayWrapper, Multihash>, Boolean> visitor) {
+        return root.applyToRange(startInclusive.map(ByteArrayWrapper::new), endExclusive.map(ByteArrayWrapper::new),
+                SCAN_PREFETCH, visitor, storage, nodeCache);
+    }
+
+    /**
+     *
+     * @param startInclusive
+     * @param endExclusive
+     * @return the entries with startInclusive <= key < endExclusive in key order
+     */
+    public CompletableFuture<List<Pair<ByteArrayWrapper, Multihash>>> getRange(Optional<byte[]> startInclusive,
+                                                                              Optional<byte[]> endExclusive) {
+        List<Pair<ByteArrayWrapper, Multihash>> res = new ArrayList<>();
+        return applyToRange(startInclusive, endExclusive, res::add)
+                .thenApply(x -> res);
+    }
+
+    /**
+     *
+     * @return every entry in key order
+     */
+    public CompletableFuture<List<Pair<ByteArrayWrapper, Multihash>>> getAll() {
+        return getRange(Optional.empty(), Optional.empty());
     }
 
     public void print(PrintStream w) throws Exception {
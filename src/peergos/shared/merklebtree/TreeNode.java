@@ -14,71 +14,128 @@ import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
+/** An immutable btree node. The keys are held in a sorted array, the first of which is always the empty key, which
+ *  points to the leftmost child. Every modification returns a new node, so decoded nodes can be shared via a
+ *  TreeNodeCache.
+ */
 public class TreeNode implements Cborable {
+    private static final ByteArrayWrapper ZERO_KEY = new ByteArrayWrapper(new byte[0]);
+
     public final MaybeMultihash hash;
-    public final SortedSet<KeyElement> keys;
-
-    private TreeNode(MaybeMultihash leftChildHash, SortedSet<KeyElement> keys, MaybeMultihash ourHash) {
-        this.keys = new TreeSet<>();
-        this.keys.addAll(keys);
-        KeyElement zero = new KeyElement(new ByteArrayWrapper(new byte[0]), MaybeMultihash.empty(), leftChildHash);
-        if (!keys.contains(zero))
-            this.keys.add(zero);
+    private final KeyElement[] keys;
+
+    private TreeNode(KeyElement[] keys, MaybeMultihash ourHash) {
+        this.keys = keys;
         this.hash = ourHash;
     }
 
-    private TreeNode(MaybeMultihash leftChildHash, SortedSet<KeyElement> keys) {
-        this(leftChildHash, keys, MaybeMultihash.empty());
+    public static TreeNode empty() {
+        return new TreeNode(new KeyElement[]{zero(MaybeMultihash.empty())}, MaybeMultihash.empty());
     }
 
-    private TreeNode(Multihash leftChildHash, SortedSet<KeyElement> keys) {
-        this(MaybeMultihash.of(leftChildHash), keys, MaybeMultihash.empty());
+    TreeNode withHash(MaybeMultihash hash) {
+        return new TreeNode(keys, hash);
     }
 
-    public TreeNode(SortedSet<KeyElement> keys) {
-        this(MaybeMultihash.empty(), keys, MaybeMultihash.empty());
+    TreeNode withHash(Multihash hash) {
+        return withHash(MaybeMultihash.of(hash));
     }
 
-    public TreeNode(SortedSet<KeyElement> keys, MaybeMultihash ourHash) {
-        this(MaybeMultihash.empty(), keys, ourHash);
+    /**
+     *
+     * @return the number of keys in this node, including the empty key
+     */
+    public int keyCount() {
+        return keys.length;
     }
 
-    public TreeNode(SortedSet<KeyElement> keys, Multihash ourHash) {
-        this(MaybeMultihash.empty(), keys, MaybeMultihash.of(ourHash));
+    private static KeyElement zero(MaybeMultihash leftChildHash) {
+        return new KeyElement(ZERO_KEY, MaybeMultihash.empty(), leftChildHash);
     }
 
-    private TreeNode(TreeNode node, MaybeMultihash hash) {
-        this(MaybeMultihash.empty(), node.keys, hash);
+    /**
+     *
+     * @return the index of the largest key which is less than or equal to key
+     */
+    private static int floorIndex(KeyElement[] keys, ByteArrayWrapper key) {
+        int low = 0, high = keys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (keys[mid].key.compareTo(key) <= 0)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
     }
 
-    private TreeNode(TreeNode node, Multihash hash) {
-        this(node, MaybeMultihash.of(hash));
+    private static KeyElement[] replace(KeyElement[] keys, int index, KeyElement element) {
+        KeyElement[] res = Arrays.copyOf(keys, keys.length);
+        res[index] = element;
+        return res;
     }
-    private TreeNode withHash(MaybeMultihash hash) {
-        return new TreeNode(keys, hash);
+
+    private static KeyElement[] insert(KeyElement[] keys, int index, KeyElement element) {
+        KeyElement[] res = new KeyElement[keys.length + 1];
+        System.arraycopy(keys, 0, res, 0, index);
+        res[index] = element;
+        System.arraycopy(keys, index, res, index + 1, keys.length - index);
+        return res;
     }
 
+    private static KeyElement[] remove(KeyElement[] keys, int index) {
+        KeyElement[] res = new KeyElement[keys.length - 1];
+        System.arraycopy(keys, 0, res, 0, index);
+        System.arraycopy(keys, index + 1, res, index, keys.length - index - 1);
+        return res;
+    }
 
-    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, ContentAddressedStorage storage) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
-        }
+    /**
+     *
+     * @return a new key array with the given left child, and the given elements after it
+     */
+    private static KeyElement[] withLeftChild(MaybeMultihash leftChildHash, KeyElement[] source, int from, int to) {
+        KeyElement[] res = new KeyElement[to - from + 1];
+        res[0] = zero(leftChildHash);
+        System.arraycopy(source, from, res, 1, to - from);
+        return res;
+    }
+
+    /**
+     *
+     * @return the concatenation of a, element and the non zero keys of b
+     */
+    private static KeyElement[] join(KeyElement[] a, KeyElement element, KeyElement[] b) {
+        KeyElement[] res = new KeyElement[a.length + b.length];
+        System.arraycopy(a, 0, res, 0, a.length);
+        res[a.length] = element;
+        System.arraycopy(b, 1, res, a.length + 1, b.length - 1);
+        return res;
+    }
+
+    private static CompletableFuture<TreeNode> getChild(Multihash hash, ContentAddressedStorage storage, TreeNodeCache cache) {
+        return cache.get(hash, storage)
+                .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + hash)));
+    }
+
+    private static CompletableFuture<TreeNode> write(SigningPrivateKeyAndPublicHash writer,
+                                                     KeyElement[] keys,
+                                                     ContentAddressedStorage storage,
+                                                     TreeNodeCache cache) {
+        TreeNode node = new TreeNode(keys, MaybeMultihash.empty());
+        return storage.put(writer, node.serialize())
+                .thenApply(hash -> cache.add(node.withHash(hash)));
+    }
+
+    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, ContentAddressedStorage storage, TreeNodeCache cache) {
+        KeyElement nextSmallest = keys[floorIndex(keys, key)];
         if (nextSmallest.key.equals(key))
             return CompletableFuture.completedFuture(nextSmallest.valueHash);
         if (! nextSmallest.targetHash.isPresent())
             return CompletableFuture.completedFuture(MaybeMultihash.empty());
 
-        Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash)))
-                        .get(key, storage));
+        return getChild(nextSmallest.targetHash.get(), storage, cache)
+                .thenCompose(child -> child.get(key, storage, cache));
     }
 
     public CompletableFuture<TreeNode> put(SigningPrivateKeyAndPublicHash writer,
@@ -86,226 +143,176 @@ public class TreeNode implements Cborable {
                                            MaybeMultihash existing,
                                            Multihash value,
                                            ContentAddressedStorage storage,
+                                           TreeNodeCache cache,
                                            int maxChildren) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key)) {
-                SortedSet<KeyElement> headSet = keys.headSet(dummy);
-                nextSmallest = headSet.last();
-            }
-        }
+        int index = floorIndex(keys, key);
+        KeyElement nextSmallest = keys[index];
         if (nextSmallest.key.equals(key)) {
-            KeyElement modified = new KeyElement(key, MaybeMultihash.of(value), nextSmallest.targetHash);
             // ensure CAS, without allowing replacing a tombstone
             if (! nextSmallest.valueHash.equals(existing) && ! nextSmallest.valueHash.equals(MaybeMultihash.empty())) {
                 CompletableFuture<TreeNode> res = new CompletableFuture<>();
                 res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
                 return res;
             }
-            keys.remove(nextSmallest);
-            keys.add(modified);
+            KeyElement modified = new KeyElement(key, MaybeMultihash.of(value), nextSmallest.targetHash);
             // commit this node to storage
-            return storage.put(writer, this.serialize())
-                    .thenApply(multihash -> new TreeNode(this.keys, multihash));
+            return write(writer, replace(keys, index, modified), storage, cache);
         }
         if (! nextSmallest.targetHash.isPresent()) {
-            if (keys.size() < maxChildren) {
-                keys.add(new KeyElement(key,  MaybeMultihash.of(value), MaybeMultihash.empty()));
+            KeyElement[] added = insert(keys, index + 1, new KeyElement(key, MaybeMultihash.of(value), MaybeMultihash.empty()));
+            if (keys.length < maxChildren) {
                 // commit this node to storage
-                return storage.put(writer, this.serialize())
-                        .thenApply(multihash -> new TreeNode(this.keys, MaybeMultihash.of(multihash)));
+                return write(writer, added, storage, cache);
             }
             // split into two and make new parent
             System.out.println("Btree:Splitting");
-            keys.add(new KeyElement(key, MaybeMultihash.of(value), MaybeMultihash.empty()));
-            KeyElement[] tmp = new KeyElement[keys.size()];
-            KeyElement median = keys.toArray(tmp)[keys.size()/2];
-            // commit left child
-            SortedSet<KeyElement> left = keys.headSet(median);
-            TreeNode leftChild = new TreeNode(left);
-            return storage.put(writer, leftChild.serialize()).thenCompose(leftChildHash -> {
-
-                // commit right child
-                SortedSet<KeyElement> right = keys.tailSet(median);
-                right.remove(right.first());
-                TreeNode rightChild = new TreeNode(median.targetHash, right);
-                return storage.put(writer, rightChild.serialize()).thenApply(rightChildHash -> {
-
-                    // now add median to parent
-                    TreeSet holder = new TreeSet<>();
-                    KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash));
-                    holder.add(newParent);
-                    return new TreeNode(MaybeMultihash.of(leftChildHash), holder);
-                });
-            });
+            return split(writer, added, storage, cache);
         }
 
-        final KeyElement finalNextSmallest = nextSmallest;
-        Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenApply(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash))))
-                .thenCompose(modifiedChild -> modifiedChild.withHash(finalNextSmallest.targetHash).put(writer, key, existing, value, storage, maxChildren))
+        return getChild(nextSmallest.targetHash.get(), storage, cache)
+                .thenCompose(child -> child.put(writer, key, existing, value, storage, cache, maxChildren))
                 .thenCompose(modifiedChild -> {
-                    if (!modifiedChild.hash.isPresent()) {
+                    if (! modifiedChild.hash.isPresent()) {
                         // we split a child and need to add the median to our keys
-                        if (keys.size() < maxChildren) {
-                            KeyElement replacementNextSmallest = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.keys.first().targetHash);
-                            keys.remove(finalNextSmallest);
-                            keys.add(replacementNextSmallest);
-                            keys.add(modifiedChild.keys.last());
-                            return storage.put(writer, this.serialize())
-                                    .thenApply(multihash -> new TreeNode(this.keys, MaybeMultihash.of(multihash)));
-                        }
-                        // we need to split as well, merge in new key and two pointers first
-                        KeyElement nonZero = modifiedChild.keys.last();
-                        keys.add(nonZero);
-                        KeyElement updated = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.keys.first().targetHash);
-                        keys.remove(finalNextSmallest);
-                        keys.add(updated);
-
-                        // now split
+                        KeyElement replacementNextSmallest = new KeyElement(nextSmallest.key, nextSmallest.valueHash, modifiedChild.keys[0].targetHash);
+                        KeyElement[] updated = insert(replace(keys, index, replacementNextSmallest), index + 1, modifiedChild.keys[1]);
+                        if (keys.length < maxChildren)
+                            return write(writer, updated, storage, cache);
+                        // we need to split as well
                         System.out.println("Btree:Splitting");
-                        KeyElement[] tmp = new KeyElement[keys.size()];
-                        KeyElement median = keys.toArray(tmp)[keys.size() / 2];
-                        // commit left child
-                        SortedSet<KeyElement> left = keys.headSet(median);
-                        TreeNode leftChild = new TreeNode(left);
-                        return storage.put(writer, leftChild.serialize()).thenCompose(leftChildHash -> {
-
-                            // commit right child
-                            SortedSet<KeyElement> right = keys.tailSet(median);
-                            right.remove(right.first());
-                            TreeNode rightChild = new TreeNode(median.targetHash, right);
-                            return storage.put(writer, rightChild.serialize()).thenApply(rightChildHash -> {
-                                // now add median to parent
-                                TreeSet holder = new TreeSet<>();
-                                KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash));
-                                holder.add(newParent);
-                                return new TreeNode(leftChildHash, holder);
-                            });
-                        });
+                        return split(writer, updated, storage, cache);
                     }
                     // update pointer to child (child element wasn't split)
-                    KeyElement updated = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.hash.get());
-                    keys.remove(finalNextSmallest);
-                    keys.add(updated);
-                    return storage.put(writer, this.serialize()).thenApply(multihash -> new TreeNode(this, multihash));
+                    KeyElement updated = new KeyElement(nextSmallest.key, nextSmallest.valueHash, modifiedChild.hash.get());
+                    return write(writer, replace(keys, index, updated), storage, cache);
                 });
     }
 
-    public CompletableFuture<Integer> size(ContentAddressedStorage storage) {
-        return Futures.reduceAll(keys, keys.size() - 1, (total, key) -> key.targetHash.isPresent() ?
-                storage.get(key.targetHash.get())
-                        .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + key.targetHash.get())))
-                                .size(storage)).thenApply(subTreeTotal -> subTreeTotal + total) :
-                CompletableFuture.completedFuture(total), (a, b) -> a + b);
+    /** Commit the two halves of an overfull node, and return an uncommitted parent for them containing the median
+     */
+    private static CompletableFuture<TreeNode> split(SigningPrivateKeyAndPublicHash writer,
+                                                     KeyElement[] keys,
+                                                     ContentAddressedStorage storage,
+                                                     TreeNodeCache cache) {
+        int mid = keys.length / 2;
+        KeyElement median = keys[mid];
+        // commit left child
+        return write(writer, Arrays.copyOfRange(keys, 0, mid), storage, cache).thenCompose(leftChild ->
+                // commit right child
+                write(writer, withLeftChild(median.targetHash, keys, mid + 1, keys.length), storage, cache).thenApply(rightChild -> {
+                    // now add median to parent
+                    KeyElement newParent = new KeyElement(median.key, median.valueHash, rightChild.hash);
+                    return new TreeNode(new KeyElement[]{zero(leftChild.hash), newParent}, MaybeMultihash.empty());
+                }));
     }
 
-    private KeyElement smallestNonZeroKey() {
-        return keys.tailSet(new KeyElement(new ByteArrayWrapper(new byte[]{0}), MaybeMultihash.empty(), MaybeMultihash.empty())).first();
+    public CompletableFuture<Integer> size(ContentAddressedStorage storage, TreeNodeCache cache) {
+        return Futures.reduceAll(Arrays.asList(keys), keys.length - 1, (total, key) -> key.targetHash.isPresent() ?
+                getChild(key.targetHash.get(), storage, cache)
+                        .thenCompose(child -> child.size(storage, cache))
+                        .thenApply(subTreeTotal -> subTreeTotal + total) :
+                CompletableFuture.completedFuture(total), (a, b) -> a + b);
     }
 
-    public CompletableFuture<ByteArrayWrapper> smallestKey(ContentAddressedStorage storage) {
-        MaybeMultihash targetHash = keys.first().targetHash;
+    public CompletableFuture<ByteArrayWrapper> smallestKey(ContentAddressedStorage storage, TreeNodeCache cache) {
+        MaybeMultihash targetHash = keys[0].targetHash;
         if (! targetHash.isPresent())
-            return CompletableFuture.completedFuture(keys.toArray(new KeyElement[keys.size()])[1].key);
-        return storage.get(targetHash.get())
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + targetHash.get())))
-                        .smallestKey(storage));
+            return CompletableFuture.completedFuture(keys[1].key);
+        return getChild(targetHash.get(), storage, cache)
+                .thenCompose(child -> child.smallestKey(storage, cache));
     }
 
-    public CompletableFuture<TreeNode> delete(SigningPrivateKeyAndPublicHash writer, ByteArrayWrapper key, MaybeMultihash existing, ContentAddressedStorage storage, int maxChildren) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
-        }
+    public CompletableFuture<TreeNode> delete(SigningPrivateKeyAndPublicHash writer,
+                                              ByteArrayWrapper key,
+                                              MaybeMultihash existing,
+                                              ContentAddressedStorage storage,
+                                              TreeNodeCache cache,
+                                              int maxChildren) {
+        return delete(writer, key, existing, true, storage, cache, maxChildren).thenCompose(root -> {
+            // once the root's children have all merged into one, that child becomes the root
+            if (root.keys.length == 1 && root.keys[0].targetHash.isPresent())
+                return getChild(root.keys[0].targetHash.get(), storage, cache);
+            return CompletableFuture.completedFuture(root);
+        });
+    }
+
+    /**
+     *
+     * @param tombstone whether to leave a tombstone for a key in a leaf, rather than removing it, which we do when it
+     *                  is being promoted to a separator, so the key isn't in the tree twice
+     */
+    private CompletableFuture<TreeNode> delete(SigningPrivateKeyAndPublicHash writer,
+                                               ByteArrayWrapper key,
+                                               MaybeMultihash existing,
+                                               boolean tombstone,
+                                               ContentAddressedStorage storage,
+                                               TreeNodeCache cache,
+                                               int maxChildren) {
+        int index = floorIndex(keys, key);
+        KeyElement nextSmallest = keys[index];
         if (nextSmallest.key.equals(key)) {
+            // CAS on existing value
+            if (! nextSmallest.valueHash.equals(existing)) {
+                CompletableFuture<TreeNode> res = new CompletableFuture<>();
+                res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
+                return res;
+            }
             if (! nextSmallest.targetHash.isPresent()) {
                 // we are a leaf
-                // CAS on existing value
-                if (! nextSmallest.valueHash.equals(existing)) {
-                    CompletableFuture<TreeNode> res = new CompletableFuture<>();
-                    res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
-                    return res;
-                }
-                keys.remove(nextSmallest);
-                // put in a tombstone
-                keys.add(new KeyElement(nextSmallest.key, MaybeMultihash.empty(), MaybeMultihash.empty()));
-                if (keys.size() >= maxChildren/2) {
-                    return storage.put(writer, this.serialize())
-                            .thenApply(multihash -> new TreeNode(this.keys, multihash));
-                }
-                return CompletableFuture.completedFuture(new TreeNode(this.keys));
-            } else {
-                Multihash multihash = nextSmallest.targetHash.get();
-                final KeyElement finalNextSmallest = nextSmallest;
-                return storage.get(multihash)
-                        .thenApply(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + multihash)))
-                                .withHash(finalNextSmallest.targetHash))
-                        .thenCompose(child -> {
-                            // take the subtree's smallest value (in a leaf) delete it and promote it to the separator here
-                            return child.smallestKey(storage).thenCompose(smallestKey -> child.get(smallestKey, storage)
-                                    .thenCompose(value -> child.delete(writer, smallestKey, existing, storage, maxChildren)
-                                                    .thenCompose(newChild -> storage.put(writer, newChild.serialize()).thenCompose(childHash -> {
-                                                                keys.remove(finalNextSmallest);
-                                                                KeyElement replacement = new KeyElement(smallestKey, value, childHash);
-                                                                keys.add(replacement);
-                                                                if (newChild.keys.size() >= maxChildren / 2) {
-                                                                    return storage.put(writer, this.serialize())
-                                                                            .thenApply(multihash1 -> new TreeNode(this, multihash1));
-                                                                } else {
-                                                                    // re-balance
-                                                                    return rebalance(writer, this, newChild, childHash, storage, maxChildren);
-                                                                }
-                                                            })
-                                                    )
-                                    )
-                            );
-                        });
+                KeyElement[] updated = tombstone ?
+                        replace(keys, index, new KeyElement(nextSmallest.key, MaybeMultihash.empty(), MaybeMultihash.empty())) :
+                        remove(keys, index);
+                if (updated.length >= maxChildren/2)
+                    return write(writer, updated, storage, cache);
+                return CompletableFuture.completedFuture(new TreeNode(updated, MaybeMultihash.empty()));
             }
+            return getChild(nextSmallest.targetHash.get(), storage, cache)
+                    // take the subtree's smallest value (in a leaf) delete it and promote it to the separator here
+                    .thenCompose(child -> child.smallestKey(storage, cache).thenCompose(smallestKey -> child.get(smallestKey, storage, cache)
+                            .thenCompose(value -> child.delete(writer, smallestKey, value, false, storage, cache, maxChildren)
+                                    .thenCompose(newChild -> write(writer, newChild.keys, storage, cache).thenCompose(written -> {
+                                        Multihash childHash = written.hash.get();
+                                        KeyElement[] updated = replace(keys, index, new KeyElement(smallestKey, value, childHash));
+                                        if (newChild.keys.length >= maxChildren / 2)
+                                            return write(writer, updated, storage, cache);
+                                        // re-balance
+                                        return rebalance(writer, new TreeNode(updated, MaybeMultihash.empty()), newChild, childHash,
+                                                storage, cache, maxChildren);
+                                    })))));
         }
         if (! nextSmallest.targetHash.isPresent())
-            return CompletableFuture.completedFuture(new TreeNode(this.keys));
-        final KeyElement finalNextSmallest = nextSmallest;
-        final Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash)))
-                        .withHash(finalNextSmallest.targetHash).delete(writer, key, existing, storage, maxChildren))
+            return CompletableFuture.completedFuture(new TreeNode(keys, MaybeMultihash.empty()));
+        Multihash nextSmallestHash = nextSmallest.targetHash.get();
+        return getChild(nextSmallestHash, storage, cache)
+                .thenCompose(child -> child.delete(writer, key, existing, tombstone, storage, cache, maxChildren))
                 .thenCompose(child -> {
                     // update pointer
-                    if (child.hash.isPresent()) {
-                        keys.remove(finalNextSmallest);
-                        keys.add(new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, child.hash.get()));
-                    }
-                    if (child.keys.size() < maxChildren / 2) {
-                        // re-balance
-                        return rebalance(writer, this, child, nextSmallestHash, storage, maxChildren);
+                    KeyElement[] updated = child.hash.isPresent() ?
+                            replace(keys, index, new KeyElement(nextSmallest.key, nextSmallest.valueHash, child.hash.get())) :
+                            keys;
+                    if (child.keys.length < maxChildren / 2) {
+                        // re-balance, finding the child by the hash it has in the updated keys
+                        return rebalance(writer, new TreeNode(updated, MaybeMultihash.empty()), child,
+                                child.hash.isPresent() ? child.hash.get() : nextSmallestHash, storage, cache, maxChildren);
                     }
-                    return storage.put(writer, this.serialize())
-                            .thenApply(multihash -> new TreeNode(this, multihash));
+                    return write(writer, updated, storage, cache);
                 });
     }
 
-    private static CompletableFuture<TreeNode> rebalance(SigningPrivateKeyAndPublicHash writer, TreeNode parent, TreeNode child, Multihash originalChildHash,
-                                                         ContentAddressedStorage storage, int maxChildren) {
+    private static CompletableFuture<TreeNode> rebalance(SigningPrivateKeyAndPublicHash writer,
+                                                         TreeNode parent,
+                                                         TreeNode child,
+                                                         Multihash originalChildHash,
+                                                         ContentAddressedStorage storage,
+                                                         TreeNodeCache cache,
+                                                         int maxChildren) {
         System.out.println("Btree:rebalance");
         // child has too few children
-        Multihash childHash = originalChildHash;
-        KeyElement[] parentKeys = parent.keys.toArray(new KeyElement[parent.keys.size()]);
-        int i = 0;
-        while (i < parentKeys.length && !parentKeys[i].targetHash.get().equals(childHash))
-            i++;
+        KeyElement[] parentKeys = parent.keys;
+        int index = 0;
+        while (index < parentKeys.length && !parentKeys[index].targetHash.get().equals(originalChildHash))
+            index++;
+        final int i = index;
 
         KeyElement centerKey = parentKeys[i];
         Optional<KeyElement> leftKey = i > 0 ? Optional.of(parentKeys[i-1]) : Optional.empty();
@@ -314,92 +321,230 @@ public class TreeNode implements Cborable {
         Function<Optional<KeyElement>, CompletableFuture<Optional<TreeNode>>> keyToNode = key -> {
             if (! key.isPresent())
                 return CompletableFuture.completedFuture(Optional.empty());
-            return storage.get(key.get().targetHash.get())
-                    .thenApply(rawOpt -> rawOpt.map(raw -> TreeNode.fromCbor(raw)));
+            return cache.get(key.get().targetHash.get(), storage);
         };
 
         CompletableFuture<Optional<TreeNode>> leftSiblingFut = keyToNode.apply(leftKey);
         CompletableFuture<Optional<TreeNode>> rightSiblingFut = keyToNode.apply(rightKey);
 
         return leftSiblingFut.thenCompose(leftSibling -> rightSiblingFut.thenCompose(rightSibling -> {
-            if (rightSibling.isPresent() && rightSibling.get().keys.size() > maxChildren / 2) {
+            if (! leftSibling.isPresent() && ! rightSibling.isPresent()) {
+                // an only child, of a root whose other children have merged into it, has nothing to merge with
+                return write(writer, child.keys, storage, cache).thenCompose(newChild ->
+                        write(writer, replace(parentKeys, i, new KeyElement(centerKey.key, centerKey.valueHash, newChild.hash)), storage, cache));
+            }
+            if (rightSibling.isPresent() && rightSibling.get().keys.length > maxChildren / 2) {
                 // rotate left
-                final TreeNode right = rightSibling.get();
-                KeyElement newSeparator = right.smallestNonZeroKey();
-                parent.keys.remove(centerKey);
-
-                child.keys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, right.keys.first().targetHash));
-                return storage.put(writer, child.serialize()).thenCompose(newChildHash -> {
-                    right.keys.remove(newSeparator);
-                    right.keys.remove(KeyElement.dummy(new ByteArrayWrapper(new byte[0])));
-                    TreeNode newRight = new TreeNode(newSeparator.targetHash, right.keys);
-                    return storage.put(writer, newRight.serialize()).thenCompose(newRightHash -> {
-                        parent.keys.remove(rightKey.get());
-                        parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, newChildHash));
-                        parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newRightHash));
-                        return storage.put(writer, parent.serialize())
-                                .thenApply(multihash -> new TreeNode(parent, multihash));
-                    });
-                });
-            } else if (leftSibling.isPresent() && leftSibling.get().keys.size() > maxChildren / 2) {
+                KeyElement[] right = rightSibling.get().keys;
+                KeyElement newSeparator = right[1];
+                KeyElement separator = new KeyElement(rightKey.get().key, rightKey.get().valueHash, right[0].targetHash);
+                return write(writer, insert(child.keys, child.keys.length, separator), storage, cache).thenCompose(newChild ->
+                        write(writer, withLeftChild(newSeparator.targetHash, right, 2, right.length), storage, cache).thenCompose(newRight -> {
+                            KeyElement[] updated = replace(replace(parentKeys,
+                                    i, new KeyElement(centerKey.key, centerKey.valueHash, newChild.hash)),
+                                    i + 1, new KeyElement(newSeparator.key, newSeparator.valueHash, newRight.hash));
+                            return write(writer, updated, storage, cache);
+                        }));
+            } else if (leftSibling.isPresent() && leftSibling.get().keys.length > maxChildren / 2) {
                 // rotate right
-                TreeNode left = leftSibling.get();
-                KeyElement newSeparator = left.keys.last();
-                parent.keys.remove(centerKey);
-
-                left.keys.remove(newSeparator);
-                return storage.put(writer, left.serialize()).thenCompose(newLeftHash -> {
-                    child.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
-                    child.keys.remove(KeyElement.dummy(new ByteArrayWrapper(new byte[0])));
-                    child.keys.add(new KeyElement(new ByteArrayWrapper(new byte[0]), MaybeMultihash.empty(), newSeparator.targetHash));
-                    return storage.put(writer, child.serialize()).thenCompose(newChildHash -> {
-                        parent.keys.remove(leftKey.get());
-                        parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, newLeftHash));
-                        parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newChildHash));
-                        return storage.put(writer, parent.serialize())
-                                .thenApply(multihash -> new TreeNode(parent, multihash));
+                KeyElement[] left = leftSibling.get().keys;
+                KeyElement newSeparator = left[left.length - 1];
+                return write(writer, Arrays.copyOf(left, left.length - 1), storage, cache).thenCompose(newLeft -> {
+                    KeyElement separator = new KeyElement(centerKey.key, centerKey.valueHash, child.keys[0].targetHash);
+                    KeyElement[] childKeys = insert(replace(child.keys, 0, zero(newSeparator.targetHash)), 1, separator);
+                    return write(writer, childKeys, storage, cache).thenCompose(newChild -> {
+                        KeyElement[] updated = replace(replace(parentKeys,
+                                i - 1, new KeyElement(leftKey.get().key, leftKey.get().valueHash, newLeft.hash)),
+                                i, new KeyElement(newSeparator.key, newSeparator.valueHash, newChild.hash));
+                        return write(writer, updated, storage, cache);
                     });
                 });
             } else {
+                KeyElement[] combined;
+                int mergedIndex;
+                KeyElement merged;
                 if (rightSibling.isPresent()) {
                     // merge with right sibling and separator
-                    SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                    combinedKeys.addAll(child.keys);
-                    combinedKeys.addAll(rightSibling.get().keys);
-                    combinedKeys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, rightSibling.get().keys.first().targetHash));
-                    TreeNode combined = new TreeNode(combinedKeys);
-                    return storage.put(writer, combined.serialize()).thenCompose(combinedHash -> {
-                        parent.keys.remove(rightKey.get());
-                        parent.keys.remove(centerKey);
-                        parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, combinedHash));
-                        if (parent.keys.size() >= maxChildren / 2) {
-                            return storage.put(writer, parent.serialize())
-                                    .thenApply(multihash -> new TreeNode(parent, multihash));
-                        }
-                        return CompletableFuture.completedFuture(new TreeNode(parent.keys));
-                    });
+                    KeyElement[] right = rightSibling.get().keys;
+                    combined = join(child.keys, new KeyElement(rightKey.get().key, rightKey.get().valueHash, right[0].targetHash), right);
+                    mergedIndex = i;
+                    merged = centerKey;
                 } else {
                     // merge with left sibling and separator
-                    SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                    combinedKeys.addAll(child.keys);
-                    combinedKeys.addAll(leftSibling.get().keys);
-                    combinedKeys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
-                    TreeNode combined = new TreeNode(combinedKeys);
-                    return storage.put(writer, combined.serialize()).thenCompose(combinedHash -> {
-                        parent.keys.remove(leftKey.get());
-                        parent.keys.remove(centerKey);
-                        parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, combinedHash));
-                        if (parent.keys.size() >= maxChildren / 2) {
-                            return storage.put(writer, parent.serialize())
-                                    .thenApply(multihash -> new TreeNode(parent, multihash));
-                        }
-                        return CompletableFuture.completedFuture(new TreeNode(parent.keys));
-                    });
+                    combined = join(leftSibling.get().keys, new KeyElement(centerKey.key, centerKey.valueHash, child.keys[0].targetHash), child.keys);
+                    mergedIndex = i - 1;
+                    merged = leftKey.get();
                 }
+                return write(writer, combined, storage, cache).thenCompose(combinedNode -> {
+                    KeyElement[] updated = remove(replace(parentKeys, mergedIndex,
+                            new KeyElement(merged.key, merged.valueHash, combinedNode.hash)), mergedIndex + 1);
+                    if (updated.length >= maxChildren / 2)
+                        return write(writer, updated, storage, cache);
+                    return CompletableFuture.completedFuture(new TreeNode(updated, MaybeMultihash.empty()));
+                });
             }
         }));
     }
 
+    /** Visit the entries with a key in [from, to) in ascending key order, skipping tombstones.
+     *
+     * @param from inclusive lower bound, or empty for no lower bound
+     * @param to exclusive upper bound, or empty for no upper bound
+     * @param prefetch how many children of each node to retrieve ahead of the one being visited
+     * @param visitor called sequentially with each entry, returns false to end the scan early
+     * @param storage
+     * @param cache
+     * @return true if the whole range was visited, false if the visitor ended the scan
+     */
+    public CompletableFuture<Boolean> applyToRange(Optional<ByteArrayWrapper> from,
+                                                   Optional<ByteArrayWrapper> to,
+                                                   int prefetch,
+                                                   Function<Pair<ByteArrayWrapper, Multihash>, Boolean> visitor,
+                                                   ContentAddressedStorage storage,
+                                                   TreeNodeCache cache) {
+        return new RangeScan(from, to, Math.max(1, prefetch), visitor, storage, cache).visit(this);
+    }
+
+    private static class RangeScan {
+        private final Optional<ByteArrayWrapper> from, to;
+        private final int prefetch;
+        private final Function<Pair<ByteArrayWrapper, Multihash>, Boolean> visitor;
+        private final ContentAddressedStorage storage;
+        private final TreeNodeCache cache;
+
+        RangeScan(Optional<ByteArrayWrapper> from,
+                  Optional<ByteArrayWrapper> to,
+                  int prefetch,
+                  Function<Pair<ByteArrayWrapper, Multihash>, Boolean> visitor,
+                  ContentAddressedStorage storage,
+                  TreeNodeCache cache) {
+            this.from = from;
+            this.to = to;
+            this.prefetch = prefetch;
+            this.visitor = visitor;
+            this.storage = storage;
+            this.cache = cache;
+        }
+
+        CompletableFuture<Boolean> visit(TreeNode node) {
+            // an element covers its own key and the subtree up to the next element's key
+            KeyElement[] elements = node.keys;
+            int start = from.isPresent() ? floorIndex(elements, from.get()) : 0;
+            int end = start;
+            while (end < elements.length && (! to.isPresent() || elements[end].key.compareTo(to.get()) < 0))
+                end++;
+            List<CompletableFuture<TreeNode>> children = new ArrayList<>(Collections.nCopies(elements.length, null));
+            return visit(elements, start, end, children);
+        }
+
+        private CompletableFuture<Boolean> visit(KeyElement[] elements,
+                                                 int index,
+                                                 int end,
+                                                 List<CompletableFuture<TreeNode>> children) {
+            if (index >= end)
+                return CompletableFuture.completedFuture(true);
+            KeyElement element = elements[index];
+            boolean inRange = element.key.data.length > 0 && (! from.isPresent() || element.key.compareTo(from.get()) >= 0);
+            if (inRange && element.valueHash.isPresent() && ! visitor.apply(new Pair<>(element.key, element.valueHash.get())))
+                return CompletableFuture.completedFuture(false);
+            if (! element.targetHash.isPresent())
+                return visit(elements, index + 1, end, children);
+
+            for (int i = index; i < Math.min(end, index + prefetch); i++)
+                if (children.get(i) == null && elements[i].targetHash.isPresent())
+                    children.set(i, getChild(elements[i].targetHash.get(), storage, cache));
+            return children.get(index)
+                    .thenCompose(this::visit)
+                    .thenCompose(more -> more ?
+                            visit(elements, index + 1, end, children) :
+                            CompletableFuture.completedFuture(false));
+        }
+    }
+
+    /** Build a tree from entries in strictly increasing key order, writing each node once, children before parents.
+     *  Nodes are filled as far as possible and the remainder spread evenly, so every node except the root is at least
+     *  half full.
+     *
+     * @param writer
+     * @param sorted
+     * @param storage
+     * @param cache
+     * @param maxChildren
+     * @return the root node, which has been written to storage
+     */
+    public static CompletableFuture<TreeNode> build(SigningPrivateKeyAndPublicHash writer,
+                                                    List<Pair<ByteArrayWrapper, Multihash>> sorted,
+                                                    ContentAddressedStorage storage,
+                                                    TreeNodeCache cache,
+                                                    int maxChildren) {
+        for (int i = 0; i < sorted.size(); i++) {
+            if (sorted.get(i).left.data.length == 0)
+                throw new IllegalStateException("Empty btree key!");
+            if (i > 0 && sorted.get(i - 1).left.compareTo(sorted.get(i).left) >= 0)
+                throw new IllegalStateException("Btree entries are not in strictly increasing key order at " + sorted.get(i).left);
+        }
+        int height = 1;
+        while (capacity(height, maxChildren) < sorted.size())
+            height++;
+        return build(writer, sorted, height, storage, cache, maxChildren);
+    }
+
+    /**
+     *
+     * @return the maximum number of entries in a tree of this height
+     */
+    private static long capacity(int height, int maxChildren) {
+        long nodes = 1;
+        for (int i = 0; i < height && nodes < Integer.MAX_VALUE; i++)
+            nodes *= maxChildren;
+        return nodes - 1;
+    }
+
+    private static CompletableFuture<TreeNode> build(SigningPrivateKeyAndPublicHash writer,
+                                                     List<Pair<ByteArrayWrapper, Multihash>> entries,
+                                                     int height,
+                                                     ContentAddressedStorage storage,
+                                                     TreeNodeCache cache,
+                                                     int maxChildren) {
+        if (height == 1) {
+            KeyElement[] leaf = new KeyElement[entries.size() + 1];
+            leaf[0] = zero(MaybeMultihash.empty());
+            for (int i = 0; i < entries.size(); i++)
+                leaf[i + 1] = new KeyElement(entries.get(i).left, entries.get(i).right, MaybeMultihash.empty());
+            return write(writer, leaf, storage, cache);
+        }
+        // use as few children as possible, with one separator between each pair of them
+        long childCapacity = capacity(height - 1, maxChildren);
+        int children = (int) ((entries.size() + childCapacity + 1) / (childCapacity + 1));
+        int inChildren = entries.size() - (children - 1);
+        List<List<Pair<ByteArrayWrapper, Multihash>>> childEntries = new ArrayList<>();
+        List<Pair<ByteArrayWrapper, Multihash>> separators = new ArrayList<>();
+        int index = 0;
+        for (int i = 0; i < children; i++) {
+            int size = inChildren / children + (i < inChildren % children ? 1 : 0);
+            childEntries.add(entries.subList(index, index + size));
+            index += size;
+            if (i + 1 < children)
+                separators.add(entries.get(index++));
+        }
+
+        // build one child at a time to bound the number of writes in flight
+        CompletableFuture<List<Multihash>> childHashes = CompletableFuture.completedFuture(new ArrayList<>());
+        for (List<Pair<ByteArrayWrapper, Multihash>> child : childEntries)
+            childHashes = childHashes.thenCompose(hashes -> build(writer, child, height - 1, storage, cache, maxChildren)
+                    .thenApply(node -> {
+                        hashes.add(node.hash.get());
+                        return hashes;
+                    }));
+        return childHashes.thenCompose(hashes -> {
+            KeyElement[] node = new KeyElement[children];
+            node[0] = zero(MaybeMultihash.of(hashes.get(0)));
+            for (int i = 0; i < separators.size(); i++)
+                node[i + 1] = new KeyElement(separators.get(i).left, separators.get(i).right, hashes.get(i + 1));
+            return write(writer, node, storage, cache);
+        });
+    }
+
     /**
      *  Print a representation of this btree to the print stream. This method is synchronous.
      * @param w
@@ -413,14 +558,14 @@ public class TreeNode implements Cborable {
             String tab = "";
             for (int i=0; i < depth; i++)
                 tab += "   ";
-            w.print(StringUtils.format(tab + "[%d/%d] %s : %s\n", index++, keys.size(), e.key.toString(), new ByteArrayWrapper(e.valueHash.serialize()).toString()));
+            w.print(StringUtils.format(tab + "[%d/%d] %s : %s\n", index++, keys.length, e.key.toString(), new ByteArrayWrapper(e.valueHash.serialize()).toString()));
             if (e.targetHash.isPresent())
                 TreeNode.fromCbor(storage.get(e.targetHash.get()).get().get()).print(w, depth + 1, storage);
         }
     }
 
     public CborObject toCbor() {
-        return new CborObject.CborList(keys.stream()
+        return new CborObject.CborList(Arrays.stream(keys)
                 .map(Cborable::toCbor)
                 .collect(Collectors.toList())
         );
@@ -429,11 +574,19 @@ public class TreeNode implements Cborable {
     public static TreeNode fromCbor(CborObject cbor) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Incorrect serialization for tree node! " + cbor);
-        TreeSet<KeyElement> sortedKeys = new TreeSet<>(((CborObject.CborList) cbor).value
-                .stream()
-                .map(KeyElement::fromCbor)
-                .collect(Collectors.toSet()));
-        return new TreeNode(sortedKeys);
+        List<? extends Cborable> elements = ((CborObject.CborList) cbor).value;
+        List<KeyElement> sorted = new ArrayList<>(elements.size() + 1);
+        for (Cborable element : elements)
+            sorted.add(KeyElement.fromCbor(element));
+        Collections.sort(sorted);
+        // keys are unique, and the empty key is always present
+        List<KeyElement> unique = new ArrayList<>(sorted.size() + 1);
+        for (KeyElement element : sorted)
+            if (unique.isEmpty() || ! unique.get(unique.size() - 1).key.equals(element.key))
+                unique.add(element);
+        if (unique.isEmpty() || unique.get(0).key.data.length > 0)
+            unique.add(0, zero(MaybeMultihash.empty()));
+        return new TreeNode(unique.toArray(new KeyElement[unique.size()]), MaybeMultihash.empty());
     }
 
     private static class KeyElement implements Cborable, Comparable<KeyElement> {
@@ -500,9 +653,5 @@ public class TreeNode implements Cborable {
                 return def.get();
             return converter.apply(values.get(key));
         }
-
-        static KeyElement dummy(ByteArrayWrapper key) {
-            return new KeyElement(key, MaybeMultihash.empty(), MaybeMultihash.empty());
-        }
     }
 }
@@ -0,0 +1,48 @@
+package peergos.shared.merklebtree;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Decoded tree nodes by hash. Nodes are immutable and content addressed, so one cache can be shared by any number of
+ *  trees, including trees in different storage.
+ */
+public class TreeNodeCache {
+    private final Map<Multihash, TreeNode> cache;
+
+    public TreeNodeCache(int maxSize) {
+        this.cache = new LRUCache<>(maxSize);
+    }
+
+    /**
+     *
+     * @param hash
+     * @param storage where to retrieve the node from if it isn't cached
+     * @return the decoded node, or empty if it isn't in the cache or storage
+     */
+    public CompletableFuture<Optional<TreeNode>> get(Multihash hash, ContentAddressedStorage storage) {
+        TreeNode cached;
+        synchronized (cache) {
+            cached = cache.get(hash);
+        }
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        return storage.get(hash)
+                .thenApply(rawOpt -> rawOpt.map(raw -> add(TreeNode.fromCbor(raw).withHash(hash))));
+    }
+
+    /**
+     *
+     * @param node a node which has been written to storage
+     * @return node
+     */
+    public TreeNode add(TreeNode node) {
+        synchronized (cache) {
+            cache.put(node.hash.get(), node);
+        }
+        return node;
+    }
+}
@@ -13,7 +13,8 @@ public class CachingPointers implements MutablePointers {
 
     private final MutablePointers target;
     private final int cacheTTL;
-    private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private static final int CACHE_SIZE = 1000;
+    private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new LRUCache<>(CACHE_SIZE);
 
     public CachingPointers(MutablePointers target, int cacheTTL) {
         this.target = target;
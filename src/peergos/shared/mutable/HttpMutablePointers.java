@@ -73,4 +73,32 @@ public class HttpMutablePointers implements MutablePointers
                 System.out.println("HttpMutablePointers.get took " + (t2 -t1) + "mS");
         }
     }
+
+    /** Wait for changes to the pointers of any of the given writers. This returns as soon as there are updates after
+     *  since, or after a server side timeout with no updates.
+     *
+     * @param epoch the epoch of since
+     * @param since the sequence number from the previous result, or -1 to get the current one
+     * @param writers
+     * @return
+     */
+    public CompletableFuture<PointerUpdates> watch(long epoch, long since, Set<PublicKeyHash> writers) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            dout.writeLong(epoch);
+            dout.writeLong(since);
+            dout.writeInt(writers.size());
+            for (PublicKeyHash writer : writers)
+                Serialize.serialize(writer.serialize(), dout);
+            dout.flush();
+
+            return poster.postUnzip("mutable/watch", bout.toByteArray())
+                    .thenApply(PointerUpdates::deserialize);
+        } catch (IOException ioe) {
+            CompletableFuture<PointerUpdates> res = new CompletableFuture<>();
+            res.completeExceptionally(ioe);
+            return res;
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/** The result of watching a set of writers for pointer changes
+ */
+public class PointerUpdates {
+    public static final int MAX_POINTER_SIZE = 4096;
+
+    // identifies the server's sequence of updates, which restarts from 0 in a new epoch
+    public final long epoch;
+    // the latest update the server had published when it replied
+    public final long sequence;
+    // if true the server couldn't tell which writers have changed, and all cached pointers must be dropped
+    public final boolean reset;
+    // the latest signed pointer of each watched writer which has changed
+    public final Map<PublicKeyHash, byte[]> updates;
+
+    public PointerUpdates(long epoch, long sequence, boolean reset, Map<PublicKeyHash, byte[]> updates) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.reset = reset;
+        this.updates = updates;
+    }
+
+    public static PointerUpdates reset(long epoch, long sequence) {
+        return new PointerUpdates(epoch, sequence, true, Collections.emptyMap());
+    }
+
+    public byte[] serialize() {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            dout.writeLong(epoch);
+            dout.writeLong(sequence);
+            dout.writeBoolean(reset);
+            dout.writeInt(updates.size());
+            for (Map.Entry<PublicKeyHash, byte[]> update : updates.entrySet()) {
+                Serialize.serialize(update.getKey().serialize(), dout);
+                Serialize.serialize(update.getValue(), dout);
+            }
+            dout.flush();
+            return bout.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static PointerUpdates deserialize(byte[] raw) {
+        try {
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+            long epoch = din.readLong();
+            long sequence = din.readLong();
+            boolean reset = din.readBoolean();
+            int count = din.readInt();
+            Map<PublicKeyHash, byte[]> updates = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                PublicKeyHash writer = PublicKeyHash.fromCbor(CborObject.fromByteArray(
+                        Serialize.deserializeByteArray(din, PublicKeyHash.MAX_KEY_HASH_SIZE)));
+                updates.put(writer, Serialize.deserializeByteArray(din, MAX_POINTER_SIZE));
+            }
+            return new PointerUpdates(epoch, sequence, reset, updates);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
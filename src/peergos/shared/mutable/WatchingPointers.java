@@ -0,0 +1,181 @@
+package peergos.shared.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Caches pointers for writers which are being watched for changes with a long poll to the server, so a cached pointer
+ *  is updated as soon as the server publishes a change, rather than being re-read after a fixed TTL.
+ *
+ *  A pointer is only cached once a poll which includes its writer is in flight. Writers which are read while a poll is
+ *  in flight are added to the next one. If a poll fails the cache is dropped, and polling restarts on the next read.
+ */
+public class WatchingPointers implements MutablePointers {
+    private static final int CACHE_SIZE = 1000;
+
+    private final HttpMutablePointers target;
+    private final Executor poller;
+    private final List<Consumer<Set<PublicKeyHash>>> listeners = new ArrayList<>();
+
+    // everything below is guarded by this
+    private final Map<PublicKeyHash, Optional<byte[]>> cache = new LRUCache<>(CACHE_SIZE);
+    // writers to include in the next poll
+    private final Set<PublicKeyHash> pending = new HashSet<>();
+    // writers we have changed during the current poll, whose updates in its result might be stale
+    private final Set<PublicKeyHash> invalidated = new HashSet<>();
+    private Set<PublicKeyHash> polling = Collections.emptySet();
+    private long generation = 0;
+    private boolean isPolling = false;
+    private long epoch = 0, sequence = -1;
+
+    /**
+     *
+     * @param target
+     * @param poller runs each poll, which may block until the server replies
+     */
+    public WatchingPointers(HttpMutablePointers target, Executor poller) {
+        this.target = target;
+        this.poller = poller;
+    }
+
+    /**
+     *
+     * @param listener called with writers whose pointers have been changed by someone else, or which may have
+     *                 changed without us seeing the update
+     */
+    public synchronized void addChangeListener(Consumer<Set<PublicKeyHash>> listener) {
+        listeners.add(listener);
+    }
+
+    private void changed(Set<PublicKeyHash> writers) {
+        if (writers.isEmpty())
+            return;
+        List<Consumer<Set<PublicKeyHash>>> toNotify;
+        synchronized (this) {
+            toNotify = new ArrayList<>(listeners);
+        }
+        for (Consumer<Set<PublicKeyHash>> listener : toNotify)
+            listener.accept(writers);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+        long requestGeneration;
+        boolean isWatched;
+        synchronized (this) {
+            Optional<byte[]> cached = cache.get(writer);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+            isWatched = polling.contains(writer);
+            if (! isWatched)
+                pending.add(writer);
+            requestGeneration = generation;
+            startPolling();
+        }
+        return target.getPointer(writer).thenApply(pointer -> {
+            synchronized (this) {
+                // only cache if any later change will be seen by the current poll
+                if (isWatched && requestGeneration == generation && ! invalidated.contains(writer) && ! cache.containsKey(writer))
+                    cache.put(writer, pointer);
+            }
+            return pointer;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        synchronized (this) {
+            cache.remove(writer);
+        }
+        return target.setPointer(owner, writer, writerSignedBtreeRootHash).thenApply(res -> {
+            synchronized (this) {
+                cache.remove(writer);
+                invalidated.add(writer);
+            }
+            return res;
+        });
+    }
+
+    private synchronized void startPolling() {
+        if (isPolling)
+            return;
+        isPolling = true;
+        poller.execute(this::poll);
+    }
+
+    private void poll() {
+        long pollEpoch, since;
+        Set<PublicKeyHash> writers;
+        synchronized (this) {
+            generation++;
+            invalidated.clear();
+            if (sequence < 0) {
+                // get the current sequence number before watching anything
+                polling = Collections.emptySet();
+            } else {
+                Set<PublicKeyHash> all = new HashSet<>(cache.keySet());
+                all.addAll(pending);
+                pending.clear();
+                if (all.isEmpty()) {
+                    // nothing to watch, start again on the next read
+                    polling = Collections.emptySet();
+                    isPolling = false;
+                    return;
+                }
+                polling = all;
+            }
+            writers = polling;
+            pollEpoch = epoch;
+            since = sequence;
+        }
+        target.watch(pollEpoch, since, writers)
+                .thenApply(updates -> {
+                    changed(apply(updates));
+                    poller.execute(this::poll);
+                    return true;
+                }).exceptionally(t -> {
+                    changed(disconnect());
+                    return false;
+                });
+    }
+
+    /**
+     *
+     * @return the writers which have changed
+     */
+    private synchronized Set<PublicKeyHash> apply(PointerUpdates result) {
+        Set<PublicKeyHash> changed = new HashSet<>();
+        if (result.reset) {
+            changed.addAll(polling);
+            pending.addAll(polling);
+            cache.clear();
+        } else {
+            for (Map.Entry<PublicKeyHash, byte[]> update : result.updates.entrySet())
+                if (! invalidated.contains(update.getKey())) {
+                    cache.put(update.getKey(), Optional.of(update.getValue()));
+                    changed.add(update.getKey());
+                }
+        }
+        epoch = result.epoch;
+        sequence = result.sequence;
+        return changed;
+    }
+
+    /**
+     *
+     * @return the writers which were being watched
+     */
+    private synchronized Set<PublicKeyHash> disconnect() {
+        Set<PublicKeyHash> watched = polling;
+        pending.addAll(polling);
+        polling = Collections.emptySet();
+        cache.clear();
+        generation++;
+        sequence = -1;
+        isPolling = false;
+        return watched;
+    }
+}
@@ -9,20 +9,31 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public class CachingStorage implements ContentAddressedStorage {
+    private static final int CACHE_STRIPES = 16;
+
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final StripedLRUCache<Multihash, byte[]> cache;
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new HashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new HashMap<>();
     private final int maxValueSize;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target The storage to read uncached blocks from, and to write blocks to
+     * @param maxCacheBytes The total size of all the cached blocks
+     * @param maxValueSize Blocks larger than this are not cached
+     */
+    public CachingStorage(ContentAddressedStorage target, long maxCacheBytes, int maxValueSize) {
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new StripedLRUCache<>(CACHE_STRIPES, maxCacheBytes, value -> value.length);
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+    }
+
+    public StripedLRUCache<Multihash, byte[]> getCache() {
+        return cache;
     }
 
     @Override
@@ -32,32 +43,11 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached.get())));
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+        return coalesce(pending, key, () -> target.get(key), cborOpt -> cborOpt.ifPresent(cbor -> cache(key, cbor.toByteArray())));
     }
 
     @Override
@@ -67,28 +57,108 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
-
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
+
+        return coalesce(pendingRaw, key, () -> target.getRaw(key), rawOpt -> rawOpt.ifPresent(raw -> cache(key, raw)));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> keys) {
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>(keys.size());
+        List<Multihash> toFetch = new ArrayList<>();
+        List<CompletableFuture<Optional<byte[]>>> pipes = new ArrayList<>();
+        for (Multihash key : keys) {
+            Optional<byte[]> cached = cache.get(key);
+            if (cached.isPresent()) {
+                results.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            synchronized (pendingRaw) {
+                CompletableFuture<Optional<byte[]>> inFlight = pendingRaw.get(key);
+                if (inFlight != null) {
+                    results.add(inFlight);
+                    continue;
+                }
+                CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+                pendingRaw.put(key, pipe);
+                results.add(pipe);
+                toFetch.add(key);
+                pipes.add(pipe);
+            }
+        }
+
+        if (! toFetch.isEmpty()) {
+            // retrieve all the blocks we don't have and nobody else is retrieving in a single request
+            Consumer<Throwable> fail = t -> {
+                synchronized (pendingRaw) {
+                    toFetch.forEach(pendingRaw::remove);
+                }
+                pipes.forEach(pipe -> pipe.completeExceptionally(t));
+            };
+            try {
+                target.getRaw(toFetch).thenAccept(blocks -> {
+                    for (int i = 0; i < toFetch.size(); i++) {
+                        Multihash key = toFetch.get(i);
+                        Optional<byte[]> block = blocks.get(i);
+                        block.ifPresent(raw -> cache(key, raw));
+                        synchronized (pendingRaw) {
+                            pendingRaw.remove(key);
+                        }
+                        pipes.get(i).complete(block);
+                    }
+                }).exceptionally(t -> {
+                    fail.accept(t);
+                    return null;
+                });
+            } catch (Throwable t) {
+                fail.accept(t);
+            }
+        }
+        return Futures.combineAllInOrder(results);
+    }
+
+    private void cache(Multihash key, byte[] value) {
+        if (value.length > 0 && value.length < maxValueSize)
+            cache.put(key, value);
+    }
+
+    /** Ensure there is only ever a single request to the target in flight for a given key.
+     */
+    private static <V> CompletableFuture<V> coalesce(Map<Multihash, CompletableFuture<V>> pending,
+                                                     Multihash key,
+                                                     Supplier<CompletableFuture<V>> retriever,
+                                                     Consumer<V> onSuccess) {
+        CompletableFuture<V> pipe = new CompletableFuture<>();
+        synchronized (pending) {
+            CompletableFuture<V> inFlight = pending.get(key);
+            if (inFlight != null)
+                return inFlight;
+            pending.put(key, pipe);
+        }
+
+        try {
+            retriever.get().thenAccept(res -> {
+                onSuccess.accept(res);
+                synchronized (pending) {
+                    pending.remove(key);
+                }
+                pipe.complete(res);
+            }).exceptionally(t -> {
+                synchronized (pending) {
+                    pending.remove(key);
+                }
+                pipe.completeExceptionally(t);
+                return null;
+            });
+        } catch (Throwable t) {
+            synchronized (pending) {
+                pending.remove(key);
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
-            return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
             pipe.completeExceptionally(t);
-            return null;
-        });
+        }
+        return pipe;
     }
 
     @Override
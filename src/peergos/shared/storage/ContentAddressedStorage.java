@@ -45,6 +45,17 @@ public interface ContentAddressedStorage {
 
     CompletableFuture<Optional<byte[]>> getRaw(Multihash object);
 
+    /** Retrieve many blocks at once, allowing implementations to batch requests
+     *
+     * @param objects
+     * @return the blocks in the same order as the requested hashes
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> objects) {
+        return Futures.combineAllInOrder(objects.stream()
+                .map(h -> getRaw(h))
+                .collect(Collectors.toList()));
+    }
+
     CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated);
 
     CompletableFuture<List<Multihash>> recursivePin(Multihash h);
@@ -95,45 +106,22 @@ public interface ContentAddressedStorage {
         });
     }
 
+    /**
+     *
+     * @param original
+     * @param updated
+     * @return the blocks reachable from updated but not original, and vice versa
+     */
+    default CompletableFuture<DagDiff> getDiff(MaybeMultihash original, Multihash updated) {
+        return DagDiff.compute(this, original, updated);
+    }
+
     default CompletableFuture<Long> getChangeInContainedSize(MaybeMultihash original, Multihash updated) {
-        // TODO optimise cases which result from btree rebalancing or splitting
-        if (! original.isPresent())
-            return getRecursiveBlockSize(updated);
-        return getChangeInContainedSize(original.get(), updated);
+        return getDiff(original, updated).thenApply(DagDiff::sizeChange);
     }
 
     default CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
-        return getLinksAndSize(original)
-                .thenCompose(before -> getLinksAndSize(updated).thenCompose(after -> {
-                    int objectDelta = after.left - before.left;
-                    List<Multihash> onlyBefore = new ArrayList<>(before.right);
-                    onlyBefore.removeAll(after.right);
-                    List<Multihash> onlyAfter = new ArrayList<>(after.right);
-                    onlyAfter.removeAll(before.right);
-
-                    int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
-                    List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
-                            .mapToObj(i -> new Pair<>(onlyBefore.get(i), onlyAfter.get(i)))
-                            .collect(Collectors.toList());
-
-                    List<Multihash> extraBefore = onlyBefore.subList(nPairs, onlyBefore.size());
-                    List<Multihash> extraAfter = onlyAfter.subList(nPairs, onlyAfter.size());
-                    Function<List<Multihash>, CompletableFuture<Long>> getAllRecursiveSizes =
-                            extra -> Futures.reduceAll(extra,
-                                    0L,
-                                    (s, h) -> getRecursiveBlockSize(h).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-
-                    Function<List<Pair<Multihash, Multihash>>, CompletableFuture<Long>> getSizeDiff =
-                            ps -> Futures.reduceAll(ps,
-                                    0L,
-                                    (s, p) -> getChangeInContainedSize(p.left, p.right).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-                    return getAllRecursiveSizes.apply(extraBefore)
-                            .thenCompose(priorSize -> getAllRecursiveSizes.apply(extraAfter)
-                                    .thenApply(postSize -> postSize - priorSize + objectDelta))
-                            .thenCompose(total -> getSizeDiff.apply(pairs).thenApply(res -> res + total));
-                }));
+        return getChangeInContainedSize(MaybeMultihash.of(original), updated);
     }
 
     default CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
@@ -142,6 +130,7 @@ public interface ContentAddressedStorage {
     }
 
     class HTTP implements ContentAddressedStorage {
+        private static final int MAX_BLOCKS_PER_REQUEST = 50;
 
         private final HttpPoster poster;
         private final String apiPrefix = "api/v0/";
@@ -177,6 +166,17 @@ public interface ContentAddressedStorage {
         }
 
         private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, String format) {
+            if (blocks.size() > MAX_BLOCKS_PER_REQUEST) {
+                List<CompletableFuture<List<Multihash>>> batches = new ArrayList<>();
+                for (int i = 0; i < blocks.size(); i += MAX_BLOCKS_PER_REQUEST) {
+                    int end = Math.min(i + MAX_BLOCKS_PER_REQUEST, blocks.size());
+                    batches.add(put(writer, signatures.subList(i, end), blocks.subList(i, end), format));
+                }
+                return Futures.combineAllInOrder(batches)
+                        .thenApply(results -> results.stream()
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()));
+            }
             return poster.postMultipart(apiPrefix + "block/put?format=" + format
                     + "&writer=" + encode(writer.toString())
                     + "&signatures=" + signatures.stream().map(ArrayOps::bytesToHex).reduce("", (a, b) -> a + "," + b).substring(1), blocks)
@@ -198,6 +198,39 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> hashes) {
+            if (hashes.size() > MAX_BLOCKS_PER_REQUEST) {
+                List<CompletableFuture<List<Optional<byte[]>>>> batches = new ArrayList<>();
+                for (int i = 0; i < hashes.size(); i += MAX_BLOCKS_PER_REQUEST)
+                    batches.add(getRaw(hashes.subList(i, Math.min(i + MAX_BLOCKS_PER_REQUEST, hashes.size()))));
+                return Futures.combineAllInOrder(batches)
+                        .thenApply(results -> results.stream()
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()));
+            }
+            if (hashes.isEmpty())
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            String args = hashes.stream()
+                    .map(h -> "&arg=" + h.toString())
+                    .collect(Collectors.joining());
+            return poster.get(apiPrefix + "block/getMany?stream-channels=true" + args)
+                    .thenApply(raw -> {
+                        // each block is length prefixed, with missing blocks having length 0
+                        DataSource source = new DataSource(raw);
+                        List<Optional<byte[]>> res = new ArrayList<>(hashes.size());
+                        try {
+                            for (int i = 0; i < hashes.size(); i++) {
+                                byte[] block = source.readArray();
+                                res.add(block.length == 0 ? Optional.empty() : Optional.of(block));
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return res;
+                    });
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(Multihash hash) {
             return poster.get(apiPrefix + "pin/add?stream-channels=true&arg=" + hash.toString())
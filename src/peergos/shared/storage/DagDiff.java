@@ -0,0 +1,129 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** The blocks which are reachable from one root, but not another, e.g. before and after a btree update.
+ *
+ *  Both DAGs are walked in lockstep, a level at a time. A block reached from both roots is shared, and neither it nor
+ *  anything below it is traversed any further. This means the cost of a diff is proportional to the size of the change
+ *  rather than the size of the trees, even when a btree rebalance or split moves an unchanged subtree to a different
+ *  depth. Every block is retrieved at most once per diff.
+ *
+ *  A block which is referenced from several places is counted once. If such a block is only found below a shared
+ *  subtree on one side, that side never looks beneath the shared subtree, so the block is reported as added or
+ *  removed.
+ */
+public class DagDiff {
+    public final Set<Multihash> added, removed;
+    public final long addedSize, removedSize;
+
+    public DagDiff(Set<Multihash> added, Set<Multihash> removed, long addedSize, long removedSize) {
+        this.added = added;
+        this.removed = removed;
+        this.addedSize = addedSize;
+        this.removedSize = removedSize;
+    }
+
+    public long sizeChange() {
+        return addedSize - removedSize;
+    }
+
+    public static CompletableFuture<DagDiff> compute(ContentAddressedStorage dht, MaybeMultihash original, Multihash updated) {
+        if (original.isPresent() && original.get().equals(updated))
+            return CompletableFuture.completedFuture(new DagDiff(Collections.emptySet(), Collections.emptySet(), 0, 0));
+        Walk walk = new Walk(dht);
+        List<Multihash> before = original.isPresent() ?
+                Collections.singletonList(original.get()) :
+                Collections.emptyList();
+        return walk.step(before, Collections.singletonList(updated))
+                .thenApply(done -> walk.result());
+    }
+
+    private static class Walk {
+        private final ContentAddressedStorage dht;
+        // the links and size of every block retrieved so far, from either side
+        private final Map<Multihash, List<Multihash>> links = new HashMap<>();
+        private final Map<Multihash, Integer> sizes = new HashMap<>();
+        private final Set<Multihash> before = new HashSet<>(), after = new HashSet<>(), shared = new HashSet<>();
+
+        Walk(ContentAddressedStorage dht) {
+            this.dht = dht;
+        }
+
+        /** Mark a block and everything below it that we have already retrieved as shared
+         */
+        private void markShared(Multihash block) {
+            LinkedList<Multihash> toMark = new LinkedList<>();
+            toMark.add(block);
+            while (! toMark.isEmpty()) {
+                Multihash next = toMark.removeFirst();
+                if (shared.add(next))
+                    toMark.addAll(links.getOrDefault(next, Collections.emptyList()));
+            }
+        }
+
+        private void visit(List<Multihash> frontier, Set<Multihash> ours, Set<Multihash> theirs, List<Multihash> toExpand) {
+            for (Multihash block : frontier) {
+                if (shared.contains(block) || ours.contains(block))
+                    continue;
+                if (theirs.contains(block)) {
+                    markShared(block);
+                    continue;
+                }
+                ours.add(block);
+                toExpand.add(block);
+            }
+        }
+
+        private List<Multihash> children(List<Multihash> expanded, Set<Multihash> side) {
+            return expanded.stream()
+                    .filter(side::contains)
+                    .flatMap(block -> links.get(block).stream())
+                    .filter(child -> ! shared.contains(child))
+                    .collect(Collectors.toList());
+        }
+
+        CompletableFuture<Boolean> step(List<Multihash> beforeFrontier, List<Multihash> afterFrontier) {
+            List<Multihash> toExpand = new ArrayList<>();
+            visit(afterFrontier, after, before, toExpand);
+            visit(beforeFrontier, before, after, toExpand);
+            // blocks can become shared after being queued in this level
+            List<Multihash> expanding = toExpand.stream()
+                    .filter(block -> ! shared.contains(block))
+                    .collect(Collectors.toList());
+            if (expanding.isEmpty())
+                return CompletableFuture.completedFuture(true);
+
+            List<CompletableFuture<Pair<Multihash, Pair<Integer, List<Multihash>>>>> retrieved = expanding.stream()
+                    .map(block -> dht.getLinksAndSize(block).thenApply(p -> new Pair<>(block, p)))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(retrieved).thenCompose(results -> {
+                for (Pair<Multihash, Pair<Integer, List<Multihash>>> result : results) {
+                    sizes.put(result.left, result.right.left);
+                    links.put(result.left, result.right.right);
+                }
+                return step(children(expanding, before), children(expanding, after));
+            });
+        }
+
+        private long totalSize(Set<Multihash> blocks) {
+            return blocks.stream().mapToLong(sizes::get).sum();
+        }
+
+        DagDiff result() {
+            Set<Multihash> added = after.stream()
+                    .filter(block -> ! shared.contains(block))
+                    .collect(Collectors.toSet());
+            Set<Multihash> removed = before.stream()
+                    .filter(block -> ! shared.contains(block))
+                    .collect(Collectors.toSet());
+            return new DagDiff(added, removed, totalSize(added), totalSize(removed));
+        }
+    }
+}
@@ -63,6 +63,14 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
                 .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> bytes)));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRaw(List<Multihash> hashes) {
+        return source.getRaw(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> blocks.get(i).map(bytes -> verify(bytes, hashes.get(i), () -> bytes)))
+                        .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
         return source.pinUpdate(existing, updated);
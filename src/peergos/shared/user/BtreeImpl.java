@@ -11,12 +11,18 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public class BtreeImpl implements Btree {
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private static final boolean LOGGING = false;
+    private static final int NODE_CACHE_SIZE = 1000;
     private final Map<PublicKeyHash, CompletableFuture<CommittedWriterData>> pending = new HashMap<>();
+    // mutations waiting for the current transaction of their writer to finish, guarded by pending
+    private final Map<PublicKeyHash, Batch> batches = new HashMap<>();
+    // decoded tree nodes, shared between sessions
+    private final TreeNodeCache nodeCache = new TreeNodeCache(NODE_CACHE_SIZE);
 
     public BtreeImpl(MutablePointers mutable, ContentAddressedStorage dht) {
         this.mutable = mutable;
@@ -66,28 +72,8 @@ public class BtreeImpl implements Btree {
 
     @Override
     public CompletableFuture<Boolean> put(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing, Multihash value) {
-        PublicKeyHash publicWriterKey = writer.publicKeyHash;
-        CompletableFuture<CommittedWriterData> lock = new CompletableFuture<>();
-
-        return addToQueue(publicWriterKey, lock)
-                .thenCompose(committed -> {
-                    WriterData holder = committed.props;
-                    return (holder.btree.isPresent() ?
-                            MerkleBTree.create(writer.publicKeyHash, holder.btree.get(), dht) :
-                            MerkleBTree.create(writer, dht))
-                            .thenCompose(btree -> btree.put(writer, mapKey, existing, value))
-                            .thenApply(newRoot -> LOGGING ? log(newRoot, "BTREE.put (" + ArrayOps.bytesToHex(mapKey)
-                                    + ", " + value + ") => CAS(" + holder.btree + ", " + newRoot + ")") : newRoot)
-                            .thenCompose(newBtreeRoot -> holder.withBtree(newBtreeRoot)
-                                    .commit(writer, committed.hash, mutable, dht, lock::complete))
-                            .thenApply(x -> true)
-                            .exceptionally(e -> {
-                                lock.complete(committed);
-                                if (e instanceof RuntimeException)
-                                    throw (RuntimeException) e;
-                                throw new RuntimeException(e);
-                            });
-                });
+        return submit(writer, session -> session.put(mapKey, existing, value)
+                .thenApply(res -> LOGGING ? log(res, "BTREE.put (" + ArrayOps.bytesToHex(mapKey) + ", " + value + ")") : res));
     }
 
     @Override
@@ -100,8 +86,7 @@ public class BtreeImpl implements Btree {
                     WriterData holder = committed.props;
                     if (! holder.btree.isPresent())
                         throw new IllegalStateException("Btree root not present for " + writer);
-                    return MerkleBTree.create(writer, holder.btree.get(), dht)
-                            .thenCompose(btree -> btree.get(mapKey))
+                    return BtreeSession.get(writer, holder.btree.get(), mapKey, dht, nodeCache)
                             .thenApply(maybe -> LOGGING ?
                                     log(maybe, "BTREE.get (" + ArrayOps.bytesToHex(mapKey) + ", root="+holder.btree.get()+" => " + maybe) : maybe);
                 });
@@ -109,20 +94,92 @@ public class BtreeImpl implements Btree {
 
     @Override
     public CompletableFuture<Boolean> remove(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing) {
-        PublicKeyHash publicWriter = writer.publicKeyHash;
-        CompletableFuture<CommittedWriterData> future = new CompletableFuture<>();
+        return submit(writer, session -> session.remove(mapKey, existing)
+                .thenApply(res -> LOGGING ? log(res, "BTREE.rm (" + ArrayOps.bytesToHex(mapKey) + ")") : res));
+    }
 
-        return addToQueue(publicWriter, future)
-                .thenCompose(committed -> {
-                    WriterData holder = committed.props;
-                    if (! holder.btree.isPresent())
-                        throw new IllegalStateException("Btree root not present!");
-                    return MerkleBTree.create(writer.publicKeyHash, holder.btree.get(), dht)
-                            .thenCompose(btree -> btree.delete(writer, mapKey, existing))
-                            .thenApply(pair -> LOGGING ? log(pair, "BTREE.rm (" + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
-                            .thenCompose(newBtreeRoot -> holder.withBtree(newBtreeRoot)
-                                    .commit(writer, committed.hash, mutable, dht, future::complete))
-                            .thenApply(x -> true);
+    /** Add a mutation to the batch waiting for the writer's current transaction. If there isn't one start a new batch.
+     *  All the mutations in a batch are applied in a single BtreeSession, with one commit.
+     */
+    private CompletableFuture<Boolean> submit(SigningPrivateKeyAndPublicHash writer,
+                                              Function<BtreeSession, CompletableFuture<Boolean>> operation) {
+        PublicKeyHash publicWriterKey = writer.publicKeyHash;
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        synchronized (pending) {
+            Batch waiting = batches.get(publicWriterKey);
+            if (waiting != null) {
+                waiting.add(operation, result);
+                return result;
+            }
+            Batch batch = new Batch(writer);
+            batch.add(operation, result);
+            batches.put(publicWriterKey, batch);
+            CompletableFuture<CommittedWriterData> lock = new CompletableFuture<>();
+            addToQueue(publicWriterKey, lock)
+                    .thenCompose(committed -> apply(batch, committed, lock))
+                    .exceptionally(e -> {
+                        batch.fail(e);
+                        return true;
+                    });
+        }
+        return result;
+    }
+
+    private CompletableFuture<Boolean> apply(Batch batch, CommittedWriterData committed, CompletableFuture<CommittedWriterData> lock) {
+        List<Function<BtreeSession, CompletableFuture<Boolean>>> operations;
+        synchronized (pending) {
+            // later mutations will form a new batch
+            if (batches.get(batch.writer.publicKeyHash) == batch)
+                batches.remove(batch.writer.publicKeyHash);
+            operations = new ArrayList<>(batch.operations);
+        }
+        return BtreeSession.start(batch.writer, committed, mutable, dht, nodeCache)
+                .thenCompose(session -> {
+                    List<CompletableFuture<Boolean>> applied = new ArrayList<>();
+                    for (Function<BtreeSession, CompletableFuture<Boolean>> operation : operations)
+                        applied.add(operation.apply(session));
+                    return session.commit(lock::complete)
+                            .thenApply(newCommitted -> {
+                                if (LOGGING)
+                                    log(newCommitted, "BTREE.commit " + operations.size() + " changes => " + newCommitted.props.btree);
+                                batch.complete(applied);
+                                return true;
+                            });
+                })
+                .exceptionally(e -> {
+                    lock.complete(committed);
+                    batch.fail(e);
+                    return true;
                 });
     }
+
+    private static class Batch {
+        final SigningPrivateKeyAndPublicHash writer;
+        final List<Function<BtreeSession, CompletableFuture<Boolean>>> operations = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+
+        Batch(SigningPrivateKeyAndPublicHash writer) {
+            this.writer = writer;
+        }
+
+        void add(Function<BtreeSession, CompletableFuture<Boolean>> operation, CompletableFuture<Boolean> result) {
+            operations.add(operation);
+            results.add(result);
+        }
+
+        // each operation gets its own result, which may be a failure like a CasException
+        void complete(List<CompletableFuture<Boolean>> applied) {
+            for (int i = 0; i < applied.size(); i++) {
+                CompletableFuture<Boolean> result = results.get(i);
+                applied.get(i)
+                        .thenApply(result::complete)
+                        .exceptionally(result::completeExceptionally);
+            }
+        }
+
+        void fail(Throwable cause) {
+            for (CompletableFuture<Boolean> result : results)
+                result.completeExceptionally(cause);
+        }
+    }
 }
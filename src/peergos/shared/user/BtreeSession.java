@@ -0,0 +1,239 @@
+package peergos.shared.user;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A sequence of btree mutations by one writer, applied in order to an in memory copy of the tree and committed
+ *  together. Decoded tree nodes are read through a shared cache, and new nodes are only hashed locally. On commit the new nodes which
+ *  are still reachable from the final root are signed and written in one bulk put, followed by a single WriterData
+ *  commit, so n puts cost one pointer update rather than n.
+ */
+public class BtreeSession {
+    private final SigningPrivateKeyAndPublicHash writer;
+    private final CommittedWriterData base;
+    private final MutablePointers mutable;
+    private final ContentAddressedStorage dht;
+    private final NodeBuffer buffer;
+    private final MerkleBTree tree;
+    private final MaybeMultihash originalRoot;
+    private CompletableFuture<Boolean> last = CompletableFuture.completedFuture(true);
+    private boolean isCommitted = false;
+
+    private BtreeSession(SigningPrivateKeyAndPublicHash writer,
+                         CommittedWriterData base,
+                         MutablePointers mutable,
+                         ContentAddressedStorage dht,
+                         NodeBuffer buffer,
+                         MerkleBTree tree) {
+        this.writer = writer;
+        this.base = base;
+        this.mutable = mutable;
+        this.dht = dht;
+        this.buffer = buffer;
+        this.tree = tree;
+        this.originalRoot = base.props.btree.map(MaybeMultihash::of).orElse(MaybeMultihash.empty());
+    }
+
+    /**
+     *
+     * @param writer
+     * @param base the current WriterData for writer, which the session's changes will replace
+     * @param mutable
+     * @param dht
+     * @param nodeCache decoded tree nodes, which may be shared between sessions
+     * @return
+     */
+    public static CompletableFuture<BtreeSession> start(SigningPrivateKeyAndPublicHash writer,
+                                                        CommittedWriterData base,
+                                                        MutablePointers mutable,
+                                                        ContentAddressedStorage dht,
+                                                        TreeNodeCache nodeCache) {
+        NodeBuffer buffer = new NodeBuffer(dht);
+        return (base.props.btree.isPresent() ?
+                MerkleBTree.create(writer.publicKeyHash, base.props.btree.get(), buffer, nodeCache) :
+                MerkleBTree.create(writer, buffer, nodeCache))
+                .thenApply(tree -> new BtreeSession(writer, base, mutable, dht, buffer, tree));
+    }
+
+    /** Look up a key in a committed tree, reading nodes through nodeCache
+     */
+    public static CompletableFuture<MaybeMultihash> get(PublicKeyHash writer,
+                                                        Multihash root,
+                                                        byte[] mapKey,
+                                                        ContentAddressedStorage dht,
+                                                        TreeNodeCache nodeCache) {
+        return MerkleBTree.create(writer, root, dht, nodeCache)
+                .thenCompose(tree -> tree.get(mapKey));
+    }
+
+    private synchronized <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> operation) {
+        if (isCommitted)
+            throw new IllegalStateException("Btree session has already been committed!");
+        // a failed operation doesn't prevent later ones
+        CompletableFuture<T> result = last.thenCompose(x -> operation.get());
+        last = result.thenApply(x -> true).exceptionally(t -> true);
+        return result;
+    }
+
+    public CompletableFuture<Boolean> put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+        return enqueue(() -> tree.put(writer, mapKey, existing, value).thenApply(newRoot -> true));
+    }
+
+    public CompletableFuture<Boolean> remove(byte[] mapKey, MaybeMultihash existing) {
+        return enqueue(() -> tree.delete(writer, mapKey, existing).thenApply(newRoot -> true));
+    }
+
+    /**
+     *
+     * @param mapKey
+     * @return the value under mapKey including any uncommitted changes in this session
+     */
+    public CompletableFuture<MaybeMultihash> get(byte[] mapKey) {
+        return enqueue(() -> tree.get(mapKey));
+    }
+
+    /** Write the new tree nodes and commit the new root, after all the queued operations have completed. No more
+     *  operations can be added to this session.
+     *
+     * @param updater called with the new WriterData as soon as it is committed
+     * @return the new WriterData, or the original one if nothing changed
+     */
+    public synchronized CompletableFuture<CommittedWriterData> commit(Consumer<CommittedWriterData> updater) {
+        isCommitted = true;
+        return last.thenCompose(x -> {
+            MaybeMultihash newRoot = tree.root.hash;
+            if (newRoot.equals(originalRoot)) {
+                updater.accept(base);
+                return CompletableFuture.completedFuture(base);
+            }
+            return buffer.flush(writer, newRoot.get())
+                    .thenCompose(written -> base.props.withBtree(newRoot.get())
+                            .commit(writer, base.hash, mutable, dht, updater));
+        });
+    }
+
+    /** Holds new nodes in memory until they are flushed
+     */
+    private static class NodeBuffer implements ContentAddressedStorage {
+        private final ContentAddressedStorage source;
+        private final Map<Multihash, byte[]> dirty = new HashMap<>();
+        private final Map<Multihash, byte[]> signatures = new HashMap<>();
+
+        NodeBuffer(ContentAddressedStorage source) {
+            this.source = source;
+        }
+
+        private static Multihash hash(byte[] block) {
+            return new Cid(1, Cid.Codec.DagCbor, new Multihash(Multihash.Type.sha2_256, Hash.sha256(block)));
+        }
+
+        private synchronized Multihash buffer(byte[] block) {
+            Multihash hash = hash(block);
+            dirty.put(hash, block);
+            return hash;
+        }
+
+        @Override
+        public CompletableFuture<Multihash> put(SigningPrivateKeyAndPublicHash writer, byte[] block) {
+            // only nodes which survive to the end of the session need to be signed
+            return CompletableFuture.completedFuture(buffer(block));
+        }
+
+        @Override
+        public synchronized CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+            List<Multihash> res = new ArrayList<>();
+            for (int i = 0; i < blocks.size(); i++) {
+                Multihash hash = buffer(blocks.get(i));
+                this.signatures.put(hash, signatures.get(i));
+                res.add(hash);
+            }
+            return CompletableFuture.completedFuture(res);
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+            synchronized (this) {
+                byte[] block = dirty.get(hash);
+                if (block != null)
+                    return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(block)));
+            }
+            return source.get(hash);
+        }
+
+        /** Write the buffered nodes reachable from root to the underlying storage in one bulk put
+         */
+        synchronized CompletableFuture<Boolean> flush(SigningPrivateKeyAndPublicHash writer, Multihash root) {
+            List<Multihash> toWrite = new ArrayList<>();
+            Set<Multihash> seen = new HashSet<>();
+            LinkedList<Multihash> queue = new LinkedList<>();
+            queue.add(root);
+            while (! queue.isEmpty()) {
+                Multihash hash = queue.removeFirst();
+                byte[] block = dirty.get(hash);
+                if (block == null || ! seen.add(hash))
+                    continue;
+                toWrite.add(hash);
+                queue.addAll(CborObject.fromByteArray(block).links());
+            }
+            List<byte[]> blocks = new ArrayList<>(), sigs = new ArrayList<>();
+            for (Multihash hash : toWrite) {
+                byte[] block = dirty.get(hash);
+                blocks.add(block);
+                byte[] signature = signatures.get(hash);
+                sigs.add(signature != null ? signature : writer.secret.signatureOnly(block));
+            }
+            return source.put(writer.publicKeyHash, sigs, blocks).thenApply(written -> {
+                if (! written.equals(toWrite))
+                    throw new IllegalStateException("Storage returned different hashes for btree nodes! " + written);
+                return true;
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+            return source.putRaw(writer, signatures, blocks);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
+            return source.getRaw(object);
+        }
+
+        @Override
+        public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
+            return source.pinUpdate(existing, updated);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
+            return source.recursivePin(h);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
+            return source.recursiveUnpin(h);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+            return source.getLinks(root);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+            return source.getSize(block);
+        }
+    }
+}
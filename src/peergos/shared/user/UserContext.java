@@ -349,11 +349,9 @@ public class UserContext {
         return getSigningKey(ownerHash)
                 .thenCompose(owner -> getWriterData(network, ownerHash)
                         .thenCompose(cwd -> {
-                            CompletableFuture<Long> subtree = Futures.reduceAll(cwd.props.ownedKeys
-                                            .stream()
-                                            .map(writer -> getTotalSpaceUsed(writer))
-                                            .collect(Collectors.toList()),
-                                    0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b);
+                            CompletableFuture<Long> subtree = Futures.reduceAllConcurrent(
+                                    new ArrayList<>(cwd.props.ownedKeys), 0L, this::getTotalSpaceUsed, (a, b) -> a + b,
+                                    NetworkAccess.MAX_CONCURRENT_RETRIEVALS);
                             return subtree.thenCompose(ownedSize -> network.dhtClient.getRecursiveBlockSize(cwd.hash.get())
                                     .thenApply(descendentSize -> descendentSize + ownedSize));
                         }));
@@ -998,7 +996,9 @@ public class UserContext {
                 .stream()
                 .filter(e -> e.owner.equals(ourName))
                 .collect(Collectors.toList());
-        return Futures.reduceAll(ourFileSystemEntries, root, (t, e) -> addEntryPoint(ourName, t, e, network), (a, b) -> a)
+        return Futures.mapConcurrent(ourFileSystemEntries, e -> retrieveEntryPointPath(ourName, e, network),
+                NetworkAccess.MAX_CONCURRENT_RETRIEVALS)
+                .thenApply(retrieved -> addEntryPoints(ourName, root, retrieved))
                 .exceptionally(Futures::logError);
     }
 
@@ -1012,67 +1012,65 @@ public class UserContext {
                 .stream()
                 .filter(e -> ! e.owner.equals(ourName))
                 .collect(Collectors.toList());
-        List<CompletableFuture<Pair<EntryPoint, Optional<String>>>> retrievedEntries = notOurFileSystemEntries.stream()
-                .map(entry -> network.retrieveEntryPoint(entry)
-                        .thenCompose(opt -> opt.map(f -> f.getPath(network).thenApply(path -> new Pair<>(entry, Optional.of(path))))
-                        .orElse(CompletableFuture.completedFuture(new Pair<>(entry, Optional.empty())))))
-                .collect(Collectors.toList());
-        return Futures.reduceAll(retrievedEntries, ourRoot, (t, p) -> addRetrievedEntryPoint(ourName, t, p, network), (a, b) -> a)
+        return Futures.mapConcurrent(notOurFileSystemEntries,
+                e -> retrieveEntryPointPath(ourName, e, network)
+                        .exceptionally(t -> {
+                            t.printStackTrace();
+                            System.err.println("Couldn't retrieve entry point!");
+                            // Allow the system to continue without this entry point
+                            return new Pair<>(e, Optional.empty());
+                        }),
+                NetworkAccess.MAX_CONCURRENT_RETRIEVALS)
+                .thenApply(retrieved -> addEntryPoints(ourName, ourRoot, retrieved))
                 .exceptionally(Futures::logError);
     }
 
-    private static CompletableFuture<TrieNode> addRetrievedEntryPoint(String ourName,
-                                                                      TrieNode root,
-                                                                      CompletableFuture<Pair<EntryPoint, Optional<String>>> futureWithPath,
-                                                                      NetworkAccess network) {
-        return futureWithPath.thenCompose(pair -> {
-            if (! pair.right.isPresent())
-                return CompletableFuture.completedFuture(root);
-            String path = pair.right.get();
-            EntryPoint e = pair.left;
-            // check entrypoint doesn't forge the owner
-            return  (e.owner.equals(ourName) ? CompletableFuture.completedFuture(true) :
-                    e.isValid(path, network)).thenApply(valid -> {
-
-                String[] parts = path.split("/");
-                if (parts.length < 3 || !parts[2].equals(SHARED_DIR_NAME))
-                    return root.put(path, e);
-                TrieNode rootWithMapping = parts[1].equals(ourName) ? root : root.addPathMapping("/" + parts[1] + "/", path + "/");
-                return rootWithMapping.put(path, e);
-            });
-        }).exceptionally(t -> {
-            t.printStackTrace();
-            System.err.println("Couldn't add entry point (failed retrieving parent dir or it was invalid)!");
-            // Allow the system to continue without this entry point
-            return root;
+    /**
+     *
+     * @return the entry point with its path, or no path if it couldn't be retrieved or its parent couldn't be
+     */
+    private static CompletableFuture<Pair<EntryPoint, Optional<String>>> retrieveEntryPointPath(String ourName,
+                                                                                               EntryPoint e,
+                                                                                               NetworkAccess network) {
+        return network.retrieveEntryPoint(e).thenCompose(metadata -> {
+            if (! metadata.isPresent())
+                return CompletableFuture.completedFuture(new Pair<>(e, Optional.empty()));
+            return metadata.get().getPath(network)
+                    .thenCompose(path -> {
+                        // check entrypoint doesn't forge the owner
+                        return (e.owner.equals(ourName) ? CompletableFuture.completedFuture(true) :
+                                e.isValid(path, network)).thenApply(valid -> new Pair<>(e, Optional.of(path)));
+                    }).exceptionally(t -> {
+                        t.printStackTrace();
+                        System.err.println("Couldn't add entry point (failed retrieving parent dir or it was invalid): " + metadata.get().getName());
+                        // Allow the system to continue without this entry point
+                        return new Pair<>(e, Optional.empty());
+                    });
         });
     }
 
     private static CompletableFuture<TrieNode> addEntryPoint(String ourName, TrieNode root, EntryPoint e, NetworkAccess network) {
-        return network.retrieveEntryPoint(e).thenCompose(metadata -> {
-            if (metadata.isPresent()) {
-                return metadata.get().getPath(network)
-                        .thenCompose(path -> {
-                            // check entrypoint doesn't forge the owner
-                            return  (e.owner.equals(ourName) ? CompletableFuture.completedFuture(true) :
-                             e.isValid(path, network)).thenApply(valid -> {
-
-                                System.out.println("Added entry point: " + metadata.get() + " at path " + path);
-                                String[] parts = path.split("/");
-                                if (parts.length < 3 || !parts[2].equals(SHARED_DIR_NAME))
-                                    return root.put(path, e);
-                                TrieNode rootWithMapping = parts[1].equals(ourName) ? root : root.addPathMapping("/" + parts[1] + "/", path + "/");
-                                return rootWithMapping.put(path, e);
-                            });
-                        }).exceptionally(t -> {
-                            t.printStackTrace();
-                            System.err.println("Couldn't add entry point (failed retrieving parent dir or it was invalid): " + metadata.get().getName());
-                            // Allow the system to continue without this entry point
-                            return root;
-                        });
+        return retrieveEntryPointPath(ourName, e, network)
+                .thenApply(retrieved -> addEntryPoints(ourName, root, Collections.singletonList(retrieved)))
+                .exceptionally(Futures::logError);
+    }
+
+    private static TrieNode addEntryPoints(String ourName, TrieNode root, List<Pair<EntryPoint, Optional<String>>> retrieved) {
+        TrieNode result = root;
+        for (Pair<EntryPoint, Optional<String>> pair : retrieved) {
+            if (! pair.right.isPresent())
+                continue;
+            String path = pair.right.get();
+            EntryPoint e = pair.left;
+            String[] parts = path.split("/");
+            if (parts.length < 3 || !parts[2].equals(SHARED_DIR_NAME))
+                result = result.put(path, e);
+            else {
+                TrieNode rootWithMapping = parts[1].equals(ourName) ? result : result.addPathMapping("/" + parts[1] + "/", path + "/");
+                result = rootWithMapping.put(path, e);
             }
-            return CompletableFuture.completedFuture(root);
-        }).exceptionally(Futures::logError);
+        }
+        return result;
     }
 
     private CompletableFuture<Boolean> cleanOurEntryPoint(EntryPoint e) {
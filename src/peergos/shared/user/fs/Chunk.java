@@ -1,5 +1,6 @@
 package peergos.shared.user.fs;
 
+import peergos.shared.crypto.*;
 import peergos.shared.crypto.symmetric.SymmetricKey;
 
 import java.util.*;
@@ -8,22 +9,57 @@ import java.util.concurrent.CompletableFuture;
 public class Chunk {
 
     public static final int MAX_SIZE = 5 * 1024 * 1024;
+    // the space needed before the data to encrypt or decrypt a chunk in place
+    public static final int HEADER_SIZE = TweetNaCl.SECRETBOX_INTERNAL_OVERHEAD_BYTES;
 
     private final SymmetricKey dataKey;
     private final byte[] data, mapKey;
+    private final int offset, length;
     private final byte[] nonce;
 
-    public Chunk(byte[] data, SymmetricKey dataKey, byte[] mapKey, byte[] nonce) {
-        this.data = data;
+    /**
+     *
+     * @param buffer contains the data at buffer[offset, offset + length)
+     * @param offset
+     * @param length
+     * @param dataKey
+     * @param mapKey
+     * @param nonce
+     */
+    public Chunk(byte[] buffer, int offset, int length, SymmetricKey dataKey, byte[] mapKey, byte[] nonce) {
+        this.data = buffer;
+        this.offset = offset;
+        this.length = length;
         this.dataKey = dataKey;
         this.mapKey = mapKey;
         this.nonce = nonce;
     }
 
+    public Chunk(byte[] data, SymmetricKey dataKey, byte[] mapKey, byte[] nonce) {
+        this(data, 0, data.length, dataKey, mapKey, nonce);
+    }
+
     public CompletableFuture<EncryptedChunk> encrypt() {
-        return dataKey.encryptAsync(data, nonce).thenApply(encryptedBytes -> {
-            return new EncryptedChunk(encryptedBytes);
-        });
+        byte[] buffer = new byte[HEADER_SIZE + length];
+        System.arraycopy(data, offset, buffer, HEADER_SIZE, length);
+        return encryptInto(buffer, 0);
+    }
+
+    /** Encrypt this chunk's data where it is, without allocating a new buffer. This requires HEADER_SIZE bytes of
+     *  space before the data. The plaintext is overwritten and this chunk must not be used again.
+     *
+     * @return an EncryptedChunk backed by this chunk's buffer
+     */
+    public CompletableFuture<EncryptedChunk> encryptInPlace() {
+        if (offset < HEADER_SIZE)
+            throw new IllegalStateException("No space to encrypt chunk in place!");
+        return encryptInto(data, offset - HEADER_SIZE);
+    }
+
+    private CompletableFuture<EncryptedChunk> encryptInto(byte[] buffer, int start) {
+        return dataKey.encryptInPlace(buffer, start, length, nonce)
+                .thenApply(done -> new EncryptedChunk(buffer, start + TweetNaCl.SECRETBOX_OVERHEAD_BYTES,
+                        TweetNaCl.SECRETBOX_OVERHEAD_BYTES + length));
     }
 
     public SymmetricKey key() {
@@ -38,7 +74,11 @@ public class Chunk {
         return Arrays.copyOfRange(nonce, 0, nonce.length);
     }
 
+    public int length() {
+        return length;
+    }
+
     public byte[] data() {
-        return Arrays.copyOfRange(data, 0, data.length);
+        return Arrays.copyOfRange(data, offset, offset + length);
     }
 }
@@ -9,23 +9,35 @@ import java.util.concurrent.CompletableFuture;
 
 public class EncryptedChunk {
 
-    private final byte[] auth, cipher;
+    // the auth followed by the cipher text are at buffer[offset, offset + length)
+    private final byte[] buffer;
+    private final int offset, length;
+
+    public EncryptedChunk(byte[] buffer, int offset, int length) {
+        if (length < TweetNaCl.SECRETBOX_OVERHEAD_BYTES)
+            throw new IllegalStateException("Encrypted chunk too small! " + length);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
 
     public EncryptedChunk(byte[] auth, byte[] cipher) {
-        this.auth = auth;
-        this.cipher = cipher;
+        this(ArrayOps.concat(auth, cipher));
     }
 
     public EncryptedChunk(byte[] encrypted) {
-        this(Arrays.copyOfRange(encrypted, 0, TweetNaCl.SECRETBOX_OVERHEAD_BYTES),
-        Arrays.copyOfRange(encrypted, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, encrypted.length));
+        this(encrypted, 0, encrypted.length);
+    }
+
+    private int cipherLength() {
+        return length - TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
     }
 
     public List<Fragment> generateFragments(peergos.shared.user.fs.Fragmenter  fragmenter) {
-        if (this.cipher.length == 0)
+        if (cipherLength() == 0)
             return Collections.emptyList();
 
-        byte[][] bfrags = fragmenter.split(cipher);
+        byte[][] bfrags = fragmenter.split(buffer, offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES, cipherLength());
         List<Fragment> frags = new ArrayList<>();
         for (int i=0; i < bfrags.length; i++)
             frags.add(new Fragment(bfrags[i]));
@@ -33,19 +45,41 @@ public class EncryptedChunk {
     }
 
     public byte[] getAuth() {
-        return Arrays.copyOf(auth, auth.length);
+        return Arrays.copyOfRange(buffer, offset, offset + TweetNaCl.SECRETBOX_OVERHEAD_BYTES);
     }
 
     public CompletableFuture<byte[]> decrypt(SymmetricKey key, byte[] nonce) {
-        if (cipher.length == 0) {
+        if (cipherLength() == 0) {
             CompletableFuture<byte[]> res = new CompletableFuture<>();
-            res.complete(cipher);
+            res.complete(new byte[0]);
             return res;
         }
-        return key.decryptAsync(ArrayOps.concat(this.auth, this.cipher), nonce);
+        return key.decryptAsync(Arrays.copyOfRange(buffer, offset, offset + length), nonce);
+    }
+
+    /** Decrypt in place if there is room before the auth, otherwise into a single new buffer. Either way the plaintext
+     *  is not copied out again, and this EncryptedChunk must not be used afterwards.
+     *
+     * @return a Chunk backed by the buffer the plaintext was decrypted into
+     */
+    public CompletableFuture<Chunk> decryptInPlace(SymmetricKey key, byte[] nonce, byte[] mapKey, byte[] newNonce) {
+        int cipherLength = cipherLength();
+        if (cipherLength == 0)
+            return CompletableFuture.completedFuture(new Chunk(new byte[0], key, mapKey, newNonce));
+        int headerOffset = offset - TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+        byte[] target = buffer;
+        if (headerOffset < 0) {
+            target = new byte[TweetNaCl.SECRETBOX_OVERHEAD_BYTES + length];
+            System.arraycopy(buffer, offset, target, TweetNaCl.SECRETBOX_OVERHEAD_BYTES, length);
+            headerOffset = 0;
+        }
+        byte[] plain = target;
+        int start = headerOffset + Chunk.HEADER_SIZE;
+        return key.decryptInPlace(target, headerOffset, length, nonce)
+                .thenApply(done -> new Chunk(plain, start, cipherLength, key, mapKey, newNonce));
     }
 
     public EncryptedChunk truncateTo(int length) {
-        return new EncryptedChunk(auth, Arrays.copyOfRange(cipher, 0, length));
+        return new EncryptedChunk(buffer, offset, TweetNaCl.SECRETBOX_OVERHEAD_BYTES + length);
     }
 }
@@ -39,14 +39,17 @@ public class EncryptedChunkRetriever implements FileRetriever {
                                                   long fileSize,
                                                   Location ourLocation,
                                                   MaybeMultihash ourExistingHash,
+                                                  Optional<byte[]> streamSecret,
                                                   ProgressConsumer<Long> monitor) {
         return getChunkInputStream(network, random, dataKey, 0, fileSize, ourLocation, ourExistingHash, monitor)
                 .thenApply(chunk -> {
                     Location nextChunkPointer = this.getNext(dataKey).orElse(null);
+                    byte[] firstChunk = chunk.get().chunk.data();
                     return new LazyInputStreamCombiner(0,
-                            chunk.get().chunk.data(), nextChunkPointer,
-                            chunk.get().chunk.data(), nextChunkPointer,
-                            network, random, dataKey, fileSize, monitor);
+                            firstChunk, nextChunkPointer,
+                            firstChunk, nextChunkPointer,
+                            network, random, dataKey, fileSize, monitor,
+                            LazyInputStreamCombiner.DEFAULT_READ_AHEAD_CHUNKS, streamSecret);
                 });
     }
 
@@ -62,8 +65,11 @@ public class EncryptedChunkRetriever implements FileRetriever {
             return network.downloadFragments(fragmentHashes, monitor, fragmenter.storageIncreaseFactor()).thenCompose(fragments -> {
                 fragments = reorder(fragments, fragmentHashes);
                 byte[][] collect = fragments.stream().map(f -> f.fragment.data).toArray(byte[][]::new);
-                byte[] cipherText = fragmenter.recombine(collect, Chunk.MAX_SIZE);
-                EncryptedChunk fullEncryptedChunk = new EncryptedChunk(ArrayOps.concat(chunkAuth, cipherText));
+                // leave room before the auth to decrypt in place
+                byte[] buffer = fragmenter.recombine(collect, Chunk.MAX_SIZE, Chunk.HEADER_SIZE);
+                int authStart = Chunk.HEADER_SIZE - chunkAuth.length;
+                System.arraycopy(chunkAuth, 0, buffer, authStart, chunkAuth.length);
+                EncryptedChunk fullEncryptedChunk = new EncryptedChunk(buffer, authStart, buffer.length - authStart);
                 if (truncateTo < Chunk.MAX_SIZE)
                     fullEncryptedChunk = fullEncryptedChunk.truncateTo((int) truncateTo);
                 LocatedEncryptedChunk result = new LocatedEncryptedChunk(ourLocation, ourExistingHash, fullEncryptedChunk, nonce);
@@ -131,11 +137,9 @@ public class EncryptedChunkRetriever implements FileRetriever {
 
             LocatedEncryptedChunk cipherText = fullEncryptedChunk.get();
             try {
-                return cipherText.chunk.decrypt(dataKey, cipherText.nonce).thenCompose(original -> {
-                    return CompletableFuture.completedFuture(Optional.of(new LocatedChunk(cipherText.location,
-                            cipherText.existingHash,
-                            new Chunk(original, dataKey, cipherText.location.getMapKey(), random.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES)))));
-                });
+                return cipherText.chunk.decryptInPlace(dataKey, cipherText.nonce, cipherText.location.getMapKey(),
+                        random.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES))
+                        .thenApply(chunk -> Optional.of(new LocatedChunk(cipherText.location, cipherText.existingHash, chunk)));
             } catch (IllegalStateException e) {
                 throw new IllegalStateException("Couldn't decrypt chunk at mapkey: " + new ByteArrayWrapper(cipherText.location.getMapKey()), e);
             }
@@ -3,6 +3,7 @@ package peergos.shared.user.fs;
 import jsinterop.annotations.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.shared.storage.ContentAddressedStorage;
 import peergos.shared.util.*;
@@ -22,21 +23,32 @@ public class FileProperties implements Cborable {
     public final LocalDateTime modified;
     public final boolean isHidden;
     public final Optional<byte[]> thumbnail;
+    // If present, the locations of all but the first chunk are derived from this, allowing random access
+    @JsIgnore
+    public final Optional<byte[]> streamSecret;
 
     public FileProperties(String name, String mimeType, int sizeHi, int sizeLo,
                           LocalDateTime modified, boolean isHidden, Optional<byte[]> thumbnail) {
-        this.name = name;
-        this.mimeType = mimeType;
-        this.size = sizeLo | ((sizeHi | 0L) << 32);
-        this.modified = modified;
-        this.isHidden = isHidden;
-        this.thumbnail = thumbnail;
+        this(name, mimeType, sizeLo | ((sizeHi | 0L) << 32), modified, isHidden, thumbnail, Optional.empty());
     }
 
     @JsIgnore
     public FileProperties(String name, String mimeType, long size,
                           LocalDateTime modified, boolean isHidden, Optional<byte[]> thumbnail) {
-        this(name, mimeType, (int)(size >> 32), (int) size, modified, isHidden, thumbnail);
+        this(name, mimeType, size, modified, isHidden, thumbnail, Optional.empty());
+    }
+
+    @JsIgnore
+    public FileProperties(String name, String mimeType, long size,
+                          LocalDateTime modified, boolean isHidden, Optional<byte[]> thumbnail,
+                          Optional<byte[]> streamSecret) {
+        this.name = name;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.modified = modified;
+        this.isHidden = isHidden;
+        this.thumbnail = thumbnail;
+        this.streamSecret = streamSecret;
     }
 
     public int sizeLow() {
@@ -55,7 +67,8 @@ public class FileProperties implements Cborable {
                 new CborObject.CborLong(size),
                 new CborObject.CborLong(modified.toEpochSecond(ZoneOffset.UTC)),
                 new CborObject.CborBoolean(isHidden),
-                new CborObject.CborByteArray(thumbnail.orElse(new byte[0]))
+                new CborObject.CborByteArray(thumbnail.orElse(new byte[0])),
+                new CborObject.CborByteArray(streamSecret.orElse(new byte[0]))
         ));
     }
 
@@ -70,8 +83,14 @@ public class FileProperties implements Cborable {
         Optional<byte[]> thumbnail = thumb.length == 0 ?
                 Optional.empty() :
                 Optional.of(thumb);
+        // files written before the introduction of stream secrets don't have one
+        byte[] secret = elements.size() > 6 ? ((CborObject.CborByteArray)elements.get(6)).value : new byte[0];
+        Optional<byte[]> streamSecret = secret.length == 0 ?
+                Optional.empty() :
+                Optional.of(secret);
 
-        return new FileProperties(name, mimeType, size, LocalDateTime.ofEpochSecond(modified, 0, ZoneOffset.UTC), isHidden, thumbnail);
+        return new FileProperties(name, mimeType, size, LocalDateTime.ofEpochSecond(modified, 0, ZoneOffset.UTC),
+                isHidden, thumbnail, streamSecret);
     }
 
     public static FileProperties decrypt(byte[] raw, SymmetricKey metaKey) {
@@ -82,11 +101,48 @@ public class FileProperties implements Cborable {
 
     @JsIgnore
     public FileProperties withSize(long newSize) {
-        return new FileProperties(name, mimeType, newSize, modified, isHidden, thumbnail);
+        return new FileProperties(name, mimeType, newSize, modified, isHidden, thumbnail, streamSecret);
     }
 
     public FileProperties withModified(LocalDateTime modified) {
-        return new FileProperties(name, mimeType, size, modified, isHidden, thumbnail);
+        return new FileProperties(name, mimeType, size, modified, isHidden, thumbnail, streamSecret);
+    }
+
+    @JsIgnore
+    public FileProperties withName(String name) {
+        return new FileProperties(name, mimeType, size, modified, isHidden, thumbnail, streamSecret);
+    }
+
+    /**
+     *
+     * @param secondChunk the location of the second chunk of this file, i.e. the first chunk's next pointer
+     * @param chunkIndex
+     * @return the location of the chunk with the given index, if the locations of this file's chunks are derived
+     * from its stream secret
+     */
+    @JsIgnore
+    public Optional<Location> getChunkLocation(Location secondChunk, long chunkIndex) {
+        if (! streamSecret.isPresent() || chunkIndex < 1)
+            return Optional.empty();
+        byte[] secret = streamSecret.get();
+        if (! getChunkLocation(secondChunk.owner, secondChunk.writer, secret, 1).equals(secondChunk))
+            return Optional.empty(); // chunks were not written at derived locations
+        return Optional.of(getChunkLocation(secondChunk.owner, secondChunk.writer, secret, chunkIndex));
+    }
+
+    /** The first chunk of a file is referenced directly by its parent directory. The map key of every subsequent
+     *  chunk is the hash of the file's stream secret and the chunk's index, so a chunk can be located without
+     *  retrieving any of the preceding ones.
+     */
+    @JsIgnore
+    public static Location getChunkLocation(PublicKeyHash owner, PublicKeyHash writer, byte[] streamSecret, long chunkIndex) {
+        if (chunkIndex < 1)
+            throw new IllegalArgumentException("The first chunk's location is not derived!");
+        byte[] index = new byte[8];
+        for (int i = 0; i < 8; i++)
+            index[i] = (byte) (chunkIndex >> (56 - 8 * i));
+        byte[] mapKey = Hash.sha256(ArrayOps.concat(streamSecret, index));
+        return new Location(owner, writer, mapKey);
     }
 
     @Override
@@ -23,6 +23,7 @@ public interface FileRetriever extends Cborable {
                                            long fileSize,
                                            Location ourLocation,
                                            MaybeMultihash ourExistingHash,
+                                           Optional<byte[]> streamSecret,
                                            ProgressConsumer<Long> monitor);
 
     CompletableFuture<Optional<LocatedEncryptedChunk>> getEncryptedChunk(long bytesRemainingUntilStart,
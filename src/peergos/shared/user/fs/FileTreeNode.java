@@ -518,7 +518,8 @@ public class FileTreeNode {
                             .thenCompose(forMime -> calculateMimeType(forMime, endIndex)
                                     .thenCompose(mimeType -> fileData.reset().thenCompose(resetReader -> {
                                         FileProperties fileProps = new FileProperties(filename, mimeType, endIndex,
-                                                LocalDateTime.now(), isHidden, Optional.of(thumbData));
+                                                LocalDateTime.now(), isHidden, Optional.of(thumbData),
+                                                Optional.of(random.randomBytes(32)));
                                         FileUploader chunks = new FileUploader(filename, mimeType, resetReader,
                                                 startIndex, endIndex, fileKey, fileMetaKey, parentLocation, dirParentKey, monitor, fileProps,
                                                 fragmenter);
@@ -654,8 +655,11 @@ public class FileTreeNode {
                 return retriever.getChunkInputStream(network, random, dataKey, startIndex, filesSize.get(),
                         child.getLocation(), child.pointer.fileAccess.committedHash(), monitor)
                         .thenCompose(currentLocation -> {
-                                    CompletableFuture<Optional<Location>> locationAt = retriever
-                                            .getLocationAt(child.getLocation(), startIndex + Chunk.MAX_SIZE, dataKey, network);
+                                    Optional<Location> derivedNext = retriever.getNext(dataKey)
+                                            .flatMap(second -> childProps.getChunkLocation(second, startIndex / Chunk.MAX_SIZE + 1));
+                                    CompletableFuture<Optional<Location>> locationAt = derivedNext.isPresent() ?
+                                            CompletableFuture.completedFuture(derivedNext) :
+                                            retriever.getLocationAt(child.getLocation(), startIndex + Chunk.MAX_SIZE, dataKey, network);
                                     return locationAt.thenCompose(location ->
                                             CompletableFuture.completedFuture(new Pair<>(currentLocation, location)));
                                 }
@@ -691,7 +695,7 @@ public class FileTreeNode {
                                 long currentSize = filesSize.get();
                                 FileProperties newProps = new FileProperties(childProps.name, childProps.mimeType,
                                         endIndex > currentSize ? endIndex : currentSize,
-                                        LocalDateTime.now(), childProps.isHidden, childProps.thumbnail);
+                                        LocalDateTime.now(), childProps.isHidden, childProps.thumbnail, childProps.streamSecret);
 
                                 CompletableFuture<Multihash> chunkUploaded = FileUploader.uploadChunk(getSigner(),
                                         newProps, getLocation(), us.getParentKey(), baseKey, located,
@@ -805,8 +809,7 @@ public class FileTreeNode {
                         SymmetricKey key = this.isDirectory() ? fileAccess.getParentKey(baseKey) : baseKey;
                         FileProperties currentProps = fileAccess.getProperties(key);
 
-                        FileProperties newProps = new FileProperties(newFilename, currentProps.mimeType, currentProps.size,
-                                currentProps.modified, currentProps.isHidden, currentProps.thumbnail);
+                        FileProperties newProps = currentProps.withName(newFilename);
 
                         return fileAccess.updateProperties(writableFilePointer(), newProps, network)
                                 .thenApply(fa -> res);
@@ -938,7 +941,8 @@ public class FileTreeNode {
         FileAccess fileAccess = (FileAccess) pointer.fileAccess;
         SymmetricKey baseKey = pointer.filePointer.baseKey;
         SymmetricKey dataKey = fileAccess.getDataKey(baseKey);
-        return fileAccess.retriever().getFile(network, random, dataKey, fileSize, getLocation(), fileAccess.committedHash(), monitor);
+        return fileAccess.retriever().getFile(network, random, dataKey, fileSize, getLocation(), fileAccess.committedHash(),
+                props.streamSecret, monitor);
     }
 
     private FileRetriever getRetriever() {
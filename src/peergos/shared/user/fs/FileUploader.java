@@ -17,6 +17,9 @@ import java.util.concurrent.*;
 import java.util.stream.*;
 
 public class FileUploader implements AutoCloseable {
+    public static final int DEFAULT_MAX_CHUNKS_IN_FLIGHT = 4;
+    // chunks are read into, and encrypted in, buffers from here
+    private static final BufferPool CHUNK_BUFFERS = new BufferPool(Chunk.HEADER_SIZE + Chunk.MAX_SIZE, DEFAULT_MAX_CHUNKS_IN_FLIGHT);
 
     private final String name;
     private final long offset, length;
@@ -75,23 +78,52 @@ public class FileUploader implements AutoCloseable {
                                                    Location currentLocation,
                                                    MaybeMultihash ourExistingHash,
                                                    ProgressConsumer<Long> monitor) {
-	    System.out.println("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] mapKey = random.randomBytes(32);
+        Location nextLocation = new Location(owner, writer.publicKeyHash, mapKey);
+        return readChunk(chunkIndex)
+                .thenCompose(data -> uploadChunk(network, random, owner, writer, chunkIndex, data, currentLocation,
+                        nextLocation, ourExistingHash, monitor))
+                .thenApply(hash -> nextLocation);
+    }
 
+    private int chunkLength(long chunkIndex) {
         long position = chunkIndex * Chunk.MAX_SIZE;
 
         long fileLength = length;
         boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
-        int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
-        byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
-            byte[] nonce = random.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
-            Chunk chunk = new Chunk(data, metaKey, currentLocation.getMapKey(), nonce);
-            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-            byte[] mapKey = random.randomBytes(32);
-            Location nextLocation = new Location(owner, writer.publicKeyHash, mapKey);
-            return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                    fragmenter, nextLocation, network, monitor).thenApply(c -> nextLocation);
-        });
+        return isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
+    }
+
+    /**
+     *
+     * @param chunkIndex
+     * @return a pooled buffer with the chunk's data after Chunk.HEADER_SIZE bytes of header space
+     */
+    private CompletableFuture<byte[]> readChunk(long chunkIndex) {
+        byte[] buffer = CHUNK_BUFFERS.take();
+        return reader.readIntoArray(buffer, Chunk.HEADER_SIZE, chunkLength(chunkIndex)).thenApply(b -> buffer);
+    }
+
+    private CompletableFuture<Multihash> uploadChunk(NetworkAccess network,
+                                                     SafeRandom random,
+                                                     PublicKeyHash owner,
+                                                     SigningPrivateKeyAndPublicHash writer,
+                                                     long chunkIndex,
+                                                     byte[] buffer,
+                                                     Location currentLocation,
+                                                     Location nextLocation,
+                                                     MaybeMultihash ourExistingHash,
+                                                     ProgressConsumer<Long> monitor) {
+	    System.out.println("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] nonce = random.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
+        Chunk chunk = new Chunk(buffer, Chunk.HEADER_SIZE, chunkLength(chunkIndex), metaKey, currentLocation.getMapKey(), nonce);
+        LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                fragmenter, nextLocation, network, monitor, true)
+                .thenApply(hash -> {
+                    CHUNK_BUFFERS.release(buffer);
+                    return hash;
+                });
     }
 
     public CompletableFuture<Location> upload(NetworkAccess network,
@@ -99,22 +131,66 @@ public class FileUploader implements AutoCloseable {
                                               PublicKeyHash owner,
                                               SigningPrivateKeyAndPublicHash writer,
                                               Location currentChunk) {
+        return upload(network, random, owner, writer, currentChunk, DEFAULT_MAX_CHUNKS_IN_FLIGHT);
+    }
+
+    /** Upload the file with up to maxChunksInFlight chunks being encrypted, erasure coded or uploaded at once.
+     *  Memory usage is bounded by maxChunksInFlight * Chunk.MAX_SIZE of plaintext.
+     *
+     * @return the location of the first chunk
+     */
+    public CompletableFuture<Location> upload(NetworkAccess network,
+                                              SafeRandom random,
+                                              PublicKeyHash owner,
+                                              SigningPrivateKeyAndPublicHash writer,
+                                              Location currentChunk,
+                                              int maxChunksInFlight) {
+        if (maxChunksInFlight < 1)
+            throw new IllegalArgumentException("Need at least one chunk in flight!");
         long t1 = System.currentTimeMillis();
-        Location originalChunk = currentChunk;
-
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, currentChunk, (loc, i) -> uploadChunk(network, random, owner, writer, i,
-                loc, MaybeMultihash.empty(), monitor), (a, b) -> b)
-                .thenApply(loc -> {
-                    System.out.println("File encryption, erasure coding and upload took: " +(System.currentTimeMillis()-t1) + " mS");
-                    return originalChunk;
-                });
+
+        // Every chunk's location is either random or derived from the stream secret, so we can generate them all in
+        // advance and process chunks independently
+        List<Location> locations = new ArrayList<>((int) nchunks + 1);
+        locations.add(currentChunk);
+        for (int i = 1; i <= nchunks; i++)
+            locations.add(props.streamSecret.isPresent() ?
+                    FileProperties.getChunkLocation(owner, writer.publicKeyHash, props.streamSecret.get(), i) :
+                    new Location(owner, writer.publicKeyHash, random.randomBytes(32)));
+
+        // Read chunks sequentially, each read starting once the previous one has finished, and hand each chunk's
+        // upload to the network's executor, so uploads overlap even though the java poster blocks
+        List<CompletableFuture<byte[]>> previousRead = new ArrayList<>();
+        previousRead.add(CompletableFuture.completedFuture(null));
+        List<Integer> chunkIndices = IntStream.range(0, (int) nchunks).boxed().collect(Collectors.toList());
+        return Futures.mapConcurrent(chunkIndices, chunkIndex -> {
+            CompletableFuture<byte[]> read = previousRead.get(0).thenCompose(x -> readChunk(chunkIndex));
+            previousRead.set(0, read);
+            return read.thenComposeAsync(data -> uploadChunk(network, random, owner, writer, chunkIndex, data,
+                    locations.get(chunkIndex), locations.get(chunkIndex + 1), MaybeMultihash.empty(), monitor),
+                    network.executor);
+        }, maxChunksInFlight).thenApply(hashes -> {
+            System.out.println("File encryption, erasure coding and upload took: " +(System.currentTimeMillis()-t1) + " mS");
+            return currentChunk;
+        });
     }
 
     public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer, FileProperties props, Location parentLocation, SymmetricKey parentparentKey,
                                                            SymmetricKey baseKey, LocatedChunk chunk, Fragmenter fragmenter, Location nextChunkLocation,
                                                            NetworkAccess network, ProgressConsumer<Long> monitor) {
-        return chunk.chunk.encrypt().thenCompose(encryptedChunk -> {
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, chunk, fragmenter, nextChunkLocation,
+                network, monitor, false);
+    }
+
+    /**
+     *
+     * @param encryptInPlace whether to encrypt the chunk's data in its own buffer, which destroys the plaintext
+     */
+    public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer, FileProperties props, Location parentLocation, SymmetricKey parentparentKey,
+                                                           SymmetricKey baseKey, LocatedChunk chunk, Fragmenter fragmenter, Location nextChunkLocation,
+                                                           NetworkAccess network, ProgressConsumer<Long> monitor, boolean encryptInPlace) {
+        CompletableFuture<EncryptedChunk> encrypted = encryptInPlace ? chunk.chunk.encryptInPlace() : chunk.chunk.encrypt();
+        return encrypted.thenCompose(encryptedChunk -> {
             List<Fragment> fragments = encryptedChunk.generateFragments(fragmenter);
             System.out.println(StringUtils.format("Uploading chunk with %d fragments\n", fragments.size()));
             SymmetricKey chunkKey = chunk.chunk.key();
@@ -18,6 +18,21 @@ public interface Fragmenter extends Cborable {
 
     byte[] recombine(byte[][] encoded, int inputLength);
 
+    /** Split input[offset, offset + length)
+     */
+    default byte[][] split(byte[] input, int offset, int length) {
+        return split(Arrays.copyOfRange(input, offset, offset + length));
+    }
+
+    /** Recombine into an array which has headerSpace unused bytes before the data
+     */
+    default byte[] recombine(byte[][] encoded, int inputLength, int headerSpace) {
+        byte[] data = recombine(encoded, inputLength);
+        byte[] res = new byte[headerSpace + data.length];
+        System.arraycopy(data, 0, res, headerSpace, data.length);
+        return res;
+    }
+
     static Fragmenter fromCbor(Cborable cbor) {
         if (! (cbor instanceof CborObject.CborMap))
             throw new IllegalStateException("Incorrect cbor for Fragmenter: " + cbor);
@@ -8,14 +8,20 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public class LazyInputStreamCombiner implements AsyncReader {
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 2;
+
     private final NetworkAccess network;
     private final SafeRandom random;
     private final SymmetricKey dataKey;
     private final ProgressConsumer<Long> monitor;
     private final long totalLength;
+    private final int readAheadChunks;
+    // Present if the location of any chunk can be derived directly rather than by following next pointers
+    private final Optional<byte[]> streamSecret;
 
     private final byte[] originalChunk;
     private final Location originalNextPointer;
@@ -26,6 +32,11 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
 
+    // chunks following the current one which are being retrieved in the background, in order
+    private final LinkedList<ReadAhead> readAhead = new LinkedList<>();
+    private int readAheadGeneration; // incremented to discard any in flight read ahead
+    private long readAheadFrom = -1; // global index of the chunk whose read ahead has been started
+
     public LazyInputStreamCombiner(long globalIndex,
                                    byte[] chunk,
                                    Location nextChunkPointer,
@@ -36,6 +47,27 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                    SymmetricKey dataKey,
                                    long totalLength,
                                    ProgressConsumer<Long> monitor) {
+        this(globalIndex, chunk, nextChunkPointer, originalChunk, originalNextChunkPointer, network, random, dataKey,
+                totalLength, monitor, DEFAULT_READ_AHEAD_CHUNKS, Optional.empty());
+    }
+
+    /**
+     *
+     * @param readAheadChunks the number of chunks after the current one to retrieve whilst the current one is being read
+     * @param streamSecret if present, used to seek directly to the chunk containing the target position
+     */
+    public LazyInputStreamCombiner(long globalIndex,
+                                   byte[] chunk,
+                                   Location nextChunkPointer,
+                                   byte[] originalChunk,
+                                   Location originalNextChunkPointer,
+                                   NetworkAccess network,
+                                   SafeRandom random,
+                                   SymmetricKey dataKey,
+                                   long totalLength,
+                                   ProgressConsumer<Long> monitor,
+                                   int readAheadChunks,
+                                   Optional<byte[]> streamSecret) {
         if (chunk == null)
             throw new IllegalStateException("Null initial chunk!");
         this.network = network;
@@ -43,6 +75,10 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.dataKey = dataKey;
         this.monitor = monitor;
         this.totalLength = totalLength;
+        this.readAheadChunks = readAheadChunks;
+        this.streamSecret = streamSecret.filter(secret -> originalNextChunkPointer != null &&
+                FileProperties.getChunkLocation(originalNextChunkPointer.owner, originalNextChunkPointer.writer, secret, 1)
+                        .equals(originalNextChunkPointer));
         this.originalChunk = originalChunk;
         this.originalNextPointer = originalNextChunkPointer;
         this.currentChunk = chunk;
@@ -51,26 +87,118 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.index = 0;
     }
 
+    private static class ReadAhead {
+        public final Location location;
+        public final long globalIndex;
+        public final CompletableFuture<NextChunk> chunk;
+        public NextChunk result; // set once chunk has completed
+
+        public ReadAhead(Location location, long globalIndex, CompletableFuture<NextChunk> chunk) {
+            this.location = location;
+            this.globalIndex = globalIndex;
+            this.chunk = chunk;
+        }
+    }
+
+    private static class NextChunk {
+        public final byte[] data;
+        public final Location next;
+
+        public NextChunk(byte[] data, Location next) {
+            this.data = data;
+            this.next = next;
+        }
+    }
+
+    private CompletableFuture<NextChunk> getChunk(Location location, int len) {
+        return network.getMetadata(location).thenCompose(meta -> {
+            if (!meta.isPresent()) {
+                CompletableFuture<NextChunk> err = new CompletableFuture<>();
+                err.completeExceptionally(new EOFException());
+                return err;
+            }
+            CryptreeNode access = meta.get();
+            if (! (access instanceof FileAccess))
+                throw new IllegalStateException("File linked to a directory for its next chunk!");
+            FileRetriever nextRet = ((FileAccess) access).retriever();
+            Location newNextChunkPointer = nextRet.getNext(dataKey).orElse(null);
+            return nextRet.getChunkInputStream(network, random, dataKey, 0, len, location, access.committedHash(), monitor)
+                    .thenApply(x -> new NextChunk(x.get().chunk.data(), newNextChunkPointer));
+        });
+    }
+
+    private int chunkLength(long chunkGlobalIndex) {
+        return totalLength - chunkGlobalIndex > Chunk.MAX_SIZE ? Chunk.MAX_SIZE : (int) (totalLength - chunkGlobalIndex);
+    }
+
+    /** Start reading ahead the first time the current chunk is read from
+     */
+    private synchronized void enteredChunk() {
+        if (readAheadFrom == globalIndex)
+            return;
+        readAheadFrom = globalIndex;
+        fillReadAhead();
+    }
+
+    /** Start retrieving chunks after the current one in the background, until there are readAheadChunks in flight or
+     *  we reach the end of the file. Each chunk's location is only known once the previous chunk's metadata has been
+     *  retrieved.
+     */
+    private synchronized void fillReadAhead() {
+        if (readAhead.size() >= readAheadChunks)
+            return;
+        Location next;
+        long nextGlobalIndex;
+        if (readAhead.isEmpty()) {
+            next = nextChunkPointer;
+            nextGlobalIndex = globalIndex + Chunk.MAX_SIZE;
+        } else {
+            ReadAhead last = readAhead.getLast();
+            if (last.result == null)
+                return; // we will continue when it completes
+            next = last.result.next;
+            nextGlobalIndex = last.globalIndex + Chunk.MAX_SIZE;
+        }
+        if (next == null || nextGlobalIndex >= totalLength)
+            return;
+        int generation = readAheadGeneration;
+        int length = chunkLength(nextGlobalIndex);
+        // the java poster blocks, so retrieve the chunk on the network's executor rather than in the reader's thread
+        CompletableFuture<NextChunk> chunk = CompletableFuture.completedFuture(true)
+                .thenComposeAsync(x -> getChunk(next, length), network.executor);
+        ReadAhead ahead = new ReadAhead(next, nextGlobalIndex, chunk);
+        readAhead.addLast(ahead);
+        ahead.chunk.thenAccept(c -> readAheadCompleted(ahead, c, generation));
+    }
+
+    private synchronized void readAheadCompleted(ReadAhead ahead, NextChunk chunk, int generation) {
+        ahead.result = chunk;
+        if (generation == readAheadGeneration)
+            fillReadAhead();
+    }
+
+    private synchronized void cancelReadAhead() {
+        readAheadGeneration++;
+        readAhead.clear();
+        readAheadFrom = -1;
+    }
+
+    private synchronized CompletableFuture<NextChunk> takeChunk(Location location, long chunkGlobalIndex, int len) {
+        ReadAhead head = readAhead.peekFirst();
+        if (head != null && head.globalIndex == chunkGlobalIndex && head.location.equals(location)) {
+            readAhead.removeFirst();
+            return head.chunk;
+        }
+        cancelReadAhead();
+        return getChunk(location, len);
+    }
+
     public CompletableFuture<Boolean> getNextStream(int len) {
         if (this.nextChunkPointer != null) {
-            Location nextLocation = this.nextChunkPointer;
-            return network.getMetadata(nextLocation).thenCompose(meta -> {
-                if (!meta.isPresent()) {
-                    CompletableFuture<Boolean> err = new CompletableFuture<>();
-                    err.completeExceptionally(new EOFException());
-                    return err;
-                }
-                CryptreeNode access = meta.get();
-                if (! (access instanceof FileAccess))
-                    throw new IllegalStateException("File linked to a directory for its next chunk!");
-                FileRetriever nextRet = ((FileAccess) access).retriever();
-                Location newNextChunkPointer = nextRet.getNext(dataKey).orElse(null);
-                return nextRet.getChunkInputStream(network, random, dataKey, 0, len, nextLocation, access.committedHash(), monitor)
-                        .thenApply(x -> {
-                            byte[] nextData = x.get().chunk.data();
-                            updateState(0,globalIndex + Chunk.MAX_SIZE, nextData, newNextChunkPointer);
-                            return true;
-                        });
+            long nextGlobalIndex = globalIndex + Chunk.MAX_SIZE;
+            return takeChunk(nextChunkPointer, nextGlobalIndex, len).thenApply(next -> {
+                updateState(0, nextGlobalIndex, next.data, next.next);
+                return true;
             });
         }
         CompletableFuture<Boolean> err = new CompletableFuture<>();
@@ -88,8 +216,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
         long toRead = Math.min(available, skip);
 
-        int remainingToRead = totalLength - globalIndex > Chunk.MAX_SIZE ? Chunk.MAX_SIZE : (int) (totalLength - globalIndex);
-        return getNextStream(remainingToRead)
+        return getNextStream(chunkLength(globalIndex + Chunk.MAX_SIZE))
                 .thenCompose(done -> this.skip(skip - toRead));
     }
 
@@ -99,20 +226,40 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
         if (totalLength < seek)
             throw new IllegalStateException("Cannot seek to position "+ seek);
+        // seeking to the end of a file which fills its last chunk lands at the end of that chunk
+        long chunkIndex = seek == totalLength && seek > 0 ? (seek - 1) / Chunk.MAX_SIZE : seek / Chunk.MAX_SIZE;
+        if (chunkIndex > 0 && streamSecret.isPresent())
+            return seekToChunk(chunkIndex, (int) (seek - chunkIndex * Chunk.MAX_SIZE));
         return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
     }
 
+    /** Jump straight to the chunk with the given index using its derived location
+     */
+    private CompletableFuture<AsyncReader> seekToChunk(long chunkIndex, int offsetInChunk) {
+        long chunkGlobalIndex = chunkIndex * Chunk.MAX_SIZE;
+        if (chunkGlobalIndex == globalIndex) {
+            index = offsetInChunk;
+            return CompletableFuture.completedFuture(this);
+        }
+        Location location = FileProperties.getChunkLocation(originalNextPointer.owner, originalNextPointer.writer,
+                streamSecret.get(), chunkIndex);
+        return takeChunk(location, chunkGlobalIndex, chunkLength(chunkGlobalIndex)).thenApply(chunk -> {
+            updateState(offsetInChunk, chunkGlobalIndex, chunk.data, chunk.next);
+            return this;
+        });
+    }
+
     private int bytesReady() {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        cancelReadAhead();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
-        this.globalIndex = 0;
-        this.currentChunk = originalChunk;
-        this.nextChunkPointer = originalNextPointer;
-        this.index = 0;
+        cancelReadAhead();
+        updateState(0, 0, originalChunk, originalNextPointer);
         return CompletableFuture.completedFuture(this);
     }
 
@@ -124,14 +271,16 @@ public class LazyInputStreamCombiner implements AsyncReader {
      * @return number of bytes read
      */
     public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+        enteredChunk();
         int available = bytesReady();
         int toRead = Math.min(available, length);
         System.arraycopy(currentChunk, index, res, offset, toRead);
         index += toRead;
         long globalOffset = globalIndex + index;
 
-        if (available >= length) // we are done
+        if (available >= length) { // we are done
             return CompletableFuture.completedFuture(length);
+        }
         if (globalOffset > totalLength) {
             CompletableFuture<Integer> err=  new CompletableFuture<>();
             err.completeExceptionally(new EOFException());
@@ -145,7 +294,8 @@ public class LazyInputStreamCombiner implements AsyncReader {
         );
     }
 
-    private void updateState(int index,
+    // synchronized with the read ahead callbacks, which read the current chunk's position and next pointer
+    private synchronized void updateState(int index,
                              long globalIndex,
                              byte[] chunk,
                              Location nextChunkPointer) {
@@ -12,13 +12,18 @@ public class SplitFragmenter implements Fragmenter {
     }
 
     public byte[][] split(byte[] input) {
+        return split(input, 0, input.length);
+    }
+
+    @Override
+    public byte[][] split(byte[] input, int offset, int inputLength) {
         //calculate padding length to align to 256 bytes
         int padding = 0;
-        int mod = input.length % 256;
-        if (mod != 0 || input.length == 0)
+        int mod = inputLength % 256;
+        if (mod != 0 || inputLength == 0)
             padding = 256 - mod;
         //align to 256 bytes
-        int len = input.length + padding;
+        int len = inputLength + padding;
 
         //calculate the number  of fragments
         int nFragments =  len / Fragment.MAX_LENGTH;
@@ -28,10 +33,10 @@ public class SplitFragmenter implements Fragmenter {
         byte[][] split = new  byte[nFragments][];
         for(int i= 0; i< nFragments; ++i) {
             int start = Fragment.MAX_LENGTH * i;
-            int end = Math.min(input.length, start + Fragment.MAX_LENGTH);
+            int end = Math.min(inputLength, start + Fragment.MAX_LENGTH);
             int length = end - start;
             byte[] b = new byte[length];
-            System.arraycopy(input, start, b, 0, length);
+            System.arraycopy(input, offset + start, b, 0, length);
             split[i] = b;
         }
         return split;
@@ -46,17 +51,22 @@ public class SplitFragmenter implements Fragmenter {
     }
 
     public byte[] recombine(byte[][] encoded, int truncateTo) {
+        return recombine(encoded, truncateTo, 0);
+    }
+
+    @Override
+    public byte[] recombine(byte[][] encoded, int truncateTo, int headerSpace) {
         int length = 0;
 
         for (int i=0; i < encoded.length; i++)
             length += encoded[i].length;
 
-        byte[] output = new byte[length];
+        byte[] output = new byte[headerSpace + length];
         int pos =  0;
         for (int i=0; i < encoded.length && pos < truncateTo; i++) {
             byte[] b = encoded[i];
             int copyLength = Math.max(0, Math.min(b.length, truncateTo - pos));
-            System.arraycopy(b, 0, output, pos, copyLength);
+            System.arraycopy(b, 0, output, headerSpace + pos, copyLength);
             pos += copyLength;
         }
         return output;
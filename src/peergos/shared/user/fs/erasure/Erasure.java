@@ -9,7 +9,7 @@ public class Erasure {
 
     public static byte[][] split(byte[] input, int originalBlobs, int allowedFailures)
     {
-        return split(input, new GaloisField256(), originalBlobs, allowedFailures);
+        return ReedSolomon256.split(input, originalBlobs, allowedFailures, true);
     }
 
     public static byte[][] split(byte[] input, GaloisField f, int originalBlobs, int allowedFailures)
@@ -74,12 +74,16 @@ public class Erasure {
                     break;
                 if (k == originalBlobs - 1) {
                     // shortcut
-                    ByteArrayOutputStream res = new ByteArrayOutputStream();
-                    for (int i = 0; i < tbSize; i += symbolSize) {
-                        for (int j = 0; j < originalBlobs; j++)
-                            res.write(encoded[j], i, symbolSize);
+                    byte[] res = new byte[truncateTo];
+                    int pos = 0;
+                    for (int i = 0; i < tbSize && pos < truncateTo; i += symbolSize) {
+                        for (int j = 0; j < originalBlobs && pos < truncateTo; j++) {
+                            int len = Math.min(symbolSize, truncateTo - pos);
+                            System.arraycopy(encoded[j], i, res, pos, len);
+                            pos += len;
+                        }
                     }
-                    return Arrays.copyOfRange(res.toByteArray(), 0, truncateTo);
+                    return res;
                 }
             }
 
@@ -0,0 +1,109 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A table driven systematic Reed-Solomon encoder over GF(256) operating directly on byte arrays.
+ *
+ *  The output is identical to Erasure.split with a GaloisField256, which converts to ints and encodes each block with
+ *  GaloisPolynomial.encode. Encoding is linear, so the parity of a block is the xor over its symbols of the parity of
+ *  each symbol on its own. These are precomputed for every position and byte value and packed into ints, leaving a
+ *  few table lookups and int xors per input byte.
+ */
+public class ReedSolomon256 {
+    private static final int SIZE = 256;
+    private static final int PARALLEL_STRIPES = 16;
+    private static final Map<Long, ReedSolomon256> encoders = new HashMap<>();
+
+    private final int blockSize, nEC, words;
+    // the parity of value x at position i of a block is packed little endian in words ints starting at (i * 256 + x) * words
+    private final int[] parityTable;
+
+    private ReedSolomon256(int blockSize, int nEC) {
+        GaloisField f = new GaloisField256();
+        this.blockSize = blockSize;
+        this.nEC = nEC;
+        this.words = (nEC + 3) / 4;
+        this.parityTable = new int[blockSize * SIZE * words];
+        int[] unit = new int[blockSize];
+        for (int i = 0; i < blockSize; i++) {
+            unit[i] = 1;
+            int[] encoded = GaloisPolynomial.encode(unit, nEC, f);
+            unit[i] = 0;
+            for (int x = 1; x < SIZE; x++) {
+                int base = (i * SIZE + x) * words;
+                for (int j = 0; j < nEC; j++)
+                    parityTable[base + j / 4] |= f.mul(x, encoded[blockSize + j]) << (8 * (j % 4));
+            }
+        }
+    }
+
+    public static synchronized ReedSolomon256 build(int blockSize, int nEC) {
+        return encoders.computeIfAbsent(((long) blockSize << 32) | nEC, k -> new ReedSolomon256(blockSize, nEC));
+    }
+
+    /** Compute the parity of a single block. Bytes beyond the end of the input are treated as zero.
+     *
+     * @param input
+     * @param offset start of the block in input
+     * @param acc working space of at least (nEC + 3) / 4 ints
+     * @param parity where to write the nEC parity bytes
+     */
+    public void encodeBlock(byte[] input, int offset, int[] acc, byte[] parity) {
+        Arrays.fill(acc, 0, words, 0);
+        int available = Math.max(0, Math.min(blockSize, input.length - offset));
+        for (int i = 0; i < available; i++) {
+            int x = input[offset + i] & 0xff;
+            if (x == 0)
+                continue;
+            int base = (i * SIZE + x) * words;
+            for (int w = 0; w < words; w++)
+                acc[w] ^= parityTable[base + w];
+        }
+        for (int j = 0; j < nEC; j++)
+            parity[j] = (byte) (acc[j / 4] >> (8 * (j % 4)));
+    }
+
+    public static byte[][] split(byte[] input, int originalBlobs, int allowedFailures, boolean parallel) {
+        long t1 = System.currentTimeMillis();
+        int n = originalBlobs + allowedFailures * 2;
+        int encodeSize = (SIZE / n) * n;
+        int inputSize = encodeSize * originalBlobs / n;
+        int nec = encodeSize - inputSize;
+        int symbolSize = inputSize / originalBlobs;
+        if (symbolSize * originalBlobs != inputSize)
+            throw new IllegalStateException("Bad alignment of bytes in chunking. " + inputSize + " != "
+                    + symbolSize + " * " + originalBlobs);
+
+        int nBlocks = (input.length + inputSize - 1) / inputSize;
+        byte[][] res = new byte[n][nBlocks * symbolSize];
+
+        // the original fragments are just the input, interleaved
+        for (int b = 0; b < nBlocks; b++) {
+            for (int j = 0; j < originalBlobs; j++) {
+                int start = b * inputSize + j * symbolSize;
+                int len = Math.min(symbolSize, input.length - start);
+                if (len > 0)
+                    System.arraycopy(input, start, res[j], b * symbolSize, len);
+            }
+        }
+
+        ReedSolomon256 encoder = build(inputSize, nec);
+        int nStripes = parallel ? Math.min(nBlocks, PARALLEL_STRIPES) : Math.min(nBlocks, 1);
+        IntStream stripes = IntStream.range(0, nStripes);
+        (parallel ? stripes.parallel() : stripes).forEach(stripe -> {
+            byte[] parity = new byte[nec];
+            int[] acc = new int[encoder.words];
+            int startBlock = (int) ((long) nBlocks * stripe / nStripes);
+            int endBlock = (int) ((long) nBlocks * (stripe + 1) / nStripes);
+            for (int b = startBlock; b < endBlock; b++) {
+                encoder.encodeBlock(input, b * inputSize, acc, parity);
+                for (int p = 0; p < nec; p += symbolSize)
+                    System.arraycopy(parity, p, res[originalBlobs + p / symbolSize], b * symbolSize, symbolSize);
+            }
+        });
+        long t2 = System.currentTimeMillis();
+        System.out.println("Erasure encoding took "+(t2-t1)+ " mS");
+        return res;
+    }
+}
@@ -0,0 +1,46 @@
+package peergos.shared.util;
+
+import java.util.*;
+
+/** A bounded pool of equally sized byte arrays, to avoid allocating a new large array for every chunk.
+ *  If the pool is empty a new array is allocated, and arrays released to a full pool are left for the garbage collector.
+ *  Arrays are not cleared on release.
+ */
+public class BufferPool {
+    private final int bufferSize, maxPooled;
+    private final LinkedList<byte[]> free = new LinkedList<>();
+    private long allocated;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized byte[] take() {
+        if (! free.isEmpty())
+            return free.removeFirst();
+        allocated++;
+        return new byte[bufferSize];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length != bufferSize || free.size() >= maxPooled)
+            return;
+        for (byte[] pooled : free)
+            if (pooled == buffer)
+                throw new IllegalStateException("Buffer released twice!");
+        free.addFirst(buffer);
+    }
+
+    /**
+     *
+     * @return the number of arrays this pool has had to allocate
+     */
+    public synchronized long allocatedCount() {
+        return allocated;
+    }
+}
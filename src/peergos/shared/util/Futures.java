@@ -14,13 +14,7 @@ public class Futures {
      * @return
      */
     public static <T> CompletableFuture<Set<T>> combineAll(Collection<CompletableFuture<T>> futures) {
-        CompletableFuture<Set<T>> identity = CompletableFuture.completedFuture(Collections.emptySet());
-        return futures.stream().reduce(identity,
-                (a, b) -> b.thenCompose(opt ->
-                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
-                                .collect(Collectors.toSet()))),
-                (a, b) -> b.thenCompose(setb ->
-                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toSet()))));
+        return allOf(futures).thenApply(HashSet::new);
     }
 
     /**
@@ -30,16 +24,159 @@ public class Futures {
      * @return
      */
     public static <T> CompletableFuture<List<T>> combineAllInOrder(Collection<CompletableFuture<T>> futures) {
-        CompletableFuture<List<T>> identity = CompletableFuture.completedFuture(Collections.emptyList());
-        return futures.stream().reduce(identity,
-                (a, b) -> b.thenCompose(opt ->
-                        a.thenApply(set -> Stream.concat(set.stream(), Stream.of(opt))
-                                .collect(Collectors.toList()))),
-                (a, b) -> b.thenCompose(setb ->
-                        a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toList()))));
+        return allOf(futures);
     }
 
-    /*** Reduce a set of input values against an Identity where the composition step is asynchronous
+    /** Wait for all the futures, collecting their results directly into an array of the right size
+     *
+     * @param futures collection of independent futures whose results we want to combine
+     * @param <T> result type of each future
+     * @return the results in the same order as the futures, or the first failure
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<List<T>> allOf(Collection<? extends CompletableFuture<? extends T>> futures) {
+        Object[] results = new Object[futures.size()];
+        CompletableFuture<List<T>> res = new CompletableFuture<>();
+        if (results.length == 0) {
+            res.complete(Collections.emptyList());
+            return res;
+        }
+        int[] remaining = {results.length};
+        int i = 0;
+        for (CompletableFuture<? extends T> future : futures) {
+            int index = i++;
+            future.thenAccept(value -> {
+                boolean done;
+                synchronized (results) {
+                    results[index] = value;
+                    done = --remaining[0] == 0;
+                }
+                if (done)
+                    res.complete((List<T>) Arrays.asList(results));
+            }).exceptionally(t -> {
+                res.completeExceptionally(t);
+                return null;
+            });
+        }
+        return res;
+    }
+
+    /** Apply an asynchronous function to every input, with at most maxInFlight calls outstanding at once. Each call
+     *  after the first maxInFlight is only made when an earlier one completes.
+     *
+     * @param input
+     * @param mapper
+     * @param maxInFlight
+     * @param <V> input type
+     * @param <T> result type
+     * @return the results in the same order as the input, or the first failure, after which no more calls are made
+     */
+    public static <V, T> CompletableFuture<List<T>> mapConcurrent(List<V> input,
+                                                                  Function<V, CompletableFuture<T>> mapper,
+                                                                  int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        return new BoundedMap<>(input, mapper, maxInFlight).start();
+    }
+
+    private static class BoundedMap<V, T> {
+        private final List<V> input;
+        private final Function<V, CompletableFuture<T>> mapper;
+        private final int maxInFlight;
+        private final Object[] results;
+        private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        // everything below is guarded by this
+        private int next = 0, inFlight = 0, completed = 0;
+        // whether a thread is in the launch loop, which calls that complete immediately mustn't re-enter
+        private boolean launching = false;
+
+        BoundedMap(List<V> input, Function<V, CompletableFuture<T>> mapper, int maxInFlight) {
+            this.input = input;
+            this.mapper = mapper;
+            this.maxInFlight = maxInFlight;
+            this.results = new Object[input.size()];
+        }
+
+        CompletableFuture<List<T>> start() {
+            if (input.isEmpty())
+                result.complete(Collections.emptyList());
+            else
+                launch();
+            return result;
+        }
+
+        private void launch() {
+            synchronized (this) {
+                if (launching)
+                    return;
+                launching = true;
+            }
+            while (true) {
+                int index;
+                synchronized (this) {
+                    if (result.isDone() || next >= results.length || inFlight >= maxInFlight) {
+                        launching = false;
+                        return;
+                    }
+                    index = next++;
+                    inFlight++;
+                }
+                CompletableFuture<T> call;
+                try {
+                    call = mapper.apply(input.get(index));
+                } catch (Throwable t) {
+                    call = new CompletableFuture<>();
+                    call.completeExceptionally(t);
+                }
+                call.thenAccept(value -> completed(index, value))
+                        .exceptionally(t -> {
+                            result.completeExceptionally(t);
+                            return null;
+                        });
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void completed(int index, T value) {
+            boolean done;
+            synchronized (this) {
+                results[index] = value;
+                inFlight--;
+                done = ++completed == results.length;
+            }
+            if (done)
+                result.complete((List<T>) Arrays.asList(results));
+            else
+                launch();
+        }
+    }
+
+    /** Map every input asynchronously, with at most maxInFlight calls outstanding at once, and combine the results.
+     *
+     * @param input the values to reduce
+     * @param identity the identity of the target type
+     * @param mapper maps an input value to a target type value asynchronously
+     * @param combiner an associative combination of two target type values
+     * @param maxInFlight
+     * @param <T> target type
+     * @param <V> input type
+     * @return
+     */
+    public static <T, V> CompletableFuture<T> reduceAllConcurrent(List<V> input,
+                                                                  T identity,
+                                                                  Function<V, CompletableFuture<T>> mapper,
+                                                                  BiFunction<T, T, T> combiner,
+                                                                  int maxInFlight) {
+        return mapConcurrent(input, mapper, maxInFlight).thenApply(results -> {
+            T res = identity;
+            for (T result : results)
+                res = combiner.apply(res, result);
+            return res;
+        });
+    }
+
+    /*** Reduce a set of input values against an Identity where the composition step is asynchronous. Each composition
+     *   waits for the previous one, so use reduceAllConcurrent when the input values can be mapped independently.
      *
      * @param input the values to reduce
      * @param identity the identity of the target type
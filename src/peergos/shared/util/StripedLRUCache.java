@@ -0,0 +1,149 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.function.*;
+
+/** A thread safe LRU cache bounded by the total weight of its values rather than the number of entries.
+ *
+ *  Keys are spread over a number of independently locked stripes, each of which evicts its least recently used
+ *  entries once it exceeds its share of the total weight, so concurrent readers of different keys rarely contend.
+ */
+public class StripedLRUCache<K, V> {
+
+    private final List<Stripe<K, V>> stripes;
+    private final Function<V, Integer> weigher;
+
+    public StripedLRUCache(int nStripes, long maxWeight, Function<V, Integer> weigher) {
+        if (nStripes < 1)
+            throw new IllegalArgumentException("Need at least one stripe!");
+        this.weigher = weigher;
+        this.stripes = new ArrayList<>(nStripes);
+        long maxStripeWeight = Math.max(1, maxWeight / nStripes);
+        for (int i = 0; i < nStripes; i++)
+            stripes.add(new Stripe<>(maxStripeWeight));
+    }
+
+    private Stripe<K, V> stripe(K key) {
+        return stripes.get((key.hashCode() & 0x7fffffff) % stripes.size());
+    }
+
+    public Optional<V> get(K key) {
+        return stripe(key).get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return stripe(key).containsKey(key);
+    }
+
+    /**
+     *  Values heavier than a single stripe's share of the total weight are not cached.
+     */
+    public void put(K key, V value) {
+        stripe(key).put(key, value, weigher.apply(value));
+    }
+
+    public void remove(K key) {
+        stripe(key).remove(key);
+    }
+
+    public void clear() {
+        stripes.forEach(Stripe::clear);
+    }
+
+    public long size() {
+        return stripes.stream().mapToLong(Stripe::size).sum();
+    }
+
+    public long weight() {
+        return stripes.stream().mapToLong(s -> s.weight()).sum();
+    }
+
+    public long hitCount() {
+        return stripes.stream().mapToLong(s -> s.hits()).sum();
+    }
+
+    public long missCount() {
+        return stripes.stream().mapToLong(s -> s.misses()).sum();
+    }
+
+    public long evictionCount() {
+        return stripes.stream().mapToLong(s -> s.evictions()).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + ", weight: " + weight() + ", hits: " + hitCount() + ", misses: " + missCount()
+                + ", evictions: " + evictionCount();
+    }
+
+    private static class Stripe<K, V> {
+        private final LinkedHashMap<K, Pair<V, Integer>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private long weight, hits, misses, evictions;
+
+        Stripe(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Optional<V> get(K key) {
+            Pair<V, Integer> entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return Optional.empty();
+            }
+            hits++;
+            return Optional.of(entry.left);
+        }
+
+        synchronized boolean containsKey(K key) {
+            return entries.containsKey(key);
+        }
+
+        synchronized void put(K key, V value, int valueWeight) {
+            if (valueWeight > maxWeight)
+                return;
+            Pair<V, Integer> existing = entries.put(key, new Pair<>(value, valueWeight));
+            if (existing != null)
+                weight -= existing.right;
+            weight += valueWeight;
+
+            Iterator<Pair<V, Integer>> eldest = entries.values().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= eldest.next().right;
+                eldest.remove();
+                evictions++;
+            }
+        }
+
+        synchronized void remove(K key) {
+            Pair<V, Integer> existing = entries.remove(key);
+            if (existing != null)
+                weight -= existing.right;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized long size() {
+            return entries.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+
+        synchronized long hits() {
+            return hits;
+        }
+
+        synchronized long misses() {
+            return misses;
+        }
+
+        synchronized long evictions() {
+            return evictions;
+        }
+    }
+}